@@ -0,0 +1,535 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package org.systemsbiology.biofabric.bench;
+
+import java.awt.Dimension;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.systemsbiology.biofabric.api.io.BuildExtractor;
+import org.systemsbiology.biofabric.api.layout.DefaultEdgeLayout;
+import org.systemsbiology.biofabric.api.layout.DefaultLayout;
+import org.systemsbiology.biofabric.api.model.AugRelation;
+import org.systemsbiology.biofabric.api.model.NetLink;
+import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.api.parser.ParserClient;
+import org.systemsbiology.biofabric.api.util.UniqueLabeller;
+import org.systemsbiology.biofabric.api.worker.PhaseTelemetry;
+import org.systemsbiology.biofabric.io.BuildDataImpl;
+import org.systemsbiology.biofabric.io.FabricFactory;
+import org.systemsbiology.biofabric.io.FabricXMLReader;
+import org.systemsbiology.biofabric.io.SIFImportLoader;
+import org.systemsbiology.biofabric.layouts.NodeSimilarityLayout;
+import org.systemsbiology.biofabric.model.BioFabricNetwork;
+import org.systemsbiology.biofabric.parser.ProgressFilterInputStream;
+import org.systemsbiology.biofabric.parser.SUParser;
+import org.systemsbiology.biofabric.plugin.PlugInManager;
+import org.systemsbiology.biofabric.plugin.PluginSupportFactory;
+import org.systemsbiology.biofabric.ui.FabricColorGenerator;
+import org.systemsbiology.biofabric.ui.display.BioFabricPanel;
+import org.systemsbiology.biofabric.ui.render.BucketRenderer;
+import org.systemsbiology.biofabric.ui.render.ImgAndBufPool;
+import org.systemsbiology.biofabric.ui.render.PaintCacheSmall;
+
+/****************************************************************************
+**
+** Times the load, layout, build and render pipeline on synthetic networks.
+** Each stage is timed on its own: the work to get to that stage is done once
+** (or before each rep, for stages that change their input) and not counted.
+** Each case gets warmup reps, then measured reps; we report the min, median 
+** and mean time, and the bytes allocated per rep when the JVM can tell us.
+** Set -Dbiofabric.phaseTelemetry=<dir> to also get a phase breakdown for 
+** every measured rep.
+**
+** xmlRead times FabricXMLReader, which file loads use; xmlReadSAX times the
+** SUParser path it falls back to, for comparison.
+**
+** NodeSimilarityLayout is quadratic in the node count, so by default it is
+** skipped above 10000 links. Use -all to run it anyway.
+**
+** Usage: PipelineBenchmark [-sizes 10000,100000,1000000] [-shapes scaleFree,clustered]
+**                          [-cases name,...] [-warmup n] [-reps n] [-all] [-csv outFile]
+*/
+
+public class PipelineBenchmark {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private static final String[] ALL_CASES_ = new String[] {"sifImport", "defaultLayout", "defaultEdgeLayout",
+                                                           "networkBuild", "nodeSimilarityLayout", 
+                                                           "buildObjCache", "drawForBuffer", 
+                                                           "xmlWrite", "xmlRead", "xmlReadSAX"};
+  
+  private static final int SIMILARITY_MAX_LINKS_ = 10000;
+  
+  //
+  // Same size as the tiles BufferBuilder renders:
+  //
+  
+  private static final int TILE_WIDTH_ = 1280;
+  private static final int TILE_HEIGHT_ = 801;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private int warmup_;
+  private int reps_;
+  private PrintWriter csv_;
+  private long sink_;
+  private Method allocMethod_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Constructor
+  */
+
+  public PipelineBenchmark(int warmup, int reps, PrintWriter csv) {
+    warmup_ = warmup;
+    reps_ = reps;
+    csv_ = csv;
+    sink_ = 0L;
+    try {
+      Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+      if (beanClass.isInstance(ManagementFactory.getThreadMXBean())) {
+        allocMethod_ = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+      }
+    } catch (Exception ex) {
+      allocMethod_ = null;
+    }
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Main entry point
+  */
+
+  public static void main(String[] argv) throws Exception {
+    System.setProperty("java.awt.headless", "true");
+    int[] sizes = new int[] {10000, 100000, 1000000};
+    String[] shapes = new String[] {SyntheticSIFGenerator.SCALE_FREE, SyntheticSIFGenerator.CLUSTERED};
+    Set<String> cases = new HashSet<String>(Arrays.asList(ALL_CASES_));
+    int warmup = 2;
+    int reps = 5;
+    boolean all = false;
+    File csvFile = null;
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("-sizes")) {
+        String[] toks = argv[++i].split(",");
+        sizes = new int[toks.length];
+        for (int j = 0; j < toks.length; j++) {
+          sizes[j] = Integer.parseInt(toks[j].trim());
+        }
+      } else if (argv[i].equals("-shapes")) {
+        shapes = argv[++i].split(",");
+      } else if (argv[i].equals("-cases")) {
+        cases = new HashSet<String>(Arrays.asList(argv[++i].split(",")));
+      } else if (argv[i].equals("-warmup")) {
+        warmup = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-reps")) {
+        reps = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-all")) {
+        all = true;
+      } else if (argv[i].equals("-csv")) {
+        csvFile = new File(argv[++i]);
+      } else {
+        System.err.println("Unknown argument " + argv[i]);
+        System.exit(1);
+      }
+    }
+    
+    PrintWriter csv = null;
+    if (csvFile != null) {
+      csv = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFile), "UTF-8")));
+      csv.println("shape,links,case,reps,minMs,medianMs,meanMs,allocBytesPerRep");
+    }
+    try {
+      PipelineBenchmark pb = new PipelineBenchmark(warmup, reps, csv);
+      for (String shape : shapes) {
+        for (int size : sizes) {
+          pb.runNetwork(shape.trim(), size, cases, all);
+        }
+      }
+      System.out.println("(sink " + pb.sink_ + ")");
+    } finally {
+      if (csv != null) {
+        csv.close();
+      }
+    }
+    System.exit(0);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Run the cases for one synthetic network. Stages that later stages depend on
+  ** are built even if their own case is not being run.
+  */
+
+  private void runNetwork(final String shape, final int numLinks, Set<String> cases, boolean all) throws Exception {
+    final File sif = File.createTempFile("bench-" + shape + "-" + numLinks, ".sif");
+    sif.deleteOnExit();
+    final File xml = File.createTempFile("bench-" + shape + "-" + numLinks, ".bif");
+    xml.deleteOnExit();
+    SyntheticSIFGenerator.write(shape, numLinks, sif, 19L);
+    System.out.println(shape + ", " + numLinks + " links:");
+    
+    final PlugInManager pMan = new PlugInManager();
+    final FabricColorGenerator colGen = new FabricColorGenerator();
+    colGen.newColorModel();
+    
+    if (cases.contains("sifImport")) {
+      runCase(shape, numLinks, "sifImport", new BenchCase() {
+        public void setUp() {}
+        public long run() throws Exception {
+          ArrayList<NetLink> links = new ArrayList<NetLink>();
+          HashSet<NetNode> lone = new HashSet<NetNode>();
+          new SIFImportLoader().importFabric(sif, new UniqueLabeller(), links, lone, null, null, null);
+          return (links.size() + lone.size());
+        }
+      });
+    }
+    
+    //
+    // Import and preprocess once for everything downstream, the same way 
+    // FileLoadFlowsImpl does it:
+    //
+    
+    final UniqueLabeller idGen = new UniqueLabeller();
+    ArrayList<NetLink> links = new ArrayList<NetLink>();
+    final HashSet<NetNode> lone = new HashSet<NetNode>();
+    new SIFImportLoader().importFabric(sif, idGen, links, lone, null, null, null);
+    TreeMap<AugRelation, Boolean> relMap = new TreeMap<AugRelation, Boolean>();
+    BuildExtractor bex = PluginSupportFactory.getBuildExtractor();
+    bex.extractRelations(links, relMap, null);
+    bex.assignDirections(links, relMap, null);
+    final HashSet<NetLink> reducedLinks = new HashSet<NetLink>();
+    bex.preprocessLinks(links, reducedLinks, new HashSet<NetLink>(), null);
+    links = null;
+    
+    if (cases.contains("defaultLayout")) {
+      runCase(shape, numLinks, "defaultLayout", new BenchCase() {
+        private BuildDataImpl bd_;
+        public void setUp() {
+          bd_ = sifBuildData(idGen, reducedLinks, lone, colGen);
+        }
+        public long run() throws Exception {
+          return (new DefaultLayout().doNodeLayout(bd_, null, null).size());
+        }
+      });
+    }
+    
+    if (cases.contains("defaultEdgeLayout")) {
+      runCase(shape, numLinks, "defaultEdgeLayout", new BenchCase() {
+        private BuildDataImpl bd_;
+        public void setUp() throws Exception {
+          bd_ = sifBuildData(idGen, reducedLinks, lone, colGen);
+          new DefaultLayout().doNodeLayout(bd_, null, null);
+        }
+        public long run() throws Exception {
+          DefaultEdgeLayout el = new DefaultEdgeLayout();
+          el.preProcessEdges(bd_, null);
+          el.layoutEdges(bd_, null);
+          return (bd_.getLinkOrder().size());
+        }
+      });
+    }
+    
+    if (cases.contains("networkBuild")) {
+      runCase(shape, numLinks, "networkBuild", new BenchCase() {
+        private BuildDataImpl bd_;
+        public void setUp() {
+          bd_ = sifBuildData(idGen, reducedLinks, lone, colGen);
+        }
+        public long run() throws Exception {
+          return (new BioFabricNetwork(bd_, pMan, null).getLinkCount(true));
+        }
+      });
+    }
+    
+    final BioFabricNetwork bfn = new BioFabricNetwork(sifBuildData(idGen, reducedLinks, lone, colGen), pMan, null);
+    
+    if (cases.contains("nodeSimilarityLayout")) {
+      if (!all && (numLinks > SIMILARITY_MAX_LINKS_)) {
+        System.out.println("  nodeSimilarityLayout: skipped (use -all)");
+      } else {
+        runCase(shape, numLinks, "nodeSimilarityLayout", new BenchCase() {
+          private BuildDataImpl bd_;
+          public void setUp() throws Exception {
+            bd_ = new BuildDataImpl(bfn, BuildDataImpl.BuildMode.CLUSTERED_LAYOUT, null);
+          }
+          public long run() throws Exception {
+            return (new NodeSimilarityLayout().doNodeLayout(bd_, new NodeSimilarityLayout.ClusterParams(), null).size());
+          }
+        });
+      }
+    }
+    
+    for (final boolean showShadows : new boolean[] {true, false}) {
+      String tag = (showShadows) ? "WithShadows" : "NoShadows";
+      final Rectangle2D netRect = new Rectangle2D.Double(0.0, 0.0, bfn.getColumnCount(showShadows) * BioFabricPanel.GRID_SIZE, 
+                                                         bfn.getRowCount() * BioFabricPanel.GRID_SIZE);
+      if (cases.contains("buildObjCache")) {
+        runCase(shape, numLinks, "buildObjCache" + tag, new BenchCase() {
+          public void setUp() {}
+          public long run() throws Exception {
+            PaintCacheSmall painter = new PaintCacheSmall(colGen);
+            Rectangle2D bounds = painter.buildObjCache(bfn.getNodeDefList(), bfn.getLinkDefList(showShadows), true, showShadows, 
+                                                       bfn.getExtents(), new HashMap<NetNode, Rectangle2D>(), 
+                                                       new HashMap<NetNode, List<Rectangle2D>>(), netRect, 
+                                                       bfn.getNodeAnnotations(), bfn.getLinkAnnotations(Boolean.valueOf(showShadows)), 
+                                                       null);
+            return ((long)bounds.getWidth());
+          }
+        });
+      }
+      
+      if (cases.contains("drawForBuffer")) {
+        final ImgAndBufPool pool = new ImgAndBufPool(50000);
+        final BucketRenderer rend = new BucketRenderer(colGen);
+        final Dimension tileDim = new Dimension(TILE_WIDTH_, TILE_HEIGHT_);
+        rend.buildBucketCache(bfn.getNodeDefList(), bfn.getLinkDefList(showShadows), bfn.getNodeAnnotations(), 
+                              bfn.getLinkAnnotations(Boolean.valueOf(showShadows)), bfn.getExtents(), showShadows);
+        rend.setModelDims(tileDim, netRect, pool);
+        runCase(shape, numLinks, "drawForBuffer" + tag, new BenchCase() {
+          public void setUp() {}
+          public long run() throws Exception {
+            BufferedImage bi = pool.fetchImage(TILE_WIDTH_, TILE_HEIGHT_, BufferedImage.TYPE_INT_RGB);
+            rend.drawForBuffer(bi, netRect, tileDim, netRect, 0, 
+                               Math.max(1.0, netRect.getWidth() / (TILE_WIDTH_ * BioFabricPanel.GRID_SIZE)));
+            long retval = bi.getRGB(TILE_WIDTH_ / 2, TILE_HEIGHT_ / 2);
+            pool.returnImage(bi);
+            return (retval);
+          }
+        });
+      }
+    }
+    
+    //
+    // Always write, since reading needs the file:
+    //
+    
+    BenchCase writeCase = new BenchCase() {
+      public void setUp() {}
+      public long run() throws Exception {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(xml), 64 * 1024);
+        try {
+          bfn.writeXML(out, null, false);
+        } finally {
+          out.close();
+        }
+        return (xml.length());
+      }
+    };
+    if (cases.contains("xmlWrite")) {
+      runCase(shape, numLinks, "xmlWrite", writeCase);
+    } else if (cases.contains("xmlRead") || cases.contains("xmlReadSAX")) {
+      writeCase.run();
+    }
+    
+    if (cases.contains("xmlRead")) {
+      runCase(shape, numLinks, "xmlRead", new BenchCase() {
+        public void setUp() {}
+        public long run() throws Exception {
+          FabricFactory ff = new FabricFactory(pMan);
+          BufferedInputStream bis = new BufferedInputStream(new FileInputStream(xml));
+          try {
+            if (!FabricXMLReader.canRead(bis)) {
+              throw new IllegalStateException();
+            }
+            (new FabricXMLReader(ff)).parse(new ProgressFilterInputStream(bis, xml.length()), null, false);
+          } finally {
+            bis.close();
+          }
+          return (ff.getFabricNetwork().getLinkCount(true));
+        }
+      });
+    }
+    
+    if (cases.contains("xmlReadSAX")) {
+      runCase(shape, numLinks, "xmlReadSAX", new BenchCase() {
+        public void setUp() {}
+        public long run() throws Exception {
+          ArrayList<ParserClient> alist = new ArrayList<ParserClient>();
+          FabricFactory ff = new FabricFactory(pMan);
+          alist.add(ff);
+          new SUParser(alist).parse(xml);
+          return (ff.getFabricNetwork().getLinkCount(true));
+        }
+      });
+    }
+    
+    sif.delete();
+    xml.delete();
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Fresh build data for a SIF load. Layouts write into it, so each rep needs its own.
+  */
+
+  private BuildDataImpl sifBuildData(UniqueLabeller idGen, Set<NetLink> reducedLinks, 
+                                     Set<NetNode> lone, FabricColorGenerator colGen) {
+    return (new BuildDataImpl(idGen, reducedLinks, lone, new HashMap<NetNode, String>(), 
+                              colGen, BuildDataImpl.BuildMode.BUILD_FROM_SIF));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Warm up, then time the reps
+  */
+
+  private void runCase(String shape, int numLinks, String name, BenchCase bc) throws Exception {
+    for (int i = 0; i < warmup_; i++) {
+      bc.setUp();
+      sink_ += bc.run();
+    }
+    long[] nanos = new long[reps_];
+    long allocTotal = 0L;
+    boolean haveAlloc = true;
+    for (int i = 0; i < reps_; i++) {
+      bc.setUp();
+      System.gc();
+      PhaseTelemetry telem = PhaseTelemetry.startRun(name + "-" + shape + "-" + numLinks);
+      long startAlloc = allocatedBytes();
+      long start = System.nanoTime();
+      sink_ += bc.run();
+      nanos[i] = System.nanoTime() - start;
+      long endAlloc = allocatedBytes();
+      if (telem != null) {
+        telem.endRun();
+      }
+      if ((startAlloc < 0L) || (endAlloc < 0L)) {
+        haveAlloc = false;
+      } else {
+        allocTotal += (endAlloc - startAlloc);
+      }
+    }
+    
+    if (reps_ == 0) {
+      return;
+    }
+    long[] sorted = nanos.clone();
+    Arrays.sort(sorted);
+    long sum = 0L;
+    for (int i = 0; i < reps_; i++) {
+      sum += nanos[i];
+    }
+    double minMs = sorted[0] / 1.0E6;
+    double medMs = sorted[reps_ / 2] / 1.0E6;
+    double meanMs = (sum / (double)reps_) / 1.0E6;
+    String alloc = (haveAlloc) ? Long.toString(allocTotal / reps_) : "";
+    System.out.println("  " + name + ": min " + fmt(minMs) + " ms, median " + fmt(medMs) + 
+                       " ms, mean " + fmt(meanMs) + " ms" + 
+                       ((haveAlloc) ? ", " + fmt((allocTotal / (double)reps_) / 1.0E6) + " MB allocated" : ""));
+    if (csv_ != null) {
+      csv_.println(shape + "," + numLinks + "," + name + "," + reps_ + "," + fmt(minMs) + "," + 
+                   fmt(medMs) + "," + fmt(meanMs) + "," + alloc);
+      csv_.flush();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Bytes allocated by this thread, or -1 if we cannot tell
+  */
+
+  private long allocatedBytes() {
+    if (allocMethod_ == null) {
+      return (-1L);
+    }
+    try {
+      return (((Long)allocMethod_.invoke(ManagementFactory.getThreadMXBean(), 
+                                         Long.valueOf(Thread.currentThread().getId()))).longValue());
+    } catch (Exception ex) {
+      return (-1L);
+    }
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Three decimal places
+  */
+
+  private static String fmt(double val) {
+    return (String.format(Locale.US, "%.3f", Double.valueOf(val)));
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INTERFACES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** One benchmark case. Setup is not timed. The run result goes into a sink so
+  ** the JIT cannot throw the work away.
+  */
+
+  private interface BenchCase {
+    void setUp() throws Exception;
+    long run() throws Exception;
+  }
+}
@@ -0,0 +1,301 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package org.systemsbiology.biofabric.bench;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.systemsbiology.biofabric.app.ImageGeneratorApplication;
+import org.systemsbiology.biofabric.util.StartupTimer;
+
+/****************************************************************************
+**
+** Times cold starts of the headless image generator, which is how pipelines
+** use it: every launch is a fresh JVM that reads a SIF file and writes a PNG.
+** We report the wall time per launch, plus the median time (since JVM start)
+** at which each startup milestone was reached. One extra launch runs with
+** class loading logged, and we report how many Swing classes it pulled in.
+**
+** Usage: StartupBenchmark [-launches n] [-warmup n] [-links n] [-sif file] 
+**                         [-width px] [-jvmArgs "args"] [-csv outFile]
+*/
+
+public class StartupBenchmark {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private String javaExe_;
+  private String classPath_;
+  private List<String> jvmArgs_;
+  private File sif_;
+  private File png_;
+  private int width_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Constructor
+  */
+
+  public StartupBenchmark(List<String> jvmArgs, File sif, File png, int width) {
+    javaExe_ = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+    classPath_ = System.getProperty("java.class.path");
+    jvmArgs_ = jvmArgs;
+    sif_ = sif;
+    png_ = png;
+    width_ = width;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Main entry point
+  */
+
+  public static void main(String[] argv) throws Exception {
+    int launches = 20;
+    int warmup = 2;
+    int numLinks = 2000;
+    int width = 1000;
+    File sif = null;
+    File csvFile = null;
+    List<String> jvmArgs = new ArrayList<String>();
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("-launches")) {
+        launches = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-warmup")) {
+        warmup = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-links")) {
+        numLinks = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-sif")) {
+        sif = new File(argv[++i]);
+      } else if (argv[i].equals("-width")) {
+        width = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-jvmArgs")) {
+        String[] toks = argv[++i].trim().split("\\s+");
+        for (int j = 0; j < toks.length; j++) {
+          if (!toks[j].equals("")) {
+            jvmArgs.add(toks[j]);
+          }
+        }
+      } else if (argv[i].equals("-csv")) {
+        csvFile = new File(argv[++i]);
+      } else {
+        System.err.println("Unknown argument " + argv[i]);
+        System.exit(1);
+      }
+    }
+    
+    boolean tempSif = (sif == null);
+    if (tempSif) {
+      sif = File.createTempFile("startup-bench", ".sif");
+      sif.deleteOnExit();
+      SyntheticSIFGenerator.write(SyntheticSIFGenerator.SCALE_FREE, numLinks, sif, 19L);
+    }
+    File png = File.createTempFile("startup-bench", ".png");
+    png.deleteOnExit();
+    
+    StartupBenchmark sb = new StartupBenchmark(jvmArgs, sif, png, width);
+    for (int i = 0; i < warmup; i++) {
+      sb.launch(false, null);
+    }
+    
+    //
+    // Milestones keep the order they are first seen in:
+    //
+    
+    long[] nanos = new long[launches];
+    LinkedHashMap<String, List<Long>> milestones = new LinkedHashMap<String, List<Long>>();
+    for (int i = 0; i < launches; i++) {
+      long start = System.nanoTime();
+      sb.launch(false, milestones);
+      nanos[i] = System.nanoTime() - start;
+    }
+    int swingCount = sb.countSwingClasses();
+    
+    System.out.println("Headless image generation, " + sif.getName() + " (" + sif.length() + " bytes), " + 
+                       launches + " launches:");
+    if (launches > 0) {
+      long[] sorted = nanos.clone();
+      Arrays.sort(sorted);
+      long sum = 0L;
+      for (int i = 0; i < launches; i++) {
+        sum += nanos[i];
+      }
+      System.out.println("  wall: min " + fmt(sorted[0] / 1.0E6) + " ms, median " + fmt(sorted[launches / 2] / 1.0E6) + 
+                         " ms, mean " + fmt((sum / (double)launches) / 1.0E6) + " ms");
+    }
+    for (Map.Entry<String, List<Long>> entry : milestones.entrySet()) {
+      System.out.println("  " + entry.getKey() + ": median " + median(entry.getValue()) + " ms after JVM start");
+    }
+    System.out.println("  Swing classes loaded: " + swingCount);
+    
+    if (csvFile != null) {
+      PrintWriter csv = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFile), "UTF-8")));
+      try {
+        csv.println("launch,wallMs");
+        for (int i = 0; i < launches; i++) {
+          csv.println(i + "," + fmt(nanos[i] / 1.0E6));
+        }
+      } finally {
+        csv.close();
+      }
+    }
+    
+    png.delete();
+    if (tempSif) {
+      sif.delete();
+    }
+    System.exit(0);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Run one launch, and wait for it. If a milestone map is provided, startup
+  ** timing is turned on and the milestones are collected. Returns the output lines.
+  */
+
+  private List<String> launch(boolean logClasses, Map<String, List<Long>> milestones) throws IOException, InterruptedException {
+    ArrayList<String> cmd = new ArrayList<String>();
+    cmd.add(javaExe_);
+    cmd.addAll(jvmArgs_);
+    if (milestones != null) {
+      cmd.add("-D" + StartupTimer.ENABLE_PROPERTY + "=true");
+    }
+    if (logClasses) {
+      cmd.add("-verbose:class");
+    }
+    cmd.add("-cp");
+    cmd.add(classPath_);
+    cmd.add(ImageGeneratorApplication.class.getName());
+    cmd.add("-sifImport");
+    cmd.add(sif_.getAbsolutePath());
+    cmd.add("-pngExport");
+    cmd.add(png_.getAbsolutePath());
+    cmd.add("-pngWidth");
+    cmd.add(Integer.toString(width_));
+    
+    ProcessBuilder pb = new ProcessBuilder(cmd);
+    pb.redirectErrorStream(true);
+    Process proc = pb.start();
+    ArrayList<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(proc.getInputStream(), "UTF-8"));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        lines.add(line);
+      }
+    } finally {
+      in.close();
+    }
+    int exitVal = proc.waitFor();
+    if (exitVal != 0) {
+      for (String line : lines) {
+        System.err.println(line);
+      }
+      throw new IOException("Image generator exited with " + exitVal);
+    }
+    
+    if (milestones != null) {
+      for (String line : lines) {
+        if (!line.startsWith(StartupTimer.REPORT_TAG)) {
+          continue;
+        }
+        // Tag, milestone, millis, "ms":
+        String[] toks = line.split("\\s+");
+        List<Long> times = milestones.get(toks[1]);
+        if (times == null) {
+          times = new ArrayList<Long>();
+          milestones.put(toks[1], times);
+        }
+        times.add(Long.valueOf(toks[2]));
+      }
+    }
+    return (lines);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Launch once with class loading logged, and count the Swing classes
+  */
+
+  private int countSwingClasses() throws IOException, InterruptedException {
+    List<String> lines = launch(true, null);
+    int retval = 0;
+    for (String line : lines) {
+      if (line.indexOf("javax.swing.") != -1) {
+        retval++;
+      }
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Median of a list
+  */
+
+  private static long median(List<Long> vals) {
+    Long[] sorted = vals.toArray(new Long[vals.size()]);
+    Arrays.sort(sorted);
+    return (sorted[sorted.length / 2].longValue());
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Three decimal places
+  */
+
+  private static String fmt(double val) {
+    return (String.format(Locale.US, "%.3f", Double.valueOf(val)));
+  }
+}
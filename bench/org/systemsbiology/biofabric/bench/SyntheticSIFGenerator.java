@@ -0,0 +1,209 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package org.systemsbiology.biofabric.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Random;
+
+/****************************************************************************
+**
+** Writes synthetic SIF files for benchmarking. Scale-free networks grow by
+** preferential attachment, so a few hubs pick up most of the links, like 
+** typical interaction networks. Clustered networks are dense modules with 
+** a few links running between them. Most links are undirected "pp", with
+** some directed "pd" links mixed in. Duplicates and self links are left in, 
+** since real files have them too, and the import has to deal with them.
+**
+** Usage: SyntheticSIFGenerator scaleFree|clustered numLinks outFile [seed]
+*/
+
+public class SyntheticSIFGenerator {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  public static final String SCALE_FREE = "scaleFree";
+  public static final String CLUSTERED = "clustered";
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  //
+  // Links added with each new node in the scale-free model:
+  //
+  
+  private static final int LINKS_PER_NEW_NODE_ = 4;
+  
+  //
+  // Clustered model: nodes per module, and fraction of links that leave the module:
+  //
+  
+  private static final int CLUSTER_SIZE_ = 40;
+  private static final double BETWEEN_CLUSTER_FRAC_ = 0.08;
+  
+  //
+  // Fraction of links that are directed:
+  //
+  
+  private static final double DIRECTED_FRAC_ = 0.15;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Main entry point
+  */
+
+  public static void main(String[] argv) throws IOException {
+    if ((argv.length < 3) || (argv.length > 4)) {
+      System.err.println("Usage: SyntheticSIFGenerator scaleFree|clustered numLinks outFile [seed]");
+      System.exit(1);
+    }
+    long seed = (argv.length == 4) ? Long.parseLong(argv[3]) : 1L;
+    write(argv[0], Integer.parseInt(argv[1]), new File(argv[2]), seed);
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Write a network of the given shape
+  */
+
+  public static void write(String shape, int numLinks, File outFile, long seed) throws IOException {
+    if (shape.equals(SCALE_FREE)) {
+      writeScaleFree(numLinks, outFile, seed);
+    } else if (shape.equals(CLUSTERED)) {
+      writeClustered(numLinks, outFile, seed);
+    } else {
+      throw new IllegalArgumentException(shape);
+    }
+    return;
+  }
+ 
+  /***************************************************************************
+  ** 
+  ** Preferential attachment: each new node links to existing nodes chosen in
+  ** proportion to their degree. Picking a random entry from the list of all link
+  ** ends does exactly that.
+  */
+
+  public static void writeScaleFree(int numLinks, File outFile, long seed) throws IOException {
+    Random rand = new Random(seed);
+    int[] ends = new int[numLinks * 2];
+    int numEnds = 0;
+    int nextNode = 1;
+    PrintWriter out = openOut(outFile);
+    try {
+      int written = 0;
+      while (written < numLinks) {
+        int newNode = nextNode++;
+        for (int i = 0; (i < LINKS_PER_NEW_NODE_) && (written < numLinks); i++) {
+          int target = (numEnds == 0) ? 0 : ends[rand.nextInt(numEnds)];
+          writeLink(out, newNode, target, rand);
+          ends[numEnds++] = newNode;
+          ends[numEnds++] = target;
+          written++;
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (out.checkError()) {
+      throw new IOException("Error writing " + outFile);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Modules of CLUSTER_SIZE_ nodes, with most links inside a module
+  */
+
+  public static void writeClustered(int numLinks, File outFile, long seed) throws IOException {
+    Random rand = new Random(seed);
+    //
+    // Pick the module count so that modules end up about a third full:
+    //
+    long maxInModule = ((long)CLUSTER_SIZE_ * (CLUSTER_SIZE_ - 1)) / 2L;
+    int numClusters = (int)Math.max(1L, (3L * numLinks) / maxInModule);
+    PrintWriter out = openOut(outFile);
+    try {
+      for (int i = 0; i < numLinks; i++) {
+        int cluster = rand.nextInt(numClusters);
+        int src = (cluster * CLUSTER_SIZE_) + rand.nextInt(CLUSTER_SIZE_);
+        int trgCluster = (rand.nextDouble() < BETWEEN_CLUSTER_FRAC_) ? rand.nextInt(numClusters) : cluster;
+        int trg = (trgCluster * CLUSTER_SIZE_) + rand.nextInt(CLUSTER_SIZE_);
+        writeLink(out, src, trg, rand);
+      }
+    } finally {
+      out.close();
+    }
+    if (out.checkError()) {
+      throw new IOException("Error writing " + outFile);
+    }
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Open the output
+  */
+
+  private static PrintWriter openOut(File outFile) throws IOException {
+    return (new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outFile), "UTF-8"))));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** One SIF line
+  */
+
+  private static void writeLink(PrintWriter out, int src, int trg, Random rand) {
+    String rel = (rand.nextDouble() < DIRECTED_FRAC_) ? "pd" : "pp";
+    out.print("N");
+    out.print(src);
+    out.print("\t");
+    out.print(rel);
+    out.print("\tN");
+    out.println(trg);
+    return;
+  }
+}
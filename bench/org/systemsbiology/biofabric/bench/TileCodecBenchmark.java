@@ -0,0 +1,292 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.bench;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+
+import org.systemsbiology.biofabric.ui.render.DeflateTileCodec;
+import org.systemsbiology.biofabric.ui.render.ImgAndBufPool;
+import org.systemsbiology.biofabric.ui.render.RasterCache;
+import org.systemsbiology.biofabric.ui.render.RunLengthTileCodec;
+import org.systemsbiology.biofabric.ui.render.TileCodec;
+
+/****************************************************************************
+**
+** Compares the RasterCache tile codecs for encode/decode throughput and
+** compression ratio. Best fed real tiles: give it PNG files (e.g. output of
+** ImageGeneratorApplication) and they get chopped into tiles. With no files,
+** it generates fabric-like tiles.
+**
+** Usage: TileCodecBenchmark [-w tileWidth] [-h tileHeight] [-n reps] [png ...]
+*/
+
+public class TileCodecBenchmark {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Main entry point
+  */
+
+  public static void main(String[] argv) throws IOException {
+    int tileWidth = 1280;
+    int tileHeight = 801;
+    int reps = 20;
+    ArrayList<File> files = new ArrayList<File>();
+    for (int i = 0; i < argv.length; i++) {
+      if (argv[i].equals("-w")) {
+        tileWidth = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-h")) {
+        tileHeight = Integer.parseInt(argv[++i]);
+      } else if (argv[i].equals("-n")) {
+        reps = Integer.parseInt(argv[++i]);
+      } else {
+        files.add(new File(argv[i]));
+      }
+    }
+    
+    List<BufferedImage> tiles = (files.isEmpty()) ? syntheticTiles(tileWidth, tileHeight, 8) 
+                                                  : tilesFromFiles(files, tileWidth, tileHeight);
+    if (tiles.isEmpty()) {
+      System.err.println("No tiles");
+      System.exit(1);
+    }
+    System.out.println("Tiles: " + tiles.size() + " of " + tileWidth + " x " + tileHeight);
+    
+    DirectColorModel dcm = (DirectColorModel)tiles.get(0).getColorModel();
+    RasterCache.ShiftData sd = new RasterCache.ShiftData(dcm);
+    ImgAndBufPool bis = new ImgAndBufPool(50000);
+    
+    String[] names = new String[] {"legacy (new Deflater each tile)", "deflate default", 
+                                   "deflate best speed", "run length"};
+    TileCodec[] codecs = new TileCodec[] {new LegacyCodec(sd), new DeflateTileCodec(sd), 
+                                          new DeflateTileCodec(sd, Deflater.BEST_SPEED), new RunLengthTileCodec(sd)};
+    for (int i = 0; i < codecs.length; i++) {
+      runOne(names[i], codecs[i], tiles, reps, bis);
+    }
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Time one codec. First rep is warmup, and also checks the round trip.
+  */
+
+  private static void runOne(String name, TileCodec codec, List<BufferedImage> tiles, 
+                             int reps, ImgAndBufPool bis) throws IOException {
+    int numTiles = tiles.size();
+    RasterCache.BytesWithMeta[] encoded = new RasterCache.BytesWithMeta[numTiles];
+    long rawBytes = 0L;
+    long encBytes = 0L;
+    long encNanos = 0L;
+    long decNanos = 0L;
+    for (int rep = 0; rep <= reps; rep++) {
+      for (int i = 0; i < numTiles; i++) {
+        BufferedImage tile = tiles.get(i);
+        int[] pix = ((DataBufferInt)tile.getRaster().getDataBuffer()).getData();
+        long start = System.nanoTime();
+        encoded[i] = codec.encode(pix, tile.getWidth(), tile.getHeight(), bis);
+        long mid = System.nanoTime();
+        int[] back = bis.fetchBuf(pix.length);
+        codec.decode(encoded[i], back, tile.getWidth(), tile.getHeight(), bis);
+        long end = System.nanoTime();
+        if (rep == 0) {
+          for (int j = 0; j < pix.length; j++) {
+            if ((pix[j] & 0xFFFFFF) != (back[j] & 0xFFFFFF)) {
+              throw new IllegalStateException(name + " round trip failed on tile " + i);
+            }
+          }
+          rawBytes += pix.length * 3L;
+          encBytes += encoded[i].used;
+        } else {
+          encNanos += (mid - start);
+          decNanos += (end - mid);
+        }
+        bis.returnBuf(back);
+        bis.returnByteBuf(encoded[i].buf);
+      }
+    }
+    double mb = (rawBytes * (double)reps) / 1.0E6;
+    System.out.println(name + ": ratio " + fmt((double)rawBytes / (double)encBytes) + 
+                       "  encode " + fmt(mb / (encNanos / 1.0E9)) + " MB/s" +
+                       "  decode " + fmt(mb / (decNanos / 1.0E9)) + " MB/s");
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Two decimal places
+  */
+
+  private static String fmt(double val) {
+    return (String.format("%.2f", Double.valueOf(val)));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Chop images into tiles, padding with white
+  */
+
+  private static List<BufferedImage> tilesFromFiles(List<File> files, int tileWidth, int tileHeight) throws IOException {
+    ArrayList<BufferedImage> retval = new ArrayList<BufferedImage>();
+    for (File file : files) {
+      BufferedImage full = ImageIO.read(file);
+      if (full == null) {
+        System.err.println("Could not read " + file);
+        continue;
+      }
+      for (int y = 0; y < full.getHeight(); y += tileHeight) {
+        for (int x = 0; x < full.getWidth(); x += tileWidth) {
+          BufferedImage tile = whiteTile(tileWidth, tileHeight);
+          Graphics2D g2 = tile.createGraphics();
+          g2.drawImage(full, -x, -y, null);
+          g2.dispose();
+          retval.add(tile);
+        }
+      }
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** A white tile
+  */
+
+  private static BufferedImage whiteTile(int tileWidth, int tileHeight) {
+    BufferedImage tile = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB);
+    int[] pix = ((DataBufferInt)tile.getRaster().getDataBuffer()).getData();
+    Arrays.fill(pix, 0xFFFFFF);
+    return (tile);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Fabric-ish tiles: white background, thin horizontal node lines, and vertical
+  ** link lines in a repeating palette spanning the rows between their end nodes.
+  */
+
+  private static List<BufferedImage> syntheticTiles(int tileWidth, int tileHeight, int count) {
+    Random rand = new Random(19L);
+    int[] palette = new int[] {0x5A7BD1, 0xD1785A, 0x5AD17B, 0xC95AD1, 0xD1C25A, 0x5AC9D1, 0x8A8A8A, 0xB35A5A};
+    ArrayList<BufferedImage> retval = new ArrayList<BufferedImage>();
+    for (int t = 0; t < count; t++) {
+      BufferedImage tile = whiteTile(tileWidth, tileHeight);
+      int[] pix = ((DataBufferInt)tile.getRaster().getDataBuffer()).getData();
+      int rowSpace = 4 + rand.nextInt(12);
+      for (int y = rowSpace; y < tileHeight; y += rowSpace) {
+        int start = rand.nextInt(tileWidth / 2);
+        int end = start + rand.nextInt(tileWidth - start);
+        Arrays.fill(pix, (y * tileWidth) + start, (y * tileWidth) + end, 0x404040);
+      }
+      for (int x = 0; x < tileWidth; x += 2) {
+        if (rand.nextInt(3) == 0) {
+          continue;
+        }
+        int color = palette[(x / 2) % palette.length];
+        int top = rand.nextInt(tileHeight);
+        int bot = top + rand.nextInt(tileHeight - top);
+        for (int y = top; y <= bot; y++) {
+          pix[(y * tileWidth) + x] = color;
+        }
+      }
+      retval.add(tile);
+    }
+    return (retval);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** The scheme RasterCache used before codecs, with a fresh Deflater and Inflater per tile
+  */
+
+  private static class LegacyCodec implements TileCodec {
+    
+    private RasterCache.ShiftData sd_;
+    
+    LegacyCodec(RasterCache.ShiftData sd) {
+      sd_ = sd;
+    }
+    
+    public RasterCache.BytesWithMeta encode(int[] pixels, int width, int height, ImgAndBufPool bis) {
+      byte[] byteData = bis.fetchByteBuf(pixels.length * 3);
+      RasterCache.oneIntToThreeBytes(pixels, byteData, sd_);
+      byte[] output = bis.fetchByteBuf(byteData.length);
+      Deflater deflate = new Deflater();
+      deflate.setInput(byteData);
+      deflate.finish();
+      int compressedDataLength = deflate.deflate(output);
+      deflate.end();
+      byte[] result = bis.fetchByteBuf(compressedDataLength);
+      System.arraycopy(output, 0, result, 0, compressedDataLength);
+      bis.returnByteBuf(output);
+      bis.returnByteBuf(byteData);
+      return (new RasterCache.BytesWithMeta(result, compressedDataLength));
+    }
+    
+    public void decode(RasterCache.BytesWithMeta bwm, int[] pixels, int width, int height, 
+                       ImgAndBufPool bis) throws IOException {
+      Inflater inflate = new Inflater();
+      byte[] decomp = bis.fetchByteBuf(pixels.length * 3);
+      inflate.setInput(bwm.buf, 0, bwm.used);
+      try {
+        inflate.inflate(decomp);
+      } catch (DataFormatException dfex) {
+        throw new IOException();
+      }
+      inflate.end();
+      RasterCache.threeBytesToOneInt(decomp, pixels, sd_);
+      bis.returnByteBuf(decomp);
+      return;
+    }
+  }
+}
@@ -0,0 +1,381 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.api.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/****************************************************************************
+**
+** A growable UTF-8 byte buffer for writing XML. Writing numbers and escaping
+** strings go straight into the byte array, without building Strings along the
+** way. Output is byte-for-byte what a UTF-8 PrintWriter would produce using
+** Indenter and CharacterEntityMapper.
+*/
+
+public final class XMLByteBuffer {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final byte[] DIGITS_ = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 
+                                         'a', 'b', 'c', 'd', 'e', 'f'};
+  private static final byte[] TRUE_ = {'t', 'r', 'u', 'e'};
+  private static final byte[] FALSE_ = {'f', 'a', 'l', 's', 'e'};
+  private static final byte[] NULL_ = {'n', 'u', 'l', 'l'};
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private byte[] buf_;
+  private int count_;
+  private int indentSpaces_;
+  private byte[] lineSep_;
+  private byte[] numScratch_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public XMLByteBuffer(int initialSize) {
+    this(initialSize, Indenter.DEFAULT_INDENT);
+  }
+  
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public XMLByteBuffer(int initialSize, int indentSpaces) {
+    buf_ = new byte[Math.max(16, initialSize)];
+    count_ = 0;
+    indentSpaces_ = indentSpaces;
+    //
+    // Match PrintWriter.println():
+    //
+    String sep = System.getProperty("line.separator");
+    lineSep_ = new byte[sep.length()];
+    for (int i = 0; i < lineSep_.length; i++) {
+      lineSep_[i] = (byte)sep.charAt(i);
+    }
+    numScratch_ = new byte[20];
+  }  
+   
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  ** 
+  ** Indent to the given level
+  */
+
+  public XMLByteBuffer indent(int level) {
+    int numSpaces = level * indentSpaces_;
+    ensure(numSpaces);
+    for (int i = 0; i < numSpaces; i++) {
+      buf_[count_++] = ' ';
+    }
+    return (this);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** End the line
+  */
+
+  public XMLByteBuffer newline() {
+    ensure(lineSep_.length);
+    for (int i = 0; i < lineSep_.length; i++) {
+      buf_[count_++] = lineSep_[i];
+    }
+    return (this);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Append a string as-is, UTF-8 encoded. Null is written as "null", like print().
+  */
+
+  public XMLByteBuffer append(String str) {
+    if (str == null) {
+      return (appendBytes(NULL_));
+    }
+    int len = str.length();
+    ensure(len);
+    for (int i = 0; i < len; i++) {
+      char ch = str.charAt(i);
+      if (ch < 0x80) {
+        buf_[count_++] = (byte)ch;
+      } else {
+        i = appendUTF8(str, i, len);
+      }
+    }
+    return (this);
+  }
+
+  /***************************************************************************
+  ** 
+  ** Append a string with the same mapping CharacterEntityMapper.mapEntities(str, false)
+  ** does. That routine does its replacements one after another, and the ampersand
+  ** pass only runs if the original string has an ampersand. So when it does, the 
+  ** entities from the earlier passes get their ampersands escaped too. We have to 
+  ** write exactly the same thing.
+  */
+
+  public XMLByteBuffer appendEntities(String str) {
+    if (str == null) {
+      return (appendBytes(NULL_));
+    }
+    int len = str.length();
+    boolean hasAmp = (str.indexOf('&') != -1);
+    ensure(len);
+    for (int i = 0; i < len; i++) {
+      char ch = str.charAt(i);
+      switch (ch) {
+        case '"':
+          appendEntity(hasAmp, "quot;");
+          break;
+        case '<':
+          appendEntity(hasAmp, "lt;");
+          break;
+        case '>':
+          appendEntity(hasAmp, "gt;");
+          break;
+        case '&':
+          appendEntity(false, "amp;");
+          break;
+        default:
+          if (ch > 127) {
+            appendCharRef(ch);
+          } else {
+            ensure(1);
+            buf_[count_++] = (byte)ch;
+          }
+          break;
+      }
+    }
+    return (this);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Append an int
+  */
+
+  public XMLByteBuffer append(int val) {
+    return (append((long)val));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Append a long
+  */
+
+  public XMLByteBuffer append(long val) {
+    ensure(20);
+    if (val == Long.MIN_VALUE) {
+      return (append(Long.toString(val)));
+    }
+    if (val < 0) {
+      buf_[count_++] = '-';
+      val = -val;
+    }
+    int pos = numScratch_.length;
+    do {
+      numScratch_[--pos] = DIGITS_[(int)(val % 10L)];
+      val /= 10L;
+    } while (val != 0L);
+    int num = numScratch_.length - pos;
+    System.arraycopy(numScratch_, pos, buf_, count_, num);
+    count_ += num;
+    return (this);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Append a boolean
+  */
+
+  public XMLByteBuffer append(boolean val) {
+    return (appendBytes((val) ? TRUE_ : FALSE_));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Append raw bytes
+  */
+
+  public XMLByteBuffer append(byte[] bytes, int off, int len) {
+    ensure(len);
+    System.arraycopy(bytes, off, buf_, count_, len);
+    count_ += len;
+    return (this);
+  }
+
+  /***************************************************************************
+  ** 
+  ** Number of bytes written
+  */
+
+  public int size() {
+    return (count_);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Empty it out to be used again
+  */
+
+  public void reset() {
+    count_ = 0;
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Send the contents on
+  */
+
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(buf_, 0, count_);
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  ** 
+  ** Make room
+  */
+
+  private void ensure(int more) {
+    int need = count_ + more;
+    if (need > buf_.length) {
+      byte[] newBuf = new byte[Math.max(need, buf_.length * 2)];
+      System.arraycopy(buf_, 0, newBuf, 0, count_);
+      buf_ = newBuf;
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Append bytes
+  */
+
+  private XMLByteBuffer appendBytes(byte[] bytes) {
+    return (append(bytes, 0, bytes.length));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Append an entity, which may have its own ampersand escaped
+  */
+
+  private void appendEntity(boolean ampEscaped, String tail) {
+    int len = tail.length();
+    ensure(len + 5);
+    buf_[count_++] = '&';
+    if (ampEscaped) {
+      buf_[count_++] = 'a';
+      buf_[count_++] = 'm';
+      buf_[count_++] = 'p';
+      buf_[count_++] = ';';
+    }
+    for (int i = 0; i < len; i++) {
+      buf_[count_++] = (byte)tail.charAt(i);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Append a hex character reference, padded the way CharacterEntityMapper does it
+  */
+
+  private void appendCharRef(char ch) {
+    ensure(9);
+    buf_[count_++] = '&';
+    buf_[count_++] = '#';
+    buf_[count_++] = 'x';
+    if (ch < 0x1000) {
+      buf_[count_++] = '0';
+    }
+    int shift = 12;
+    while ((shift > 0) && (((ch >> shift) & 0xF) == 0)) {
+      shift -= 4;
+    }
+    for (; shift >= 0; shift -= 4) {
+      buf_[count_++] = DIGITS_[(ch >> shift) & 0xF];
+    }
+    buf_[count_++] = ';';
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Append a non-ASCII character as UTF-8. Returns the index of the last char used.
+  ** Unpaired surrogates come out as '?', which is what the UTF-8 encoder does.
+  */
+
+  private int appendUTF8(String str, int i, int len) {
+    ensure(4 + len - i);
+    char ch = str.charAt(i);
+    if (ch < 0x800) {
+      buf_[count_++] = (byte)(0xC0 | (ch >> 6));
+      buf_[count_++] = (byte)(0x80 | (ch & 0x3F));
+    } else if (Character.isHighSurrogate(ch) && (i + 1 < len) && Character.isLowSurrogate(str.charAt(i + 1))) {
+      int cp = Character.toCodePoint(ch, str.charAt(i + 1));
+      buf_[count_++] = (byte)(0xF0 | (cp >> 18));
+      buf_[count_++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+      buf_[count_++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+      buf_[count_++] = (byte)(0x80 | (cp & 0x3F));
+      return (i + 1);
+    } else if ((ch >= Character.MIN_SURROGATE) && (ch <= Character.MAX_SURROGATE)) {
+      buf_[count_++] = '?';
+    } else {
+      buf_[count_++] = (byte)(0xE0 | (ch >> 12));
+      buf_[count_++] = (byte)(0x80 | ((ch >> 6) & 0x3F));
+      buf_[count_++] = (byte)(0x80 | (ch & 0x3F));
+    }
+    return (i);
+  }
+}
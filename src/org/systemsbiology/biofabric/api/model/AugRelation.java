@@ -22,12 +22,14 @@ package org.systemsbiology.biofabric.api.model;
 
 /***************************************************************************
 **
-** Augmented relation
+** Augmented relation. Links hand out shared instances of these, so clone
+** one before changing its fields.
 */  
 
 public final class AugRelation implements Cloneable, Comparable<AugRelation> {
   public String relation;
   public boolean isShadow;
+  private Upper upper_;
   
   public AugRelation(String relation, boolean isShadow) {
     this.relation = relation;
@@ -51,7 +53,7 @@ public final class AugRelation implements Cloneable, Comparable<AugRelation> {
     if (this.isShadow != otherAug.isShadow) {
       return ((this.isShadow) ? -1 : 1);
     }    
-    if (!this.relation.toUpperCase().equals(otherAug.relation.toUpperCase())) {
+    if (!this.upperRel().equals(otherAug.upperRel())) {
       return (this.relation.compareToIgnoreCase(otherAug.relation));
     }
     throw new IllegalStateException();
@@ -74,16 +76,46 @@ public final class AugRelation implements Cloneable, Comparable<AugRelation> {
       return (false);
     }
   
-    return (this.relation.toUpperCase().equals(otherAug.relation.toUpperCase()));
+    return (this.upperRel().equals(otherAug.upperRel()));
   }
    
   @Override
   public int hashCode() {
-    return (relation.toUpperCase().hashCode() + ((isShadow) ? 17 : 31));
+    return (upperRel().hashCode() + ((isShadow) ? 17 : 31));
   }
 
   @Override
   public String toString() {
     return ("rel = " + relation + " isShadow = " + isShadow);
-  }    
+  }
+  
+  /***************************************************************************
+  **
+  ** Upper-cased relation used for equality. Cached, but redone if the relation
+  ** field has been changed since.
+  */
+  
+  private String upperRel() {
+    Upper upper = upper_;
+    if ((upper == null) || (upper.forRel != relation)) {
+      upper = new Upper(relation);
+      upper_ = upper;
+    }
+    return (upper.upper);
+  }
+  
+  /***************************************************************************
+  **
+  ** Immutable, so a stale cache read from another thread is still consistent
+  */
+  
+  private static final class Upper {
+    final String forRel;
+    final String upper;
+    
+    Upper(String forRel) {
+      this.forRel = forRel;
+      this.upper = forRel.toUpperCase();
+    }
+  }
 }
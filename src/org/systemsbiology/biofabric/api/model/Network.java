@@ -77,6 +77,7 @@ public interface Network {
 
   public int getNodeCount();
   public int getLinkCount(boolean forShadow);
+  public NetworkGraphView getGraphView();
   
   
 }
@@ -0,0 +1,146 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.api.model;
+
+import java.nio.IntBuffer;
+
+/****************************************************************************
+**
+** Read-only, array-backed view of a network's graph structure for plugins.
+** Nodes are identified by row, and links by link index, which runs over all
+** links (shadows included) in shadow-layout column order. Relations are 
+** numbered densely from zero for each view.
+**
+** Views never change once built, so they can be used from any thread. The
+** buffer getters wrap the backing arrays without copying; each call hands
+** back a new read-only buffer with its own position.
+*/
+
+public interface NetworkGraphView {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  ** 
+  ** Number of node rows
+  */
+
+  public int getNodeCount();
+  
+  /***************************************************************************
+  ** 
+  ** Number of links, with or without shadows
+  */
+
+  public int getLinkCount(boolean withShadows);
+  
+  /***************************************************************************
+  ** 
+  ** Node for the row. Null if no node is on the row
+  */
+
+  public NetNode getNode(int row);
+  
+  /***************************************************************************
+  ** 
+  ** Node name for the row. Null if no node is on the row
+  */
+
+  public String getNodeName(int row);
+  
+  /***************************************************************************
+  ** 
+  ** Source and target rows of a link
+  */
+
+  public int getSourceRow(int link);
+  public int getTargetRow(int link);
+  
+  /***************************************************************************
+  ** 
+  ** Link flags
+  */
+ 
+  public boolean isShadow(int link);
+  public boolean isDirected(int link);
+  
+  /***************************************************************************
+  ** 
+  ** Relation of the link, from zero to getRelationCount() - 1
+  */
+
+  public int getRelationOrdinal(int link);
+  
+  /***************************************************************************
+  ** 
+  ** Relations in the view, and the relation string for an ordinal
+  */
+
+  public int getRelationCount();
+  public String getRelation(int ordinal);
+  
+  /***************************************************************************
+  ** 
+  ** Column of the link. Shadow links have no column (-1) without shadows
+  */
+
+  public int getColumn(int link, boolean withShadows);
+  
+  /***************************************************************************
+  ** 
+  ** Link in the column, or -1 if the column is empty
+  */
+
+  public int getLinkForColumn(int column, boolean withShadows);
+  
+  /***************************************************************************
+  ** 
+  ** Number of link ends at the row in the adjacency (shadows skipped, self
+  ** loops counted once)
+  */
+
+  public int getDegree(int row);
+  
+  /***************************************************************************
+  ** 
+  ** Per-link arrays, indexed by link
+  */
+  
+  public IntBuffer getSourceRows();
+  public IntBuffer getTargetRows();
+  public IntBuffer getRelationOrdinals();
+  
+  /***************************************************************************
+  ** 
+  ** Compressed adjacency over the non-shadow links, ignoring direction. The
+  ** neighbors of row r are entries offsets[r] up to offsets[r + 1] of the row
+  ** and link buffers, in link order. The offsets buffer has getNodeCount() + 1
+  ** entries.
+  */
+  
+  public IntBuffer getAdjacencyOffsets();
+  public IntBuffer getAdjacentRows();
+  public IntBuffer getAdjacentLinks();
+}
@@ -28,8 +28,9 @@ public final class LoopReporter {
   private double endFrac_;
   private String message_;
   private long count_;
-  private long skipProg_;
+  private long nextReport_;
   private boolean indeterminate_;
+  private PhaseTelemetry.Phase phase_;
   
   public LoopReporter(long max, int bins, BTProgressMonitor monitor, double startFrac, double endFrac,
   		                String message) {
@@ -41,7 +42,8 @@ public final class LoopReporter {
     message_ = message;
     skipLines_ = (bins == 0) ? 0 : max_ / bins;
     count_ = 0L;
-    skipProg_ = skipLines_;
+    nextReport_ = skipLines_;
+    phase_ = PhaseTelemetry.startPhase(message);
   }  
   
   public LoopReporter(long max, int bins, BTProgressMonitor monitor) {
@@ -51,14 +53,31 @@ public final class LoopReporter {
     max_ = (max == 0) ? 1 : max;
     skipLines_ = (bins == 0) ? 0 : max_ / bins;
     count_ = 0L;
-    skipProg_ = skipLines_;
+    nextReport_ = skipLines_;
+    phase_ = PhaseTelemetry.startPhase(null);
   } 
   
 
+  /***************************************************************************
+  **
+  ** Called from hot loops, so the per-item cost is just an add and a compare. The
+  ** monitor only hears about it once per bin.
+  */
+
   public void report(long progress) throws AsynchExitRequestException {
-    skipProg_ -= progress;
     count_ += progress;
-	  if (skipProg_ <= 0) {
+    if (count_ >= nextReport_) {
+      reportBin();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Crossed into a new bin: tell the monitor
+  */
+
+  private void reportBin() throws AsynchExitRequestException {
 	  	if (indeterminate_) {
 	  	  if (monitor_ != null) {
 	        if (!monitor_.updateUnknownProgress()) {
@@ -76,12 +95,17 @@ public final class LoopReporter {
 	        }
 	      }
 	  	}
-      skipProg_ = skipLines_;
-	  }
+	  	if (phase_ != null) {
+	  	  phase_.mark(count_);
+	  	}
+      nextReport_ = count_ + skipLines_;
 	  return;
   }
   
   public void finish() throws AsynchExitRequestException {
+    if (phase_ != null) {
+      phase_.finish(count_);
+    }
     if (monitor_ != null) {
     	if (indeterminate_) {
     			if (!monitor_.updateUnknownProgress()) {
@@ -99,7 +123,9 @@ public final class LoopReporter {
   
   
   public void report() throws AsynchExitRequestException {
-  	report(1);
+    if (++count_ >= nextReport_) {
+      reportBin();
+    }
 	  return;
   } 
 }
@@ -0,0 +1,433 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package org.systemsbiology.biofabric.api.worker;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/****************************************************************************
+**
+** Records how long each progress phase of a background run takes. Every
+** LoopReporter created on a thread taking part in a run becomes a phase, keyed
+** by its progress message. We keep wall time, thread CPU time, bytes allocated
+** by the thread (when the JVM can tell us), and the item count. When the run 
+** ends, a JSON and a CSV summary are written to the directory named by the
+** "biofabric.phaseTelemetry" system property. If that property is not set,
+** nothing is recorded, and LoopReporter pays for a single null check.
+**
+** Samples are only taken when a phase starts, when the LoopReporter hits a 
+** progress bin boundary, and when it finishes, so this costs about the same as
+** the progress reporting that is already there. Phases that never call finish()
+** end at their last bin boundary.
+*/
+
+public final class PhaseTelemetry {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////  
+  
+  public static final String OUTPUT_DIR_PROPERTY = "biofabric.phaseTelemetry";
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////  
+ 
+  private static final String INDETERMINATE_KEY_ = "indeterminate";
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////  
+  
+  //
+  // Threads started during a run (e.g. for parallel build passes) report into it too:
+  //
+  
+  private static final InheritableThreadLocal<PhaseTelemetry> current_ = new InheritableThreadLocal<PhaseTelemetry>();
+  private static Method allocMethod_;
+  private static boolean allocChecked_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////  
+  
+  private String runName_;
+  private File outDir_;
+  private long startMillis_;
+  private long startNanos_;
+  private ArrayList<Phase> phases_;
+  private boolean closed_;
+  private ThreadMXBean threads_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////    
+  
+  private PhaseTelemetry(String runName, File outDir) {
+    runName_ = runName;
+    outDir_ = outDir;
+    startMillis_ = System.currentTimeMillis();
+    startNanos_ = System.nanoTime();
+    phases_ = new ArrayList<Phase>();
+    closed_ = false;
+    threads_ = ManagementFactory.getThreadMXBean();
+    if (!threads_.isCurrentThreadCpuTimeSupported()) {
+      threads_ = null;
+    } else if (!threads_.isThreadCpuTimeEnabled()) {
+      try {
+        threads_.setThreadCpuTimeEnabled(true);
+      } catch (UnsupportedOperationException uoex) {
+        threads_ = null;
+      } catch (SecurityException sex) {
+        threads_ = null;
+      }
+    }
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Start recording a run on this thread. Returns null if telemetry is turned off.
+  */
+  
+  public static PhaseTelemetry startRun(String runName) {
+    String dirName = System.getProperty(OUTPUT_DIR_PROPERTY);
+    if ((dirName == null) || dirName.trim().equals("")) {
+      return (null);
+    }
+    PhaseTelemetry retval = new PhaseTelemetry(runName, new File(dirName.trim()));
+    current_.set(retval);
+    return (retval);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Stop recording, and write out the summary. Safe to call more than once.
+  */
+  
+  public void endRun() {
+    List<Phase> phases;
+    synchronized (this) {
+      if (closed_) {
+        return;
+      }
+      closed_ = true;
+      phases = new ArrayList<Phase>(phases_);
+      // Threads started during the run may hang onto us, so let go of the phases:
+      phases_.clear();
+    }
+    if (current_.get() == this) {
+      current_.remove();
+    }
+    long wallNanos = System.nanoTime() - startNanos_;
+    try {
+      writeSummary(phases, wallNanos);
+    } catch (IOException ioex) {
+      System.err.println("Could not write phase telemetry to " + outDir_ + ": " + ioex.getMessage());
+    }
+    return;
+  }
+    
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Called by LoopReporter. Returns null if no run is being recorded on this thread.
+  */
+  
+  static Phase startPhase(String key) {
+    PhaseTelemetry pt = current_.get();
+    if (pt == null) {
+      return (null);
+    }
+    return (pt.addPhase((key == null) ? INDETERMINATE_KEY_ : key));
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Add a phase
+  */
+  
+  private synchronized Phase addPhase(String key) {
+    if (closed_) {
+      return (null);
+    }
+    Phase retval = new Phase(this, key, phases_.size());
+    phases_.add(retval);
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** CPU time for this thread, or -1
+  */
+  
+  private long cpuNanos() {
+    return ((threads_ == null) ? -1L : threads_.getCurrentThreadCpuTime());
+  }
+  
+  /***************************************************************************
+  **
+  ** Bytes allocated by this thread so far, or -1. Only HotSpot-style JVMs can
+  ** answer this, and we cannot compile against that interface, so we go find it.
+  */
+  
+  private long allocatedBytes() {
+    Method meth = getAllocMethod();
+    if (meth == null) {
+      return (-1L);
+    }
+    try {
+      Object result = meth.invoke(ManagementFactory.getThreadMXBean(), Long.valueOf(Thread.currentThread().getId()));
+      return (((Long)result).longValue());
+    } catch (Exception ex) {
+      return (-1L);
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Find the allocation method once
+  */
+  
+  private static synchronized Method getAllocMethod() {
+    if (!allocChecked_) {
+      allocChecked_ = true;
+      try {
+        Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+        if (beanClass.isInstance(ManagementFactory.getThreadMXBean())) {
+          allocMethod_ = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+        }
+      } catch (Exception ex) {
+        allocMethod_ = null;
+      }
+    }
+    return (allocMethod_);
+  }
+  
+  /***************************************************************************
+  **
+  ** Write out the JSON and CSV files
+  */
+  
+  private void writeSummary(List<Phase> phases, long wallNanos) throws IOException {
+    if (!outDir_.isDirectory() && !outDir_.mkdirs()) {
+      throw new IOException("Cannot create directory");
+    }
+    String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(startMillis_));
+    String base = "phases-" + runName_.replaceAll("[^A-Za-z0-9_.-]", "_") + "-" + stamp;
+    
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(outDir_, base + ".json")), "UTF-8"));
+    try {
+      out.println("{");
+      out.println("  \"run\": " + jsonString(runName_) + ",");
+      out.println("  \"startMillis\": " + startMillis_ + ",");
+      out.println("  \"wallMs\": " + toMillis(wallNanos) + ",");
+      out.println("  \"phases\": [");
+      int num = phases.size();
+      for (int i = 0; i < num; i++) {
+        Phase ph = phases.get(i);
+        synchronized (ph) {
+          out.print("    {\"seq\": " + ph.seq_ + 
+                    ", \"phase\": " + jsonString(ph.key_) + 
+                    ", \"thread\": " + jsonString(ph.thread_) + 
+                    ", \"offsetMs\": " + toMillis(ph.startNanos_ - startNanos_) + 
+                    ", \"items\": " + ph.items_ + 
+                    ", \"wallMs\": " + toMillis(ph.endNanos_ - ph.startNanos_) + 
+                    ", \"cpuMs\": " + ((ph.startCpu_ < 0) ? "null" : toMillis(ph.endCpu_ - ph.startCpu_)) + 
+                    ", \"allocBytes\": " + ((ph.startAlloc_ < 0) ? "null" : Long.toString(ph.endAlloc_ - ph.startAlloc_)) + 
+                    ", \"finished\": " + ph.finished_ + "}");
+        }
+        out.println((i == (num - 1)) ? "" : ",");
+      }
+      out.println("  ]");
+      out.println("}");
+    } finally {
+      out.close();
+    }
+    if (out.checkError()) {
+      throw new IOException("Error writing JSON summary");
+    }
+    
+    out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(outDir_, base + ".csv")), "UTF-8"));
+    try {
+      out.println("run,seq,phase,thread,offsetMs,items,wallMs,cpuMs,allocBytes,finished");
+      for (Phase ph : phases) {
+        synchronized (ph) {
+          out.println(csvString(runName_) + "," + ph.seq_ + "," + csvString(ph.key_) + "," + 
+                      csvString(ph.thread_) + "," + toMillis(ph.startNanos_ - startNanos_) + "," + 
+                      ph.items_ + "," + toMillis(ph.endNanos_ - ph.startNanos_) + "," + 
+                      ((ph.startCpu_ < 0) ? "" : toMillis(ph.endCpu_ - ph.startCpu_)) + "," + 
+                      ((ph.startAlloc_ < 0) ? "" : Long.toString(ph.endAlloc_ - ph.startAlloc_)) + "," + 
+                      ph.finished_);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (out.checkError()) {
+      throw new IOException("Error writing CSV summary");
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Milliseconds with three decimals
+  */
+  
+  private static String toMillis(long nanos) {
+    return (String.format(Locale.US, "%.3f", Double.valueOf(nanos / 1.0E6)));
+  }
+  
+  /***************************************************************************
+  **
+  ** Quote for JSON
+  */
+  
+  private static String jsonString(String str) {
+    StringBuffer buf = new StringBuffer();
+    buf.append('"');
+    int len = str.length();
+    for (int i = 0; i < len; i++) {
+      char ch = str.charAt(i);
+      if ((ch == '"') || (ch == '\\')) {
+        buf.append('\\').append(ch);
+      } else if (ch < 0x20) {
+        buf.append(String.format("\\u%04x", Integer.valueOf(ch)));
+      } else {
+        buf.append(ch);
+      }
+    }
+    buf.append('"');
+    return (buf.toString());
+  }
+  
+  /***************************************************************************
+  **
+  ** Quote for CSV
+  */
+  
+  private static String csvString(String str) {
+    if ((str.indexOf(',') == -1) && (str.indexOf('"') == -1) && (str.indexOf('\n') == -1)) {
+      return (str);
+    }
+    return ("\"" + str.replace("\"", "\"\"") + "\"");
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** One phase. Only touched by the thread that owns the LoopReporter, but the
+  ** summary may get written from another thread, so we synchronize.
+  */
+  
+  static final class Phase {
+    private PhaseTelemetry owner_;
+    private String key_;
+    private int seq_;
+    private String thread_;
+    private long startNanos_;
+    private long startCpu_;
+    private long startAlloc_;
+    private long endNanos_;
+    private long endCpu_;
+    private long endAlloc_;
+    private long items_;
+    private boolean finished_;
+    
+    Phase(PhaseTelemetry owner, String key, int seq) {
+      owner_ = owner;
+      key_ = key;
+      seq_ = seq;
+      thread_ = Thread.currentThread().getName();
+      startAlloc_ = owner.allocatedBytes();
+      startCpu_ = owner.cpuNanos();
+      startNanos_ = System.nanoTime();
+      endNanos_ = startNanos_;
+      endCpu_ = startCpu_;
+      endAlloc_ = startAlloc_;
+    }
+    
+    synchronized void mark(long items) {
+      if (finished_) {
+        return;
+      }
+      endNanos_ = System.nanoTime();
+      endCpu_ = owner_.cpuNanos();
+      endAlloc_ = owner_.allocatedBytes();
+      items_ = items;
+      return;
+    }
+    
+    synchronized void finish(long items) {
+      mark(items);
+      finished_ = true;
+      return;
+    }
+  }
+}
@@ -34,6 +34,7 @@ import org.systemsbiology.biofabric.cmd.CommandSet;
 import org.systemsbiology.biofabric.plugin.PlugInManager;
 import org.systemsbiology.biofabric.ui.dialogs.UpdateJavaDialog;
 import org.systemsbiology.biofabric.util.ResourceManager;
+import org.systemsbiology.biofabric.util.StartupTimer;
 import org.systemsbiology.biofabric.util.UiUtil;
 
 /****************************************************************************
@@ -68,17 +69,16 @@ public class BioFabricApplication {
  
   /***************************************************************************
   **
-  ** Now supporting Cytoscape App usage
+  ** Now supporting Cytoscape App usage. Plugins load in the background while
+  ** the window is coming up.
   */
   
   public BioFabricApplication(boolean forCyto, Map<String, Object> args) { 
     forCyto_ = forCyto;
     ResourceManager.initManager("org.systemsbiology.biofabric.props.BioFabric");
+    StartupTimer.mark("resourcesLoaded");
     plum_ = new PlugInManager();
-    boolean ok = plum_.loadPlugIns(args);   
-    if (!ok) {
-      System.err.println("Problems loading plugins");
-    }
+    plum_.loadPlugInsInBackground(args);
   }
   
   ////////////////////////////////////////////////////////////////////////////
@@ -116,10 +116,13 @@ public class BioFabricApplication {
         
   /***************************************************************************
   **
-  ** Launch selection window 
+  ** Launch selection window. It is not built until it is first needed.
   */
      
   public BioFabricWindow launchSelection() {
+    if (selectionWindow_ == null) {
+      initSelection();
+    }
     bfw_.getFabricPanel().setSelectionPanel(selectionWindow_.getFabricPanel());
     selectionWindow_.getWindow().setSize((int)(bfw_.getWindow().getWidth() * .80), 
                                          (int)(bfw_.getWindow().getHeight() * .80));
@@ -170,7 +173,7 @@ public class BioFabricApplication {
     CommandSet.initCmds("mainWindow", this, bfw_, true, plum_, null);
     bfw_.initWindow(cbf);
     bfw_.getWindow().setVisible(true);
-    initSelection();  
+    StartupTimer.mark("windowVisible");
     return (bfw_);
   }
     
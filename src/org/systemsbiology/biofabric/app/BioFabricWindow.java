@@ -43,6 +43,7 @@ import javax.swing.JSeparator;
 import javax.swing.JSplitPane;
 import javax.swing.JToolBar;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
 
 import org.systemsbiology.biofabric.api.util.ExceptionHandler;
 import org.systemsbiology.biofabric.api.worker.BackgroundWorkerControlManager;
@@ -442,17 +443,12 @@ public class BioFabricWindow implements BackgroundWorkerControlManager {
     sMenu.add(fc.getAction(CommandSet.SEARCH, false, null));
     sMenu.add(fc.getAction(CommandSet.COMPARE_NODES, false, null));
     
+    //
+    // Plugins may still be loading in the background, so their menus get
+    // added once they are done:
+    //
     
-     List<String> piks = fc.getPlugInKeys();
-     for (String pik : piks) {
-       BioFabricToolPlugIn tpi = fc.getPlugIn(pik);
-       JMenu plugMenu = new JMenu(tpi.getToolMenu());
-       sMenu.add(plugMenu);
-       int numAction = tpi.getCommandCount();
-       for (int i = 0; i < numAction; i++) {
-         plugMenu.add(fc.getPluginAction(pik, i));
-       }
-     }
+    fc.whenPlugInsLoaded(new PlugInMenuStocker(sMenu, fc));
    
     //
     // Layout Menu
@@ -559,6 +555,41 @@ public class BioFabricWindow implements BackgroundWorkerControlManager {
     return;
   }
   
+  /***************************************************************************
+  **
+  ** Adds the plugin menus to the tools menu once plugins are loaded. That can
+  ** be reported on the loader thread, so we move over to the event thread.
+  */  
+      
+  private static class PlugInMenuStocker implements Runnable {
+    
+    private JMenu toolsMenu_;
+    private CommandSet fc_;
+    
+    PlugInMenuStocker(JMenu toolsMenu, CommandSet fc) {
+      toolsMenu_ = toolsMenu;
+      fc_ = fc;
+    }
+    
+    public void run() {
+      if (!SwingUtilities.isEventDispatchThread()) {
+        SwingUtilities.invokeLater(this);
+        return;
+      }
+      List<String> piks = fc_.getPlugInKeys();
+      for (String pik : piks) {
+        BioFabricToolPlugIn tpi = fc_.getPlugIn(pik);
+        JMenu plugMenu = new JMenu(tpi.getToolMenu());
+        toolsMenu_.add(plugMenu);
+        int numAction = tpi.getCommandCount();
+        for (int i = 0; i < numAction; i++) {
+          plugMenu.add(fc_.getPluginAction(pik, i));
+        }
+      }
+      return;
+    }
+  }
+  
   /***************************************************************************
   **
   ** Now the actual frame to use
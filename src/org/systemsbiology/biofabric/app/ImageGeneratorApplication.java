@@ -19,24 +19,37 @@
 
 package org.systemsbiology.biofabric.app;
 
-import java.awt.Dimension;
-import java.awt.Rectangle;
 import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
-import org.systemsbiology.biofabric.api.util.ExceptionHandler;
-import org.systemsbiology.biofabric.cmd.CommandSet;
-import org.systemsbiology.biofabric.cmd.HeadlessOracle;
+import org.systemsbiology.biofabric.api.layout.LayoutCriterionFailureException;
+import org.systemsbiology.biofabric.api.model.AugRelation;
+import org.systemsbiology.biofabric.api.model.NetLink;
+import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.api.util.UniqueLabeller;
+import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
+import org.systemsbiology.biofabric.io.BuildDataImpl;
+import org.systemsbiology.biofabric.io.FabricImportLoader;
+import org.systemsbiology.biofabric.io.SIFLoadSteps;
+import org.systemsbiology.biofabric.model.BioFabricNetwork;
 import org.systemsbiology.biofabric.plugin.PlugInManager;
+import org.systemsbiology.biofabric.ui.FabricColorGenerator;
 import org.systemsbiology.biofabric.ui.ImageExporter;
-import org.systemsbiology.biofabric.ui.dialogs.ExportSettingsDialog;
-import org.systemsbiology.biofabric.ui.display.BioFabricPanel;
+import org.systemsbiology.biofabric.ui.render.FabricImageRenderer;
 import org.systemsbiology.biofabric.util.ResourceManager;
+import org.systemsbiology.biofabric.util.StartupTimer;
 
 /****************************************************************************
 **
-** The top-level application or in-process entry point for headless image generation
+** The top-level application or in-process entry point for headless image generation.
+** This goes straight from the input file to the image; it does not build the
+** window and command set that the interactive application uses.
 */
 
 public class ImageGeneratorApplication {
@@ -90,11 +103,14 @@ public class ImageGeneratorApplication {
   
   /***************************************************************************
   ** 
-  ** Main entry point for running as a command-line argument
+  ** Main entry point for running as a command-line argument. Nothing here
+  ** builds a window or a command set.
   */
 
   public static void main(String argv[]) {
+    System.setProperty("java.awt.headless", "true");
     ResourceManager.initManager("org.systemsbiology.biofabric.props.BioFabric");
+    StartupTimer.mark("resourcesLoaded");
     ArgParser ap = new ArgParser(); 
     Map<String, Object> argMap = ap.parse(ArgParser.AppType.PIPELINE, argv);
     if ((argMap == null) || (argMap.size() != 3)) {
@@ -109,11 +125,13 @@ public class ImageGeneratorApplication {
         System.exit(1);
       }
     } catch (GeneratorException gex) {
-      System.err.println(gex.getMessage());  
+      System.err.println(gex.getMessage());
+      System.exit(1);
     } catch (MissingArgException maex) {    
       System.err.print(ap.getUsage(ArgParser.AppType.PIPELINE));
       System.exit(1);
     }
+    StartupTimer.mark("done");
     return;
   }
 
@@ -149,19 +167,16 @@ public class ImageGeneratorApplication {
     // At this time, core code must run on one thread when in batch mode.
     //
 
-    synchronized(CommandSet.class) {
+    synchronized(ImageGeneratorApplication.class) {
       ResourceManager rMan = ResourceManager.getManager();    
-      System.setProperty("java.awt.headless", "true");
-      BioFabricWindow bfw = new BioFabricWindow(args_, null, true, true);
-      ExceptionHandler.getHandler().initializeForHeadless(false);
+      FabricColorGenerator colGen = new FabricColorGenerator();
+      colGen.newColorModel();
       PlugInManager plum = new PlugInManager();
       boolean ok = plum.loadPlugIns(args_);   
       if (!ok) {
         System.err.println("Problems loading plugins");
-      }    
-      CommandSet.initCmds("mainWindow", null, bfw, true, plum, new HeadlessOracle());
-      bfw.initWindow(null); 
-      CommandSet cmd = CommandSet.getCmds("mainWindow");
+      }
+      StartupTimer.mark("plugInsLoaded");
            
       //
       // Currently Hardwired:
@@ -174,7 +189,7 @@ public class ImageGeneratorApplication {
       // Input operations.  Gotta have one and only one
       //
 
-      boolean haveInput = false;
+      BioFabricNetwork bfn = null;
 
       switch (inputType) {
         case SIF_INPUT:          
@@ -182,21 +197,15 @@ public class ImageGeneratorApplication {
           if (sifFileName == null) {
             throw new MissingArgException();
           }
-          File sifFile = new File(sifFileName);
-          CommandSet.HeadlessImportSIFAction sifLoader = cmd.new HeadlessImportSIFAction(sifFile);
-          Object[] osArgs = null;
-          boolean okl = sifLoader.performOperation(osArgs);
-          if (!okl) {
-            throw new GeneratorException(rMan.getString("headless.csvInputFailure"));
-          }
-          haveInput = true;
+          bfn = buildFromSIF(new File(sifFileName), colGen, plum);
           break;
         default:
           throw new IllegalArgumentException();
       }   
-      if (!haveInput) {
+      if (bfn == null) {
         throw new GeneratorException(rMan.getString("headless.noInputFailure"));
-      }   
+      }
+      StartupTimer.mark("networkBuilt");
 
       boolean aSuccess = false;
 
@@ -206,18 +215,7 @@ public class ImageGeneratorApplication {
           if (imageFileName == null) {
             throw new MissingArgException();
           }
-          CommandSet.HeadlessExportAction hexa = cmd.new HeadlessExportAction();
-          Object[] osArgs = imageExportPrepForFile(args_, imageFileName, cmd);
-          if (osArgs != null) {
-            boolean hok = hexa.performOperation(osArgs);
-            if (!hok) {
-              System.err.println(rMan.getString("headless.imageExportFailure"));
-            } else {
-              aSuccess = true;
-            }
-          } else {
-            System.err.println(rMan.getString("headless.imageExportFailure"));
-          }
+          aSuccess = exportPNG(bfn, colGen, new File(imageFileName));
           break;
         default:
           throw new IllegalArgumentException();
@@ -227,33 +225,62 @@ public class ImageGeneratorApplication {
         System.err.println(rMan.getString("headless.totalExportFailure"));
         return (rMan.getString("headless.earlyExit"));
       } 
+      StartupTimer.mark("imageWritten");
     }
     return (null);
   }
- 
+  
   /***************************************************************************
   ** 
-  ** Image export argument prep for file output
+  ** Read a SIF file and build the network with the default layout. This runs the
+  ** same steps FileLoadFlowsImpl does, taking the relation directions found 
+  ** in the file and reporting problems to stderr instead of in dialogs.
   */
   
-  
-  private Object[] imageExportPrepForFile(Map args, String imageFileName, CommandSet cmd) throws MissingArgException{
-    Object[] osArgs = new Object[3];
-    osArgs[1] = new Boolean(true); // This is a file
-    osArgs[2] = imageFileName;         
-    ExportSettingsDialog.ExportSettings settings = imageExportPrepGuts(args, cmd);
-    osArgs[0] = settings;    
-    return (osArgs);
-  }  
-  
+  private BioFabricNetwork buildFromSIF(File sifFile, FabricColorGenerator colGen, 
+                                        PlugInManager plum) throws GeneratorException {
+    ResourceManager rMan = ResourceManager.getManager();
+    UniqueLabeller idGen = new UniqueLabeller();
+    ArrayList<NetLink> links = new ArrayList<NetLink>();
+    HashSet<NetNode> loneNodes = new HashSet<NetNode>();
+    TreeMap<AugRelation, Boolean> relMap = new TreeMap<AugRelation, Boolean>();
+    try {
+      FabricImportLoader.FileImportStats sss = SIFLoadSteps.importLinks(sifFile, idGen, links, loneNodes, 
+                                                                        null, null, relMap, null);
+      if (!sss.badLines.isEmpty()) {        
+        String badLineFormat = rMan.getString("fabricRead.badLineFormat");
+        System.err.println(MessageFormat.format(badLineFormat, new Object[] {Integer.valueOf(sss.badLines.size())}));
+      }
+      StartupTimer.mark("sifRead");
+      
+      HashSet<NetLink> reducedLinks = new HashSet<NetLink>();
+      HashSet<NetLink> culledLinks = new HashSet<NetLink>();
+      SIFLoadSteps.preprocess(links, relMap, reducedLinks, culledLinks, null);
+      if (!culledLinks.isEmpty()) {
+        String dupLinkFormat = rMan.getString("fabricRead.dupLinkFormat");
+        // Ignore shadow link culls: / 2
+        System.err.println(MessageFormat.format(dupLinkFormat, new Object[] {Integer.valueOf(culledLinks.size() / 2)}));
+      }
+      
+      BuildDataImpl bd = SIFLoadSteps.buildData(idGen, reducedLinks, loneNodes, colGen);
+      return (new BioFabricNetwork(bd, plum, null));
+    } catch (IOException ioex) {
+      throw new GeneratorException(rMan.getString("headless.csvInputFailure"), ioex);
+    } catch (LayoutCriterionFailureException lcfex) {
+      throw new GeneratorException(rMan.getString("headless.csvInputFailure"), lcfex);
+    } catch (AsynchExitRequestException axex) {
+      // No monitor, so this cannot happen
+      throw new IllegalStateException();
+    }
+  }
+ 
   /***************************************************************************
   ** 
-  ** Image export argument prep
+  ** Export the network as a PNG file, using the width argument
   */
-   
-  private ExportSettingsDialog.ExportSettings imageExportPrepGuts(Map<String, Object> args, 
-                                                                  CommandSet cmd) throws MissingArgException {
-
+  
+  private boolean exportPNG(BioFabricNetwork bfn, FabricColorGenerator colGen, 
+                            File imageFile) throws MissingArgException {
     ResourceManager rMan = ResourceManager.getManager();
     String outputWidthStr = (String)args_.get(ArgParser.IMAGE_OUTPUT_WIDTH);
     if (outputWidthStr == null) {
@@ -264,45 +291,44 @@ public class ImageGeneratorApplication {
       outputWidth = Integer.parseInt(outputWidthStr);
     } catch (NumberFormatException nfex) {
       System.err.println(rMan.getString("headless.imageExportBadWidth"));
-      return (null);           
+      return (false);           
+    }
+    if (outputWidth <= 0) {
+      System.err.println(rMan.getString("headless.imageExportBadWidth"));
+      return (false);
     }
-
-    List suppRes = ImageExporter.getSupportedResolutions(false);
-    List suppForms = ImageExporter.getSupportedExports();    
     
-    ExportSettingsDialog.ExportSettings settings = new ExportSettingsDialog.ExportSettings();
-
     // Make this an argument!
-    if (suppForms.contains("PNG")) {
-      settings.formatType = "PNG";
-    } else {
+    String formatType = "PNG";
+    if (!ImageExporter.getSupportedExports().contains(formatType)) {
       System.err.println(rMan.getString("headless.imageExportPrepFailure"));
-      return (null);
+      return (false);
     }
     
-    if (ImageExporter.formatRequiresResolution(settings.formatType)) {
+    ImageExporter.ResolutionSettings res = null;
+    if (ImageExporter.formatRequiresResolution(formatType)) {
       List resList = ImageExporter.getSupportedResolutions(false);    
       if (resList.size() == 0) {
         throw new IllegalStateException();
       }
       Object[] resVal = (Object[])resList.get(0);
-      ImageExporter.RationalNumber ratNum = (ImageExporter.RationalNumber)resVal[ImageExporter.CM];
-      settings.res = new ImageExporter.ResolutionSettings();
-      settings.res.dotsPerUnit = ratNum;
-      settings.res.units = ImageExporter.CM;
-    } else {
-      settings.res = null;
+      res = new ImageExporter.ResolutionSettings();
+      res.dotsPerUnit = (ImageExporter.RationalNumber)resVal[ImageExporter.CM];
+      res.units = ImageExporter.CM;
     }
-   
-    BioFabricPanel bfp = cmd.getBFW().getFabricPanel();
-    Rectangle wr = bfp.getRequiredSize();
     
-    settings.zoomVal = (double)outputWidth / (double)wr.width; 
-
-    double currentZoomHeight = Math.round(((double)wr.height) * settings.zoomVal);
-    double currentZoomWidth = Math.round(((double)wr.width) * settings.zoomVal);    
-    settings.size = new Dimension((int)currentZoomWidth, (int)currentZoomHeight);    
-    return (settings);
+    try {
+      FabricImageRenderer renderer = new FabricImageRenderer(colGen);
+      renderer.installModel(bfn, null);
+      renderer.exportImage(imageFile, formatType, res, outputWidth);
+    } catch (IOException ioex) {
+      System.err.println(rMan.getString("headless.imageExportFailure"));
+      return (false);
+    } catch (AsynchExitRequestException axex) {
+      // No monitor, so this cannot happen
+      throw new IllegalStateException();
+    }
+    return (true);
   }
 
   ////////////////////////////////////////////////////////////////////////////
@@ -391,6 +391,16 @@ public class CommandSet implements ZoomChangeTracker, SelectionChangeListener, F
     return (pMan_.getToolPlugIn(key));
   }
   
+  /***************************************************************************
+  **
+  ** Run the callback once plugins are loaded; may be on another thread
+  */ 
+  
+  public void whenPlugInsLoaded(Runnable callback) {
+    pMan_.whenLoaded(callback);
+    return;
+  }
+  
   /***************************************************************************
   **
   ** Get an action
@@ -585,6 +595,8 @@ public class CommandSet implements ZoomChangeTracker, SelectionChangeListener, F
       BioFabricToolPlugIn pi = pMan_.getToolPlugIn(plugin);
       BioFabricToolPlugInCmd pic = pi.getCommand(cmd);
       retval = new PlugInAction(pic);
+      // Plugin menus are built on demand, after the initial enabled check:
+      retval.checkIfEnabled();
     }
     plugInCmds_.put(key, retval);
     return (retval);
@@ -645,6 +657,7 @@ public class CommandSet implements ZoomChangeTracker, SelectionChangeListener, F
       handleZoomButtons();
    // }
     bfw_.getOverview().setViewInWorld(bfp_.getViewInWorld());
+    bfp_.viewportChanged();
     return;
   }  
   
@@ -3358,7 +3371,7 @@ public class CommandSet implements ZoomChangeTracker, SelectionChangeListener, F
 
     public void actionPerformed(ActionEvent e) {
       try {
-        cmd_.performOperation(topWindow_);
+        pMan_.performCommand(cmd_, topWindow_);
       } catch (Exception ex) {
         ExceptionHandler.getHandler().displayException(ex);
       }
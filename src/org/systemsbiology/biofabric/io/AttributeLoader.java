@@ -26,7 +26,14 @@ import java.io.File;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -37,7 +44,10 @@ import org.systemsbiology.biofabric.util.DataUtil;
 
 /****************************************************************************
 **
-** This loads attribute files
+** This loads attribute files. Lines are read in chunks, and for big files the
+** chunks are parsed on a small pool while the next ones are being read. Parsed
+** chunks are merged into the results in file order, so duplicate handling is
+** the same as a single pass.
 */
 
 public class AttributeLoader {
@@ -48,6 +58,28 @@ public class AttributeLoader {
   //
   //////////////////////////////////////////////////////////////////////////// 
   
+  private static final int MAX_THREADS_ = 4;
+  
+  //
+  // Lines per parse chunk, and the file size below which we just parse as we read:
+  //
+  
+  private static final int CHUNK_LINES_ = 16384;
+  private static final long PARALLEL_MIN_BYTES_ = 4L * 1024L * 1024L;
+  
+  private static final byte LINE_BLANK_ = 0;
+  private static final byte LINE_BAD_   = 1;
+  private static final byte LINE_OK_    = 2;
+  
+  //
+  // The line formats. The hand-rolled scans in LineChunk split lines exactly the way
+  // these greedy patterns do; the patterns are only used directly for lines holding
+  // characters that the regex "." will not match.
+  //
+  
+  private static final Pattern NODE_PAT_ = Pattern.compile("(.*)=(.*)");
+  private static final Pattern LINK_PAT_ = Pattern.compile("(.*\\S) (.*)\\((.*)\\) (\\S.*)=(.*)"); 
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC CONSTANTS
@@ -90,59 +122,366 @@ public class AttributeLoader {
   public String readAttributes(File infile, boolean forNodes, Map<AttributeKey, String> results, 
   		                         Map<String, NetNode> nodes, ReadStats stats) throws IOException {
     
-    Pattern nodePat = Pattern.compile("(.*)=(.*)");
-    Pattern linkPat = Pattern.compile("(.*\\S) (.*)\\((.*)\\) (\\S.*)=(.*)"); 
-    Matcher mainMatch = (forNodes) ? nodePat.matcher("") : linkPat.matcher("");
-
+    int numThreads = Math.min(MAX_THREADS_, Runtime.getRuntime().availableProcessors() - 1);
+    ExecutorService pool = ((numThreads < 1) || (infile.length() < PARALLEL_MIN_BYTES_)) ? null : Executors.newFixedThreadPool(numThreads);
+ 
     String retval = null;
     BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(infile), "UTF-8"));
-    String line = null;
-    boolean isFirst = true;
-    while ((line = in.readLine()) != null) {
-      if (isFirst) {
-        isFirst = false;
-        retval = line.trim();
-        continue;
-      }
-      if (line.trim().equals("")) {
-      	continue;
-      }
-      mainMatch.reset(line);
-      if (!mainMatch.matches()) {
-        stats.badLines.add(line);
-        continue;
-      }
-      if (forNodes) {
-        String node = mainMatch.group(1).trim().toUpperCase();
-        if ((node.indexOf("\"") == 0) && (node.lastIndexOf("\"") == (node.length() - 1))) {
-          node = node.replaceAll("\"", "");
-        }
-        if (results.containsKey(node)) {          
-          stats.dupLines.add(line);
+    try {
+      LinkedList<Future<LineChunk>> pending = new LinkedList<Future<LineChunk>>();
+      String[] lines = new String[CHUNK_LINES_];
+      int numLines = 0;
+      String line = null;
+      boolean isFirst = true;
+      while ((line = in.readLine()) != null) {
+        if (isFirst) {
+          isFirst = false;
+          retval = line.trim();
           continue;
         }
-        results.put(new StringKey(node), mainMatch.group(2).trim());
-      } else {
-        String src = mainMatch.group(1).trim();
-        String sha = mainMatch.group(2).trim();
-        String rel = mainMatch.group(3).trim();
-        String trg = mainMatch.group(4).trim();
-        boolean isShadow = sha.equals("shdw");
-        if (isShadow) {
-          stats.shadowsPresent = true;
+        lines[numLines++] = line;
+        if (numLines == CHUNK_LINES_) {
+          LineChunk chunk = new LineChunk(lines, numLines, forNodes, nodes);
+          if (pool == null) {
+            mergeChunk(chunk.call(), forNodes, results, stats);
+          } else {
+            pending.add(pool.submit(chunk));
+            //
+            // Don't let the reader get too far ahead of the merge:
+            //
+            while (pending.size() > (2 * numThreads)) {
+              mergeChunk(waitFor(pending.removeFirst()), forNodes, results, stats);
+            }
+          }
+          lines = new String[CHUNK_LINES_];
+          numLines = 0;
+        }
+      }
+      while (!pending.isEmpty()) {
+        mergeChunk(waitFor(pending.removeFirst()), forNodes, results, stats);
+      }
+      if (numLines > 0) {
+        mergeChunk((new LineChunk(lines, numLines, forNodes, nodes)).call(), forNodes, results, stats);
+      }
+    } finally {
+      in.close();
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+    return (retval);
+  }
+ 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+ 
+  /***************************************************************************
+  ** 
+  ** Add a parsed chunk to the results, in line order
+  */
+
+  private void mergeChunk(LineChunk chunk, boolean forNodes, Map<AttributeKey, String> results, ReadStats stats) {
+    for (int i = 0; i < chunk.numLines; i++) {
+      switch (chunk.status[i]) {
+        case LINE_BLANK_:
+          break;
+        case LINE_BAD_:
+          stats.badLines.add(chunk.lines[i]);
+          break;
+        default:
+          //
+          // Node keys are just replaced. Link keys may only appear once.
+          //
+          if (!forNodes && results.containsKey(chunk.keys[i])) {
+            stats.dupLines.add(chunk.lines[i]);
+          } else {
+            results.put(chunk.keys[i], chunk.values[i]);
+          }
+          break;
+      }
+    }
+    if (chunk.sawShadow) {
+      stats.shadowsPresent = true;
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Get a parsed chunk back from the pool
+  */
+
+  private LineChunk waitFor(Future<LineChunk> fut) {
+    try {
+      return (fut.get());
+    } catch (InterruptedException iex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(iex);
+    } catch (ExecutionException eex) {
+      Throwable cause = eex.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+ 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** A run of lines to parse. Each chunk only reads the node map, and keeps its own
+  ** cache of name lookups, since link files repeat the same names over and over.
+  */
+  
+  private static class LineChunk implements Callable<LineChunk> {
+    
+    String[] lines;
+    int numLines;
+    byte[] status;
+    AttributeKey[] keys;
+    String[] values;
+    boolean sawShadow;
+    
+    private boolean forNodes_;
+    private Map<String, NetNode> nodes_;
+    private HashMap<String, NetNode> nameCache_;
+    private int[] spans_;
+    private Matcher matcher_;
+    
+    LineChunk(String[] lines, int numLines, boolean forNodes, Map<String, NetNode> nodes) {
+      this.lines = lines;
+      this.numLines = numLines;
+      forNodes_ = forNodes;
+      nodes_ = nodes;
+      spans_ = new int[10];
+    }
+    
+    public LineChunk call() {
+      status = new byte[numLines];
+      keys = new AttributeKey[numLines];
+      values = new String[numLines];
+      if (!forNodes_) {
+        nameCache_ = new HashMap<String, NetNode>();
+      }
+      for (int i = 0; i < numLines; i++) {
+        String line = lines[i];
+        if (isBlank(line)) {
+          status[i] = LINE_BLANK_;
+          continue;
         }
-        NetNode srcID = nodes.get(DataUtil.normKey(src));
-        NetNode trgID = nodes.get(DataUtil.normKey(trg));
-        FabricLink nextLink = new FabricLink(srcID, trgID, rel, isShadow);
-        if (results.containsKey(nextLink)) {
-          stats.dupLines.add(line);
+        boolean found = (hasRegexLineTerminator(line)) ? matchWithPattern(line) 
+                                                       : ((forNodes_) ? findNodeGroups(line) : findLinkGroups(line));
+        if (!found) {
+          status[i] = LINE_BAD_;
           continue;
         }
-        results.put(nextLink, mainMatch.group(5).trim());
+        if (forNodes_) {
+          String node = trimmed(line, spans_[0], spans_[1]).toUpperCase();
+          if ((node.indexOf("\"") == 0) && (node.lastIndexOf("\"") == (node.length() - 1))) {
+            node = node.replace("\"", "");
+          }
+          keys[i] = new StringKey(node);
+          values[i] = trimmed(line, spans_[2], spans_[3]);
+        } else {
+          String src = trimmed(line, spans_[0], spans_[1]);
+          boolean isShadow = trimmedEquals(line, spans_[2], spans_[3], "shdw");
+          String rel = trimmed(line, spans_[4], spans_[5]);
+          String trg = trimmed(line, spans_[6], spans_[7]);
+          if (isShadow) {
+            sawShadow = true;
+          }
+          keys[i] = new FabricLink(lookUpNode(src), lookUpNode(trg), rel, isShadow);
+          values[i] = trimmed(line, spans_[8], spans_[9]);
+        }
+        status[i] = LINE_OK_;
       }
+      return (this);
     }
-    in.close();
-    return (retval);
+    
+    /***************************************************************************
+    ** 
+    ** Node lines split at the last '='
+    */
+    
+    private boolean findNodeGroups(String line) {
+      int eq = line.lastIndexOf('=');
+      if (eq < 0) {
+        return (false);
+      }
+      spans_[0] = 0;
+      spans_[1] = eq;
+      spans_[2] = eq + 1;
+      spans_[3] = line.length();
+      return (true);
+    }
+    
+    /***************************************************************************
+    ** 
+    ** Link lines are "src sha(rel) trg=val". Greedy matching takes the last '=',
+    ** then the last ") " that still leaves a non-blank target in front of it, then
+    ** the last '(' before that, and finally the last blank following a non-blank
+    ** source.
+    */
+    
+    private boolean findLinkGroups(String line) {
+      int eq = line.lastIndexOf('=');
+      int close = -1;
+      for (int j = eq - 3; j >= 0; j--) {
+        if ((line.charAt(j) == ')') && (line.charAt(j + 1) == ' ') && !isRegexSpace(line.charAt(j + 2))) {
+          close = j;
+          break;
+        }
+      }
+      if (close < 1) {
+        return (false);
+      }
+      int open = line.lastIndexOf('(', close - 1);
+      int gap = -1;
+      for (int j = open - 1; j >= 1; j--) {
+        if ((line.charAt(j) == ' ') && !isRegexSpace(line.charAt(j - 1))) {
+          gap = j;
+          break;
+        }
+      }
+      if (gap < 0) {
+        return (false);
+      }
+      spans_[0] = 0;
+      spans_[1] = gap;
+      spans_[2] = gap + 1;
+      spans_[3] = open;
+      spans_[4] = open + 1;
+      spans_[5] = close;
+      spans_[6] = close + 2;
+      spans_[7] = eq;
+      spans_[8] = eq + 1;
+      spans_[9] = line.length();
+      return (true);
+    }
+    
+    /***************************************************************************
+    ** 
+    ** Use the pattern to find the group spans
+    */
+    
+    private boolean matchWithPattern(String line) {
+      if (matcher_ == null) {
+        matcher_ = (forNodes_) ? NODE_PAT_.matcher("") : LINK_PAT_.matcher("");
+      }
+      matcher_.reset(line);
+      if (!matcher_.matches()) {
+        return (false);
+      }
+      int numGroups = matcher_.groupCount();
+      for (int i = 0; i < numGroups; i++) {
+        spans_[2 * i] = matcher_.start(i + 1);
+        spans_[(2 * i) + 1] = matcher_.end(i + 1);
+      }
+      return (true);
+    }
+    
+    /***************************************************************************
+    ** 
+    ** Node for a name
+    */
+    
+    private NetNode lookUpNode(String name) {
+      NetNode retval = nameCache_.get(name);
+      if (retval == null) {
+        retval = nodes_.get(DataUtil.normKey(name));
+        if (retval != null) {
+          nameCache_.put(name, retval);
+        }
+      }
+      return (retval);
+    }
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CLASS METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Same as line.trim().equals("")
+  */
+  
+  private static boolean isBlank(String line) {
+    int len = line.length();
+    for (int i = 0; i < len; i++) {
+      if (line.charAt(i) > ' ') {
+        return (false);
+      }
+    }
+    return (true);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Same as line.substring(start, end).trim(), with one less copy
+  */
+  
+  private static String trimmed(String line, int start, int end) {
+    while ((start < end) && (line.charAt(start) <= ' ')) {
+      start++;
+    }
+    while ((end > start) && (line.charAt(end - 1) <= ' ')) {
+      end--;
+    }
+    return (line.substring(start, end));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Same as line.substring(start, end).trim().equals(val), with no copy
+  */
+  
+  private static boolean trimmedEquals(String line, int start, int end, String val) {
+    while ((start < end) && (line.charAt(start) <= ' ')) {
+      start++;
+    }
+    while ((end > start) && (line.charAt(end - 1) <= ' ')) {
+      end--;
+    }
+    return (((end - start) == val.length()) && line.startsWith(val, start));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** The regex \s class
+  */
+  
+  private static boolean isRegexSpace(char ch) {
+    return ((ch == ' ') || (ch == '\t') || (ch == '\n') || (ch == '\u000B') || (ch == '\f') || (ch == '\r'));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Answers if the line holds a character that the regex "." does not match. The
+  ** reader has already split on the others.
+  */
+  
+  private static boolean hasRegexLineTerminator(String line) {
+    int len = line.length();
+    for (int i = 0; i < len; i++) {
+      char ch = line.charAt(i);
+      if ((ch == '\u0085') || (ch == '\u2028') || (ch == '\u2029')) {
+        return (true);
+      }
+    }
+    return (false);
   }
      
   ////////////////////////////////////////////////////////////////////////////
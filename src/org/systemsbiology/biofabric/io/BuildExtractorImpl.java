@@ -22,6 +22,7 @@ package org.systemsbiology.biofabric.io;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +37,8 @@ import org.systemsbiology.biofabric.api.model.NetNode;
 import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
 import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
 import org.systemsbiology.biofabric.api.worker.LoopReporter;
+import org.systemsbiology.biofabric.model.FabricLink;
+import org.systemsbiology.biofabric.model.RelationRegistry;
 
 /****************************************************************************
 **
@@ -44,6 +47,20 @@ import org.systemsbiology.biofabric.api.worker.LoopReporter;
 
 public class BuildExtractorImpl implements BuildExtractor {
   
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  //
+  // Flags for relations seen in extractRelations(). The flipped flags are
+  // these shifted up by two:
+  //
+  
+  private static final int SEEN_PLAIN_  = 0x01;
+  private static final int SEEN_SHADOW_ = 0x02;
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC STATIC METHODS
@@ -77,39 +94,49 @@ public class BuildExtractorImpl implements BuildExtractor {
   public void extractRelations(List<NetLink> allLinks, 
   		                         SortedMap<AugRelation, Boolean> relMap, 
   		                         BTProgressMonitor monitor) throws AsynchExitRequestException {
-    HashSet<NetLink> flipSet = new HashSet<NetLink>();
-    HashSet<AugRelation> flipRels = new HashSet<AugRelation>();
-    HashSet<AugRelation> rels = new HashSet<AugRelation>();
     int size = allLinks.size();
     LoopReporter lr = new LoopReporter(size, 20, monitor, 0.0, 1.0, "progress.analyzingRelations");
-    Iterator<NetLink> alit = allLinks.iterator();
-    while (alit.hasNext()) {
-      NetLink nextLink = alit.next();
-      lr.report();
-      AugRelation relation = nextLink.getAugRelation();
-      if (!nextLink.isFeedback()) {  // Autofeedback not flippable
-        NetLink flipLink = nextLink.flipped();
-        if (flipSet.contains(flipLink)) {
-          flipRels.add(relation);
-        } else {
-          flipSet.add(nextLink);
-        }
-      }
-      rels.add(relation);
-    } 
+    PackedLinkKeys keys = PackedLinkKeys.build(allLinks, lr);
+    if (keys == null) {
+      extractRelationsWithSets(allLinks, relMap, lr);
+      return;
+    }
     
     //
-    // We have a hint that something is signed if there are two
-    // separate links running in opposite directions!
+    // A link gets its relation flagged when some earlier link ran the other way. That
+    // happens exactly when the first link of the flipped key comes before the first
+    // link of its own key. Relations are tallied by the link's relation entry, which
+    // loaders share between links, to skip hashing AugRelations per link.
     //
-        
-    Boolean noDir = new Boolean(false);
-    Boolean haveDir = new Boolean(true);
-    Iterator<AugRelation> rit = rels.iterator();
-    while (rit.hasNext()) {
-      AugRelation rel = rit.next();
-      relMap.put(rel, (flipRels.contains(rel)) ? haveDir : noDir);
-    }    
+    
+    HashSet<AugRelation> flipRels = new HashSet<AugRelation>();
+    HashSet<AugRelation> rels = new HashSet<AugRelation>();
+    IdentityHashMap<RelationRegistry.Relation, int[]> seen = new IdentityHashMap<RelationRegistry.Relation, int[]>();
+    int count = 0;
+    for (NetLink nextLink : allLinks) {
+      int d = keys.getDistinct(count++);
+      FabricLink fabLink = (FabricLink)nextLink;
+      RelationRegistry.Relation relEntry = fabLink.getRelationEntry();
+      int[] seenFlags = seen.get(relEntry);
+      if (seenFlags == null) {
+        seenFlags = new int[1];
+        seen.put(relEntry, seenFlags);
+      }
+      int relBit = (fabLink.isShadow()) ? SEEN_SHADOW_ : SEEN_PLAIN_;
+      if ((seenFlags[0] & relBit) == 0) {
+        seenFlags[0] |= relBit;
+        rels.add(fabLink.getAugRelation());
+      }
+      int flipBit = relBit << 2;
+      if ((seenFlags[0] & flipBit) == 0) {
+        int f = keys.getFlipped(d);
+        if ((f != -1) && (keys.getFirstPosition(f) < keys.getFirstPosition(d))) {
+          seenFlags[0] |= flipBit;
+          flipRels.add(fabLink.getAugRelation());
+        }
+      }
+    }
+    fillRelationMap(rels, flipRels, relMap);
     return;
   }
   
@@ -166,36 +193,45 @@ public class BuildExtractorImpl implements BuildExtractor {
 
   public void preprocessLinks(List<NetLink> allLinks, Set<NetLink> retval, Set<NetLink> culled,
   		                        BTProgressMonitor monitor) throws AsynchExitRequestException {
-  	LinkComparator flc = new LinkComparator();
   	int numLink = allLinks.size();
 	  LoopReporter lr = new LoopReporter(numLink, 20, monitor, 0.0, 1.0, "progress.cullingAndFlipping");
-  	
-    Iterator<NetLink> alit = allLinks.iterator();
-    while (alit.hasNext()) {
-      NetLink nextLink = alit.next();
-      lr.report();
-      if (retval.contains(nextLink)) {
-        culled.add(nextLink);
-      } else if (!nextLink.isDirected()) {
-        if (!nextLink.isFeedback()) {
-          NetLink flipLink = nextLink.flipped();
-          if (retval.contains(flipLink)) {
-            // Make the order consistent for a given src & pair!
-            if (flc.compare(nextLink, flipLink) < 0) {
-              retval.remove(flipLink);
-              culled.add(flipLink);
-              retval.add(nextLink);
-            } else {
-              culled.add(nextLink);              
-            }  
-          } else {
-            retval.add(nextLink);
-          }
-        } else {
-          retval.add(nextLink);
-        }
-      } else {
+    
+    //
+    // The sorted keys only reproduce the set-based answer when we are starting 
+    // from scratch and every link has its direction:
+    //
+    
+    PackedLinkKeys keys = null;
+    if (retval.isEmpty() && culled.isEmpty() && allDirectionsInstalled(allLinks)) {
+      keys = PackedLinkKeys.build(allLinks, lr);
+    }
+    if (keys == null) {
+      preprocessLinksWithSets(allLinks, retval, culled, lr);
+      return;
+    }
+    
+    //
+    // Of a set of duplicates, we keep the first. For undirected links, if both 
+    // orientations are present, we keep the first one in the orientation 
+    // LinkComparator prefers. Everybody else is culled, one per key.
+    //
+    
+    int numDistinct = keys.size();
+    boolean[] keep = new boolean[numDistinct];
+    for (int i = 0; i < numDistinct; i++) {
+      int f = keys.getFlipped(i);
+      keep[i] = (f == -1) || !keys.isUndirected(i) || !keys.isReversed(i);
+    }
+    boolean[] culledOne = new boolean[numDistinct];
+    int count = 0;
+    for (NetLink nextLink : allLinks) {
+      int pos = count++;
+      int d = keys.getDistinct(pos);
+      if (keep[d] && (keys.getFirstPosition(d) == pos)) {
         retval.add(nextLink);
+      } else if (!culledOne[d]) {
+        culledOne[d] = true;
+        culled.add(nextLink);
       }
     }
     return;
@@ -242,4 +278,112 @@ public class BuildExtractorImpl implements BuildExtractor {
     return;
   }
   
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Extract relations by hashing links. Used when the links cannot be packed.
+  */
+
+  private void extractRelationsWithSets(List<NetLink> allLinks, 
+                                        SortedMap<AugRelation, Boolean> relMap, 
+                                        LoopReporter lr) throws AsynchExitRequestException {
+    HashSet<NetLink> flipSet = new HashSet<NetLink>();
+    HashSet<AugRelation> flipRels = new HashSet<AugRelation>();
+    HashSet<AugRelation> rels = new HashSet<AugRelation>();
+    Iterator<NetLink> alit = allLinks.iterator();
+    while (alit.hasNext()) {
+      NetLink nextLink = alit.next();
+      lr.report();
+      AugRelation relation = nextLink.getAugRelation();
+      if (!nextLink.isFeedback()) {  // Autofeedback not flippable
+        NetLink flipLink = nextLink.flipped();
+        if (flipSet.contains(flipLink)) {
+          flipRels.add(relation);
+        } else {
+          flipSet.add(nextLink);
+        }
+      }
+      rels.add(relation);
+    } 
+    fillRelationMap(rels, flipRels, relMap);
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** We have a hint that something is signed if there are two
+  ** separate links running in opposite directions!
+  */
+
+  private void fillRelationMap(Set<AugRelation> rels, Set<AugRelation> flipRels,
+                               SortedMap<AugRelation, Boolean> relMap) {
+    Boolean noDir = new Boolean(false);
+    Boolean haveDir = new Boolean(true);
+    Iterator<AugRelation> rit = rels.iterator();
+    while (rit.hasNext()) {
+      AugRelation rel = rit.next();
+      relMap.put(rel, (flipRels.contains(rel)) ? haveDir : noDir);
+    }    
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Answer if every link has had its direction set
+  */
+
+  private boolean allDirectionsInstalled(List<NetLink> allLinks) {
+    for (NetLink link : allLinks) {
+      if (!(link instanceof FabricLink) || !((FabricLink)link).directionFrozen()) {
+        return (false);
+      }
+    }
+    return (true);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Cull links by hashing them. Used when the links cannot be packed.
+  */
+
+  private void preprocessLinksWithSets(List<NetLink> allLinks, Set<NetLink> retval, Set<NetLink> culled,
+                                       LoopReporter lr) throws AsynchExitRequestException {
+  	LinkComparator flc = new LinkComparator();
+    
+    Iterator<NetLink> alit = allLinks.iterator();
+    while (alit.hasNext()) {
+      NetLink nextLink = alit.next();
+      lr.report();
+      if (retval.contains(nextLink)) {
+        culled.add(nextLink);
+      } else if (!nextLink.isDirected()) {
+        if (!nextLink.isFeedback()) {
+          NetLink flipLink = nextLink.flipped();
+          if (retval.contains(flipLink)) {
+            // Make the order consistent for a given src & pair!
+            if (flc.compare(nextLink, flipLink) < 0) {
+              retval.remove(flipLink);
+              culled.add(flipLink);
+              retval.add(nextLink);
+            } else {
+              culled.add(nextLink);              
+            }  
+          } else {
+            retval.add(nextLink);
+          }
+        } else {
+          retval.add(nextLink);
+        }
+      } else {
+        retval.add(nextLink);
+      }
+    }
+    return;
+  }
+  
 }
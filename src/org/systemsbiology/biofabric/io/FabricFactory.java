@@ -116,6 +116,15 @@ public class FabricFactory implements ParserClient {
     return (whiteBoard_.bfn);    
   }
   
+  /***************************************************************************
+  ** 
+  ** Get the whiteboard. The fast reader fills it in directly for nodes and links.
+  */
+
+  FactoryWhiteboard getWhiteboard() {
+    return (whiteBoard_);    
+  }
+  
   /***************************************************************************
   ** 
   ** Set the container
@@ -39,6 +39,7 @@ import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
 import org.systemsbiology.biofabric.api.worker.LoopReporter;
 import org.systemsbiology.biofabric.model.FabricLink;
 import org.systemsbiology.biofabric.model.FabricNode;
+import org.systemsbiology.biofabric.model.RelationRegistry;
 import org.systemsbiology.biofabric.util.DataUtil;
 
 /****************************************************************************
@@ -66,6 +67,8 @@ public abstract class FabricImportLoader {
   //
   ////////////////////////////////////////////////////////////////////////////
   
+  private RelationRegistry relations_;
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC CONSTRUCTORS
@@ -78,7 +81,7 @@ public abstract class FabricImportLoader {
    */
   
   public FabricImportLoader() {
-  
+    relations_ = new RelationRegistry();
   }
   
   ////////////////////////////////////////////////////////////////////////////
@@ -113,6 +116,7 @@ public abstract class FabricImportLoader {
                                       BTProgressMonitor monitor) throws AsynchExitRequestException, IOException {
     
     FileImportStats retval = new FileImportStats();
+    relations_ = new RelationRegistry();
     long fileLen = infile.length();
     HashMap<String, NetNode> nameToID = new HashMap<String, NetNode>();
     BufferedReader in = null;
@@ -225,12 +229,13 @@ public abstract class FabricImportLoader {
   
   protected void buildLinkAndShadow(NetNode srcID, NetNode trgID, String rel, List<NetLink> links) {
     
-    FabricLink nextLink = new FabricLink(srcID, trgID, rel, false);
+    RelationRegistry.Relation relEntry = relations_.intern(rel);
+    FabricLink nextLink = new FabricLink(srcID, trgID, relEntry, false, null);
     links.add(nextLink);
     
     // We never create shadow feedback links!
     if (!srcID.equals(trgID)) {
-      FabricLink nextShadowLink = new FabricLink(srcID, trgID, rel, true);
+      FabricLink nextShadowLink = new FabricLink(srcID, trgID, relEntry, true, null);
       links.add(nextShadowLink);
     }
     
@@ -0,0 +1,1158 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.io;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.xml.sax.helpers.AttributesImpl;
+
+import org.systemsbiology.biofabric.api.io.AttributeExtractor;
+import org.systemsbiology.biofabric.api.parser.GlueStick;
+import org.systemsbiology.biofabric.api.util.NID;
+import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
+import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
+import org.systemsbiology.biofabric.api.worker.LoopReporter;
+import org.systemsbiology.biofabric.model.BioFabricNetwork;
+import org.systemsbiology.biofabric.parser.ProgressFilterInputStream;
+import org.systemsbiology.biofabric.util.ResourceManager;
+
+/****************************************************************************
+**
+** Reads .bif files without going through SAX. The file is scanned by hand, and
+** most elements are handed to the FabricFactory just like SUParser does. But the
+** node and link elements in the <nodes> and <links> sections are collected into
+** batches and decoded into NodeInfo and LinkInfo objects on a thread pool, using
+** the same decoding code the factory workers use. Results are added to the network
+** in file order, so we end up with exactly what the SAX path builds.
+**
+** Files with a DOCTYPE, or in an encoding other than UTF-8, are left to SUParser
+** (see canRead()).
+*/
+
+public class FabricXMLReader {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private static final int BATCH_SIZE_ = 2048;
+  private static final int MAX_THREADS_ = 4;
+  private static final int BUF_SIZE_ = 64 * 1024;
+  private static final int SNIFF_SIZE_ = 4096;
+  private static final int NAME_CACHE_SIZE_ = 256;
+  
+  //
+  // Scanner tokens:
+  //
+  
+  private static final int EOF_   = 0;
+  private static final int START_ = 1;
+  private static final int END_   = 2;
+  private static final int TEXT_  = 3;
+  
+  //
+  // Sections we decode in parallel:
+  //
+  
+  private static final int NO_SECTION_    = 0;
+  private static final int NODES_SECTION_ = 1;
+  private static final int LINKS_SECTION_ = 2;
+    
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private FabricFactory ff_;
+  private FabricFactory.FactoryWhiteboard board_;
+  private Set<String> keys_;
+  private FabricFactory currClient_;
+  private String lastElement_;
+  private GlueStick nodeGlue_;
+  private GlueStick linkGlue_;
+  
+  private Reader in_;
+  private char[] buf_;
+  private int pos_;
+  private int lim_;
+  private int line_;
+  private int col_;
+  
+  private String name_;
+  private boolean selfClose_;
+  private ArrayList<String> attrNames_;
+  private ArrayList<String> attrVals_;
+  private char[] text_;
+  private int textLen_;
+  private boolean textIsBlank_;
+  private String[] nameCache_;
+  
+  private ProgressFilterInputStream pfis_;
+  private LoopReporter lr_;
+  private int lastStep_;
+  
+  private ExecutorService pool_;
+  private int maxInFlight_;
+  private DecodeBatch batch_;
+  private LinkedList<DecodeBatch> pendingBatches_;
+  private LinkedList<Future<Object[]>> pendingResults_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public FabricXMLReader(FabricFactory ff) {
+    ff_ = ff;
+    board_ = ff.getWhiteboard();
+    keys_ = ff.keywordsOfInterest();
+    nodeGlue_ = new BioFabricNetwork.MyNodeGlue();
+    linkGlue_ = new BioFabricNetwork.MyLinkGlue();
+    attrNames_ = new ArrayList<String>();
+    attrVals_ = new ArrayList<String>();
+    text_ = new char[256];
+    nameCache_ = new String[NAME_CACHE_SIZE_];
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Peek at the start of the stream to see if we can handle it. The stream is 
+  ** left where it was.
+  */
+  
+  public static boolean canRead(BufferedInputStream in) throws IOException {
+    byte[] head = new byte[SNIFF_SIZE_];
+    in.mark(SNIFF_SIZE_);
+    int count = 0;
+    try {
+      while (count < SNIFF_SIZE_) {
+        int got = in.read(head, count, SNIFF_SIZE_ - count);
+        if (got == -1) {
+          break;
+        }
+        count += got;
+      }
+    } finally {
+      in.reset();
+    }
+    if ((count >= 2) && (((head[0] & 0xFF) == 0xFE) || ((head[0] & 0xFF) == 0xFF) || (head[0] == 0))) {
+      return (false);  // UTF-16 or UTF-32
+    }
+    String start = new String(head, 0, count, "ISO-8859-1");
+    if (start.indexOf("<!DOCTYPE") != -1) {
+      return (false);
+    }
+    int declStart = start.indexOf("<?xml");
+    int declEnd = start.indexOf("?>");
+    if ((declStart != -1) && (declEnd > declStart)) {
+      String decl = start.substring(declStart, declEnd);
+      int encAt = decl.indexOf("encoding");
+      if (encAt != -1) {
+        int open = encAt + "encoding".length();
+        while ((open < decl.length()) && (decl.charAt(open) != '"') && (decl.charAt(open) != '\'')) {
+          open++;
+        }
+        int close = (open < decl.length()) ? decl.indexOf(decl.charAt(open), open + 1) : -1;
+        if (close == -1) {
+          return (false);
+        }
+        String enc = decl.substring(open + 1, close).trim();
+        if (!enc.equalsIgnoreCase("UTF-8") && !enc.equalsIgnoreCase("UTF8") && !enc.equalsIgnoreCase("US-ASCII")) {
+          return (false);
+        }
+      }
+    }
+    return (true);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  ** 
+  ** Parse the given input stream. Monitor may be null.
+  */
+
+  public void parse(ProgressFilterInputStream pfis, BTProgressMonitor monitor, boolean forCache) 
+    throws AsynchExitRequestException, IOException {
+    pfis_ = pfis;
+    lastStep_ = -1;
+    lr_ = new LoopReporter(20, 0, monitor, 0.0, 1.0, (forCache) ? "progress.fromCache" : "progress.readXML");
+    in_ = new InputStreamReader(pfis, "UTF-8");
+    buf_ = new char[BUF_SIZE_];
+    pos_ = 0;
+    lim_ = 0;
+    line_ = 1;
+    col_ = 0;
+    currClient_ = null;
+    lastElement_ = null;
+    
+    int numThreads = Math.min(MAX_THREADS_, Runtime.getRuntime().availableProcessors() - 1);
+    pool_ = (numThreads < 1) ? null : Executors.newFixedThreadPool(numThreads);
+    maxInFlight_ = 2 * Math.max(1, numThreads);
+    pendingBatches_ = new LinkedList<DecodeBatch>();
+    pendingResults_ = new LinkedList<Future<Object[]>>();
+    batch_ = null;
+    try {
+      parseDocument();
+    } finally {
+      if (pool_ != null) {
+        pool_.shutdownNow();
+      }
+      pool_ = null;
+      pendingBatches_ = null;
+      pendingResults_ = null;
+    }
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  ** 
+  ** Main loop
+  */
+
+  private void parseDocument() throws AsynchExitRequestException, IOException {
+    if (peek() == '\uFEFF') {
+      read();
+    }
+    ArrayList<String> path = new ArrayList<String>();
+    int section = NO_SECTION_;
+    boolean rootDone = false;
+    int token;
+    while ((token = nextToken()) != EOF_) {
+      switch (token) {
+        case START_:
+          checkProgress();
+          if (rootDone) {
+            throw parseError("Content is not allowed after the root element");
+          }
+          if ((section == NODES_SECTION_) && name_.equals("node")) {
+            collectNode();
+            break;
+          } else if ((section == LINKS_SECTION_) && name_.equals("link")) {
+            collectLink();
+            break;
+          }
+          flushPending();
+          String startName = name_;
+          boolean isEmpty = selfClose_;
+          dispatchStart(startName, currentAttributes());
+          if (isEmpty) {
+            dispatchEnd(startName);
+            rootDone = path.isEmpty();
+          } else {
+            path.add(startName);
+            section = sectionFor(path);
+          }
+          break;
+        case END_:
+          if (path.isEmpty() || !path.get(path.size() - 1).equals(name_)) {
+            throw parseError("Unexpected end tag: " + name_);
+          }
+          flushPending();
+          path.remove(path.size() - 1);
+          dispatchEnd(name_);
+          section = sectionFor(path);
+          rootDone = path.isEmpty();
+          break;
+        case TEXT_:
+          if (path.isEmpty()) {
+            if (!textIsBlank_) {
+              throw parseError("Content is not allowed outside the root element");
+            }
+          } else if ((section == NO_SECTION_) && (currClient_ != null)) {
+            currClient_.processCharacters(text_, 0, textLen_);
+          }
+          break;
+        default:
+          throw new IllegalStateException();
+      }
+    }
+    if (!path.isEmpty() || !rootDone) {
+      throw parseError("XML document structures must start and end within the same entity");
+    }
+    flushPending();
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** We handle direct kids of <BioFabric><nodes> and <BioFabric><links> ourselves
+  */
+
+  private int sectionFor(ArrayList<String> path) {
+    if ((path.size() != 2) || !path.get(0).equals("BioFabric")) {
+      return (NO_SECTION_);
+    }
+    String sect = path.get(1);
+    if (sect.equals("nodes")) {
+      return (NODES_SECTION_);
+    } else if (sect.equals("links")) {
+      return (LINKS_SECTION_);
+    }
+    return (NO_SECTION_);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Same as SUParser.startElement()
+  */
+
+  private void dispatchStart(String elemName, AttributesImpl attrs) throws IOException {
+    if ((currClient_ == null) && keys_.contains(elemName)) {
+      currClient_ = ff_;
+    }
+    if (currClient_ != null) {
+      lastElement_ = elemName;
+      try {
+        Object target = currClient_.processElement(elemName, attrs);
+        if (target != null) {
+          ff_.setContainer(target);
+        }
+      } catch (IOException ioe) {
+        throw rebundleIOException(ioe);
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Same as SUParser.endElement()
+  */
+
+  private void dispatchEnd(String elemName) throws IOException {
+    if (currClient_ == null) {
+      return;
+    }
+    try {
+      if (currClient_.finishElement(elemName)) {
+        currClient_ = null;
+      }
+    } catch (IOException ioe) {
+      throw rebundleIOException(ioe);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Progress is tracked off the bytes read, like SUParser does
+  */
+
+  private void checkProgress() throws AsynchExitRequestException {
+    int step = (int)Math.floor(pfis_.getProgress() * 20.0);
+    if (step != lastStep_) {
+      lastStep_ = step;
+      lr_.report();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Collect a node element, with any drain zones inside it. Like the SAX path, drain 
+  ** zones are picked up at any depth, but not inside another drain zone.
+  */
+
+  private void collectNode() throws AsynchExitRequestException, IOException {
+    DecodeBatch batch = currentBatch(true);
+    batch.attrs.add(currentAttributes());
+    ArrayList<ZoneDef> zones = null;
+    if (!selfClose_) {
+      ArrayList<String> stack = new ArrayList<String>();
+      stack.add("node");
+      int zoneDepth = -1;
+      while (!stack.isEmpty()) {
+        int token = nextToken();
+        if (token == EOF_) {
+          throw parseError("XML document structures must start and end within the same entity");
+        } else if (token == START_) {
+          checkProgress();
+          if ((zoneDepth == -1) && (name_.equals("drainZone") || name_.equals("drainZoneShadow"))) {
+            if (zones == null) {
+              zones = new ArrayList<ZoneDef>();
+            }
+            zones.add(new ZoneDef(name_, currentAttributes()));
+            if (!selfClose_) {
+              zoneDepth = stack.size();
+            }
+          }
+          if (!selfClose_) {
+            stack.add(name_);
+          }
+        } else if (token == END_) {
+          if (!stack.get(stack.size() - 1).equals(name_)) {
+            throw parseError("Unexpected end tag: " + name_);
+          }
+          stack.remove(stack.size() - 1);
+          if (stack.size() == zoneDepth) {
+            zoneDepth = -1;
+          }
+        }
+      }
+    }
+    batch.zones.add(zones);
+    batchFilled(batch);
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Collect a link element. The SAX path ignores anything inside a link, so we do too.
+  */
+
+  private void collectLink() throws AsynchExitRequestException, IOException {
+    DecodeBatch batch = currentBatch(false);
+    batch.attrs.add(currentAttributes());
+    batch.zones.add(null);
+    if (!selfClose_) {
+      int depth = 1;
+      while (depth > 0) {
+        int token = nextToken();
+        if (token == EOF_) {
+          throw parseError("XML document structures must start and end within the same entity");
+        } else if (token == START_) {
+          checkProgress();
+          depth += (selfClose_) ? 0 : 1;
+        } else if (token == END_) {
+          depth--;
+        }
+      }
+    }
+    batchFilled(batch);
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Get the batch we are filling
+  */
+
+  private DecodeBatch currentBatch(boolean forNodes) throws IOException {
+    if ((batch_ != null) && (batch_.forNodes != forNodes)) {
+      flushPending();
+    }
+    if (batch_ == null) {
+      batch_ = new DecodeBatch(forNodes, board_);
+    }
+    return (batch_);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Ship the batch off if it is full
+  */
+
+  private void batchFilled(DecodeBatch batch) throws IOException {
+    if (batch.attrs.size() < BATCH_SIZE_) {
+      return;
+    }
+    batch_ = null;
+    if (pool_ == null) {
+      applyBatch(batch, decodeInline(batch));
+      return;
+    }
+    pendingBatches_.add(batch);
+    pendingResults_.add(pool_.submit(batch));
+    while (pendingResults_.size() > maxInFlight_) {
+      applyOldest();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Get everything we have collected into the network
+  */
+
+  private void flushPending() throws IOException {
+    DecodeBatch last = batch_;
+    batch_ = null;
+    while (!pendingResults_.isEmpty()) {
+      applyOldest();
+    }
+    if (last != null) {
+      applyBatch(last, decodeInline(last));
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Apply the oldest batch once it is decoded
+  */
+
+  private void applyOldest() throws IOException {
+    DecodeBatch batch = pendingBatches_.removeFirst();
+    Future<Object[]> result = pendingResults_.removeFirst();
+    Object[] decoded;
+    try {
+      decoded = result.get();
+    } catch (InterruptedException iex) {
+      throw new IOException(iex.getMessage());
+    } catch (ExecutionException eex) {
+      Throwable cause = eex.getCause();
+      if (cause instanceof IOException) {
+        lastElement_ = (batch.forNodes) ? "node" : "link";
+        throw rebundleIOException((IOException)cause);
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+    applyBatch(batch, decoded);
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Decode on this thread
+  */
+
+  private Object[] decodeInline(DecodeBatch batch) throws IOException {
+    try {
+      return (batch.call());
+    } catch (IOException ioe) {
+      lastElement_ = (batch.forNodes) ? "node" : "link";
+      throw rebundleIOException(ioe);
+    }
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Add decoded nodes or links to the network, in file order. Node IDs get recorded
+  ** here too, since that has to happen in order.
+  */
+
+  private void applyBatch(DecodeBatch batch, Object[] decoded) throws IOException {
+    int num = batch.attrs.size();
+    try {
+      if (batch.forNodes) {
+        lastElement_ = "node";
+        String[] names = (String[])decoded[0];
+        String[] nidStrs = (String[])decoded[1];
+        BioFabricNetwork.NodeInfo[] infos = (BioFabricNetwork.NodeInfo[])decoded[2];
+        for (int i = 0; i < num; i++) {
+          NID nid = BioFabricNetwork.NodeInfoWorker.registerID(nidStrs[i], names[i], board_);
+          BioFabricNetwork.NodeInfo ni = infos[i];
+          if (ni == null) {
+            // Legacy files without node IDs: needed the ID before we could build it
+            ni = BioFabricNetwork.NodeInfoWorker.buildFromXML("node", batch.attrs.get(i), nid, names[i]);
+            addZones(ni, batch.zones.get(i));
+          }
+          board_.nodeInfo = ni;
+          nodeGlue_.glueKidToParent(ni, null, board_);
+        }
+      } else {
+        lastElement_ = "link";
+        BioFabricNetwork.LinkInfo[] infos = (BioFabricNetwork.LinkInfo[])decoded[0];
+        for (int i = 0; i < num; i++) {
+          board_.linkInfo = infos[i];
+          linkGlue_.glueKidToParent(infos[i], null, board_);
+        }
+      }
+    } catch (IOException ioe) {
+      throw rebundleIOException(ioe);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Add the drain zones collected with a node
+  */
+
+  private static void addZones(BioFabricNetwork.NodeInfo ni, ArrayList<ZoneDef> zones) throws IOException {
+    if (zones == null) {
+      return;
+    }
+    for (ZoneDef zd : zones) {
+      boolean isShadow = zd.elemName.equals("drainZoneShadow");
+      ni.addDrainZone(BioFabricNetwork.DrainZoneWorker.buildFromXML(zd.elemName, zd.attrs, isShadow));
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Attributes of the current start tag
+  */
+
+  private AttributesImpl currentAttributes() {
+    AttributesImpl retval = new AttributesImpl();
+    int num = attrNames_.size();
+    for (int i = 0; i < num; i++) {
+      String name = attrNames_.get(i);
+      retval.addAttribute("", name, name, "CDATA", attrVals_.get(i));
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Scan the next token
+  */
+
+  private int nextToken() throws IOException {
+    while (true) {
+      int c = peek();
+      if (c == -1) {
+        return (EOF_);
+      }
+      if (c != '<') {
+        readText();
+        return (TEXT_);
+      }
+      read();
+      c = peek();
+      if (c == '/') {
+        read();
+        name_ = readName();
+        skipSpace();
+        expect('>');
+        return (END_);
+      } else if (c == '?') {
+        skipPast("?>");
+        continue;
+      } else if (c == '!') {
+        read();
+        if (lookingAt("--")) {
+          skipPast("-->");
+          continue;
+        } else if (lookingAt("[CDATA[")) {
+          readCData();
+          return (TEXT_);
+        }
+        throw parseError("Markup declarations are not supported");
+      }
+      name_ = readName();
+      attrNames_.clear();
+      attrVals_.clear();
+      while (true) {
+        boolean hadSpace = skipSpace();
+        c = read();
+        if (c == '>') {
+          selfClose_ = false;
+          return (START_);
+        } else if (c == '/') {
+          expect('>');
+          selfClose_ = true;
+          return (START_);
+        } else if (c == -1) {
+          throw parseError("XML document structures must start and end within the same entity");
+        } else if (!hadSpace) {
+          throw parseError("Element type \"" + name_ + "\" must be followed by attributes, \">\" or \"/>\"");
+        }
+        unread();
+        String attName = readName();
+        skipSpace();
+        expect('=');
+        skipSpace();
+        int quote = read();
+        if ((quote != '"') && (quote != '\'')) {
+          throw parseError("Open quote is expected for attribute \"" + attName + "\"");
+        }
+        if (attrNames_.contains(attName)) {
+          throw parseError("Attribute \"" + attName + "\" was already specified for element \"" + name_ + "\"");
+        }
+        attrNames_.add(attName);
+        attrVals_.add(readAttrValue(quote));
+      }
+    }
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Read a name. Names repeat constantly, so we keep a small cache of them.
+  */
+
+  private String readName() throws IOException {
+    textLen_ = 0;
+    int hash = 0;
+    while (true) {
+      int c = peek();
+      if ((c == -1) || (c == '>') || (c == '/') || (c == '=') || (c == '<') || isSpace(c)) {
+        break;
+      }
+      read();
+      if (c == ':') {
+        throw parseError("Namespaces are not supported");
+      }
+      appendText((char)c);
+      hash = (31 * hash) + c;
+    }
+    if (textLen_ == 0) {
+      throw parseError("A name is expected");
+    }
+    int slot = (hash & 0x7FFFFFFF) % NAME_CACHE_SIZE_;
+    String cached = nameCache_[slot];
+    if ((cached != null) && (cached.length() == textLen_)) {
+      boolean same = true;
+      for (int i = 0; i < textLen_; i++) {
+        if (cached.charAt(i) != text_[i]) {
+          same = false;
+          break;
+        }
+      }
+      if (same) {
+        return (cached);
+      }
+    }
+    String retval = new String(text_, 0, textLen_);
+    nameCache_[slot] = retval;
+    return (retval);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Read an attribute value. As with any XML parser, references are expanded and
+  ** white space characters become spaces.
+  */
+
+  private String readAttrValue(int quote) throws IOException {
+    textLen_ = 0;
+    while (true) {
+      int c = read();
+      if (c == -1) {
+        throw parseError("XML document structures must start and end within the same entity");
+      } else if (c == quote) {
+        break;
+      } else if (c == '<') {
+        throw parseError("The value of an attribute must not contain the '<' character");
+      } else if (c == '&') {
+        readReference();
+      } else if ((c == '\n') || (c == '\t')) {
+        appendText(' ');
+      } else {
+        appendText((char)c);
+      }
+    }
+    return (new String(text_, 0, textLen_));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Read character data up to the next markup
+  */
+
+  private void readText() throws IOException {
+    textLen_ = 0;
+    textIsBlank_ = true;
+    while (true) {
+      int c = peek();
+      if ((c == -1) || (c == '<')) {
+        break;
+      }
+      read();
+      if (c == '&') {
+        readReference();
+        textIsBlank_ = false;
+      } else {
+        appendText((char)c);
+        if (!isSpace(c)) {
+          textIsBlank_ = false;
+        }
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Read a CDATA section
+  */
+
+  private void readCData() throws IOException {
+    textLen_ = 0;
+    textIsBlank_ = false;
+    while (true) {
+      int c = read();
+      if (c == -1) {
+        throw parseError("The CDATA section must end with \"]]>\"");
+      }
+      appendText((char)c);
+      if ((c == '>') && (textLen_ >= 3) && (text_[textLen_ - 2] == ']') && (text_[textLen_ - 3] == ']')) {
+        textLen_ -= 3;
+        return;
+      }
+    }
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Expand an entity or character reference into the text buffer. The ampersand
+  ** has been read.
+  */
+
+  private void readReference() throws IOException {
+    StringBuffer ref = new StringBuffer();
+    while (true) {
+      int c = read();
+      if (c == ';') {
+        break;
+      } else if ((c == -1) || isSpace(c) || (c == '<') || (c == '&') || (ref.length() > 16)) {
+        throw parseError("The entity reference must end with the ';' delimiter");
+      }
+      ref.append((char)c);
+    }
+    String refStr = ref.toString();
+    if (refStr.equals("amp")) {
+      appendText('&');
+    } else if (refStr.equals("lt")) {
+      appendText('<');
+    } else if (refStr.equals("gt")) {
+      appendText('>');
+    } else if (refStr.equals("quot")) {
+      appendText('"');
+    } else if (refStr.equals("apos")) {
+      appendText('\'');
+    } else if (refStr.startsWith("#")) {
+      int codePoint;
+      try {
+        if (refStr.startsWith("#x")) {
+          codePoint = Integer.parseInt(refStr.substring(2), 16);
+        } else {
+          codePoint = Integer.parseInt(refStr.substring(1));
+        }
+      } catch (NumberFormatException nfex) {
+        throw parseError("Bad character reference: &" + refStr + ";");
+      }
+      if (!Character.isValidCodePoint(codePoint) || (codePoint == 0)) {
+        throw parseError("Bad character reference: &" + refStr + ";");
+      }
+      char[] chars = Character.toChars(codePoint);
+      for (int i = 0; i < chars.length; i++) {
+        appendText(chars[i]);
+      }
+    } else {
+      throw parseError("The entity \"" + refStr + "\" was referenced, but not declared");
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Add to the text buffer
+  */
+
+  private void appendText(char c) {
+    if (textLen_ == text_.length) {
+      char[] bigger = new char[text_.length * 2];
+      System.arraycopy(text_, 0, bigger, 0, textLen_);
+      text_ = bigger;
+    }
+    text_[textLen_++] = c;
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Skip white space; answers if there was any
+  */
+
+  private boolean skipSpace() throws IOException {
+    boolean retval = false;
+    while (isSpace(peek())) {
+      read();
+      retval = true;
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** XML white space
+  */
+
+  private static boolean isSpace(int c) {
+    return ((c == ' ') || (c == '\n') || (c == '\t') || (c == '\r'));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Read the given char or fail
+  */
+
+  private void expect(char want) throws IOException {
+    int c = read();
+    if (c != want) {
+      throw parseError("Expected '" + want + "'");
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** If the given string is next, consume it
+  */
+
+  private boolean lookingAt(String str) throws IOException {
+    int len = str.length();
+    for (int i = 0; i < len; i++) {
+      if (peek() != str.charAt(i)) {
+        if (i > 0) {
+          throw parseError("Unsupported markup");
+        }
+        return (false);
+      }
+      read();
+    }
+    return (true);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Skip past the given terminator
+  */
+
+  private void skipPast(String term) throws IOException {
+    int len = term.length();
+    int matched = 0;
+    while (matched < len) {
+      int c = read();
+      if (c == -1) {
+        throw parseError("XML document structures must start and end within the same entity");
+      }
+      if (c == term.charAt(matched)) {
+        matched++;
+      } else {
+        matched = (c == term.charAt(0)) ? 1 : 0;
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Next char, without consuming it. A carriage return may show up here; read()
+  ** turns it into a newline.
+  */
+
+  private int peek() throws IOException {
+    if ((pos_ >= lim_) && !fill()) {
+      return (-1);
+    }
+    return (buf_[pos_]);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Next char, with line ends normalized to newlines as XML requires
+  */
+
+  private int read() throws IOException {
+    if ((pos_ >= lim_) && !fill()) {
+      return (-1);
+    }
+    char c = buf_[pos_++];
+    if (c == '\r') {
+      if (peek() == '\n') {
+        pos_++;
+      }
+      c = '\n';
+    }
+    if (c == '\n') {
+      line_++;
+      col_ = 0;
+    } else {
+      col_++;
+    }
+    return (c);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Back up one char. Only used right after a read() of a non-newline.
+  */
+
+  private void unread() {
+    pos_--;
+    col_--;
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Refill the buffer
+  */
+
+  private boolean fill() throws IOException {
+    int got = in_.read(buf_, 0, buf_.length);
+    while (got == 0) {
+      got = in_.read(buf_, 0, buf_.length);
+    }
+    if (got == -1) {
+      pos_ = 0;
+      lim_ = 0;
+      return (false);
+    }
+    pos_ = 0;
+    lim_ = got;
+    return (true);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Syntax error, reported the way SUParser reports them
+  */
+
+  private IOException parseError(String msg) {
+    ResourceManager rMan = ResourceManager.getManager();
+    String format = rMan.getString("fileRead.SAXParseErrorFormat");
+    return (new IOException(MessageFormat.format(format, new Object[] {msg, Integer.valueOf(line_), Integer.valueOf(col_ + 1)})));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Rebundle IO exception, same as SUParser
+  */
+
+  private IOException rebundleIOException(IOException e) {
+    ResourceManager rMan = ResourceManager.getManager();
+    String msg = (e == null) ? null : e.getMessage();
+    String retmsg;
+    if ((msg == null) || msg.trim().equals("")) {
+      if (lastElement_ == null) {
+        retmsg = rMan.getString("fileRead.IOErrorNoDetails");
+      } else {
+        String format = rMan.getString("fileRead.IOErrorNoMsgWithElemFormat");
+        retmsg = MessageFormat.format(format, new Object[] {lastElement_});
+      }
+    } else {
+      if (lastElement_ == null) {
+        String format = rMan.getString("fileRead.IOErrorMsgNoElemFormat");
+        retmsg = MessageFormat.format(format, new Object[] {msg});
+      } else {
+        String format = rMan.getString("fileRead.IOExtraMsgWithElemFormat");
+        retmsg = MessageFormat.format(format, new Object[] {msg, lastElement_});
+      }
+    }
+    return (new IOException(retmsg));
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** A drain zone element found inside a node
+  */
+  
+  private static class ZoneDef {
+    String elemName;
+    AttributesImpl attrs;
+    
+    ZoneDef(String elemName, AttributesImpl attrs) {
+      this.elemName = elemName;
+      this.attrs = attrs;
+    }
+  }
+ 
+  /***************************************************************************
+  **
+  ** A batch of node or link elements to decode. For nodes, the result holds
+  ** the names, the ID strings, and the NodeInfos (null for nodes without IDs,
+  ** which have to wait until the IDs are assigned in order). For links, it
+  ** is just the LinkInfos.
+  */
+  
+  private static class DecodeBatch implements Callable<Object[]> {
+    boolean forNodes;
+    FabricFactory.FactoryWhiteboard board;
+    ArrayList<AttributesImpl> attrs;
+    ArrayList<ArrayList<ZoneDef>> zones;
+    
+    DecodeBatch(boolean forNodes, FabricFactory.FactoryWhiteboard board) {
+      this.forNodes = forNodes;
+      this.board = board;
+      this.attrs = new ArrayList<AttributesImpl>();
+      this.zones = new ArrayList<ArrayList<ZoneDef>>();
+    }
+    
+    public Object[] call() throws IOException {
+      int num = attrs.size();
+      if (forNodes) {
+        String[] names = new String[num];
+        String[] nidStrs = new String[num];
+        BioFabricNetwork.NodeInfo[] infos = new BioFabricNetwork.NodeInfo[num];
+        for (int i = 0; i < num; i++) {
+          AttributesImpl nodeAttrs = attrs.get(i);
+          names[i] = BioFabricNetwork.NodeInfoWorker.nameFromXML("node", nodeAttrs);
+          nidStrs[i] = AttributeExtractor.extractAttribute("node", nodeAttrs, "node", "nid", false);
+          if (nidStrs[i] != null) {
+            infos[i] = BioFabricNetwork.NodeInfoWorker.buildFromXML("node", nodeAttrs, new NID(nidStrs[i]), names[i]);
+            addZones(infos[i], zones.get(i));
+          }
+        }
+        return (new Object[] {names, nidStrs, infos});
+      } else {
+        BioFabricNetwork.LinkInfo[] infos = new BioFabricNetwork.LinkInfo[num];
+        for (int i = 0; i < num; i++) {
+          infos[i] = BioFabricNetwork.LinkInfoWorker.buildFromXML("link", attrs.get(i), board);
+        }
+        return (new Object[] {infos});
+      }
+    }
+  }
+}
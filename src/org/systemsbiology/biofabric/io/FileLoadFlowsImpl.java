@@ -22,17 +22,15 @@ package org.systemsbiology.biofabric.io;
 import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Toolkit;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -43,8 +41,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
@@ -55,7 +52,6 @@ import org.systemsbiology.biofabric.api.io.AttributeKey;
 import org.systemsbiology.biofabric.api.io.BuildData;
 import org.systemsbiology.biofabric.api.io.BuildExtractor;
 import org.systemsbiology.biofabric.api.io.FileLoadFlows;
-import org.systemsbiology.biofabric.api.io.Indenter;
 import org.systemsbiology.biofabric.api.layout.DefaultLayout;
 import org.systemsbiology.biofabric.api.layout.EdgeLayout;
 import org.systemsbiology.biofabric.api.layout.LayoutCriterionFailureException;
@@ -64,6 +60,7 @@ import org.systemsbiology.biofabric.api.model.AnnotationSet;
 import org.systemsbiology.biofabric.api.model.AugRelation;
 import org.systemsbiology.biofabric.api.model.NetLink;
 import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.api.model.NetworkGraphView;
 import org.systemsbiology.biofabric.api.parser.ParserClient;
 import org.systemsbiology.biofabric.api.util.ExceptionHandler;
 import org.systemsbiology.biofabric.api.util.PluginResourceManager;
@@ -74,6 +71,7 @@ import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
 import org.systemsbiology.biofabric.api.worker.BackgroundCore;
 import org.systemsbiology.biofabric.api.worker.BackgroundWorkerControlManager;
 import org.systemsbiology.biofabric.api.worker.BackgroundWorkerOwner;
+import org.systemsbiology.biofabric.api.worker.PhaseTelemetry;
 import org.systemsbiology.biofabric.app.BioFabricWindow;
 import org.systemsbiology.biofabric.cmd.CommandSet;
 import org.systemsbiology.biofabric.cmd.HeadlessOracle;
@@ -93,6 +91,7 @@ import org.systemsbiology.biofabric.ui.FabricDisplayOptions;
 import org.systemsbiology.biofabric.ui.FabricDisplayOptionsManager;
 import org.systemsbiology.biofabric.ui.dialogs.RelationDirectionDialog;
 import org.systemsbiology.biofabric.ui.display.BioFabricPanel;
+import org.systemsbiology.biofabric.ui.display.LayoutSnapshot;
 import org.systemsbiology.biofabric.ui.render.BufferBuilder;
 import org.systemsbiology.biofabric.util.FileExtensionFilters;
 import org.systemsbiology.biofabric.util.GarbageRequester;
@@ -119,6 +118,14 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
   public static final int SIZE_TO_ASK_ABOUT_SHADOWS = 100000;
   public static final int XML_SIZE_FOR_BACKGROUND_READ = 1000000;
   
+  /***************************************************************************
+  **
+  ** Rendered tiles for a saved network are kept next to it in a file with
+  ** this suffix tacked on
+  */
+  
+  public static final String TILE_STORE_SUFFIX = ".tiles";
+  
   /***************************************************************************
   **
   ** For standard file checks
@@ -541,7 +548,7 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
         }
       } else {   
         try {
-          preprocess(links, relaMap, reducedLinks, culledLinks, null);
+          SIFLoadSteps.preprocess(links, relaMap, reducedLinks, culledLinks, null);
         } catch ( AsynchExitRequestException axex) {
           // Not going to happen
         }
@@ -676,7 +683,7 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     } else {
       try {
         if (type == FileLoadFlows.FileLoadType.SIF) {
-          sss = (new SIFImportLoader()).importFabric(file, idGen, links, loneNodes, nodeNames, magBins, null);
+          sss = SIFLoadSteps.importLinks(file, idGen, links, loneNodes, nodeNames, magBins, relMap, null);
         } else if (type == FileLoadFlows.FileLoadType.GW) {
           sss = (new GWImportLoader()).importFabric(file, idGen, links, loneNodes, nodeNames, magBins, null);
           boolean finished = (new GWImportLoader.GWRelationManager()).process(links, topWindow_, null);
@@ -684,10 +691,10 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
             // should not happen
             return (new FileLoadResultImpl(false, holdIt));
           }
+          PluginSupportFactory.getBuildExtractor().extractRelations(links, relMap, null);
         } else {
           throw (new IllegalArgumentException("File type not identified"));
         }
-        PluginSupportFactory.getBuildExtractor().extractRelations(links, relMap, null);
       } catch (AsynchExitRequestException axex) {
         // Should never happen
         return (new FileLoadResultImpl(false, holdIt));
@@ -781,21 +788,6 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     return (new FileLoadResultImpl(true, holdIt));
   }
   
-  /***************************************************************************
-  **
-  ** Preprocess ops that are either run in forground or background:
-  */ 
-    
-  private void preprocess(List<NetLink> links, 
-  		                    SortedMap<AugRelation, Boolean> relaMap,
-  	                      Set<NetLink> reducedLinks, Set<NetLink> culledLinks,  
-  	                      BTProgressMonitor monitor) throws AsynchExitRequestException {
-  	BuildExtractor bex = PluginSupportFactory.getBuildExtractor();
-    bex.assignDirections(links, relaMap, monitor);
-    bex.preprocessLinks(links, reducedLinks, culledLinks, monitor);
-    return;
-  }  
-    
   /***************************************************************************
   **
   ** Common load operations.
@@ -811,12 +803,12 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       boolean finished = br.doBackgroundRead(ff, sup, file, false, holdIt);
       if (finished) {
         setCurrentXMLFile(file);
-        postXMLLoad(ff, file.getName(), holdIt);
+        postXMLLoad(ff, file.getName(), holdIt, file);
       }
       return (true);
     } else {
       try {
-        sup.parse(file);  
+        readXML(ff, sup, file);  
       } catch (IOException ioe) {
         displayFileInputError(ioe);
         return (false);              
@@ -826,10 +818,43 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       }
     }
     setCurrentXMLFile(file);
-    postXMLLoad(ff, file.getName(), holdIt);
+    postXMLLoad(ff, file.getName(), holdIt, file);
     return (true);
   }
   
+  /***************************************************************************
+  **
+  ** Read a (small) network file in the foreground
+  */ 
+    
+  private void readXML(FabricFactory ff, SUParser sup, File file) throws IOException {
+    BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
+    try {
+      if (!FabricXMLReader.canRead(bis)) {
+        sup.parse(file);
+        return;
+      }
+      ProgressFilterInputStream pfis = new ProgressFilterInputStream(bis, file.length());
+      (new FabricXMLReader(ff)).parse(pfis, null, false);
+    } catch (AsynchExitRequestException aex) {
+      // Cannot happen without a monitor
+      throw new IllegalStateException(aex);
+    } finally {
+      bis.close();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Where we keep the rendered tiles for a network file
+  */ 
+    
+  private File tileStoreFor(File file) {  
+    File absFile = file.getAbsoluteFile();
+    return (new File(absFile.getParentFile(), absFile.getName() + TILE_STORE_SUFFIX));
+  }
+  
   /***************************************************************************
   **
   ** Restore a network from backup file following a cancellation.
@@ -855,8 +880,22 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
   */ 
     
   public boolean postXMLLoad(FabricFactory ff, String fileName, File holdIt) {  
+    return (postXMLLoad(ff, fileName, holdIt, null));
+  }
+  
+  /***************************************************************************
+  **
+  ** Common load operations. If the network file that was read is provided, rendered 
+  ** tiles are kept next to it, and reused if they were drawn for the same layout,
+  ** colors, and display options.
+  */ 
+    
+  public boolean postXMLLoad(FabricFactory ff, String fileName, File holdIt, File networkFile) {  
     NetworkBuilder nb = new NetworkBuilder(true, holdIt, null); 
     nb.setBuildDataForXMLLoad(ff.getFabricNetwork(), BuildDataImpl.BuildMode.BUILD_FROM_XML);
+    if (networkFile != null) {
+      nb.setTileStore(tileStoreFor(networkFile));
+    }
     nb.doNetworkBuild();
     manageWindowTitle(fileName);
     return (true);
@@ -1227,22 +1266,24 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
   public void saveToOutputStream(OutputStream stream, boolean compress, BTProgressMonitor monitor) 
   	throws AsynchExitRequestException, IOException {
 
-  	PrintWriter out = null;
+    //
+    // Compressed output is only used for the restore cache, which we want written
+    // as fast as possible:
+    //
+    
+  	OutputStream out = null;
   	if (compress) {
-  		out = new PrintWriter(new OutputStreamWriter(new GZIPOutputStream(stream, 8 * 1024), "UTF-8"));
+  		out = new ParallelGZIPOutputStream(stream, Deflater.BEST_SPEED);
   	} else {
-  	  out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(stream, "UTF-8")));
+  	  out = new BufferedOutputStream(stream, 64 * 1024);
   	}  	
   	try {
-	    Indenter ind = new Indenter(out, Indenter.DEFAULT_INDENT);
 	    BioFabricNetwork bfn = bfp_.getNetwork();
 	    if (bfn != null) {
-	      bfn.writeXML(out, ind, monitor, compress);
+	      bfn.writeXML(out, monitor, compress);
 	    }
   	} finally {
-  		if (out != null) {
-  			out.close();
-  		}  		
+  		out.close();
   	}  
     return;
   }
@@ -1413,7 +1454,7 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       forRecovery_ = (holdIt == null);
       try {
       	BFWorker bfw = PluginSupportFactory.getBFWorker(this, topWindow_, bfw_, "fileLoad.waitTitle", "fileLoad.wait", true, null);
-        ReaderRunner runner = new ReaderRunner(sup, file, compressed, holdIt_, bfw);                                                      
+        ReaderRunner runner = new ReaderRunner(ff, sup, file, compressed, holdIt_, bfw);                                                      
         bfw.setCore(runner);
         bfw.launchWorker(); 
       } catch (Exception ex) {
@@ -1465,15 +1506,17 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
   private class ReaderRunner implements BackgroundCore {
    
     private File myFile_;
+    private FabricFactory myFactory_;
     private SUParser myParser_;
     private boolean compressed_;
     private File holdIt_;
     private BFWorker bfwk_;
     
-    public ReaderRunner(SUParser sup, File file, boolean compressed, File holdIt, BFWorker bfwk) {
+    public ReaderRunner(FabricFactory ff, SUParser sup, File file, boolean compressed, File holdIt, BFWorker bfwk) {
 
     	bfwk_ = bfwk;
       myFile_ = file;
+      myFactory_ = ff;
       myParser_ = sup;
       compressed_ = compressed;
       holdIt_ = holdIt;
@@ -1492,14 +1535,19 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       try {
         long fileLen = myFile_.length();
         FileInputStream fis = new FileInputStream(myFile_);
-        InputStream bis;
+        BufferedInputStream bis;
         if (compressed_) {
-          bis = new GZIPInputStream(fis, 8 * 1024);
+          bis = new BufferedInputStream(new MultiMemberGZIPInputStream(fis, 8 * 1024));
         } else {
-          bis = new BufferedInputStream(new FileInputStream(myFile_));
+          bis = new BufferedInputStream(fis);
         } 
-        pfis = new ProgressFilterInputStream(bis, fileLen);   
-        myParser_.parse(pfis, monitor, compressed_);
+        boolean fastRead = FabricXMLReader.canRead(bis);
+        pfis = new ProgressFilterInputStream(bis, fileLen);
+        if (fastRead) {
+          (new FabricXMLReader(myFactory_)).parse(pfis, monitor, compressed_);
+        } else {
+          myParser_.parse(pfis, monitor, compressed_);
+        }
         return (new Boolean(true));
       } catch (IOException ioe) {
         bfwk_.stashException(ioe);
@@ -1601,7 +1649,7 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       if (holdIt_.length() == 0) {
         buildRestoreCache(holdIt_, monitor);
       }
-      preprocess(links_, relaMap_, reducedLinks_, culledLinks_, monitor);
+      SIFLoadSteps.preprocess(links_, relaMap_, reducedLinks_, culledLinks_, monitor);
       return (new Boolean(true));  
     }
     
@@ -1806,9 +1854,8 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       	}
         preLoadOperations();
         FabricImportLoader.FileImportStats sss = 
-          (new SIFImportLoader()).importFabric(myFile_, idGen_, links_, loneNodeIDs_, nameMap_, magBins_, monitor);
+          SIFLoadSteps.importLinks(myFile_, idGen_, links_, loneNodeIDs_, nameMap_, magBins_, relaMap_, monitor);
         sss_.copyInto(sss);
-        PluginSupportFactory.getBuildExtractor().extractRelations(links_, relaMap_, monitor);     
         return (new Boolean(true));
       } catch (IOException ioe) {
         bfwk_.stashException(ioe);
@@ -1954,6 +2001,10 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       }
       runner_.setBuildDataForXMLLoad(bfn, bMode); 
     }
+    
+    void setTileStore(File tileStore) {
+      runner_.setTileStore(tileStore); 
+    }
  
     public void doNetworkBuildForeground() {
       try {
@@ -2034,6 +2085,7 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     private long linkCount_;
     private BuildDataImpl plugInBuildData_;
     private BFWorker bfwk_;
+    private File tileStore_;
     
 
     public NewNetworkRunner(boolean forMain, File holdIt, BFWorker bfwk) { 
@@ -2076,11 +2128,15 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       return;
     }
     
+    void setTileStore(File tileStore) {
+      tileStore_ = tileStore;
+      return;
+    }
+    
     private BuildData generateBuildData() { 
       switch (bMode_) {
         case BUILD_FROM_SIF:
-          HashMap<NetNode, String> emptyMap = new HashMap<NetNode, String>();
-          return (new BuildDataImpl(idGen_, links_, loneNodeIDs_, emptyMap, colGen_, bMode_));
+          return (SIFLoadSteps.buildData(idGen_, links_, loneNodeIDs_, colGen_));
         case BUILD_FROM_PLUGIN:
           plugInBuildData_.setColorGen(colGen_);
           return (plugInBuildData_);
@@ -2093,12 +2149,23 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     }
 
     public Object runCore() throws AsynchExitRequestException {
+      PhaseTelemetry telem = PhaseTelemetry.startRun("networkBuild-" + bMode_);
+      BioFabricPanel.ParkedView leaving = null;
+      BioFabricPanel.ParkedView waiting = null;
       try {
       	BTProgressMonitor monitor = bfwk_.getMonitor();
         if ((holdIt_ != null) && (holdIt_.length() == 0)) {
           buildRestoreCache(holdIt_, monitor);
         }   
         BuildData bd = generateBuildData();
+        //
+        // A shadow toggle keeps what was drawn for the view we are leaving, and
+        // gets back what was drawn the last time the new setting was shown:
+        //
+        if (bMode_ == BuildDataImpl.BuildMode.SHADOW_LINK_CHANGE) {
+          waiting = bfp_.takeOtherView();
+          leaving = bfp_.parkView();
+        }
         preLoadOperations();
         // This can be run on foreground thread (for headless operation): shut up progress monitor
         // if that is the case:
@@ -2106,7 +2173,9 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
         	monitor = null;
         }
         
-        BufferedImage bi = expensiveModelOperations(bd, forMain_, monitor);
+        BioFabricPanel.ParkedView parked = waiting;
+        waiting = null; // Used up by the model operations
+        BufferedImage bi = expensiveModelOperations(bd, forMain_, tileStore_, null, null, parked, monitor);
         if (linkCount_ > 10000) {
           (new GarbageRequester()).askForGC(monitor);
         }
@@ -2117,6 +2186,16 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       } catch (LayoutCriterionFailureException ex) {
         bfwk_.stashException(ex);
         return (null);
+      } finally {
+        if (waiting != null) {
+          waiting.discard(bfp_.getBufImgStack());
+        }
+        if (leaving != null) {
+          bfp_.setOtherView(leaving);
+        }
+        if (telem != null) {
+          telem.endRun();
+        }
       }
     }
     
@@ -2312,6 +2391,17 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
     }
  
     public Object runCore() throws AsynchExitRequestException {
+      PhaseTelemetry telem = PhaseTelemetry.startRun("networkRelayout-" + mode_);
+      try {
+        return (relayoutCore());
+      } finally {
+        if (telem != null) {
+          telem.endRun();
+        }
+      }
+    }
+    
+    private Object relayoutCore() throws AsynchExitRequestException {
     	BTProgressMonitor monitor = bfwk_.getMonitor(); 
       if ((holdIt_ != null) && (holdIt_.length() == 0)) {
         buildRestoreCache(holdIt_, monitor);
@@ -2335,6 +2425,15 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       rbd_.setLinkMeaning(linkMeaning_);
       
       bfn_ = null; // Let go so we get GC!
+      
+      //
+      // Hang onto the old tiles and a record of the old layout, so that tiles 
+      // for the parts that do not move can be kept:
+      //
+      
+      LayoutSnapshot before = bfp_.snapshotLayout();
+      BufferBuilder oldBB = bfp_.getBufBuilder();
+      BufferBuilder.TileCarryover carryover = (oldBB == null) ? null : oldBB.handOffTiles();
       preLoadOperations();
       
       try {
@@ -2351,7 +2450,8 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
             el.layoutEdges(rbd_, monitor);
           }
         }
-        BufferedImage bi = expensiveModelOperations(rbd_, true, monitor);
+        BufferedImage bi = expensiveModelOperations(rbd_, true, null, before, carryover, null, monitor);
+        carryover = null;
         (new GarbageRequester()).askForGC(monitor);
         return (bi);
       } catch (IOException ex) {
@@ -2360,6 +2460,10 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       } catch (LayoutCriterionFailureException ex) {
         bfwk_.stashException(ex);
         return (null);
+      } finally {
+        if (carryover != null) {
+          carryover.discard(bfp_.getBufImgStack());
+        }
       }
     }
     
@@ -2498,17 +2602,74 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
                                                 BTProgressMonitor monitor) throws IOException, 
   																																								AsynchExitRequestException,
   	                                                                              LayoutCriterionFailureException {
+    return (expensiveModelOperations(bfnbd, forMain, null, monitor));
+  }
+  
+  /***************************************************************************
+  **
+  ** Do new model operations, keeping rendered tiles in the given store file (may be null).
+  ** Stored tiles are reused if they were drawn for the same layout, colors, and options.
+  */ 
+
+  public BufferedImage expensiveModelOperations(BuildData bfnbd, 
+                                                boolean forMain, File tileStore,
+                                                BTProgressMonitor monitor) throws IOException, 
+  																																								AsynchExitRequestException,
+  	                                                                              LayoutCriterionFailureException {
+    return (expensiveModelOperations(bfnbd, forMain, tileStore, null, null, null, monitor));
+  }
+  
+  /***************************************************************************
+  **
+  ** Do new model operations. For a relayout, the tiles from the previous layout 
+  ** can be handed in, along with a snapshot of that layout; tiles that cover 
+  ** unchanged parts of the network are kept. For a shadow toggle, the view parked
+  ** the last time (may be null) is used up: if it still fits, its paint objects 
+  ** and tiles are used as they are.
+  */ 
+
+  private BufferedImage expensiveModelOperations(BuildData bfnbd, 
+                                                 boolean forMain, File tileStore,
+                                                 LayoutSnapshot before, 
+                                                 BufferBuilder.TileCarryover carryover,
+                                                 BioFabricPanel.ParkedView parked,
+                                                 BTProgressMonitor monitor) throws IOException, 
+  																																								 AsynchExitRequestException,
+  	                                                                               LayoutCriterionFailureException {
     Dimension screenSize = (forMain && (headlessOracle_ == null)) ? Toolkit.getDefaultToolkit().getScreenSize() : new Dimension(600, 800);
     // Possibly expensive network analysis preparation:
-    BioFabricNetwork bfn = new BioFabricNetwork(bfnbd, pMan_, monitor);
-    // Possibly expensive display object creation:
-    bfp_.installModel(bfn, monitor);
+    BioFabricNetwork bfn = null;
+    try {
+      bfn = new BioFabricNetwork(bfnbd, pMan_, monitor);
+    } finally {
+      if ((bfn == null) && (parked != null)) {
+        parked.discard(bfp_.getBufImgStack());
+      }
+    }
+    List<Rectangle2D> dirty = null;
+    if ((parked != null) && bfp_.installParkedView(bfn, parked)) {
+      // Nothing changed since these were drawn:
+      carryover = parked.takeTiles();
+      dirty = new ArrayList<Rectangle2D>();
+    } else {
+      // Possibly expensive display object creation:
+      bfp_.installModel(bfn, monitor);
+    }
     // Very expensive display buffer creation:
     int[] preZooms = bfp_.calcZoomSettings(screenSize);
     BufferedImage topImage = null;
     if (headlessOracle_ == null) {
       if (forMain) {
         BufferBuilder bb = new BufferBuilder(null, 100, bfp_, bfp_.getBucketRend(), bfp_.getBufImgStack());
+        if (tileStore != null) {
+          bb.setTileStore(tileStore, bfn.getRenderKey());
+        }
+        if (carryover != null) {
+          if (before != null) {
+            dirty = before.dirtyRegions(bfp_.snapshotLayout());
+          }
+          bb.inheritTiles(carryover, dirty);
+        }
         topImage = bb.buildBufs(preZooms, bfp_, 25, monitor);
         bfp_.setBufBuilder(bb);      
       } else {
@@ -2517,6 +2678,9 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
         bfp_.setBufBuilder(null);
       }
     }
+    if ((carryover != null) && ((headlessOracle_ != null) || !forMain)) {
+      carryover.discard(bfp_.getBufImgStack());
+    }
     return (topImage);
   }
 
@@ -2600,6 +2764,10 @@ public class FileLoadFlowsImpl implements FileLoadFlows {
       return (bfn_.getNodeCount());
     }
     
+    public NetworkGraphView getGraphView() {
+      return (bfn_.getGraphView());
+    }
+    
     public FileLoadFlows getFileUtilities() {
       return (flf_);
     }
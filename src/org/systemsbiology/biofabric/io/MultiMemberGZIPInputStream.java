@@ -0,0 +1,321 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/****************************************************************************
+**
+** Reads a gzip stream that is a series of members, as written by 
+** ParallelGZIPOutputStream, and returns them as one stream. Before Java 7,
+** GZIPInputStream stops at the end of the first member, so we cannot use it 
+** for those files. A single-member file reads the same as with GZIPInputStream.
+*/
+
+public class MultiMemberGZIPInputStream extends InputStream {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private static final int FHCRC_    = 0x02;
+  private static final int FEXTRA_   = 0x04;
+  private static final int FNAME_    = 0x08;
+  private static final int FCOMMENT_ = 0x10;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private InputStream in_;
+  private Inflater inf_;
+  private CRC32 crc_;
+  private byte[] buf_;
+  private int bufPos_;
+  private int bufLen_;
+  private boolean atEnd_;
+  private boolean closed_;
+  private byte[] single_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. Reads the first member header, so a stream that is not gzip
+  ** fails here.
+  */
+
+  public MultiMemberGZIPInputStream(InputStream in, int size) throws IOException {
+    if (size <= 0) {
+      throw new IllegalArgumentException();
+    }
+    in_ = in;
+    inf_ = new Inflater(true);
+    crc_ = new CRC32();
+    buf_ = new byte[size];
+    bufPos_ = 0;
+    bufLen_ = 0;
+    atEnd_ = false;
+    closed_ = false;
+    single_ = new byte[1];
+    try {
+      if (!readHeader()) {
+        throw new EOFException();
+      }
+    } catch (IOException ioex) {
+      inf_.end();
+      throw ioex;
+    }
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  ** 
+  ** Read a byte
+  */
+
+  @Override
+  public int read() throws IOException {
+    int num = read(single_, 0, 1);
+    return ((num == -1) ? -1 : (single_[0] & 0xFF));
+  }
+ 
+  /***************************************************************************
+  ** 
+  ** Read bytes. Crosses member boundaries as needed.
+  */
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (closed_) {
+      throw new IOException("Stream closed");
+    }
+    if ((off < 0) || (len < 0) || (len > b.length - off)) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return (0);
+    }
+    while (!atEnd_) {
+      int num;
+      try {
+        num = inf_.inflate(b, off, len);
+      } catch (DataFormatException dfex) {
+        String msg = dfex.getMessage();
+        throw new ZipException((msg != null) ? msg : "Invalid ZLIB data format");
+      }
+      if (num > 0) {
+        crc_.update(b, off, num);
+        return (num);
+      }
+      if (inf_.finished()) {
+        endMember();
+      } else if (inf_.needsDictionary()) {
+        throw new ZipException("Unexpected preset dictionary");
+      } else if (inf_.needsInput()) {
+        if ((bufPos_ == bufLen_) && !fill()) {
+          throw new EOFException("Unexpected end of ZLIB input stream");
+        }
+        inf_.setInput(buf_, bufPos_, bufLen_ - bufPos_);
+        bufPos_ = bufLen_;
+      }
+    }
+    return (-1);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Like InflaterInputStream, answers 1 until the end is reached
+  */
+
+  @Override
+  public int available() throws IOException {
+    if (closed_) {
+      throw new IOException("Stream closed");
+    }
+    return ((atEnd_) ? 0 : 1);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Close the stream
+  */
+
+  @Override
+  public void close() throws IOException {
+    if (closed_) {
+      return;
+    }
+    closed_ = true;
+    inf_.end();
+    in_.close();
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** The inflater is done with a member. Take back the bytes it did not use, 
+  ** check the trailer, and get set up for the next member, if any.
+  */
+
+  private void endMember() throws IOException {
+    bufPos_ = bufLen_ - inf_.getRemaining();
+    long crc = readIntLE();
+    long size = readIntLE();
+    if ((crc != crc_.getValue()) || (size != (inf_.getBytesWritten() & 0xFFFFFFFFL))) {
+      throw new ZipException("Corrupt GZIP trailer");
+    }
+    inf_.reset();
+    crc_.reset();
+    if (!readHeader()) {
+      atEnd_ = true;
+    }
+    return;
+  }
+ 
+  /***************************************************************************
+  ** 
+  ** Read a member header. Answers false if the input ends cleanly instead.
+  */
+
+  private boolean readHeader() throws IOException {
+    int first = readByte();
+    if (first == -1) {
+      return (false);
+    }
+    CRC32 headCrc = new CRC32();
+    headCrc.update(first);
+    if ((first != 0x1f) || (readHeaderByte(headCrc) != 0x8b)) {
+      throw new ZipException("Not in GZIP format");
+    }
+    if (readHeaderByte(headCrc) != 8) {
+      throw new ZipException("Unsupported compression method");
+    }
+    int flags = readHeaderByte(headCrc);
+    // Modification time, extra flags, OS:
+    for (int i = 0; i < 6; i++) {
+      readHeaderByte(headCrc);
+    }
+    if ((flags & FEXTRA_) != 0) {
+      int xlen = readHeaderByte(headCrc) | (readHeaderByte(headCrc) << 8);
+      for (int i = 0; i < xlen; i++) {
+        readHeaderByte(headCrc);
+      }
+    }
+    if ((flags & FNAME_) != 0) {
+      while (readHeaderByte(headCrc) != 0) {
+      }
+    }
+    if ((flags & FCOMMENT_) != 0) {
+      while (readHeaderByte(headCrc) != 0) {
+      }
+    }
+    if ((flags & FHCRC_) != 0) {
+      int want = (int)(headCrc.getValue() & 0xFFFF);
+      int got = readHeaderByte(null) | (readHeaderByte(null) << 8);
+      if (want != got) {
+        throw new ZipException("Corrupt GZIP header");
+      }
+    }
+    return (true);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Read a header byte, which must be there, adding it to the header CRC if given
+  */
+
+  private int readHeaderByte(CRC32 headCrc) throws IOException {
+    int val = readByte();
+    if (val == -1) {
+      throw new EOFException();
+    }
+    if (headCrc != null) {
+      headCrc.update(val);
+    }
+    return (val);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Gzip trailer fields are little-endian
+  */
+
+  private long readIntLE() throws IOException {
+    long retval = 0L;
+    for (int i = 0; i < 4; i++) {
+      retval |= ((long)readHeaderByte(null)) << (8 * i);
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Read a raw byte that the inflater has not been given; -1 at the end
+  */
+
+  private int readByte() throws IOException {
+    if ((bufPos_ == bufLen_) && !fill()) {
+      return (-1);
+    }
+    return (buf_[bufPos_++] & 0xFF);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Refill the raw buffer. Answers false at the end of the input.
+  */
+
+  private boolean fill() throws IOException {
+    int num = in_.read(buf_, 0, buf_.length);
+    if (num <= 0) {
+      return (false);
+    }
+    bufPos_ = 0;
+    bufLen_ = num;
+    return (true);
+  }
+}
@@ -0,0 +1,576 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.systemsbiology.biofabric.api.model.NetLink;
+import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
+import org.systemsbiology.biofabric.api.worker.LoopReporter;
+import org.systemsbiology.biofabric.model.FabricLink;
+import org.systemsbiology.biofabric.util.DataUtil;
+
+/****************************************************************************
+**
+** Encodes each link of a list as a long, so duplicate and flipped links can be
+** found by sorting a primitive array instead of hashing link objects. Two links
+** get the same key exactly when FabricLink.equals() says they are equal.
+**
+** Nodes are numbered by the order LinkComparator prefers for the source of an 
+** undirected link (normalized name, then ID). A key holds the lower and higher 
+** node number, the normalized relation, the shadow flag, the direction (unset, 
+** undirected, or directed), and in the low bit whether the link runs from the 
+** higher node to the lower one. So a link and its flip have keys that differ only 
+** in the low bit, and sit next to each other once sorted.
+*/
+
+final class PackedLinkKeys {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private static final int MAX_THREADS_ = 4;
+  
+  //
+  // Below this many links, it is not worth starting up threads:
+  //
+  
+  private static final int PARALLEL_MIN_LINKS_ = 200000;
+  
+  private static final int DIR_BITS_ = 2;
+  private static final long DIR_UNSET_ = 0L;
+  private static final long DIR_UNDIRECTED_ = 1L;
+  private static final long DIR_DIRECTED_ = 2L;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private long[] distinct_;
+  private int[] linkToDistinct_;
+  private int[] firstPos_;
+  private int[] count_;
+  private int nodeBits_;
+  private int relBits_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE-VISIBLE CLASS METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Build the keys for the links. Returns null if the list has links we cannot 
+  ** encode (i.e. not FabricLinks), or if the keys will not fit into a long.
+  */
+  
+  static PackedLinkKeys build(List<NetLink> links, LoopReporter lr) throws AsynchExitRequestException {
+    
+    int numLinks = links.size();
+    FabricLink[] linkArr = new FabricLink[numLinks];
+    int[] srcIndex = new int[numLinks];
+    int[] trgIndex = new int[numLinks];
+    HashMap<NetNode, Integer> nodeIndex = new HashMap<NetNode, Integer>();
+    ArrayList<NetNode> nodes = new ArrayList<NetNode>();
+    int[] normRels = new int[numLinks];
+    HashMap<String, Integer> normOrdinals = new HashMap<String, Integer>();
+    int count = 0;
+    for (NetLink link : links) {
+      if (!(link instanceof FabricLink)) {
+        return (null);
+      }
+      FabricLink fabLink = (FabricLink)link;
+      linkArr[count] = fabLink;
+      srcIndex[count] = addNode(link.getSrcNode(), nodeIndex, nodes);
+      trgIndex[count] = addNode(link.getTrgNode(), nodeIndex, nodes);
+      String normKey = fabLink.getRelationEntry().normKey;
+      Integer normOrd = normOrdinals.get(normKey);
+      if (normOrd == null) {
+        normOrd = Integer.valueOf(normOrdinals.size());
+        normOrdinals.put(normKey, normOrd);
+      }
+      normRels[count] = normOrd.intValue();
+      count++;
+    }
+    nodeIndex = null;
+    
+    PackedLinkKeys retval = new PackedLinkKeys();
+    retval.nodeBits_ = bitsFor(nodes.size());
+    retval.relBits_ = bitsFor(normOrdinals.size());
+    int keyBits = (2 * retval.nodeBits_) + retval.relBits_ + 1 + DIR_BITS_ + 1;
+    if (keyBits > 63) {
+      return (null);
+    }
+    
+    //
+    // If there is room, the list position goes into the bottom of the sorted value, so 
+    // each run of equal keys comes out with its links in list order. Otherwise we need
+    // to look each key up once the distinct keys are known.
+    //
+    
+    int posBits = bitsFor(numLinks);
+    boolean withPos = ((keyBits + posBits) <= 63);
+    
+    int[] rankForIndex = rankNodes(nodes);
+    nodes = null;
+    
+    long[] keys = new long[numLinks];
+    for (int i = 0; i < numLinks; i++) {
+      long key = retval.encode(rankForIndex[srcIndex[i]], rankForIndex[trgIndex[i]], normRels[i], linkArr[i]);
+      keys[i] = (withPos) ? ((key << posBits) | i) : key;
+      lr.report();
+    }
+    linkArr = null;
+    normRels = null;
+    srcIndex = null;
+    trgIndex = null;
+    
+    int numThreads = Math.min(MAX_THREADS_, Runtime.getRuntime().availableProcessors() - 1);
+    ExecutorService pool = ((numThreads < 1) || (numLinks < PARALLEL_MIN_LINKS_)) ? null : Executors.newFixedThreadPool(numThreads);
+    try {
+      if (withPos) {
+        parallelSort(keys, pool, numThreads);
+        retval.fillFromSortedPositions(keys, posBits);
+      } else {
+        long[] sorted = keys.clone();
+        parallelSort(sorted, pool, numThreads);
+        int numDistinct = unique(sorted);
+        retval.distinct_ = new long[numDistinct];
+        System.arraycopy(sorted, 0, retval.distinct_, 0, numDistinct);
+        sorted = null;
+        retval.linkToDistinct_ = retval.lookUp(keys, pool, numThreads);
+        retval.fillFirstAndCount();
+      }
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+    return (retval);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE-VISIBLE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Number of distinct keys
+  */
+  
+  int size() {
+    return (distinct_.length);
+  }
+  
+  /***************************************************************************
+  **
+  ** Index of the distinct key for the link at the given list position
+  */
+  
+  int getDistinct(int linkPos) {
+    return (linkToDistinct_[linkPos]);
+  }
+  
+  /***************************************************************************
+  **
+  ** List position of the first link with the key
+  */
+  
+  int getFirstPosition(int distinct) {
+    return (firstPos_[distinct]);
+  }
+  
+  /***************************************************************************
+  **
+  ** Number of links with the key
+  */
+  
+  int getCount(int distinct) {
+    return (count_[distinct]);
+  }
+  
+  /***************************************************************************
+  **
+  ** Answer if links with the key are feedback links
+  */
+  
+  boolean isFeedback(int distinct) {
+    long key = distinct_[distinct];
+    int shift = relBits_ + 1 + DIR_BITS_ + 1;
+    long mask = (1L << nodeBits_) - 1L;
+    long hi = (key >>> shift) & mask;
+    long lo = (key >>> (shift + nodeBits_)) & mask;
+    return (lo == hi);
+  }
+  
+  /***************************************************************************
+  **
+  ** Answer if links with the key have been marked undirected
+  */
+  
+  boolean isUndirected(int distinct) {
+    return (((distinct_[distinct] >>> 1) & ((1L << DIR_BITS_) - 1L)) == DIR_UNDIRECTED_);
+  }
+  
+  /***************************************************************************
+  **
+  ** Answer if links with the key run against the order LinkComparator prefers
+  */
+  
+  boolean isReversed(int distinct) {
+    return ((distinct_[distinct] & 1L) != 0L);
+  }
+  
+  /***************************************************************************
+  **
+  ** Index of the distinct key for the flipped link, or -1 if no link in the
+  ** list is the flip. Feedback links are not their own flips here.
+  */
+  
+  int getFlipped(int distinct) {
+    if (isFeedback(distinct)) {
+      return (-1);
+    }
+    long key = distinct_[distinct];
+    int other = ((key & 1L) == 0L) ? distinct + 1 : distinct - 1;
+    if ((other < 0) || (other >= distinct_.length)) {
+      return (-1);
+    }
+    return ((distinct_[other] == (key ^ 1L)) ? other : -1);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Pack a link up
+  */
+  
+  private long encode(int srcRank, int trgRank, int normRel, FabricLink link) {
+    boolean reversed = (srcRank > trgRank);
+    long lo = (reversed) ? trgRank : srcRank;
+    long hi = (reversed) ? srcRank : trgRank;
+    long rel = normRel;
+    long dir = (!link.directionFrozen()) ? DIR_UNSET_ : ((link.isDirected()) ? DIR_DIRECTED_ : DIR_UNDIRECTED_);
+    long key = lo;
+    key = (key << nodeBits_) | hi;
+    key = (key << relBits_) | rel;
+    key = (key << 1) | ((link.isShadow()) ? 1L : 0L);
+    key = (key << DIR_BITS_) | dir;
+    key = (key << 1) | ((reversed) ? 1L : 0L);
+    return (key);
+  }
+  
+  /***************************************************************************
+  **
+  ** Fill in everything from keys sorted with list positions in the low bits
+  */
+  
+  private void fillFromSortedPositions(long[] sorted, int posBits) {
+    int numLinks = sorted.length;
+    long posMask = (1L << posBits) - 1L;
+    int numDistinct = 0;
+    for (int i = 0; i < numLinks; i++) {
+      if ((i == 0) || ((sorted[i] >>> posBits) != (sorted[i - 1] >>> posBits))) {
+        numDistinct++;
+      }
+    }
+    distinct_ = new long[numDistinct];
+    firstPos_ = new int[numDistinct];
+    count_ = new int[numDistinct];
+    linkToDistinct_ = new int[numLinks];
+    int d = -1;
+    for (int i = 0; i < numLinks; i++) {
+      long key = sorted[i] >>> posBits;
+      int pos = (int)(sorted[i] & posMask);
+      if ((d == -1) || (distinct_[d] != key)) {
+        distinct_[++d] = key;
+        firstPos_[d] = pos;
+      }
+      count_[d]++;
+      linkToDistinct_[pos] = d;
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Fill in first positions and counts from the link to key mapping
+  */
+  
+  private void fillFirstAndCount() {
+    firstPos_ = new int[distinct_.length];
+    count_ = new int[distinct_.length];
+    Arrays.fill(firstPos_, -1);
+    for (int i = 0; i < linkToDistinct_.length; i++) {
+      int d = linkToDistinct_[i];
+      if (firstPos_[d] == -1) {
+        firstPos_[d] = i;
+      }
+      count_[d]++;
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Find each key in the distinct array
+  */
+  
+  private int[] lookUp(final long[] keys, ExecutorService pool, int numThreads) {
+    final int[] retval = new int[keys.length];
+    if (pool == null) {
+      lookUpRange(keys, retval, 0, keys.length);
+      return (retval);
+    }
+    ArrayList<Future<Object>> pending = new ArrayList<Future<Object>>();
+    int chunk = (keys.length + numThreads - 1) / numThreads;
+    for (int i = 0; i < keys.length; i += chunk) {
+      final int start = i;
+      final int end = Math.min(keys.length, i + chunk);
+      pending.add(pool.submit(new Callable<Object>() {
+        public Object call() {
+          lookUpRange(keys, retval, start, end);
+          return (null);
+        }
+      }));
+    }
+    waitFor(pending);
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Find a range of keys in the distinct array
+  */
+  
+  private void lookUpRange(long[] keys, int[] result, int start, int end) {
+    for (int i = start; i < end; i++) {
+      result[i] = Arrays.binarySearch(distinct_, keys[i]);
+    }
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CLASS METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Get the index of the node, giving it one if it is new
+  */
+  
+  private static int addNode(NetNode node, HashMap<NetNode, Integer> nodeIndex, ArrayList<NetNode> nodes) {
+    Integer index = nodeIndex.get(node);
+    if (index == null) {
+      index = Integer.valueOf(nodes.size());
+      nodeIndex.put(node, index);
+      nodes.add(node);
+    }
+    return (index.intValue());
+  }
+  
+  /***************************************************************************
+  **
+  ** Rank nodes the way LinkComparator orders the ends of a link
+  */
+  
+  private static int[] rankNodes(ArrayList<NetNode> nodes) {
+    int numNodes = nodes.size();
+    final String[] normNames = new String[numNodes];
+    Integer[] order = new Integer[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      normNames[i] = DataUtil.normKey(nodes.get(i).getName());
+      order[i] = Integer.valueOf(i);
+    }
+    final ArrayList<NetNode> useNodes = nodes;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer one, Integer two) {
+        int diff = normNames[one.intValue()].compareTo(normNames[two.intValue()]);
+        if (diff != 0) {
+          return (diff);
+        }
+        return (useNodes.get(one.intValue()).compareTo(useNodes.get(two.intValue())));
+      }
+    });
+    int[] retval = new int[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      retval[order[i].intValue()] = i;
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Bits needed for values 0 through count - 1
+  */
+  
+  private static int bitsFor(int count) {
+    return (Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(0, count - 1))));
+  }
+  
+  /***************************************************************************
+  **
+  ** Squeeze out repeats from a sorted array. Returns the number left.
+  */
+  
+  private static int unique(long[] sorted) {
+    if (sorted.length == 0) {
+      return (0);
+    }
+    int num = 1;
+    for (int i = 1; i < sorted.length; i++) {
+      if (sorted[i] != sorted[num - 1]) {
+        sorted[num++] = sorted[i];
+      }
+    }
+    return (num);
+  }
+  
+  /***************************************************************************
+  **
+  ** Sort pieces of the array on the pool, then merge them pairwise
+  */
+  
+  private static void parallelSort(final long[] vals, ExecutorService pool, int numThreads) {
+    if (pool == null) {
+      Arrays.sort(vals);
+      return;
+    }
+    int numParts = Integer.highestOneBit(numThreads);
+    if (numParts < numThreads) {
+      numParts <<= 1;
+    }
+    int len = vals.length;
+    final int[] bounds = new int[numParts + 1];
+    for (int i = 0; i <= numParts; i++) {
+      bounds[i] = (int)(((long)len * i) / numParts);
+    }
+    ArrayList<Future<Object>> pending = new ArrayList<Future<Object>>();
+    for (int i = 0; i < numParts; i++) {
+      final int start = bounds[i];
+      final int end = bounds[i + 1];
+      pending.add(pool.submit(new Callable<Object>() {
+        public Object call() {
+          Arrays.sort(vals, start, end);
+          return (null);
+        }
+      }));
+    }
+    waitFor(pending);
+    
+    long[] src = vals;
+    long[] dst = new long[len];
+    for (int width = 1; width < numParts; width *= 2) {
+      pending.clear();
+      final long[] from = src;
+      final long[] to = dst;
+      for (int i = 0; i < numParts; i += 2 * width) {
+        final int start = bounds[i];
+        final int mid = bounds[Math.min(i + width, numParts)];
+        final int end = bounds[Math.min(i + (2 * width), numParts)];
+        pending.add(pool.submit(new Callable<Object>() {
+          public Object call() {
+            merge(from, to, start, mid, end);
+            return (null);
+          }
+        }));
+      }
+      waitFor(pending);
+      src = to;
+      dst = from;
+    }
+    if (src != vals) {
+      System.arraycopy(src, 0, vals, 0, len);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Merge two sorted runs
+  */
+  
+  private static void merge(long[] from, long[] to, int start, int mid, int end) {
+    int i = start;
+    int j = mid;
+    int k = start;
+    while ((i < mid) && (j < end)) {
+      to[k++] = (from[j] < from[i]) ? from[j++] : from[i++];
+    }
+    while (i < mid) {
+      to[k++] = from[i++];
+    }
+    while (j < end) {
+      to[k++] = from[j++];
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Wait for the pool to finish up
+  */
+  
+  private static void waitFor(List<Future<Object>> pending) {
+    for (Future<Object> fut : pending) {
+      try {
+        fut.get();
+      } catch (InterruptedException iex) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(iex);
+      } catch (ExecutionException eex) {
+        Throwable cause = eex.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        } else if (cause instanceof Error) {
+          throw (Error)cause;
+        }
+        throw new IllegalStateException(cause);
+      }
+    }
+    return;
+  }
+}
@@ -0,0 +1,330 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/****************************************************************************
+**
+** A gzip output stream that compresses on several threads. The data is cut into
+** fixed-size blocks, and each block is written as its own complete gzip member, 
+** so blocks can be compressed independently. RFC 1952 says a gzip file is a series
+** of members, and the gzip tools read them back as one stream. GZIPInputStream only 
+** does so from Java 7 on, so read these with MultiMemberGZIPInputStream. Members 
+** are written out in order, with a bounded number in flight.
+** With a single CPU, blocks are just compressed on the calling thread.
+*/
+
+public class ParallelGZIPOutputStream extends OutputStream {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private static final int BLOCK_SIZE_ = 512 * 1024;
+  private static final int MAX_THREADS_ = 4;
+  
+  //
+  // Magic, deflate, no flags, no mtime, no extra flags, OS 0 (same as GZIPOutputStream):
+  //
+  
+  private static final byte[] HEADER_ = {(byte)0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, 0};
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private OutputStream out_;
+  private int level_;
+  private byte[] block_;
+  private int count_;
+  private boolean wroteMember_;
+  private boolean finished_;
+  private ExecutorService pool_;
+  private int maxInFlight_;
+  private LinkedList<Future<Member>> pending_;
+  private ArrayList<byte[]> freeBlocks_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. Level is a Deflater level, e.g. Deflater.BEST_SPEED
+  */
+
+  public ParallelGZIPOutputStream(OutputStream out, int level) {
+    if (((level < Deflater.BEST_SPEED) || (level > Deflater.BEST_COMPRESSION)) && (level != Deflater.DEFAULT_COMPRESSION)) {
+      throw new IllegalArgumentException();
+    }
+    out_ = out;
+    level_ = level;
+    block_ = new byte[BLOCK_SIZE_];
+    count_ = 0;
+    wroteMember_ = false;
+    finished_ = false;
+    int numThreads = Math.min(MAX_THREADS_, Runtime.getRuntime().availableProcessors() - 1);
+    pool_ = (numThreads < 1) ? null : Executors.newFixedThreadPool(numThreads);
+    maxInFlight_ = 2 * Math.max(1, numThreads);
+    pending_ = new LinkedList<Future<Member>>();
+    freeBlocks_ = new ArrayList<byte[]>();
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  ** 
+  ** Write a byte
+  */
+
+  @Override
+  public void write(int b) throws IOException {
+    if (count_ == block_.length) {
+      shipBlock();
+    }
+    block_[count_++] = (byte)b;
+    return;
+  }
+
+  /***************************************************************************
+  ** 
+  ** Write bytes
+  */
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (count_ == block_.length) {
+        shipBlock();
+      }
+      int num = Math.min(len, block_.length - count_);
+      System.arraycopy(b, off, block_, count_, num);
+      count_ += num;
+      off += num;
+      len -= num;
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Flush what has been compressed so far. Like GZIPOutputStream, this does not 
+  ** force out a partial block.
+  */
+
+  @Override
+  public void flush() throws IOException {
+    while (!pending_.isEmpty() && pending_.getFirst().isDone()) {
+      writeOldest();
+    }
+    out_.flush();
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Compress whatever is left and write it all out, without closing the underlying stream
+  */
+
+  public void finish() throws IOException {
+    if (finished_) {
+      return;
+    }
+    finished_ = true;
+    try {
+      if ((count_ > 0) || !wroteMember_) {
+        shipBlock();
+      }
+      while (!pending_.isEmpty()) {
+        writeOldest();
+      }
+      out_.flush();
+    } finally {
+      if (pool_ != null) {
+        pool_.shutdownNow();
+        pool_ = null;
+      }
+    }
+    return;
+  }
+
+  /***************************************************************************
+  ** 
+  ** Finish up and close the underlying stream
+  */
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      out_.close();
+    }
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Hand off the current block for compression, and start a new one
+  */
+
+  private void shipBlock() throws IOException {
+    Member mem = new Member(block_, count_, level_);
+    wroteMember_ = true;
+    int last = freeBlocks_.size() - 1;
+    block_ = (last >= 0) ? freeBlocks_.remove(last) : new byte[BLOCK_SIZE_];
+    count_ = 0;
+    if (pool_ == null) {
+      writeMember(mem.call());
+      return;
+    }
+    pending_.add(pool_.submit(mem));
+    while (pending_.size() > maxInFlight_) {
+      writeOldest();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Wait for the oldest block and write it
+  */
+
+  private void writeOldest() throws IOException {
+    Future<Member> fut = pending_.removeFirst();
+    try {
+      writeMember(fut.get());
+    } catch (InterruptedException iex) {
+      Thread.currentThread().interrupt();
+      throw new IOException(iex.getMessage());
+    } catch (ExecutionException eex) {
+      Throwable cause = eex.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+    return;
+  }
+
+  /***************************************************************************
+  ** 
+  ** Write out one gzip member
+  */
+
+  private void writeMember(Member mem) throws IOException {
+    out_.write(HEADER_);
+    mem.compressed.writeTo(out_);
+    writeIntLE(mem.crc);
+    writeIntLE(mem.length);
+    freeBlocks_.add(mem.block);
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Gzip trailer fields are little-endian
+  */
+
+  private void writeIntLE(int val) throws IOException {
+    out_.write(val & 0xFF);
+    out_.write((val >>> 8) & 0xFF);
+    out_.write((val >>> 16) & 0xFF);
+    out_.write((val >>> 24) & 0xFF);
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** One block, and its compressed form once call() is done
+  */
+
+  private static class Member implements Callable<Member> {
+    
+    byte[] block;
+    int length;
+    int level;
+    ByteArrayOutputStream compressed;
+    int crc;
+    
+    Member(byte[] block, int length, int level) {
+      this.block = block;
+      this.length = length;
+      this.level = level;
+    }
+    
+    public Member call() {
+      CRC32 crc32 = new CRC32();
+      crc32.update(block, 0, length);
+      crc = (int)crc32.getValue();
+      compressed = new ByteArrayOutputStream((length / 3) + 64);
+      Deflater deflate = new Deflater(level, true);
+      try {
+        deflate.setInput(block, 0, length);
+        deflate.finish();
+        byte[] chunk = new byte[64 * 1024];
+        while (!deflate.finished()) {
+          int num = deflate.deflate(chunk);
+          compressed.write(chunk, 0, num);
+        }
+      } finally {
+        deflate.end();
+      }
+      return (this);
+    }
+  }
+}
@@ -0,0 +1,111 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+import org.systemsbiology.biofabric.api.io.BuildExtractor;
+import org.systemsbiology.biofabric.api.model.AugRelation;
+import org.systemsbiology.biofabric.api.model.NetLink;
+import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.api.util.UniqueLabeller;
+import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
+import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
+import org.systemsbiology.biofabric.plugin.PluginSupportFactory;
+import org.systemsbiology.biofabric.ui.FabricColorGenerator;
+
+/****************************************************************************
+**
+** The steps for getting from a SIF file to a network, shared by FileLoadFlowsImpl
+** and the headless image generator. Anything that talks to the user (relation
+** direction choices, reporting bad lines and duplicates) is left to the caller,
+** between the steps.
+*/
+
+public final class SIFLoadSteps {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CLASS METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** First step: read the links and lone nodes, and find the relations with
+  ** whether each looks directed
+  */
+  
+  public static FabricImportLoader.FileImportStats importLinks(File file, UniqueLabeller idGen, List<NetLink> links, 
+                                                               Set<NetNode> loneNodeIDs, Map<String, String> nameMap, 
+                                                               Integer magBins, SortedMap<AugRelation, Boolean> relaMap,
+                                                               BTProgressMonitor monitor) throws AsynchExitRequestException, IOException {
+    FabricImportLoader.FileImportStats sss = 
+      (new SIFImportLoader()).importFabric(file, idGen, links, loneNodeIDs, nameMap, magBins, monitor);
+    PluginSupportFactory.getBuildExtractor().extractRelations(links, relaMap, monitor);
+    return (sss);
+  }
+  
+  /***************************************************************************
+  **
+  ** Second step: apply the relation directions, and toss duplicate links
+  */
+  
+  public static void preprocess(List<NetLink> links, SortedMap<AugRelation, Boolean> relaMap,
+                                Set<NetLink> reducedLinks, Set<NetLink> culledLinks,  
+                                BTProgressMonitor monitor) throws AsynchExitRequestException {
+    BuildExtractor bex = PluginSupportFactory.getBuildExtractor();
+    bex.assignDirections(links, relaMap, monitor);
+    bex.preprocessLinks(links, reducedLinks, culledLinks, monitor);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Third step: what a network needs to be built from the reduced links
+  */
+  
+  public static BuildDataImpl buildData(UniqueLabeller idGen, Set<NetLink> reducedLinks, 
+                                        Set<NetNode> loneNodeIDs, FabricColorGenerator colGen) {
+    HashMap<NetNode, String> emptyMap = new HashMap<NetNode, String>();
+    return (new BuildDataImpl(idGen, reducedLinks, loneNodeIDs, emptyMap, colGen, BuildDataImpl.BuildMode.BUILD_FROM_SIF));
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Do not use
+  */
+  
+  private SIFLoadSteps() {
+  }
+}
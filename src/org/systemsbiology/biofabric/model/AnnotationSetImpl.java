@@ -20,7 +20,6 @@
 package org.systemsbiology.biofabric.model;
 
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -34,7 +33,7 @@ import org.systemsbiology.biofabric.api.model.AnnotsForPos;
 import org.systemsbiology.biofabric.api.model.Annot;
 import org.systemsbiology.biofabric.api.io.AttributeExtractor;
 import org.systemsbiology.biofabric.api.io.CharacterEntityMapper;
-import org.systemsbiology.biofabric.api.io.Indenter;
+import org.systemsbiology.biofabric.api.io.XMLByteBuffer;
 import org.systemsbiology.biofabric.api.layout.AnnotColorSource;
 import org.systemsbiology.biofabric.api.parser.AbstractFactoryClient;
 import org.systemsbiology.biofabric.api.parser.GlueStick;
@@ -271,21 +270,15 @@ public class AnnotationSetImpl implements AnnotationSet, Cloneable, Iterable<Ann
     ** Dump an annotation using XML
     */
      
-    public void writeXML(PrintWriter out, Indenter ind) {    
-      ind.indent();
-      out.print("<annot tag=\"");
-      out.print(CharacterEntityMapper.mapEntities(tag_, false));
-      out.print("\" start=\"");
-      out.print(range_.min);
-      out.print("\" end=\"");
-      out.print(range_.max); 
-      out.print("\" layer=\"");
-      out.print(layer_);
+    public void writeXML(XMLByteBuffer buf, int level) {    
+      buf.indent(level).append("<annot tag=\"").appendEntities(tag_);
+      buf.append("\" start=\"").append(range_.min);
+      buf.append("\" end=\"").append(range_.max);
+      buf.append("\" layer=\"").append(layer_);
       if (color_ != null) {
-        out.print("\" color=\"");
-        out.print(color_.getName());
+        buf.append("\" color=\"").append(color_.getName());
       }
-      out.println("\" />");
+      buf.append("\" />").newline();
       return;
     }
   }
@@ -20,18 +20,35 @@
 
 package org.systemsbiology.biofabric.model;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.TreeSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.xml.sax.Attributes;
 
@@ -41,6 +58,7 @@ import org.systemsbiology.biofabric.api.io.AttributeKey;
 import org.systemsbiology.biofabric.api.io.BuildData;
 import org.systemsbiology.biofabric.api.io.CharacterEntityMapper;
 import org.systemsbiology.biofabric.api.io.Indenter;
+import org.systemsbiology.biofabric.api.io.XMLByteBuffer;
 import org.systemsbiology.biofabric.api.layout.AnnotColorSource;
 import org.systemsbiology.biofabric.api.layout.DefaultEdgeLayout;
 import org.systemsbiology.biofabric.api.layout.EdgeLayout;
@@ -52,6 +70,7 @@ import org.systemsbiology.biofabric.api.model.AugRelation;
 import org.systemsbiology.biofabric.api.model.NetLink;
 import org.systemsbiology.biofabric.api.model.NetNode;
 import org.systemsbiology.biofabric.api.model.Network;
+import org.systemsbiology.biofabric.api.model.NetworkGraphView;
 import org.systemsbiology.biofabric.api.parser.AbstractFactoryClient;
 import org.systemsbiology.biofabric.api.parser.GlueStick;
 import org.systemsbiology.biofabric.api.util.MinMax;
@@ -84,6 +103,19 @@ public class BioFabricNetwork implements Network {
   //
   //////////////////////////////////////////////////////////////////////////// 
 
+  //
+  // Below this many links, it is not worth starting up threads for the build passes:
+  //
+  
+  private static final int PARALLEL_BUILD_MIN_LINKS_ = 20000;
+  
+  //
+  // Nodes or links per chunk when writing XML, and the most threads to write them on:
+  //
+  
+  private static final int XML_CHUNK_SIZE_ = 2048;
+  private static final int MAX_XML_THREADS_ = 4;
+
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC CONSTANTS
@@ -139,6 +171,30 @@ public class BioFabricNetwork implements Network {
   
   private AnnotationSet nodeAnnot_;
   private Map<Boolean, AnnotationSet> linkAnnots_;
+  
+  //
+  // Link and node extents for the renderers, built once the layout is done:
+  //
+  
+  private Extents extents_;
+  
+  //
+  // Node name search index, built when first needed:
+  //
+  
+  private NodeNameIndex nameIndex_;
+  
+  //
+  // Array view of the graph for plugins, built when first needed:
+  //
+  
+  private ColumnarGraphView graphView_;
+  
+  //
+  // Relations used by our links, dropped along with us:
+  //
+  
+  private RelationRegistry relations_;
 
   private PlugInManager pMan_;
   
@@ -204,8 +260,12 @@ public class BioFabricNetwork implements Network {
         fillSubModel(bd.fullNet, bd.subNodes, bd.subLinks);
         break;
       case BUILD_FROM_XML:
+        standardBuildDataTransfer(bd.getExistingNetwork());
+        break;
       case SHADOW_LINK_CHANGE:
         standardBuildDataTransfer(bd.getExistingNetwork());
+        // Extents cover both views, so the ones we have are still good:
+        extents_ = bd.getExistingNetwork().extents_;
         break;
       case BUILD_FROM_SIF:
         standardBuildDataInit(bd);
@@ -218,6 +278,12 @@ public class BioFabricNetwork implements Network {
       default:
         throw new IllegalArgumentException();
     }
+    if (relations_ == null) {
+      shareRelations();
+    }
+    if (extents_ == null) {
+      extents_ = new Extents(this, monitor);
+    }
   }
 
   ////////////////////////////////////////////////////////////////////////////
@@ -273,10 +339,37 @@ public class BioFabricNetwork implements Network {
     this.layoutMode_ = built.layoutMode_;
     this.nodeAnnot_ = built.nodeAnnot_;
     this.linkAnnots_= built.linkAnnots_;
+    this.relations_ = built.relations_;
  
     return;
   }
   
+  /***************************************************************************
+  ** 
+  ** Build support: give our links a registry of their own, with ordinals in
+  ** link order
+  */
+  
+  private void shareRelations() {
+    relations_ = new RelationRegistry();
+    for (LinkInfo linf : fullLinkDefs_.values()) {
+      linf.getLink().shareRelation(relations_);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Answer if the other network was built from the same layout as this one, so 
+  ** that only display options can differ between the two.
+  */
+  
+  public boolean sharesLayoutWith(BioFabricNetwork other) { 
+    return ((other != null) && (fullLinkDefs_ == other.fullLinkDefs_) && 
+            (nodeDefs_ == other.nodeDefs_) && (colGen_ == other.colGen_) &&
+            (nodeAnnot_ == other.nodeAnnot_) && (linkAnnots_ == other.linkAnnots_));
+  }
+  
   /***************************************************************************
   ** 
   ** Build support
@@ -352,20 +445,31 @@ public class BioFabricNetwork implements Network {
   */
 
   public Map<String, Set<NetNode>> getNormNameToIDs() {
-  	HashMap<String, Set<NetNode>> retval = new HashMap<String, Set<NetNode>>();
-  	Iterator<NetNode> kit = nodeDefs_.keySet().iterator();
-  	while (kit.hasNext()) {
-  		NetNode key = kit.next();
-  		NodeInfo forKey = nodeDefs_.get(key);
-  		String nameNorm = DataUtil.normKey(forKey.getNodeName());
-  		Set<NetNode> forName = retval.get(nameNorm);
-  		if (forName == null) {
-  			forName = new HashSet<NetNode>();
-  			retval.put(nameNorm, forName);
-  		}
-  		forName.add(key);
-  	}
-    return (retval);
+    return (getNameIndex().normNameToNodes());
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Get the node name search index
+  */
+
+  public synchronized NodeNameIndex getNameIndex() {
+    if (nameIndex_ == null) {
+      nameIndex_ = new NodeNameIndex(nodeDefs_);
+    }
+    return (nameIndex_);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Get the read-only graph view
+  */
+
+  public synchronized NetworkGraphView getGraphView() {
+    if (graphView_ == null) {
+      graphView_ = new ColumnarGraphView(rowCount_, fullLinkDefs_.values(), nodeDefs_.values(), relations_);
+    }
+    return (graphView_);
   }
   
   /***************************************************************************
@@ -437,22 +541,22 @@ public class BioFabricNetwork implements Network {
       return (false);
     }
     
-    TreeSet<Integer> asInts = new TreeSet<Integer>();
+    BitSet asInts = new BitSet();
     Iterator<String> nrvit = nodeAttributes.values().iterator();
     while (nrvit.hasNext()) {
       String asStr = nrvit.next();
       try {
-        asInts.add(Integer.valueOf(asStr));
+        int row = Integer.parseInt(asStr);
+        if (row < 0) {
+          return (false);
+        }
+        asInts.set(row);
       } catch (NumberFormatException nfex) {
         return (false);
       }
     }
     
-    if (!asInts.equals(new TreeSet<Integer>(rowToTargID_.keySet()))) {
-      return (false);
-    }
-    
-    return (true);
+    return (asInts.equals(toBits(rowToTargID_.keySet())));
   }
   
   
@@ -471,17 +575,17 @@ public class BioFabricNetwork implements Network {
     
     //
     // Recover the mapping that tells us what link relationships are
-    // directed:
+    // directed, and find the column of every existing link:
     //
     
     HashMap<AugRelation, Boolean> relDir = new HashMap<AugRelation, Boolean>();
-    Set<NetLink> allLinks = getAllLinks(true);
-    Iterator<NetLink> alit = allLinks.iterator();
-    while (alit.hasNext()) {
-      NetLink link = alit.next();
+    HashMap<NetLink, Integer> linkToCol = new HashMap<NetLink, Integer>();
+    Iterator<Integer> ldit = fullLinkDefs_.keySet().iterator();
+    while (ldit.hasNext()) {
+      Integer col = ldit.next();
+      FabricLink link = getLinkDefinition(col, true).getLink();
       AugRelation rel = link.getAugRelation();
-      boolean isDir = link.isDirected();
-      Boolean myVal = new Boolean(isDir);
+      Boolean myVal = Boolean.valueOf(link.isDirected());
       Boolean currVal = relDir.get(rel);
       if (currVal != null) {
         if (!currVal.equals(myVal)) {
@@ -490,53 +594,78 @@ public class BioFabricNetwork implements Network {
       } else {
         relDir.put(rel, myVal);
       }
+      linkToCol.put(link, col);
     }
     
     //
-    // Create a map that takes column Integer to a correctly
-    // directed copy of the Fabric link:
+    // Has to be the case that the link definitions and the columns are both 1:1
+    // and onto. With the counts equal, it is enough to see that nobody maps
+    // outside the existing set, and nobody gets hit twice:
     //
     
-    TreeMap<Integer, NetLink> dirMap = new TreeMap<Integer, NetLink>();
-    Iterator<AttributeKey> lrit = linkRows.keySet().iterator();
+    int numCols = fullLinkDefs_.size();
+    if ((linkRows.size() != numCols) || (linkToCol.size() != numCols)) {
+      return (null);
+    }
+    BitSet allCols = toBits(fullLinkDefs_.keySet());
+    BitSet usedCols = new BitSet(allCols.length());
+    BitSet usedLinks = new BitSet(allCols.length());
+    NetLink[] byCol = new NetLink[allCols.length()];
+    
+    Iterator<Map.Entry<AttributeKey, String>> lrit = linkRows.entrySet().iterator();
     while (lrit.hasNext()) {
-      FabricLink link = (FabricLink)lrit.next();
-      String colNumStr = linkRows.get(link);
-      FabricLink dirCopy = link.clone();
-      Boolean isDirected = relDir.get(dirCopy.getAugRelation());
-      dirCopy.installDirection(isDirected);
+      Map.Entry<AttributeKey, String> entry = lrit.next();
+      int colNum;
       try {
-        dirMap.put(Integer.valueOf(colNumStr), dirCopy);
+        colNum = Integer.parseInt(entry.getValue());
       } catch (NumberFormatException nfex) {
         return (null);
       }
+      if ((colNum < 0) || !allCols.get(colNum) || usedCols.get(colNum)) {
+        return (null);
+      }
+      usedCols.set(colNum);
+      
+      //
+      // Correctly directed copy of the link:
+      //
+      
+      FabricLink dirCopy = ((FabricLink)entry.getKey()).clone();
+      dirCopy.installDirection(relDir.get(dirCopy.getAugRelation()));
+      Integer existingCol = linkToCol.get(dirCopy);
+      if ((existingCol == null) || usedLinks.get(existingCol.intValue())) {
+        return (null);
+      }
+      usedLinks.set(existingCol.intValue());
+      byCol[colNum] = dirCopy;
     }
     
-    // Ordered set of all our existing links:
-    TreeSet<NetLink> alks = new TreeSet<NetLink>(allLinks);
-    // Ordered set of guys we have been handed:
-    TreeSet<NetLink> dmvs = new TreeSet<NetLink>(dirMap.values());
-    
-    // Has to be the case that the link definitions are 1:1 and
-    // onto, or we have an error:
-    if (!alks.equals(dmvs)) {
-      return (null);
-    }
-  
     //
-    // Has to be the case that all columns are also 1:1 and onto:
+    // Map column Integer to the directed link. Adding in order keeps the tree
+    // building cheap:
     //
     
-    TreeSet<Integer> ldks = new TreeSet<Integer>(fullLinkDefs_.keySet());
-    TreeSet<Integer> dmks = new TreeSet<Integer>(dirMap.keySet());
-    
-    if (!ldks.equals(dmks)) {
-      return (null);
+    TreeMap<Integer, NetLink> dirMap = new TreeMap<Integer, NetLink>();
+    for (int i = allCols.nextSetBit(0); i >= 0; i = allCols.nextSetBit(i + 1)) {
+      dirMap.put(Integer.valueOf(i), byCol[i]);
     }
-    
     return (dirMap);
   }
   
+  /***************************************************************************
+  **
+  ** Bits for a set of non-negative row or column numbers
+  */
+  
+  private BitSet toBits(Set<Integer> vals) {
+    BitSet retval = new BitSet();
+    Iterator<Integer> vit = vals.iterator();
+    while (vit.hasNext()) {
+      retval.set(vit.next().intValue());
+    }
+    return (retval);
+  }
+  
   /***************************************************************************
   **
   ** Get all links
@@ -615,13 +744,6 @@ public class BioFabricNetwork implements Network {
     layoutMode_ = rbd.getGroupOrderMode();
     
 
-    //
-    // Determine the start & end of each target row needed to handle the incoming
-    // and outgoing links:
-    //
-
-    trimTargetRows(monitor);
-        
     //
     // For the lone nodes, they are assigned into the last column:
     //
@@ -693,13 +815,6 @@ public class BioFabricNetwork implements Network {
 		  		                                         (mode == BuildDataImpl.BuildMode.GROUP_PER_NODE_CHANGE) ||
 		  		                                         (mode == BuildDataImpl.BuildMode.GROUP_PER_NETWORK_CHANGE)), monitor);
       
-    //
-    // Determine the start & end of each target row needed to handle the incoming
-    // and outgoing links:
-    //
-
-    trimTargetRows(monitor);
-        
     //
     // For the lone nodes, they are assigned into the last column:
     //
@@ -794,9 +909,86 @@ public class BioFabricNetwork implements Network {
     }
     lr.finish();
    
-    setDrainZonesWithMultipleLabels(true, monitor, 0.0, 0.5);
-    setDrainZonesWithMultipleLabels(false, monitor, 0.5, 1.0);
- 
+    //
+    // With every link in its column, figure out the drain zones, and the start & end
+    // of each target row needed to handle the incoming and outgoing links:
+    //
+    
+    if (fullLinkDefs_.size() < PARALLEL_BUILD_MIN_LINKS_) {
+      setDrainZonesWithMultipleLabels(true, monitor, 0.0, 0.25);
+      setDrainZonesWithMultipleLabels(false, monitor, 0.25, 0.5);
+      trimTargetRows(true, monitor, 0.5, 0.75);
+      trimTargetRows(false, monitor, 0.75, 1.0);
+    } else {
+      columnDerivedPassesInParallel(monitor);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** The drain zone and row trimming passes only read the link definitions, and each
+  ** one writes its own fields (shadow vs. plain zones, columns, and column ranges).
+  ** So for big networks they are run at the same time. This thread runs the most
+  ** expensive one with the real monitor, so progress and cancellation still work.
+  */
+  
+  private void columnDerivedPassesInParallel(BTProgressMonitor monitor) throws AsynchExitRequestException {
+    
+    int numThreads = Math.min(3, Runtime.getRuntime().availableProcessors() - 1);
+    if (numThreads < 1) {
+      setDrainZonesWithMultipleLabels(true, monitor, 0.0, 0.25);
+      setDrainZonesWithMultipleLabels(false, monitor, 0.25, 0.5);
+      trimTargetRows(true, monitor, 0.5, 0.75);
+      trimTargetRows(false, monitor, 0.75, 1.0);
+      return;
+    }
+    
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    try {
+      ArrayList<Future<Object>> pending = new ArrayList<Future<Object>>();
+      pending.add(pool.submit(new Callable<Object>() {
+        public Object call() throws Exception {
+          setDrainZonesWithMultipleLabels(false, null, 0.0, 1.0);
+          return (null);
+        }
+      }));
+      pending.add(pool.submit(new Callable<Object>() {
+        public Object call() throws Exception {
+          trimTargetRows(true, null, 0.0, 1.0);
+          return (null);
+        }
+      }));
+      pending.add(pool.submit(new Callable<Object>() {
+        public Object call() throws Exception {
+          trimTargetRows(false, null, 0.0, 1.0);
+          return (null);
+        }
+      }));
+      
+      setDrainZonesWithMultipleLabels(true, monitor, 0.0, 1.0);
+      
+      for (Future<Object> fut : pending) {
+        try {
+          fut.get();
+        } catch (InterruptedException iex) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException(iex);
+        } catch (ExecutionException eex) {
+          Throwable cause = eex.getCause();
+          if (cause instanceof AsynchExitRequestException) {
+            throw (AsynchExitRequestException)cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException)cause;
+          } else if (cause instanceof Error) {
+            throw (Error)cause;
+          }
+          throw new IllegalStateException(cause);
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
     return;
   }
   
@@ -910,168 +1102,239 @@ public class BioFabricNetwork implements Network {
    
   /***************************************************************************
   **
-  ** Dump the network using XML
+  ** Dump the network using XML. The node, link, and annotation sections are
+  ** written straight into byte buffers in chunks, on a few threads if we have 
+  ** them, and sent on in file order.
   */
   
-  public void writeXML(PrintWriter out, Indenter ind, BTProgressMonitor monitor, boolean forCache) throws AsynchExitRequestException {    
-    ind.indent();
-    
+  public void writeXML(OutputStream out, BTProgressMonitor monitor, boolean forCache) 
+    throws AsynchExitRequestException, IOException {    
+    XMLByteBuffer buf = new XMLByteBuffer(64);
+    buf.indent(0).append("<BioFabric>").newline();
+    buf.writeTo(out);
+    String label = (forCache) ? "progress.cachingCurrentNetwork" : "progress.writingFile";
+    LoopReporter lr = new LoopReporter(xmlLoopCount(), 20, monitor, 0.0, 1.0, label);   
+    writeXMLBody(out, 1, lr);
+    buf.reset();
+    buf.indent(0).append("</BioFabric>").newline();
+    buf.writeTo(out);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Get a digest of what decides how the network is drawn: the row and column
+  ** of every node and link, their color assignments and the colors those map
+  ** to, the annotations, and the display options. Two networks with the same
+  ** key render the same tiles, wherever they were loaded from.
+  */
+  
+  public byte[] getRenderKey() {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException nsaex) {
+      throw new IllegalStateException(nsaex);
+    }
+    OutputStream discard = new OutputStream() {
+      public void write(int b) {}
+      public void write(byte[] b, int off, int len) {}
+    };
+    try {
+      DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(discard, md), 64 * 1024));
+      dos.writeInt(rowCount_);
+      for (int i = 0; i < rowCount_; i++) {
+        NetNode node = rowToTargID_.get(Integer.valueOf(i));
+        NodeInfo ni = (node == null) ? null : nodeDefs_.get(node);
+        if (ni == null) {
+          dos.writeBoolean(false);
+          continue;
+        }
+        dos.writeBoolean(true);
+        dos.writeUTF(ni.getNodeName());
+        dos.writeUTF(ni.colorKey);
+        dos.writeInt(colGen_.getModifiedColor(ni.colorKey, FabricColorGenerator.BRIGHTER).getRGB());
+      }
+      dos.writeInt(fullLinkDefs_.size());
+      for (LinkInfo li : fullLinkDefs_.values()) {
+        dos.writeInt(li.getStartRow());
+        dos.writeInt(li.getEndRow());
+        dos.writeInt(li.getUseColumn(true));
+        dos.writeInt(li.isShadow() ? -1 : li.getUseColumn(false));
+        dos.writeBoolean(li.isDirected());
+        dos.writeUTF(li.getAugRelation().relation);
+        dos.writeUTF(li.getColorKey());
+        dos.writeInt(colGen_.getModifiedColor(li.getColorKey(), FabricColorGenerator.DARKER).getRGB());
+      }
+      writeAnnotsForKey(dos, nodeAnnot_);
+      writeAnnotsForKey(dos, (linkAnnots_ == null) ? null : linkAnnots_.get(Boolean.FALSE));
+      writeAnnotsForKey(dos, (linkAnnots_ == null) ? null : linkAnnots_.get(Boolean.TRUE));
+      dos.writeBoolean(showLinkGroupAnnotations_);
+      dos.writeInt((linkGrouping_ == null) ? -1 : linkGrouping_.size());
+      if (linkGrouping_ != null) {
+        for (String group : linkGrouping_) {
+          dos.writeUTF(group);
+        }
+      }
+      PrintWriter pw = new PrintWriter(new OutputStreamWriter(dos, "UTF-8"));
+      FabricDisplayOptionsManager.getMgr().getDisplayOptions().writeXML(pw, new Indenter(pw, Indenter.DEFAULT_INDENT));
+      pw.flush();
+    } catch (IOException ioex) {
+      // Nothing to fail on the way to the digest
+      throw new IllegalStateException(ioex);
+    }
+    return (md.digest());
+  }
+  
+  /***************************************************************************
+  **
+  ** Add an annotation set to the render key
+  */
+  
+  private void writeAnnotsForKey(DataOutputStream dos, AnnotationSet annots) throws IOException {
+    if (annots == null) {
+      dos.writeInt(-1);
+      return;
+    }
+    dos.writeInt(annots.size());
+    for (Annot an : annots) {
+      dos.writeUTF(an.getName());
+      dos.writeInt(an.getRange().min);
+      dos.writeInt(an.getRange().max);
+      dos.writeInt(an.getLayer());
+      AnnotColorSource.AnnotColor acol = an.getColor();
+      dos.writeUTF((acol == null) ? "" : acol.getName());
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Number of loop steps used to report XML output progress
+  */
+  
+  private int xmlLoopCount() {
     int numNodes = rowToTargID_.size();
     int numLinks = fullLinkDefs_.size();
     int numLm = nonShadowedLinkMap_.size();
     int numNA = (nodeAnnot_ == null) ? 0 : nodeAnnot_.size();
     int numLAs = (linkAnnots_ == null) ? 0 : linkAnnots_.get(Boolean.TRUE).size();
     int numLAns = (linkAnnots_ == null) ? 0 : linkAnnots_.get(Boolean.FALSE).size();
-      
-    out.println("<BioFabric>");
-    ind.up();
-    String label = (forCache) ? "progress.cachingCurrentNetwork" : "progress.writingFile";
-    LoopReporter lr = new LoopReporter(numNodes + numLinks + numLm + numNA + numLAs + numLAns , 20, monitor, 0.0, 1.0, label);   
-    colGen_.writeXML(out, ind);
+    return (numNodes + numLinks + numLm + numNA + numLAs + numLAns);
+  }
+  
+  /***************************************************************************
+  **
+  ** Write the contents of the BioFabric element, starting at the given indent level
+  */
+  
+  private void writeXMLBody(OutputStream out, int level, LoopReporter lr) 
+    throws AsynchExitRequestException, IOException {    
     
     //
-    // Display options:
+    // Colors and display options are small, and still write themselves:
     //
     
-    FabricDisplayOptionsManager.getMgr().writeXML(out, ind);
-       
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    PrintWriter pw = new PrintWriter(new OutputStreamWriter(head, "UTF-8"));
+    Indenter ind = new Indenter(pw, Indenter.DEFAULT_INDENT);
+    ind.setCurrLevel(level);
+    colGen_.writeXML(pw, ind);
+    FabricDisplayOptionsManager.getMgr().writeXML(pw, ind);
+    pw.flush();
+    head.writeTo(out);
+    
+    //
+    // Snapshot the rows and link columns in order into arrays, so the chunks 
+    // can index into them without walking the maps:
     //
-    // Dump the nodes, then the links:
-    //  
     
-    Iterator<Integer> r2tit = (new TreeSet<Integer>(rowToTargID_.keySet())).iterator();
-    ind.indent();
-    out.println("<nodes>");
-    ind.up();
-    while (r2tit.hasNext()) {
-      Integer row = r2tit.next();
-      lr.report();
-      NetNode nodeID = rowToTargID_.get(row);
-      NodeInfo ni = getNodeDefinition(nodeID);
-      ni.writeXML(out, ind, row.intValue());
-    }
-    ind.down().indent();
-    out.println("</nodes>");
-  
-    if (!linkGrouping_.isEmpty()) {
-      Iterator<String> lgit = linkGrouping_.iterator();
-      ind.indent();
-      out.print("<linkGroups mode=\"");
-      out.print(layoutMode_.getText());
-      out.print("\" annots=\"");
-      out.print(showLinkGroupAnnotations_);
-      out.println("\">");
-      ind.up();
-      while (lgit.hasNext()) {
-        String grpTag = lgit.next();
-        ind.indent();
-        out.print("<linkGroup tag=\"");
-        out.print(grpTag);
-        out.println("\" />");
-      }
-      ind.down().indent();
-      out.println("</linkGroups>");
-    }
-  
-    HashMap<Integer, Integer> inverse = new HashMap<Integer, Integer>();
-    Iterator<Integer> nsit = nonShadowedLinkMap_.keySet().iterator();
-    while (nsit.hasNext()) {
-      Integer key = nsit.next();
-      lr.report();
-      inverse.put(nonShadowedLinkMap_.get(key), key);
-    }    
+    int[] rows = new int[rowToTargID_.size()];
+    int count = 0;
+    for (Integer row : rowToTargID_.keySet()) {
+      rows[count++] = row.intValue();
+    }
+    Arrays.sort(rows);
     
-    Iterator<Integer> ldit = fullLinkDefs_.keySet().iterator();
-    ind.indent();
-    out.println("<links>");
-    ind.up();
-    while (ldit.hasNext()) {
-      Integer col = ldit.next();
-      LinkInfo li = getLinkDefinition(col, true);
-      FabricLink link = li.getLink();
-      lr.report();
-      ind.indent();
-      out.print("<link srcID=\"");
-      out.print(link.getSrcNode().getNID().getNID().getInternal());
-      out.print("\" trgID=\"");
-      out.print(link.getTrgNode().getNID().getNID().getInternal());
-      out.print("\" rel=\"");
-      AugRelation augr = link.getAugRelation();
-      out.print(CharacterEntityMapper.mapEntities(augr.relation, false));
-      out.print("\" directed=\"");
-      out.print(link.isDirected());
-      out.print("\" shadow=\"");
-      out.print(augr.isShadow);
-      if (!augr.isShadow) {
-        Integer nsCol = inverse.get(col); 
-        out.print("\" column=\"");
-        out.print(nsCol);
-      }
-      out.print("\" shadowCol=\"");
-      out.print(col);     
-      out.print("\" srcRow=\"");
-      out.print(li.getStartRow());
-      out.print("\" trgRow=\"");
-      out.print(li.getEndRow());
-      out.print("\" color=\"");
-      out.print(li.getColorKey());
-      out.println("\" />");
-    }
-    ind.down().indent();
-    out.println("</links>");
-      
-    ind.indent();
-    out.println("<nodeAnnotations>");
-    ind.up();
-    if (nodeAnnot_ != null) {
-      for (Annot an : nodeAnnot_) {
-        lr.report();
-        ((AnnotationSetImpl.AnnotImpl)an).writeXML(out, ind);
-      }
+    int numLinks = fullLinkDefs_.size();
+    int[] cols = new int[numLinks];
+    LinkInfo[] linkDefs = new LinkInfo[numLinks];
+    count = 0;
+    for (Map.Entry<Integer, LinkInfo> entry : fullLinkDefs_.entrySet()) {
+      cols[count] = entry.getKey().intValue();
+      linkDefs[count++] = entry.getValue();
     }
-    ind.down().indent();
-    out.println("</nodeAnnotations>");
+  
+    //
+    // Non-shadow column for each link, or -1:
+    //
     
-    ind.indent();
-    out.println("<linkAnnotations>");
-    ind.up();
-    if (linkAnnots_ != null) {
-      for (Annot an : linkAnnots_.get(Boolean.FALSE)) {
-        lr.report();
-         ((AnnotationSetImpl.AnnotImpl)an).writeXML(out, ind);
+    int[] nsCols = new int[numLinks];
+    Arrays.fill(nsCols, -1);
+    for (Map.Entry<Integer, Integer> entry : nonShadowedLinkMap_.entrySet()) {
+      int index = Arrays.binarySearch(cols, entry.getValue().intValue());
+      if (index >= 0) {
+        nsCols[index] = entry.getKey().intValue();
       }
     }
-    ind.down().indent();
-    out.println("</linkAnnotations>");
+    lr.report(nonShadowedLinkMap_.size());
     
-    ind.indent();
-    out.println("<shadowLinkAnnotations>");
-    ind.up();
-    if (linkAnnots_ != null) {
-      for (Annot an : linkAnnots_.get(Boolean.TRUE)) {
-        lr.report();
-         ((AnnotationSetImpl.AnnotImpl)an).writeXML(out, ind);
+    XMLChunkWriter cw = new XMLChunkWriter(out, lr);
+    try {
+      XMLByteBuffer buf = cw.getBuffer();
+      buf.indent(level).append("<nodes>").newline();
+      cw.add(buf);
+      for (int i = 0; i < rows.length; i += XML_CHUNK_SIZE_) {
+        cw.add(new NodeXMLChunk(rows, i, Math.min(rows.length, i + XML_CHUNK_SIZE_), level + 1));
       }
-    }
-    ind.down().indent();
-    out.println("</shadowLinkAnnotations>");
+      buf = cw.getBuffer();
+      buf.indent(level).append("</nodes>").newline();
+    
+      if (!linkGrouping_.isEmpty()) {
+        buf.indent(level).append("<linkGroups mode=\"").append(layoutMode_.getText());
+        buf.append("\" annots=\"").append(showLinkGroupAnnotations_).append("\">").newline();
+        for (String grpTag : linkGrouping_) {
+          buf.indent(level + 1).append("<linkGroup tag=\"").append(grpTag).append("\" />").newline();
+        }
+        buf.indent(level).append("</linkGroups>").newline();
+      }   
+      buf.indent(level).append("<links>").newline();
+      cw.add(buf);
+      for (int i = 0; i < numLinks; i += XML_CHUNK_SIZE_) {
+        cw.add(new LinkXMLChunk(cols, linkDefs, nsCols, i, Math.min(numLinks, i + XML_CHUNK_SIZE_), level + 1));
+      }
+      buf = cw.getBuffer();
+      buf.indent(level).append("</links>").newline();
+      cw.add(buf);
 
+      cw.add(new AnnotXMLChunk("nodeAnnotations", nodeAnnot_, level));
+      cw.add(new AnnotXMLChunk("linkAnnotations", (linkAnnots_ == null) ? null : linkAnnots_.get(Boolean.FALSE), level));
+      cw.add(new AnnotXMLChunk("shadowLinkAnnotations", (linkAnnots_ == null) ? null : linkAnnots_.get(Boolean.TRUE), level));
+      cw.finish();
+    } finally {
+      cw.shutdown();
+    }
+    
     //
     // Let the plugins write to XML
     
+    ByteArrayOutputStream tail = new ByteArrayOutputStream();
+    pw = new PrintWriter(new OutputStreamWriter(tail, "UTF-8"));
+    ind = new Indenter(pw, Indenter.DEFAULT_INDENT);
+    ind.setCurrLevel(level);
     ind.indent();
-    out.println("<plugInDataSets>");
+    pw.println("<plugInDataSets>");
     List<String> keyList = pMan_.getOrderedToolPlugInKeys();
     for (String key : keyList) {
       BioFabricToolPlugIn plugin = pMan_.getToolPlugIn(key);
-      plugin.writeXML(out, ind);
+      plugin.writeXML(pw, ind);
     }
     ind.indent();
-    out.println("</plugInDataSets>");
+    pw.println("</plugInDataSets>");
+    pw.flush();
+    tail.writeTo(out);
     
     lr.finish();
-    ind.down().indent();
-    out.println("</BioFabric>"); 
     return;
   }
   
@@ -1273,6 +1536,22 @@ public class BioFabricNetwork implements Network {
      return (null);
   }
 
+  /***************************************************************************
+  ** 
+  ** Get the link and node extents used by the renderers
+  */
+
+  public synchronized Extents getExtents() {
+    if (extents_ == null) {
+      try {
+        extents_ = new Extents(this, null);
+      } catch (AsynchExitRequestException aerex) {
+        throw new IllegalStateException(aerex); // No monitor, so never happens
+      }
+    }
+    return (extents_);
+  }
+  
   /***************************************************************************
   ** 
   ** Get node defs
@@ -1341,16 +1620,9 @@ public class BioFabricNetwork implements Network {
   */
 
   public Set<NetNode> nodeMatches(boolean fullMatch, String searchString) {
-    HashSet<NetNode> retval = new HashSet<NetNode>();
-    Iterator<NetNode> nkit = nodeDefs_.keySet().iterator();
-    while (nkit.hasNext()) {
-      NetNode nodeID = nkit.next();
-      String nodeName = nodeDefs_.get(nodeID).getNodeName();
-      if (matches(searchString, nodeName, fullMatch)) {
-        retval.add(nodeID);
-      }
-    }    
-    return (retval);
+    NodeNameIndex index = getNameIndex();
+    int[] rows = (fullMatch) ? index.exactRows(searchString) : index.substringRows(searchString);
+    return (index.nodesForRows(rows));
   }
   
   /***************************************************************************
@@ -1427,46 +1699,22 @@ public class BioFabricNetwork implements Network {
 
   /***************************************************************************
   **
-  ** Do the match
-  ** 
-  */
- 
-  private boolean matches(String searchString, String nodeName, boolean isFull) {
-    String canonicalNodeName = DataUtil.normKey(nodeName);
-    if (isFull) {
-      return (canonicalNodeName.equals(searchString));
-    } else {
-      return (canonicalNodeName.indexOf(searchString) != -1);
-    }
-  }
-
-  /***************************************************************************
-  **
-  ** Count of links per targ:
+  ** Count of links per row. Feedback links count once. If rows are given, only
+  ** those get counted.
   */
 
-  private Map<NetNode, Integer> linkCountPerTarg(Set<NetNode> targets, List<LinkInfo> linkList) {
-    HashMap<NetNode, Integer> retval = new HashMap<NetNode, Integer>();
+  private int[] linkCountPerRow(int numRows, Collection<LinkInfo> linkList, BitSet rows) {
+    int[] retval = new int[numRows];
     Iterator<LinkInfo> lcit = linkList.iterator();
     while (lcit.hasNext()) {
       LinkInfo linf = lcit.next();
-      NetNode src = linf.getSource();
-      NetNode trg = linf.getTarget();      
-      if (targets.contains(src)) {
-        Integer count = retval.get(src);
-        if (count == null) {
-          retval.put(src, Integer.valueOf(1));
-        } else {
-          retval.put(src, Integer.valueOf(count.intValue() + 1));
-        }
+      int top = linf.topRow();
+      int bot = linf.bottomRow();
+      if ((rows == null) || rows.get(top)) {
+        retval[top]++;
       }
-      if (!src.equals(trg) && targets.contains(trg)) {
-        Integer count = retval.get(trg);
-        if (count == null) {
-          retval.put(trg, Integer.valueOf(1));
-        } else {
-          retval.put(trg, Integer.valueOf(count.intValue() + 1));
-        }
+      if ((top != bot) && ((rows == null) || rows.get(bot))) {
+        retval[bot]++;
       }
     }
     return (retval);
@@ -1481,53 +1729,76 @@ public class BioFabricNetwork implements Network {
 
   private List<LinkInfo> pruneToMinSubModel(BioFabricNetwork bfn, List<NodeInfo> targetList, List<LinkInfo> linkList) {
           
-    HashSet<NetNode> targSet = new HashSet<NetNode>();
-    Iterator<NodeInfo> tlit = targetList.iterator();
-    while (tlit.hasNext()) {
-      NodeInfo ninf = tlit.next();
-      targSet.add(new FabricNode(ninf.getNodeID(), ninf.getNodeName()));
-    }   
-
-    Map<NetNode, Integer> subCounts = linkCountPerTarg(targSet, linkList);
-    Map<NetNode, Integer> fullCounts = linkCountPerTarg(bfn.getNodeSetIDs(), bfn.getLinkDefList(true));
-    
-    HashSet<Integer> skipThem = new HashSet<Integer>();
-    HashSet<Integer> ditchThem = new HashSet<Integer>();
-    Iterator<LinkInfo> lcit = linkList.iterator();
-    while (lcit.hasNext()) {
-      LinkInfo linf = lcit.next();
-      NetNode topNode = bfn.getNodeIDForRow(Integer.valueOf(linf.topRow()));
-      NetNode botNode = bfn.getNodeIDForRow(Integer.valueOf(linf.bottomRow()));
-      boolean topStays = subCounts.get(topNode).equals(fullCounts.get(topNode));
-      boolean botStays = subCounts.get(botNode).equals(fullCounts.get(botNode));
-      if ((topStays && botStays) || (!topStays && !botStays)) {  // Nobody gets ditched!
+    BitSet targRows = new BitSet();
+    for (NodeInfo ninf : targetList) {
+      targRows.set(ninf.nodeRow);
+    }
+    int numRows = Math.max(bfn.rowCount_, targRows.length());
+    int[] subCounts = linkCountPerRow(numRows, linkList, targRows);
+    int[] fullCounts = linkCountPerRow(numRows, bfn.fullLinkDefs_.values(), null);
+    
+    //
+    // Only links with one end keeping all its links are candidates. The two
+    // halves of a shadow pair share ends, so both are candidates or neither is.
+    // Group the candidates by link, ignoring shadow status:
+    //
+    
+    int numLinks = linkList.size();
+    boolean[] oneSided = new boolean[numLinks];
+    boolean[] topStays = new boolean[numLinks];
+    HashMap<FabricLink, List<Integer>> pairGroups = new HashMap<FabricLink, List<Integer>>();
+    for (int i = 0; i < numLinks; i++) {
+      LinkInfo linf = linkList.get(i);
+      int top = linf.topRow();
+      int bot = linf.bottomRow();
+      topStays[i] = (subCounts[top] == fullCounts[top]);
+      boolean botStays = (subCounts[bot] == fullCounts[bot]);
+      if (topStays[i] == botStays) {  // Nobody gets ditched!
         continue;
       }
+      oneSided[i] = true;
+      FabricLink pairKey = linf.getLink().clone();
+      pairKey.dropShadowStatus();
+      List<Integer> group = pairGroups.get(pairKey);
+      if (group == null) {
+        group = new ArrayList<Integer>(2);
+        pairGroups.put(pairKey, group);
+      }
+      group.add(Integer.valueOf(i));
+    }
+    
+    //
+    // Each candidate looks for its shadow pair among the candidates that have not
+    // had their turn yet. If found, one of the two gets ditched:
+    //
+    
+    BitSet ditchThem = new BitSet();
+    for (int i = 0; i < numLinks; i++) {
+      if (!oneSided[i]) {
+        continue;
+      }
+      LinkInfo linf = linkList.get(i);
       FabricLink link1 = linf.getLink();
-      int col1 = linf.getUseColumn(true);
-      skipThem.add(Integer.valueOf(col1));
-      Iterator<LinkInfo> lc2it = linkList.iterator();
-      while (lc2it.hasNext()) {
-        LinkInfo linf2 = lc2it.next();
-        int col2 = linf2.getUseColumn(true);
-        if (skipThem.contains(Integer.valueOf(col2))) {
+      FabricLink pairKey = link1.clone();
+      pairKey.dropShadowStatus();
+      for (Integer j : pairGroups.get(pairKey)) {
+        int jVal = j.intValue();
+        if (jVal <= i) {
           continue;
         }
+        LinkInfo linf2 = linkList.get(jVal);
         if (linf2.getLink().shadowPair(link1)) { // got a shadow pair! 
-          int maxLink = Math.max(col1, col2);
-          int minLink = Math.min(col1, col2);
-          ditchThem.add(Integer.valueOf((topStays) ? maxLink : minLink));
+          int col1 = linf.getUseColumn(true);
+          int col2 = linf2.getUseColumn(true);
+          ditchThem.set((topStays[i]) ? Math.max(col1, col2) : Math.min(col1, col2));
           break;
         }
       }
     } 
     
     ArrayList<LinkInfo> retval = new ArrayList<LinkInfo>();
-    Iterator<LinkInfo> lcit3 = linkList.iterator();
-    while (lcit3.hasNext()) {
-      LinkInfo linf = lcit3.next();
-      int col = linf.getUseColumn(true);
-      if (!ditchThem.contains(Integer.valueOf(col))) {
+    for (LinkInfo linf : linkList) {
+      if (!ditchThem.get(linf.getUseColumn(true))) {
         retval.add(linf);
       }
     }
@@ -1546,83 +1817,37 @@ public class BioFabricNetwork implements Network {
       linkList = pruneToMinSubModel(bfn, targetList, linkList);
     }
      
-    //
-    // Figure out the new node bounds. This figures out the current rightmost column of all nodes
-    // needed to show the links we want to include in the subnet:
-    //
-    
-    HashMap<NetNode, Integer> lastColForNode = new HashMap<NetNode, Integer>();
-    HashMap<NetNode, Integer> lastShadColForNode = new HashMap<NetNode, Integer>();
-    
-    for (LinkInfo linf : linkList) {
-      if (!linf.isShadow()) {
-        Integer lastCol = lastColForNode.get(linf.getTarget());
-        if ((lastCol == null) || (lastCol.intValue() < linf.getUseColumn(false))) {
-          lastColForNode.put(linf.getTarget(), Integer.valueOf(linf.getUseColumn(false)));
-        }
-        lastCol = lastColForNode.get(linf.getSource());
-        if ((lastCol == null) || (lastCol.intValue() < linf.getUseColumn(false))) {
-          lastColForNode.put(linf.getSource(), Integer.valueOf(linf.getUseColumn(false)));
-        }
-      }
-      Integer lastColShad = lastShadColForNode.get(linf.getTarget());
-      if ((lastColShad == null) || (lastColShad.intValue() < linf.getUseColumn(true))) {
-        lastShadColForNode.put(linf.getTarget(), Integer.valueOf(linf.getUseColumn(true)));
-      }
-      lastColShad = lastShadColForNode.get(linf.getSource());
-      if ((lastColShad == null) || (lastColShad.intValue() < linf.getUseColumn(true))) {
-        lastShadColForNode.put(linf.getSource(), Integer.valueOf(linf.getUseColumn(true)));
-      }
-    }
-
     //
     // Need to compress the rows and columns, throwing away all empty slots
     // First record the "full scale" entries:
     //
 
-    TreeSet<Integer> needRows = new TreeSet<Integer>();
-    TreeSet<Integer> needColumns = new TreeSet<Integer>();   
-    TreeSet<Integer> needColumnsShad = new TreeSet<Integer>();   
+    BitSet needRows = new BitSet();
+    BitSet needColumns = new BitSet();   
+    BitSet needColumnsShad = new BitSet();   
 
     for (NodeInfo targetInf : targetList) {
-      needRows.add(Integer.valueOf(targetInf.nodeRow));
-      needColumns.add(Integer.valueOf(targetInf.getColRange(false).min));
-      needColumnsShad.add(Integer.valueOf(targetInf.getColRange(true).min));
+      needRows.set(targetInf.nodeRow);
+      needColumns.set(targetInf.getColRange(false).min);
+      needColumnsShad.set(targetInf.getColRange(true).min);
     }
 
-    Iterator<LinkInfo> cit = linkList.iterator();
-    while (cit.hasNext()) {
-      LinkInfo linf = cit.next();
-      needRows.add(Integer.valueOf(linf.getStartRow()));
-      needRows.add(Integer.valueOf(linf.getEndRow()));
+    for (LinkInfo linf : linkList) {
+      needRows.set(linf.getStartRow());
+      needRows.set(linf.getEndRow());
       if (!linf.isShadow()) {
-        needColumns.add(Integer.valueOf(linf.getUseColumn(false)));
+        needColumns.set(linf.getUseColumn(false));
       }
-      needColumnsShad.add(Integer.valueOf(linf.getUseColumn(true)));
+      needColumnsShad.set(linf.getUseColumn(true));
     }
 
     //
-    // Create full-scale to mini-scale mappings:
+    // Full-scale to mini-scale mappings are just the ranks:
     //
 
-    TreeMap<Integer, Integer> rowMap = new TreeMap<Integer, Integer>();
-    TreeMap<Integer, Integer> columnMap = new TreeMap<Integer, Integer>();
-    TreeMap<Integer, Integer> shadColumnMap = new TreeMap<Integer, Integer>();
-
-    int rowCount = 0;
-    for (Integer fullRow : needRows) {
-      rowMap.put(fullRow, Integer.valueOf(rowCount++));
-    }
-
-    int colCount = 0;
-    for (Integer fullCol : needColumns) {
-      columnMap.put(fullCol, Integer.valueOf(colCount++));
-    }
-    
-    int shadColCount = 0;
-    for (Integer fullCol : needColumnsShad) {
-      shadColumnMap.put(fullCol, Integer.valueOf(shadColCount++));
-    }
+    RankedBits rowMap = new RankedBits(needRows);
+    RankedBits columnMap = new RankedBits(needColumns);
+    RankedBits shadColumnMap = new RankedBits(needColumnsShad);
   
     //
     // Create modified copies of the node and link info with
@@ -1634,24 +1859,18 @@ public class BioFabricNetwork implements Network {
 
     int maxShadLinkCol = Integer.MIN_VALUE;
     int maxLinkCol = Integer.MIN_VALUE;
-    cit = linkList.iterator();
-    while (cit.hasNext()) {
-      BioFabricNetwork.LinkInfo linf = cit.next();
-      Integer startRowObj = rowMap.get(Integer.valueOf(linf.getStartRow()));
-      Integer endRowObj = rowMap.get(Integer.valueOf(linf.getEndRow()));
-      Integer miniColObj = (linf.isShadow()) ? Integer.valueOf(Integer.MIN_VALUE) : columnMap.get(Integer.valueOf(linf.getUseColumn(false)));
-      Integer miniColShadObj = shadColumnMap.get(Integer.valueOf(linf.getUseColumn(true)));
-      int miniColVal = miniColObj.intValue();
+    for (LinkInfo linf : linkList) {
+      int miniColVal = (linf.isShadow()) ? Integer.MIN_VALUE : columnMap.rank(linf.getUseColumn(false));
       if (miniColVal > maxLinkCol) {
         maxLinkCol = miniColVal;
       }
-      int miniColShadVal = miniColShadObj.intValue();
+      int miniColShadVal = shadColumnMap.rank(linf.getUseColumn(true));
       if (miniColShadVal > maxShadLinkCol) {
         maxShadLinkCol = miniColShadVal;
       }
       
-      LinkInfo miniLinf = new LinkInfo(linf.getLink(), startRowObj.intValue(), endRowObj.intValue(), 
-                                       miniColObj.intValue(), miniColShadObj.intValue(), linf.getColorKey());
+      LinkInfo miniLinf = new LinkInfo(linf.getLink(), rowMap.rank(linf.getStartRow()), rowMap.rank(linf.getEndRow()), 
+                                       miniColVal, miniColShadVal, linf.getColorKey());
       modLinkList.add(miniLinf);
     }
     if (maxLinkCol == Integer.MIN_VALUE) {
@@ -1665,45 +1884,29 @@ public class BioFabricNetwork implements Network {
       maxShadLinkCol++;
     }
  
+    //
+    // Node ranges run out to the last submodel column:
+    //
+    
     int minTrgCol = Integer.MAX_VALUE;
     int minShadTrgCol = Integer.MAX_VALUE;
     for (NodeInfo infoFull : targetList) {
-      Integer miniRowObj = rowMap.get(Integer.valueOf(infoFull.nodeRow));
-      NodeInfo infoMini = new NodeInfo(infoFull.getNodeID(), infoFull.getNodeName(), miniRowObj.intValue(), infoFull.colorKey);
+      NodeInfo infoMini = new NodeInfo(infoFull.getNodeID(), infoFull.getNodeName(), rowMap.rank(infoFull.nodeRow), infoFull.colorKey);
 
-      Integer minCol = columnMap.get(Integer.valueOf(infoFull.getColRange(false).min));
-      infoMini.updateMinMaxCol(minCol.intValue(), false);
-      int miniColVal = minCol.intValue();
+      int miniColVal = columnMap.rank(infoFull.getColRange(false).min);
+      infoMini.updateMinMaxCol(miniColVal, false);
       if (miniColVal < minTrgCol) {
         minTrgCol = miniColVal;
       }
       
-      Integer minShadCol = shadColumnMap.get(Integer.valueOf(infoFull.getColRange(true).min));
-      infoMini.updateMinMaxCol(minShadCol.intValue(), true);
-      int miniShadColVal = minShadCol.intValue();
+      int miniShadColVal = shadColumnMap.rank(infoFull.getColRange(true).min);
+      infoMini.updateMinMaxCol(miniShadColVal, true);
       if (miniShadColVal < minShadTrgCol) {
         minShadTrgCol = miniShadColVal;
       }
    
-      int maxCol;        
-      Integer lastCol = lastColForNode.get(infoFull.getNodeID());
-      if (lastCol == null) {
-        maxCol = maxLinkCol;
-      } else {
-        Integer maxColObj = columnMap.get(lastCol);     
-        maxCol = maxColObj.intValue();
-      }
-      infoMini.updateMinMaxCol(maxCol, false);
-      
-      int maxShadCol;        
-      Integer lastShadCol = lastShadColForNode.get(infoFull.getNodeID());
-      if (lastShadCol == null) {
-        maxShadCol = maxShadLinkCol;
-      } else {
-        Integer maxShadColObj = shadColumnMap.get(lastShadCol);     
-        maxShadCol = maxShadColObj.intValue();
-      }
-      infoMini.updateMinMaxCol(maxShadCol, true);
+      infoMini.updateMinMaxCol(maxLinkCol, false);
+      infoMini.updateMinMaxCol(maxShadLinkCol, true);
   
       modTargetList.add(infoMini);
     }
@@ -1761,6 +1964,8 @@ public class BioFabricNetwork implements Network {
     
      UiUtil.fixMePrintout("Are multiple drain zones handled for submodels? NO");
     
+    int[][] shadDrainStarts = shadowDrainCandidates(rowMap.size());
+    
     Iterator<NetNode> ndkit = nodeDefs_.keySet().iterator();
     while (ndkit.hasNext()) {
       NetNode node = ndkit.next();
@@ -1801,7 +2006,7 @@ public class BioFabricNetwork implements Network {
       
       MinMax shadowSrcDrain = null;
       MinMax shadowRange = srcNI.getColRange(true);
-      int startColShad = shadowRange.min;
+      int startColShad = firstAtLeast(shadDrainStarts[srcNI.nodeRow], shadowRange.min);
       int endColShad = shadowRange.max;
       for (int i = startColShad; i <= endColShad; i++) {
         LinkInfo linf = getLinkDefinition(Integer.valueOf(i), true);
@@ -1857,7 +2062,7 @@ public class BioFabricNetwork implements Network {
   ** Fill out reduced node or link annotations
   */
 
-  private AnnotationSet annotationsForSubNet(TreeMap<Integer, Integer> reduceMap, AnnotationSet origAnnots) {
+  private AnnotationSet annotationsForSubNet(RankedBits reduceMap, AnnotationSet origAnnots) {
   	AnnotationSet retval = new AnnotationSetImpl();
   	if ((origAnnots == null) || (origAnnots.size() == 0)) {
   		return (retval);
@@ -1865,28 +2070,26 @@ public class BioFabricNetwork implements Network {
   	
   	//
   	// We need to go through each annotation and see if any of the nodes/links in the subnet are in it. If so, it
-  	// needs to be in the subset, with min/max values taken from the rows/cols present in the subnet.
+  	// needs to be in the subset, with min/max values taken from the rows/cols present in the subnet. A row or
+  	// column only goes to the first annotation holding it, so each one gets claimed once:
   	//
   	
+  	BitSet unclaimed = reduceMap.getBits();
   	TreeMap<Annot, MinMax> useAnnots = new TreeMap<Annot, MinMax>();
-  	for (Integer origRow : reduceMap.keySet()) {
-  		int orVal = origRow.intValue();
-  		for (Annot origAnnot : origAnnots) { 
-  		  MinMax anRange = origAnnot.getRange();
-  		  if ((orVal >= anRange.min) && (orVal <= anRange.max)) {
-  		  	MinMax useRange = useAnnots.get(origAnnot);
-  		  	Integer newRowOrCol = reduceMap.get(origRow);
-  		  	int nrVal = newRowOrCol.intValue();
-  		  	if (useRange == null) {
-  		  		useRange = new MinMax(nrVal, nrVal);
-  		  		useAnnots.put(origAnnot, useRange);
-  		  	} else {
-  		  		useRange.update(nrVal);
-  		  	}
-  		  	break;
-  		  }
+  	for (Annot origAnnot : origAnnots) { 
+  	  MinMax anRange = origAnnot.getRange();
+  	  MinMax useRange = null;
+  	  for (int i = unclaimed.nextSetBit(Math.max(0, anRange.min)); (i >= 0) && (i <= anRange.max); i = unclaimed.nextSetBit(i + 1)) {
+  	    unclaimed.clear(i);
+  	    int nrVal = reduceMap.rank(i);
+  	    if (useRange == null) {
+  	      useRange = new MinMax(nrVal, nrVal);
+  	      useAnnots.put(origAnnot, useRange);
+  	    } else {
+  	      useRange.update(nrVal);
+  	    }
   	  }
-    }
+  	}
   	
   	for (Annot oldAnnot : useAnnots.keySet()) {
   		MinMax useRange = useAnnots.get(oldAnnot);
@@ -1899,6 +2102,45 @@ public class BioFabricNetwork implements Network {
   	return (retval);
   }
 
+  /***************************************************************************
+  **
+  ** For each row, the ascending shadow columns where a shadow drain zone could
+  ** start: non-shadow links with the node on top, and shadow links with the node
+  ** on the bottom.
+  */
+
+  private int[][] shadowDrainCandidates(int numRows) {
+    int[] counts = new int[numRows];
+    for (LinkInfo linf : fullLinkDefs_.values()) {
+      counts[(linf.isShadow()) ? linf.bottomRow() : linf.topRow()]++;
+    }
+    int[][] retval = new int[numRows][];
+    for (int i = 0; i < numRows; i++) {
+      retval[i] = new int[counts[i]];
+      counts[i] = 0;
+    }
+    for (Map.Entry<Integer, LinkInfo> entry : fullLinkDefs_.entrySet()) {
+      LinkInfo linf = entry.getValue();
+      int row = (linf.isShadow()) ? linf.bottomRow() : linf.topRow();
+      retval[row][counts[row]++] = entry.getKey().intValue();
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** First value in the ascending array not less than the given one. If there
+  ** is none, we get back MAX_VALUE.
+  */
+
+  private int firstAtLeast(int[] vals, int atLeast) {
+    int index = Arrays.binarySearch(vals, atLeast);
+    if (index < 0) {
+      index = -(index + 1);
+    }
+    return ((index < vals.length) ? vals[index] : Integer.MAX_VALUE);
+  }
+
   /***************************************************************************
   ** 
   ** Fill out node info from order
@@ -1958,38 +2200,41 @@ public class BioFabricNetwork implements Network {
   ** and outgoing links:
   */
 
-  private void trimTargetRows(BTProgressMonitor monitor) throws AsynchExitRequestException {
-  	  	
-  	LoopReporter lr = new LoopReporter(fullLinkDefs_.size(), 20, monitor, 0.0, 0.5, "progress.trimTargetRows1");
-  	Iterator<Integer> fldit = fullLinkDefs_.keySet().iterator();
-    while (fldit.hasNext()) {
-      Integer colNum = fldit.next();
-      lr.report();
-      LinkInfo li = fullLinkDefs_.get(colNum);
-      shadowCols_.columnToSource.put(colNum, li.getSource());
-      shadowCols_.columnToTarget.put(colNum, li.getTarget());
-      NodeInfo srcNI = nodeDefs_.get(li.getSource());    
-      NodeInfo trgNI = nodeDefs_.get(li.getTarget()); 
-      srcNI.updateMinMaxCol(colNum.intValue(), true);
-      trgNI.updateMinMaxCol(colNum.intValue(), true);
-    }
-    lr.finish();
+  private void trimTargetRows(boolean forShadow, BTProgressMonitor monitor, 
+                              double startFrac, double endFrac) throws AsynchExitRequestException {
     
-    LoopReporter lr2 = new LoopReporter(nonShadowedLinkMap_.size(), 20, monitor, 0.5, 1.0, "progress.trimTargetRows2");
-    Iterator<Integer> nslit = nonShadowedLinkMap_.keySet().iterator();
-    while (nslit.hasNext()) {
-      Integer colNum = nslit.next();
-      lr2.report();
-      Integer mappedCol = nonShadowedLinkMap_.get(colNum);
-      LinkInfo li = fullLinkDefs_.get(mappedCol);
-      normalCols_.columnToSource.put(colNum, li.getSource());
-      normalCols_.columnToTarget.put(colNum, li.getTarget());
-      NodeInfo srcNI = nodeDefs_.get(li.getSource());    
-      NodeInfo trgNI = nodeDefs_.get(li.getTarget());    
-      srcNI.updateMinMaxCol(colNum.intValue(), false);
-      trgNI.updateMinMaxCol(colNum.intValue(), false);
+    if (forShadow) {
+      LoopReporter lr = new LoopReporter(fullLinkDefs_.size(), 20, monitor, startFrac, endFrac, "progress.trimTargetRows1");
+      Iterator<Integer> fldit = fullLinkDefs_.keySet().iterator();
+      while (fldit.hasNext()) {
+        Integer colNum = fldit.next();
+        lr.report();
+        LinkInfo li = fullLinkDefs_.get(colNum);
+        shadowCols_.columnToSource.put(colNum, li.getSource());
+        shadowCols_.columnToTarget.put(colNum, li.getTarget());
+        NodeInfo srcNI = nodeDefs_.get(li.getSource());    
+        NodeInfo trgNI = nodeDefs_.get(li.getTarget()); 
+        srcNI.updateMinMaxCol(colNum.intValue(), true);
+        trgNI.updateMinMaxCol(colNum.intValue(), true);
+      }
+      lr.finish();
+    } else {
+      LoopReporter lr = new LoopReporter(nonShadowedLinkMap_.size(), 20, monitor, startFrac, endFrac, "progress.trimTargetRows2");
+      Iterator<Integer> nslit = nonShadowedLinkMap_.keySet().iterator();
+      while (nslit.hasNext()) {
+        Integer colNum = nslit.next();
+        lr.report();
+        Integer mappedCol = nonShadowedLinkMap_.get(colNum);
+        LinkInfo li = fullLinkDefs_.get(mappedCol);
+        normalCols_.columnToSource.put(colNum, li.getSource());
+        normalCols_.columnToTarget.put(colNum, li.getTarget());
+        NodeInfo srcNI = nodeDefs_.get(li.getSource());    
+        NodeInfo trgNI = nodeDefs_.get(li.getTarget());    
+        srcNI.updateMinMaxCol(colNum.intValue(), false);
+        trgNI.updateMinMaxCol(colNum.intValue(), false);
+      }
+      lr.finish();
     }
-    lr.finish();
     return;
   }
   
@@ -2170,6 +2415,7 @@ public class BioFabricNetwork implements Network {
     linkGrouping_ = new ArrayList<String>();
     showLinkGroupAnnotations_ = false;
     colGen_ = null;
+    relations_ = new RelationRegistry();
   }
   
   /***************************************************************************
@@ -2340,70 +2586,50 @@ public class BioFabricNetwork implements Network {
      ** Dump the node using XML
     */
   
-    public void writeXML(PrintWriter out, Indenter ind, int row) {
-      ind.indent();
-      out.print("<node name=\"");
-      out.print(CharacterEntityMapper.mapEntities(nodeName_, false));
-      out.print("\" nid=\"");
-      out.print(nodeID_.getInternal());
-      out.print("\" row=\"");
-      out.print(row);
+    public void writeXML(XMLByteBuffer buf, int level, int row) {
+      buf.indent(level).append("<node name=\"").appendEntities(nodeName_);
+      buf.append("\" nid=\"").append(nodeID_.getInternal());
+      buf.append("\" row=\"").append(row);
       MinMax nsCols = getColRange(false);
-      out.print("\" minCol=\"");
-      out.print(nsCols.min);
-      out.print("\" maxCol=\"");
-      out.print(nsCols.max);
+      buf.append("\" minCol=\"").append(nsCols.min);
+      buf.append("\" maxCol=\"").append(nsCols.max);
       MinMax sCols = getColRange(true);
-      out.print("\" minColSha=\"");
-      out.print(sCols.min);
-      out.print("\" maxColSha=\"");
-      out.print(sCols.max);
-      out.print("\" color=\"");
-      out.print(colorKey);
+      buf.append("\" minColSha=\"").append(sCols.min);
+      buf.append("\" maxColSha=\"").append(sCols.max);
+      buf.append("\" color=\"").append(colorKey);
       String clust = getCluster();
       if (clust != null) {
-        out.print("\" cluster=\"");
-        out.print(CharacterEntityMapper.mapEntities(clust, false));
+        buf.append("\" cluster=\"").appendEntities(clust);
       }
-
-      out.println("\">");
+      buf.append("\">").newline();
       
       //
       // DRAIN ZONES XML
       //
       
-      ind.up();
-      ind.indent();
+      buf.indent(level + 1);
       if (this.plainDrainZones_.size() > 0) {
-        out.println("<drainZones>");
-        ind.up();
+        buf.append("<drainZones>").newline();
         for (DrainZone dz : this.plainDrainZones_) {
-          dz.writeXML(out, ind);
+          dz.writeXML(buf, level + 2);
         }
-        ind.down();
-        ind.indent();
-        out.println("</drainZones>");
+        buf.indent(level + 1).append("</drainZones>").newline();
       } else {
-        out.println("<drainZones/>");
+        buf.append("<drainZones/>").newline();
       }
       
-      ind.indent();
+      buf.indent(level + 1);
       if (this.shadowDrainZones_.size() > 0) {
-        out.println("<drainZonesShadow>");
-        ind.up();
+        buf.append("<drainZonesShadow>").newline();
         for (DrainZone dzSha : this.shadowDrainZones_) {
-          dzSha.writeXML(out, ind);
+          dzSha.writeXML(buf, level + 2);
         }
-        ind.down();
-        ind.indent();
-        out.println("</drainZonesShadow>");
+        buf.indent(level + 1).append("</drainZonesShadow>").newline();
       } else {
-        out.println("<drainZonesShadow/>");
+        buf.append("<drainZonesShadow/>").newline();
       }
       
-      ind.down();
-      ind.indent();
-      out.println("</node>");
+      buf.indent(level).append("</node>").newline();
     }
   }
   
@@ -2422,22 +2648,9 @@ public class BioFabricNetwork implements Network {
       this.isShadow = isShadow;
     }
     
-    public void writeXML(PrintWriter out, Indenter ind) {
-      if (isShadow) {
-        ind.indent();
-        out.print("<drainZoneShadow minCol=\"");
-        out.print(dzmm.min);
-        out.print("\" maxCol=\"");
-        out.print(dzmm.max);
-        out.println("\" />");
-      } else {
-        ind.indent();
-        out.print("<drainZone minCol=\"");
-        out.print(dzmm.min);
-        out.print("\" maxCol=\"");
-        out.print(dzmm.max);
-        out.println("\" />");
-      }
+    public void writeXML(XMLByteBuffer buf, int level) {
+      buf.indent(level).append((isShadow) ? "<drainZoneShadow minCol=\"" : "<drainZone minCol=\"").append(dzmm.min);
+      buf.append("\" maxCol=\"").append(dzmm.max).append("\" />").newline();
     }
     
     public boolean isShadow() {
@@ -2449,6 +2662,266 @@ public class BioFabricNetwork implements Network {
     }
   }
   
+  /***************************************************************************
+  **
+  ** Sends XML chunks on to the output in order. Chunks are written into their buffers
+  ** on a small pool, with a bounded number in flight; with one CPU they are just
+  ** written here. Only this thread touches the LoopReporter.
+  */  
+  
+  private static class XMLChunkWriter {
+    
+    private OutputStream out_;
+    private LoopReporter lr_;
+    private ExecutorService pool_;
+    private int maxInFlight_;
+    private LinkedList<XMLChunk> pending_;
+    private ArrayList<XMLByteBuffer> free_;
+
+    XMLChunkWriter(OutputStream out, LoopReporter lr) {
+      out_ = out;
+      lr_ = lr;
+      int numThreads = Math.min(MAX_XML_THREADS_, Runtime.getRuntime().availableProcessors() - 1);
+      pool_ = (numThreads < 1) ? null : Executors.newFixedThreadPool(numThreads);
+      maxInFlight_ = 2 * Math.max(1, numThreads);
+      pending_ = new LinkedList<XMLChunk>();
+      free_ = new ArrayList<XMLByteBuffer>();
+    }
+    
+    XMLByteBuffer getBuffer() {
+      int last = free_.size() - 1;
+      XMLByteBuffer retval = (last >= 0) ? free_.remove(last) : new XMLByteBuffer(64 * 1024);
+      retval.reset();
+      return (retval);
+    }
+    
+    void add(XMLByteBuffer done) throws AsynchExitRequestException, IOException {
+      add(new ReadyXMLChunk(done));
+      return;
+    }
+    
+    void add(XMLChunk chunk) throws AsynchExitRequestException, IOException {
+      if (pool_ == null) {
+        if (chunk.buf == null) {
+          chunk.buf = getBuffer();
+        }
+        writeOut(chunk.call(), chunk.count());
+        return;
+      }
+      if (chunk.buf == null) {
+        chunk.buf = getBuffer();
+        chunk.result = pool_.submit(chunk);
+      }
+      pending_.add(chunk);
+      while (pending_.size() > maxInFlight_) {
+        writeOldest();
+      }
+      return;
+    }
+    
+    void finish() throws AsynchExitRequestException, IOException {
+      while (!pending_.isEmpty()) {
+        writeOldest();
+      }
+      return;
+    }
+    
+    void shutdown() {
+      if (pool_ != null) {
+        pool_.shutdownNow();
+        pool_ = null;
+      }
+      return;
+    }
+    
+    private void writeOldest() throws AsynchExitRequestException, IOException {
+      XMLChunk chunk = pending_.removeFirst();
+      if (chunk.result == null) {
+        writeOut(chunk.buf, chunk.count());
+        return;
+      }
+      XMLByteBuffer buf;
+      try {
+        buf = chunk.result.get();
+      } catch (InterruptedException iex) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(iex);
+      } catch (ExecutionException eex) {
+        Throwable cause = eex.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        } else if (cause instanceof Error) {
+          throw (Error)cause;
+        }
+        throw new IllegalStateException(cause);
+      }
+      writeOut(buf, chunk.count());
+      return;
+    }
+    
+    private void writeOut(XMLByteBuffer buf, int count) throws AsynchExitRequestException, IOException {
+      buf.writeTo(out_);
+      free_.add(buf);
+      lr_.report(count);
+      return;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** A piece of the XML output that can be written on its own. The writer hands
+  ** it a buffer before it runs.
+  */  
+  
+  private static abstract class XMLChunk implements Callable<XMLByteBuffer> {
+    XMLByteBuffer buf;
+    Future<XMLByteBuffer> result;
+    
+    abstract int count();
+    
+    public abstract XMLByteBuffer call();
+  }
+  
+  /***************************************************************************
+  **
+  ** Fixed text that has already been written
+  */  
+  
+  private static class ReadyXMLChunk extends XMLChunk {
+    
+    ReadyXMLChunk(XMLByteBuffer done) {
+      buf = done;
+    }
+    
+    int count() {
+      return (0);
+    }
+    
+    public XMLByteBuffer call() {
+      return (buf);
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** A run of node elements, by row
+  */  
+  
+  private class NodeXMLChunk extends XMLChunk {
+    
+    private int[] rows_;
+    private int start_;
+    private int end_;
+    private int level_;
+    
+    NodeXMLChunk(int[] rows, int start, int end, int level) {
+      rows_ = rows;
+      start_ = start;
+      end_ = end;
+      level_ = level;
+    }
+    
+    int count() {
+      return (end_ - start_);
+    }
+    
+    public XMLByteBuffer call() {
+      for (int i = start_; i < end_; i++) {
+        NetNode nodeID = rowToTargID_.get(Integer.valueOf(rows_[i]));
+        nodeDefs_.get(nodeID).writeXML(buf, level_, rows_[i]);
+      }
+      return (buf);
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** A run of link elements, in shadow column order
+  */  
+  
+  private static class LinkXMLChunk extends XMLChunk {
+    
+    private int[] cols_;
+    private LinkInfo[] linkDefs_;
+    private int[] nsCols_;
+    private int start_;
+    private int end_;
+    private int level_;
+    
+    LinkXMLChunk(int[] cols, LinkInfo[] linkDefs, int[] nsCols, int start, int end, int level) {
+      cols_ = cols;
+      linkDefs_ = linkDefs;
+      nsCols_ = nsCols;
+      start_ = start;
+      end_ = end;
+      level_ = level;
+    }
+    
+    int count() {
+      return (end_ - start_);
+    }
+    
+    public XMLByteBuffer call() {
+      for (int i = start_; i < end_; i++) {
+        LinkInfo li = linkDefs_[i];
+        FabricLink link = li.getLink();
+        AugRelation augr = link.getAugRelation();
+        buf.indent(level_).append("<link srcID=\"").append(link.getSrcNode().getNID().getNID().getInternal());
+        buf.append("\" trgID=\"").append(link.getTrgNode().getNID().getNID().getInternal());
+        buf.append("\" rel=\"").appendEntities(augr.relation);
+        buf.append("\" directed=\"").append(link.isDirected());
+        buf.append("\" shadow=\"").append(augr.isShadow);
+        if (!augr.isShadow) {
+          buf.append("\" column=\"");
+          if (nsCols_[i] == -1) {
+            buf.append((String)null);
+          } else {
+            buf.append(nsCols_[i]);
+          }
+        }
+        buf.append("\" shadowCol=\"").append(cols_[i]);
+        buf.append("\" srcRow=\"").append(li.getStartRow());
+        buf.append("\" trgRow=\"").append(li.getEndRow());
+        buf.append("\" color=\"").append(li.getColorKey());
+        buf.append("\" />").newline();
+      }
+      return (buf);
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** One annotation section, including its enclosing element
+  */  
+  
+  private static class AnnotXMLChunk extends XMLChunk {
+    
+    private String tag_;
+    private AnnotationSet annots_;
+    private int level_;
+    
+    AnnotXMLChunk(String tag, AnnotationSet annots, int level) {
+      tag_ = tag;
+      annots_ = annots;
+      level_ = level;
+    }
+    
+    int count() {
+      return ((annots_ == null) ? 0 : annots_.size());
+    }
+    
+    public XMLByteBuffer call() {
+      buf.indent(level_).append("<").append(tag_).append(">").newline();
+      if (annots_ != null) {
+        for (Annot an : annots_) {
+          ((AnnotationSetImpl.AnnotImpl)an).writeXML(buf, level_ + 1);
+        }
+      }
+      buf.indent(level_).append("</").append(tag_).append(">").newline();
+      return (buf);
+    }
+  }
+  
   /***************************************************************************
   **
   ** For passing around ranked nodes
@@ -2611,16 +3084,21 @@ public class BioFabricNetwork implements Network {
     protected Object localProcessElement(String elemName, Attributes attrs) throws IOException {
       Object retval = null;
       FabricFactory.FactoryWhiteboard board = (FabricFactory.FactoryWhiteboard) this.sharedWhiteboard_;
-      board.drainZone = buildFromXML(elemName, attrs);
+      board.drainZone = buildFromXML(elemName, attrs, isShadow);
       retval = board.drainZone;
       return (retval);
     }
     
-    private DrainZone buildFromXML(String elemName, Attributes attrs) throws IOException {
+    /***************************************************************************
+    **
+    ** Also used by the fast reader, possibly on several threads at once
+    */
+    
+    public static DrainZone buildFromXML(String elemName, Attributes attrs, boolean isShadow) throws IOException {
       
       String minCol, maxCol;
       
-      if (this.isShadow) {
+      if (isShadow) {
         minCol = AttributeExtractor.extractAttribute(elemName, attrs, "drainZoneShadow", "minCol", true);
         maxCol = AttributeExtractor.extractAttribute(elemName, attrs, "drainZoneShadow", "maxCol", true);
       } else {
@@ -2686,7 +3164,13 @@ public class BioFabricNetwork implements Network {
       return (retval);     
     }  
     
-    private LinkInfo buildFromXML(String elemName, Attributes attrs, FabricFactory.FactoryWhiteboard board) throws IOException { 
+    /***************************************************************************
+    **
+    ** Also used by the fast reader, possibly on several threads at once. That is
+    ** OK once all the nodes are in, since the whiteboard maps are then only read.
+    */
+    
+    public static LinkInfo buildFromXML(String elemName, Attributes attrs, FabricFactory.FactoryWhiteboard board) throws IOException { 
       String src = AttributeExtractor.extractAttribute(elemName, attrs, "link", "src", false);
       src = CharacterEntityMapper.unmapEntities(src, false);
       String trg = AttributeExtractor.extractAttribute(elemName, attrs, "link", "trg", false);
@@ -2724,7 +3208,13 @@ public class BioFabricNetwork implements Network {
       Boolean dirObj = Boolean.valueOf(directed);
       String shadow = AttributeExtractor.extractAttribute(elemName, attrs, "link", "shadow", true);
       Boolean shadObj = Boolean.valueOf(shadow);
-      FabricLink flink = new FabricLink(new FabricNode(srcNID), new FabricNode(trgNID), rel, shadObj.booleanValue(), dirObj);
+      FabricLink flink;
+      if (board.bfn != null) {
+        RelationRegistry.Relation relEntry = board.bfn.relations_.intern(rel);
+        flink = new FabricLink(new FabricNode(srcNID), new FabricNode(trgNID), relEntry, shadObj.booleanValue(), dirObj);
+      } else {
+        flink = new FabricLink(new FabricNode(srcNID), new FabricNode(trgNID), rel, shadObj.booleanValue(), dirObj);
+      }
       String col = AttributeExtractor.extractAttribute(elemName, attrs, "link", "column", false);
       String shadowCol = AttributeExtractor.extractAttribute(elemName, attrs, "link", "shadowCol", true);
       String srcRow = AttributeExtractor.extractAttribute(elemName, attrs, "link", "srcRow", true);
@@ -2801,10 +3291,29 @@ public class BioFabricNetwork implements Network {
     }  
     
     private NodeInfo buildFromXML(String elemName, Attributes attrs, FabricFactory.FactoryWhiteboard board) throws IOException {
-      String name = AttributeExtractor.extractAttribute(elemName, attrs, "node", "name", true);
-      name = CharacterEntityMapper.unmapEntities(name, false);
+      String name = nameFromXML(elemName, attrs);
       String nidStr = AttributeExtractor.extractAttribute(elemName, attrs, "node", "nid", false);
-
+      NID nid = registerID(nidStr, name, board);
+      return (buildFromXML(elemName, attrs, nid, name));
+    }
+    
+    /***************************************************************************
+    **
+    ** Get the node name
+    */
+    
+    public static String nameFromXML(String elemName, Attributes attrs) throws IOException {
+      String name = AttributeExtractor.extractAttribute(elemName, attrs, "node", "name", true);
+      return (CharacterEntityMapper.unmapEntities(name, false));
+    }
+    
+    /***************************************************************************
+    **
+    ** Record the node ID on the whiteboard, creating one for legacy files that do not
+    ** have them. This has to be done in file order.
+    */
+    
+    public static NID registerID(String nidStr, String name, FabricFactory.FactoryWhiteboard board) throws IOException {
       NID nid;
       NID.WithName nwn;
       if (nidStr != null) {
@@ -2824,7 +3333,16 @@ public class BioFabricNetwork implements Network {
       	board.legacyMap.put(name, nwn);
       }
       board.wnMap.put(nid, nwn);
- 
+      return (nid);
+    }
+    
+    /***************************************************************************
+    **
+    ** Build the node once the ID is known. Touches nothing shared, so the fast 
+    ** reader calls this on several threads at once.
+    */
+    
+    public static NodeInfo buildFromXML(String elemName, Attributes attrs, NID nid, String name) throws IOException {
       String row = AttributeExtractor.extractAttribute(elemName, attrs, "node", "row", true);
       String minCol = AttributeExtractor.extractAttribute(elemName, attrs, "node", "minCol", true);
       String maxCol = AttributeExtractor.extractAttribute(elemName, attrs, "node", "maxCol", true);
@@ -2878,113 +3396,201 @@ public class BioFabricNetwork implements Network {
   
   /***************************************************************************
   ** 
-  ** Build extents, used for node shading, node annotations, link annotations
+  ** Build extents, used for node shading, node annotations, link annotations.
+  ** Built once per network, for both the shadowed and unshadowed views, and
+  ** only read after that. A shadow toggle hands them on to the new network.
   */
 
   public static class Extents {
-  	public HashMap<Boolean, HashMap<Integer, MinMax>> allLinkExtents;
-  	public HashMap<Boolean, HashMap<Integer, MinMax>> allNodeExtents;
-  	public HashMap<Boolean, MinMax> allLinkFullRange;
-  	public HashMap<Boolean, MinMax> allNodeFullRange;
-  	public HashMap<Boolean, Integer> singletonNodeStart;
+    private ViewExtents withShadows_;
+    private ViewExtents noShadows_;
   		
   	public Extents() { 
-  		allLinkExtents = new HashMap<Boolean, HashMap<Integer, MinMax>>();
-  	  allNodeExtents = new HashMap<Boolean, HashMap<Integer, MinMax>>();
-  	  allLinkFullRange = new HashMap<Boolean, MinMax>();
-  	  allNodeFullRange = new HashMap<Boolean, MinMax>();
-  	  singletonNodeStart = new HashMap<Boolean, Integer>();
-  	  boolean[] builds = new boolean[] {true, false};
-  	  for (boolean build : builds) {
-    	  MinMax linkFullRange = new MinMax();
-    	  HashMap<Integer, MinMax> linkExtents = new HashMap<Integer, MinMax>();
-    	  allLinkExtents.put(Boolean.valueOf(build), linkExtents);
-    	  allLinkFullRange.put(Boolean.valueOf(build), linkFullRange);
-    	  MinMax nodeFullRange = new MinMax();
-    	  HashMap<Integer, MinMax> nodeExtents = new HashMap<Integer, MinMax>();
-    	  allNodeExtents.put(Boolean.valueOf(build), nodeExtents);
-    	  allNodeFullRange.put(Boolean.valueOf(build), nodeFullRange); 
-  	  }
+  	  withShadows_ = new ViewExtents();
+  	  noShadows_ = new ViewExtents();
   	}
   	
   	public Extents(BioFabricNetwork bfn, BTProgressMonitor monitor) throws AsynchExitRequestException { 
-  		this();
-    	boolean[] builds = new boolean[] {true, false};
+   
+	    List<BioFabricNetwork.NodeInfo> targets = bfn.getNodeDefList();
+	    int numNodes = targets.size();
+	    MinMax nodeFullRange = new MinMax().init();
+	    for (int i = 0; i < numNodes; i++) {
+	      nodeFullRange.update(targets.get(i).nodeRow);
+	    }
+	    
+	    //
+	    // Singleton nodes are the ones that are not the end of any link (shadow links
+	    // included). We want to know the top of all the singleton nodes so we can
+	    // not draw link groups down into that region. Same answer for both views:
+	    //
+	    
+	    boolean[] rowHasLink = new boolean[(numNodes == 0) ? 0 : nodeFullRange.max + 1 - nodeFullRange.min];
+	    
+    	withShadows_ = new ViewExtents(bfn, true, targets, nodeFullRange, rowHasLink, monitor);
+    	noShadows_ = new ViewExtents(bfn, false, targets, nodeFullRange, rowHasLink, monitor);
     	
-    	HashMap<NID, Integer> singletons = new HashMap<NID, Integer>();
- 
-      for (boolean build : builds) {
-      	Boolean boolKey = Boolean.valueOf(build);
-      	MinMax nodeFullRange = allNodeFullRange.get(boolKey).init();
-    	  HashMap<Integer, MinMax> nodeExtents = allNodeExtents.get(boolKey);
-  
-	    	List<BioFabricNetwork.NodeInfo> targets = bfn.getNodeDefList();
-	      int numNodes = targets.size();
-	      String tag = (build) ? "WithShadows" : "NoShadows";
-	          
-	      LoopReporter lr = new LoopReporter(targets.size(), 20, monitor, 0.0, 1.0, "progress.buildNodeExtents" + tag);
-		    for (int i = 0; i < numNodes; i++) {
-		      BioFabricNetwork.NodeInfo node = targets.get(i);
-		      int num = node.nodeRow;
-		      Integer numObj = Integer.valueOf(num);
-		      lr.report();
-		      MinMax cols = node.getColRange(build);
-		      nodeExtents.put(numObj, cols);
-		      nodeFullRange.update(num);
-		      if (build) { // only need to do this once....
-		        singletons.put(node.getNodeID(), numObj);
-		      }
-		    }
-		    lr.finish();
-    	}
+    	Integer singletonNodeStart = null;
+	    for (int i = 0; i < rowHasLink.length; i++) {
+	      if (!rowHasLink[i] && (bfn.getNodeIDForRow(Integer.valueOf(i + nodeFullRange.min)) != null)) {
+	        singletonNodeStart = Integer.valueOf(i + nodeFullRange.min);
+	        break;
+	      }
+	    }
+	    withShadows_.singletonNodeStart_ = singletonNodeStart;
+	    noShadows_.singletonNodeStart_ = singletonNodeStart;
+	  }
+  	
+  	public ViewExtents getView(boolean showShadows) {
+  	  return ((showShadows) ? withShadows_ : noShadows_);
+  	}
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Extents for one view. Columns map to the top and bottom rows of the link 
+  ** in the column, and rows map to the min and max column of the node in the row.
+  ** Columns with no link (subnetworks can have gaps) answer Integer.MAX_VALUE 
+  ** for the top and Integer.MIN_VALUE for the bottom, just like an empty MinMax.
+  */
+
+  public static class ViewExtents {
+    private int colOffset_;
+    private int[] colTopRow_;
+    private int[] colBottomRow_;
+    private int rowOffset_;
+    private int[] rowMinCol_;
+    private int[] rowMaxCol_;
+    private MinMax linkFullRange_;
+    private MinMax nodeFullRange_;
+    private Integer singletonNodeStart_;
+    
+    ViewExtents() {
+      colTopRow_ = new int[0];
+      colBottomRow_ = new int[0];
+      rowMinCol_ = new int[0];
+      rowMaxCol_ = new int[0];
+      linkFullRange_ = new MinMax().init();
+      nodeFullRange_ = new MinMax().init();
+    }
+     
+    ViewExtents(BioFabricNetwork bfn, boolean forShadow, List<BioFabricNetwork.NodeInfo> targets, 
+                MinMax nodeFullRange, boolean[] rowHasLink, 
+                BTProgressMonitor monitor) throws AsynchExitRequestException {
+      String tag = (forShadow) ? "WithShadows" : "NoShadows";
       
-      for (boolean build : builds) {
-    	  MinMax linkFullRange = allLinkFullRange.get(Boolean.valueOf(build)).init();
-    	  HashMap<Integer, MinMax> linkExtents = allLinkExtents.get(Boolean.valueOf(build));
-    	
-		    List<BioFabricNetwork.LinkInfo> links = bfn.getLinkDefList(build);
-		    int numLinks = links.size();
-		    String tag = (build) ? "WithShadows" : "NoShadows";
-	    	LoopReporter lr0 = new LoopReporter(links.size(), 20, monitor, 0.0, 1.0, "progress.buildLinkExtents" + tag);
-    
-		    for (int i = 0; i < numLinks; i++) {
-		      BioFabricNetwork.LinkInfo link = links.get(i);
-		      lr0.report();    
-		      int num = link.getUseColumn(build);
-		      int sRow = link.topRow();
-		      int eRow = link.bottomRow();
-		      linkExtents.put(Integer.valueOf(num), new MinMax(sRow, eRow));
-		      linkFullRange.update(num);
-		      if (build) {
-		        singletons.remove(link.getSource().getNID().getNID());
-		        singletons.remove(link.getTarget().getNID().getNID());
-		      }
-		    }
-		    lr0.finish();
-    	}
-    
-      for (boolean build : builds) {
-      	Boolean boolKey = Boolean.valueOf(build);  	
-      	String tag = (build) ? "WithShadows" : "NoShadows";
-        LoopReporter lr2 = new LoopReporter(singletons.size(), 20, monitor, 0.0, 1.0, "progress.buildSingletonExtents" + tag);
-        // Singleton node! We want to know the top of all the singleton nodes so we can
-		    // not draw link groups down into that region
-        for (NID singNode : singletons.keySet()) {
-		      Integer existing = singletonNodeStart.get(boolKey);
-		      lr2.report();
-		      Integer singMin = null;
-		      Integer singNum = singletons.get(singNode);
-		      if (existing == null) {
-		      	singMin = singNum;
-		      } else if (existing.intValue() > singNum.intValue()) {
-		      	singMin = singNum;
-		      }
-		      if (singMin != null) {
-		      	singletonNodeStart.put(boolKey, singMin);
-		      }	
-		    }
-		    lr2.finish();
+      int numNodes = targets.size();
+      nodeFullRange_ = nodeFullRange.clone();
+      rowOffset_ = nodeFullRange.min;
+      rowMinCol_ = new int[rowHasLink.length];
+      rowMaxCol_ = new int[rowHasLink.length];
+      Arrays.fill(rowMinCol_, Integer.MAX_VALUE);
+      Arrays.fill(rowMaxCol_, Integer.MIN_VALUE);
+      
+      LoopReporter lr = new LoopReporter(numNodes, 20, monitor, 0.0, 1.0, "progress.buildNodeExtents" + tag);
+      for (int i = 0; i < numNodes; i++) {
+        BioFabricNetwork.NodeInfo node = targets.get(i);
+        lr.report();
+        MinMax cols = node.getColRange(forShadow);
+        rowMinCol_[node.nodeRow - rowOffset_] = cols.min;
+        rowMaxCol_[node.nodeRow - rowOffset_] = cols.max;
       }
-	  }
+      lr.finish();
+      
+      List<BioFabricNetwork.LinkInfo> links = bfn.getLinkDefList(forShadow);
+      int numLinks = links.size();
+      linkFullRange_ = new MinMax().init();
+      for (int i = 0; i < numLinks; i++) {
+        linkFullRange_.update(links.get(i).getUseColumn(forShadow));
+      }
+      colOffset_ = linkFullRange_.min;
+      colTopRow_ = new int[(numLinks == 0) ? 0 : linkFullRange_.max + 1 - linkFullRange_.min];
+      colBottomRow_ = new int[colTopRow_.length];
+      Arrays.fill(colTopRow_, Integer.MAX_VALUE);
+      Arrays.fill(colBottomRow_, Integer.MIN_VALUE);
+      
+      LoopReporter lr0 = new LoopReporter(numLinks, 20, monitor, 0.0, 1.0, "progress.buildLinkExtents" + tag);
+      for (int i = 0; i < numLinks; i++) {
+        BioFabricNetwork.LinkInfo link = links.get(i);
+        lr0.report();
+        int index = link.getUseColumn(forShadow) - colOffset_;
+        int sRow = link.topRow();
+        int eRow = link.bottomRow();
+        colTopRow_[index] = sRow;
+        colBottomRow_[index] = eRow;
+        if (forShadow) {
+          rowHasLink[sRow - rowOffset_] = true;
+          rowHasLink[eRow - rowOffset_] = true;
+        }
+      }
+      lr0.finish();
+    }
+    
+    /***************************************************************************
+    ** 
+    ** Range of columns holding links. Returns a copy.
+    */
+    
+    public MinMax getLinkFullRange() {
+      return (linkFullRange_.clone());
+    }
+    
+    /***************************************************************************
+    ** 
+    ** Range of rows holding nodes. Returns a copy.
+    */
+    
+    public MinMax getNodeFullRange() {
+      return (nodeFullRange_.clone());
+    }
+  
+    /***************************************************************************
+    ** 
+    ** Top row of the singleton nodes; null if there are none
+    */
+    
+    public Integer getSingletonNodeStart() {
+      return (singletonNodeStart_);
+    }
+ 
+    /***************************************************************************
+    ** 
+    ** Top row of the link in the column
+    */
+    
+    public int getColumnTopRow(int col) {
+      int index = col - colOffset_;
+      return (((index < 0) || (index >= colTopRow_.length)) ? Integer.MAX_VALUE : colTopRow_[index]);
+    }
+    
+    /***************************************************************************
+    ** 
+    ** Bottom row of the link in the column
+    */
+    
+    public int getColumnBottomRow(int col) {
+      int index = col - colOffset_;
+      return (((index < 0) || (index >= colBottomRow_.length)) ? Integer.MIN_VALUE : colBottomRow_[index]);
+    }
+    
+    /***************************************************************************
+    ** 
+    ** Leftmost column of the node in the row
+    */
+    
+    public int getRowMinColumn(int row) {
+      int index = row - rowOffset_;
+      return (((index < 0) || (index >= rowMinCol_.length)) ? Integer.MAX_VALUE : rowMinCol_[index]);
+    }
+    
+    /***************************************************************************
+    ** 
+    ** Rightmost column of the node in the row
+    */
+    
+    public int getRowMaxColumn(int row) {
+      int index = row - rowOffset_;
+      return (((index < 0) || (index >= rowMaxCol_.length)) ? Integer.MIN_VALUE : rowMaxCol_[index]);
+    }
   }
 }
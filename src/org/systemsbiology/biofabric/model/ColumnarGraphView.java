@@ -0,0 +1,278 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.model;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.api.model.NetworkGraphView;
+
+/****************************************************************************
+**
+** Array-backed graph view of a network. Built once from the link and node
+** definitions and only read after that.
+*/
+
+final class ColumnarGraphView implements NetworkGraphView {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  //
+  // Indexed by row:
+  //
+  
+  private final NetNode[] nodes_;
+  private final String[] names_;
+  
+  //
+  // Indexed by link:
+  //
+  
+  private final int[] srcRows_;
+  private final int[] trgRows_;
+  private final int[] relOrds_;
+  private final int[] shadowCols_;
+  private final int[] plainCols_;
+  private final BitSet shadow_;
+  private final BitSet directed_;
+  private final int numPlain_;
+  
+  //
+  // Indexed by column:
+  //
+  
+  private final int[] shadowColToLink_;
+  private final int[] plainColToLink_;
+  
+  private final String[] relations_;
+  
+  //
+  // Adjacency:
+  //
+  
+  private final int[] adjStart_;
+  private final int[] adjRows_;
+  private final int[] adjLinks_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE-VISIBLE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Build from the link defs in shadow column order, and the node defs. Relation
+  ** ordinals are the ones in the network's registry.
+  */
+  
+  ColumnarGraphView(int numRows, Collection<BioFabricNetwork.LinkInfo> linkDefs, 
+                    Collection<BioFabricNetwork.NodeInfo> nodeDefs, RelationRegistry relations) {
+    
+    nodes_ = new NetNode[numRows];
+    names_ = new String[numRows];
+    for (BioFabricNetwork.NodeInfo ni : nodeDefs) {
+      nodes_[ni.nodeRow] = ni.getNodeIDWithName();
+      names_[ni.nodeRow] = ni.getNodeName();
+    }
+    
+    int numLinks = linkDefs.size();
+    srcRows_ = new int[numLinks];
+    trgRows_ = new int[numLinks];
+    relOrds_ = new int[numLinks];
+    shadowCols_ = new int[numLinks];
+    plainCols_ = new int[numLinks];
+    shadow_ = new BitSet(numLinks);
+    directed_ = new BitSet(numLinks);
+    
+    int maxShadowCol = -1;
+    int maxPlainCol = -1;
+    int numPlain = 0;
+    Iterator<BioFabricNetwork.LinkInfo> ldit = linkDefs.iterator();
+    for (int i = 0; i < numLinks; i++) {
+      BioFabricNetwork.LinkInfo linf = ldit.next();
+      FabricLink link = linf.getLink();
+      srcRows_[i] = linf.getStartRow();
+      trgRows_[i] = linf.getEndRow();
+      // A link can have been handed to a newer network since:
+      relOrds_[i] = relations.adopt(link.getRelationEntry()).getOrdinal(relations);
+      shadowCols_[i] = linf.getUseColumn(true);
+      maxShadowCol = Math.max(maxShadowCol, shadowCols_[i]);
+      if (link.isShadow()) {
+        shadow_.set(i);
+        plainCols_[i] = -1;
+      } else {
+        plainCols_[i] = linf.getUseColumn(false);
+        maxPlainCol = Math.max(maxPlainCol, plainCols_[i]);
+        numPlain++;
+      }
+      if (link.isDirected()) {
+        directed_.set(i);
+      }
+    }
+    numPlain_ = numPlain;
+    relations_ = new String[relations.size()];
+    for (int i = 0; i < relations_.length; i++) {
+      relations_[i] = relations.getRelation(i);
+    }
+    
+    shadowColToLink_ = new int[maxShadowCol + 1];
+    Arrays.fill(shadowColToLink_, -1);
+    plainColToLink_ = new int[maxPlainCol + 1];
+    Arrays.fill(plainColToLink_, -1);
+    for (int i = 0; i < numLinks; i++) {
+      shadowColToLink_[shadowCols_[i]] = i;
+      if (plainCols_[i] != -1) {
+        plainColToLink_[plainCols_[i]] = i;
+      }
+    }
+    
+    //
+    // Count link ends per row, then fill each row's slice in link order:
+    //
+    
+    adjStart_ = new int[numRows + 1];
+    for (int i = 0; i < numLinks; i++) {
+      if (!shadow_.get(i)) {
+        adjStart_[srcRows_[i] + 1]++;
+        if (trgRows_[i] != srcRows_[i]) {
+          adjStart_[trgRows_[i] + 1]++;
+        }
+      }
+    }
+    for (int i = 0; i < numRows; i++) {
+      adjStart_[i + 1] += adjStart_[i];
+    }
+    adjRows_ = new int[adjStart_[numRows]];
+    adjLinks_ = new int[adjRows_.length];
+    int[] fill = new int[numRows];
+    System.arraycopy(adjStart_, 0, fill, 0, numRows);
+    for (int i = 0; i < numLinks; i++) {
+      if (!shadow_.get(i)) {
+        int src = srcRows_[i];
+        int trg = trgRows_[i];
+        int slot = fill[src]++;
+        adjRows_[slot] = trg;
+        adjLinks_[slot] = i;
+        if (trg != src) {
+          slot = fill[trg]++;
+          adjRows_[slot] = src;
+          adjLinks_[slot] = i;
+        }
+      }
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  public int getNodeCount() {
+    return (nodes_.length);
+  }
+  
+  public int getLinkCount(boolean withShadows) {
+    return ((withShadows) ? srcRows_.length : numPlain_);
+  }
+  
+  public NetNode getNode(int row) {
+    return (nodes_[row]);
+  }
+  
+  public String getNodeName(int row) {
+    return (names_[row]);
+  }
+  
+  public int getSourceRow(int link) {
+    return (srcRows_[link]);
+  }
+  
+  public int getTargetRow(int link) {
+    return (trgRows_[link]);
+  }
+  
+  public boolean isShadow(int link) {
+    return (shadow_.get(link));
+  }
+  
+  public boolean isDirected(int link) {
+    return (directed_.get(link));
+  }
+  
+  public int getRelationOrdinal(int link) {
+    return (relOrds_[link]);
+  }
+  
+  public int getRelationCount() {
+    return (relations_.length);
+  }
+  
+  public String getRelation(int ordinal) {
+    return (relations_[ordinal]);
+  }
+  
+  public int getColumn(int link, boolean withShadows) {
+    return ((withShadows) ? shadowCols_[link] : plainCols_[link]);
+  }
+  
+  public int getLinkForColumn(int column, boolean withShadows) {
+    int[] colToLink = (withShadows) ? shadowColToLink_ : plainColToLink_;
+    return (((column >= 0) && (column < colToLink.length)) ? colToLink[column] : -1);
+  }
+  
+  public int getDegree(int row) {
+    return (adjStart_[row + 1] - adjStart_[row]);
+  }
+  
+  public IntBuffer getSourceRows() {
+    return (IntBuffer.wrap(srcRows_).asReadOnlyBuffer());
+  }
+  
+  public IntBuffer getTargetRows() {
+    return (IntBuffer.wrap(trgRows_).asReadOnlyBuffer());
+  }
+  
+  public IntBuffer getRelationOrdinals() {
+    return (IntBuffer.wrap(relOrds_).asReadOnlyBuffer());
+  }
+  
+  public IntBuffer getAdjacencyOffsets() {
+    return (IntBuffer.wrap(adjStart_).asReadOnlyBuffer());
+  }
+  
+  public IntBuffer getAdjacentRows() {
+    return (IntBuffer.wrap(adjRows_).asReadOnlyBuffer());
+  }
+  
+  public IntBuffer getAdjacentLinks() {
+    return (IntBuffer.wrap(adjLinks_).asReadOnlyBuffer());
+  }
+}
@@ -36,11 +36,22 @@ import org.systemsbiology.biofabric.util.DataUtil;
 public class FabricLink implements NetLink, Cloneable, AttributeKey {
   private NetNode srcID_;
   private NetNode trgID_;
-  private String relation_;
+  private RelationRegistry.Relation relation_;
   private Boolean directed_;
   private boolean isShadow_;
 
   public FabricLink(NetNode srcID, NetNode trgID, String relation, boolean isShadow, Boolean directed) {
+    if ((srcID == null) || (trgID == null) || (relation == null)) {
+      throw new IllegalArgumentException();
+    }
+    srcID_ = srcID;
+    trgID_ = trgID;
+    relation_ = new RelationRegistry.Relation(relation);
+    isShadow_ = isShadow;
+    directed_ = directed;
+  }
+  
+  public FabricLink(NetNode srcID, NetNode trgID, RelationRegistry.Relation relation, boolean isShadow, Boolean directed) {
     if ((srcID == null) || (trgID == null) || (relation == null)) {
       throw new IllegalArgumentException();
     }
@@ -59,7 +70,10 @@ public class FabricLink implements NetLink, Cloneable, AttributeKey {
     if (isFeedback()) {
       throw new IllegalStateException();
     }
-    return (new FabricLink(trgID_, srcID_, relation_, isShadow_, directed_)); 
+    FabricLink retval = clone();
+    retval.srcID_ = trgID_;
+    retval.trgID_ = srcID_;
+    return (retval); 
   }
   
   public boolean directionFrozen() {
@@ -101,11 +115,26 @@ public class FabricLink implements NetLink, Cloneable, AttributeKey {
   } 
   
   public String getRelation() {
+    return (relation_.relation);
+  }
+  
+  public RelationRegistry.Relation getRelationEntry() {
     return (relation_);
   }
   
+  /***************************************************************************
+  **
+  ** Use the registry's entry for our relation, so we share it with the other
+  ** links in the same network
+  */
+  
+  public void shareRelation(RelationRegistry registry) {
+    relation_ = registry.adopt(relation_);
+    return;
+  }
+  
   public AugRelation getAugRelation() {
-    return (new AugRelation(relation_, isShadow_));
+    return (relation_.getAugRelation(isShadow_));
   } 
   
   public boolean isDirected() {
@@ -121,13 +150,13 @@ public class FabricLink implements NetLink, Cloneable, AttributeKey {
   
   @Override
   public int hashCode() {
-    return (srcID_.hashCode() + trgID_.hashCode() + DataUtil.normKey(relation_).hashCode() + ((isShadow_) ? 17 : 31) + 
+    return (srcID_.hashCode() + trgID_.hashCode() + relation_.normHash + ((isShadow_) ? 17 : 31) + 
             ((directed_ == null) ? 0 : directed_.hashCode()));
   }
 
   @Override
   public String toString() {
-    return ("srcID = " + srcID_ + " trgID = " + trgID_ + "rel = " + relation_ + " directed_ = " + directed_ + " isShadow_ = " + isShadow_);
+    return ("srcID = " + srcID_ + " trgID = " + trgID_ + "rel = " + getRelation() + " directed_ = " + directed_ + " isShadow_ = " + isShadow_);
   }
  
   public String toDisplayString() {
@@ -138,7 +167,7 @@ public class FabricLink implements NetLink, Cloneable, AttributeKey {
       buf.append("shdw");
     }
     buf.append("(");
-    buf.append(relation_);
+    buf.append(getRelation());
     buf.append(")");  
     buf.append('\u2192');  // For bidirectional '\u2194'
     buf.append(trgID_.getName());
@@ -154,7 +183,7 @@ public class FabricLink implements NetLink, Cloneable, AttributeKey {
       buf.append(" ");
     }
     buf.append("(");
-    buf.append(relation_);
+    buf.append(getRelation());
     buf.append(") ");
     buf.append(nodeInfo.get(trgID_).getNodeName());
     return (buf.toString());
@@ -184,7 +213,7 @@ public class FabricLink implements NetLink, Cloneable, AttributeKey {
       return (false);
     }
     
-    if (!DataUtil.normKey(this.relation_).equals(DataUtil.normKey(otherLink.relation_))) {
+    if (!sameNormRelation(otherLink)) {
       return (false);
     }
     
@@ -202,7 +231,11 @@ public class FabricLink implements NetLink, Cloneable, AttributeKey {
     if (this.isDirected() || other.isDirected()) {
       return (false);
     }
-    if (!DataUtil.normKey(this.relation_).equals(DataUtil.normKey(other.getRelation()))) {
+    if (other instanceof FabricLink) {
+      if (!sameNormRelation((FabricLink)other)) {
+        return (false);
+      }
+    } else if (!DataUtil.normKey(getRelation()).equals(DataUtil.normKey(other.getRelation()))) {
       return (false);
     }
     if (this.isShadow_ != other.isShadow()) {
@@ -224,7 +257,7 @@ public class FabricLink implements NetLink, Cloneable, AttributeKey {
     if (!this.trgID_.equals(other.trgID_)) {
       return (false);
     }   
-    if (!DataUtil.normKey(this.relation_).equals(DataUtil.normKey(other.relation_))) {
+    if (!sameNormRelation(other)) {
       return (false);
     }
     
@@ -240,4 +273,13 @@ public class FabricLink implements NetLink, Cloneable, AttributeKey {
     }
     return (true);   
   }
+  
+  /***************************************************************************
+  **
+  ** Relations match once normalized
+  */
+  
+  private boolean sameNormRelation(FabricLink other) {
+    return (this.relation_.sameNorm(other.relation_));
+  }
 }
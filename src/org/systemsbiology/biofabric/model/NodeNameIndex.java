@@ -0,0 +1,443 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.model;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.util.DataUtil;
+
+/****************************************************************************
+**
+** Search index over normalized node names. Built once per network and only
+** read after that, so it can be used from any thread. Results are node rows,
+** in ascending order.
+**
+** Exact and prefix searches use the rows sorted by normalized name. Substring
+** searches use trigram posting lists: the rarest trigram of the query gives the
+** candidates, which are then checked directly. Queries are expected to be
+** normalized the same way as names (see DataUtil.normKey).
+*/
+
+public class NodeNameIndex {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+  
+  public enum Match {EXACT, PREFIX, SUBSTRING};
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+  
+  private static final int GRAM_ = 3;
+  
+  private static final int[] NO_ROWS_ = new int[0];
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  //
+  // Indexed by row. Rows without a node have null entries:
+  //
+  
+  private String[] normNames_;
+  private NetNode[] nodes_;
+  
+  //
+  // Rows ordered by normalized name, ties by row:
+  //
+  
+  private int[] sorted_;
+  
+  //
+  // Trigram to ID, and the rows for each ID, packed end to end:
+  //
+  
+  private HashMap<Long, Integer> gramIDs_;
+  private int[] gramStart_;
+  private int[] gramRows_;
+  
+  //
+  // Built when first needed:
+  //
+  
+  private Map<String, Set<NetNode>> nameToNodes_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE-VISIBLE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  NodeNameIndex(Map<NetNode, BioFabricNetwork.NodeInfo> nodeDefs) {
+    int numRows = 0;
+    Iterator<BioFabricNetwork.NodeInfo> ndit = nodeDefs.values().iterator();
+    while (ndit.hasNext()) {
+      numRows = Math.max(numRows, ndit.next().nodeRow + 1);
+    }
+    normNames_ = new String[numRows];
+    nodes_ = new NetNode[numRows];
+    Iterator<NetNode> nkit = nodeDefs.keySet().iterator();
+    while (nkit.hasNext()) {
+      NetNode node = nkit.next();
+      BioFabricNetwork.NodeInfo ni = nodeDefs.get(node);
+      normNames_[ni.nodeRow] = DataUtil.normKey(ni.getNodeName());
+      nodes_[ni.nodeRow] = node;
+    }
+    buildSorted(nodeDefs.size());
+    buildGrams();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Rows matching the normalized query
+  */
+  
+  public int[] find(Match match, String normQuery) {
+    switch (match) {
+      case EXACT:
+        return (exactRows(normQuery));
+      case PREFIX:
+        return (prefixRows(normQuery));
+      case SUBSTRING:
+        return (substringRows(normQuery));
+      default:
+        throw new IllegalArgumentException();
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Rows with exactly this normalized name
+  */
+  
+  public int[] exactRows(String normQuery) {
+    int start = lowerBound(normQuery);
+    int end = start;
+    while ((end < sorted_.length) && normNames_[sorted_[end]].equals(normQuery)) {
+      end++;
+    }
+    int[] retval = new int[end - start];
+    System.arraycopy(sorted_, start, retval, 0, retval.length);
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Rows with a normalized name starting with the query
+  */
+  
+  public int[] prefixRows(String normQuery) {
+    int start = lowerBound(normQuery);
+    int end = start;
+    while ((end < sorted_.length) && normNames_[sorted_[end]].startsWith(normQuery)) {
+      end++;
+    }
+    int[] retval = new int[end - start];
+    System.arraycopy(sorted_, start, retval, 0, retval.length);
+    Arrays.sort(retval);
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Rows with a normalized name containing the query
+  */
+  
+  public int[] substringRows(String normQuery) {
+    if (normQuery.length() < GRAM_) {
+      return (scanRows(normQuery));
+    }
+    
+    //
+    // Candidates come from the trigram with the fewest rows. If any
+    // trigram is missing, nobody matches:
+    //
+    
+    int bestID = -1;
+    int bestCount = Integer.MAX_VALUE;
+    int numGrams = normQuery.length() - GRAM_ + 1;
+    for (int i = 0; i < numGrams; i++) {
+      Integer gramID = gramIDs_.get(Long.valueOf(gramKey(normQuery, i)));
+      if (gramID == null) {
+        return (NO_ROWS_);
+      }
+      int id = gramID.intValue();
+      int count = gramStart_[id + 1] - gramStart_[id];
+      if (count < bestCount) {
+        bestCount = count;
+        bestID = id;
+      }
+    }
+    
+    int[] hits = new int[bestCount];
+    int numHits = 0;
+    int end = gramStart_[bestID + 1];
+    for (int i = gramStart_[bestID]; i < end; i++) {
+      int row = gramRows_[i];
+      if (normNames_[row].indexOf(normQuery) != -1) {
+        hits[numHits++] = row;
+      }
+    }
+    return (trim(hits, numHits));
+  }
+  
+  /***************************************************************************
+  **
+  ** Nodes for the given rows
+  */
+  
+  public Set<NetNode> nodesForRows(int[] rows) {
+    HashSet<NetNode> retval = new HashSet<NetNode>();
+    for (int i = 0; i < rows.length; i++) {
+      retval.add(nodes_[rows[i]]);
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Map from normalized name to nodes. Built the first time it is asked for
+  ** and shared after that, so it cannot be changed.
+  */
+  
+  public synchronized Map<String, Set<NetNode>> normNameToNodes() {
+    if (nameToNodes_ == null) {
+      HashMap<String, Set<NetNode>> nameToNodes = new HashMap<String, Set<NetNode>>();
+      HashSet<NetNode> forName = null;
+      String lastName = null;
+      for (int i = 0; i < sorted_.length; i++) {
+        int row = sorted_[i];
+        if (!normNames_[row].equals(lastName)) {
+          lastName = normNames_[row];
+          forName = new HashSet<NetNode>();
+          nameToNodes.put(lastName, Collections.unmodifiableSet(forName));
+        }
+        forName.add(nodes_[row]);
+      }
+      nameToNodes_ = Collections.unmodifiableMap(nameToNodes);
+    }
+    return (nameToNodes_);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Sort the rows by name
+  */
+  
+  private void buildSorted(int numNodes) {
+    Integer[] order = new Integer[numNodes];
+    int count = 0;
+    for (int i = 0; i < normNames_.length; i++) {
+      if (normNames_[i] != null) {
+        order[count++] = Integer.valueOf(i);
+      }
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer row1, Integer row2) {
+        int diff = normNames_[row1.intValue()].compareTo(normNames_[row2.intValue()]);
+        return ((diff != 0) ? diff : (row1.intValue() - row2.intValue()));
+      }
+    });
+    sorted_ = new int[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      sorted_[i] = order[i].intValue();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Build the trigram posting lists. First pass assigns IDs and counts, and
+  ** remembers the IDs seen for each row; second pass fills. Rows go in ascending
+  ** order, each row once per trigram.
+  */
+  
+  private void buildGrams() {
+    gramIDs_ = new HashMap<Long, Integer>();
+    int[] counts = new int[1024];
+    int[] lastRow = new int[1024];
+    int[] occur = new int[1024];
+    int numOccur = 0;
+    int[] occurPerRow = new int[normNames_.length];
+    
+    for (int row = 0; row < normNames_.length; row++) {
+      String name = normNames_[row];
+      if (name == null) {
+        continue;
+      }
+      int numGrams = name.length() - GRAM_ + 1;
+      for (int i = 0; i < numGrams; i++) {
+        Long key = Long.valueOf(gramKey(name, i));
+        Integer gramID = gramIDs_.get(key);
+        int id;
+        if (gramID == null) {
+          id = gramIDs_.size();
+          gramIDs_.put(key, Integer.valueOf(id));
+          if (id == counts.length) {
+            counts = grow(counts);
+            lastRow = grow(lastRow);
+          }
+          lastRow[id] = -1;
+        } else {
+          id = gramID.intValue();
+        }
+        if (lastRow[id] == row) {
+          continue;
+        }
+        lastRow[id] = row;
+        counts[id]++;
+        if (numOccur == occur.length) {
+          occur = grow(occur);
+        }
+        occur[numOccur++] = id;
+        occurPerRow[row]++;
+      }
+    }
+    
+    int numIDs = gramIDs_.size();
+    gramStart_ = new int[numIDs + 1];
+    for (int i = 0; i < numIDs; i++) {
+      gramStart_[i + 1] = gramStart_[i] + counts[i];
+    }
+    gramRows_ = new int[numOccur];
+    int[] fill = counts;
+    System.arraycopy(gramStart_, 0, fill, 0, numIDs);
+    
+    int next = 0;
+    for (int row = 0; row < normNames_.length; row++) {
+      for (int i = 0; i < occurPerRow[row]; i++) {
+        int id = occur[next++];
+        gramRows_[fill[id]++] = row;
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** First sorted position with a name not less than the query
+  */
+  
+  private int lowerBound(String normQuery) {
+    int lo = 0;
+    int hi = sorted_.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (normNames_[sorted_[mid]].compareTo(normQuery) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return (lo);
+  }
+  
+  /***************************************************************************
+  **
+  ** Check every name. Only used for queries too short to have a trigram.
+  */
+  
+  private int[] scanRows(String normQuery) {
+    int[] hits = new int[sorted_.length];
+    int numHits = 0;
+    for (int row = 0; row < normNames_.length; row++) {
+      String name = normNames_[row];
+      if ((name != null) && (name.indexOf(normQuery) != -1)) {
+        hits[numHits++] = row;
+      }
+    }
+    return (trim(hits, numHits));
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CLASS METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Three chars packed into a long
+  */
+  
+  private static long gramKey(String str, int start) {
+    return ((((long)str.charAt(start)) << 32) | (((long)str.charAt(start + 1)) << 16) | ((long)str.charAt(start + 2)));
+  }
+  
+  /***************************************************************************
+  **
+  ** Double an array
+  */
+  
+  private static int[] grow(int[] arr) {
+    int[] retval = new int[arr.length * 2];
+    System.arraycopy(arr, 0, retval, 0, arr.length);
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Cut an array down to size
+  */
+  
+  private static int[] trim(int[] arr, int size) {
+    if (size == arr.length) {
+      return (arr);
+    }
+    int[] retval = new int[size];
+    System.arraycopy(arr, 0, retval, 0, size);
+    return (retval);
+  }
+}
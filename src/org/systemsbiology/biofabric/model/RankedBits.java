@@ -0,0 +1,106 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.model;
+
+import java.util.BitSet;
+
+/****************************************************************************
+**
+** A fixed set of non-negative ints that can report the rank of each member,
+** i.e. how many members are below it. Used to squeeze the rows and columns
+** of a network down to just the ones a submodel needs.
+*/
+
+final class RankedBits {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private BitSet bits_;
+  private long[] words_;
+  private int[] wordRank_;
+  private int size_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE-VISIBLE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. The bits are not copied, so don't change them afterwards.
+  */
+
+  RankedBits(BitSet bits) {
+    bits_ = bits;
+    int numWords = (bits.length() + 63) >>> 6;
+    words_ = new long[numWords];
+    for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+      words_[i >>> 6] |= (1L << (i & 63));
+    }
+    wordRank_ = new int[numWords + 1];
+    for (int i = 0; i < numWords; i++) {
+      wordRank_[i + 1] = wordRank_[i] + Long.bitCount(words_[i]);
+    }
+    size_ = wordRank_[numWords];
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE-VISIBLE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Number of members
+  */
+  
+  int size() {
+    return (size_);
+  }
+  
+  /***************************************************************************
+  **
+  ** Number of members below the value. For a member, this is its compressed index.
+  */
+  
+  int rank(int val) {
+    int word = val >>> 6;
+    if (word >= words_.length) {
+      return (size_);
+    }
+    return (wordRank_[word] + Long.bitCount(words_[word] & ((1L << (val & 63)) - 1L)));
+  }
+  
+  /***************************************************************************
+  **
+  ** Copy of the member bits
+  */
+  
+  BitSet getBits() {
+    return ((BitSet)bits_.clone());
+  }
+}
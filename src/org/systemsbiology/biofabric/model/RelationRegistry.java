@@ -0,0 +1,193 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.systemsbiology.biofabric.api.model.AugRelation;
+import org.systemsbiology.biofabric.util.DataUtil;
+
+/****************************************************************************
+**
+** Interns link relation strings. Each distinct relation gets one Relation,
+** which is what a FabricLink holds onto, with a small ordinal and two 
+** AugRelations (plain and shadow) that are handed out instead of building new
+** ones on every call. Relations that are equal once normalized (DataUtil.normKey)
+** share the same norm key string.
+**
+** A network owns the registry its links were interned into, so the entries go
+** away with the network. Loaders use their own registry so that the links they
+** make share entries until a network takes them over.
+*/
+
+public final class RelationRegistry {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private HashMap<String, Relation> byRelation_;
+  private HashMap<String, String> normKeys_;
+  private ArrayList<Relation> entries_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+  
+  public RelationRegistry() {
+    byRelation_ = new HashMap<String, Relation>();
+    normKeys_ = new HashMap<String, String>();
+    entries_ = new ArrayList<Relation>();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Get the entry for the relation, adding it if needed
+  */
+  
+  public synchronized Relation intern(String relation) {
+    Relation entry = byRelation_.get(relation);
+    if (entry == null) {
+      String normKey = DataUtil.normKey(relation);
+      String shared = normKeys_.get(normKey);
+      if (shared == null) {
+        normKeys_.put(normKey, normKey);
+        shared = normKey;
+      }
+      entry = new Relation(relation, shared, this, entries_.size());
+      entries_.add(entry);
+      byRelation_.put(relation, entry);
+    }
+    return (entry);
+  }
+  
+  /***************************************************************************
+  **
+  ** Get our entry for a relation that may have come from somewhere else
+  */
+  
+  public Relation adopt(Relation relation) {
+    if (relation.owner_ == this) {
+      return (relation);
+    }
+    return (intern(relation.relation));
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the relation string for the ordinal
+  */
+  
+  public synchronized String getRelation(int ordinal) {
+    return (entries_.get(ordinal).relation);
+  }
+  
+  /***************************************************************************
+  **
+  ** Number of relations; ordinals run from zero up to this
+  */
+  
+  public synchronized int size() {
+    return (entries_.size());
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Everything we know about one relation. Ones made outside a registry have
+  ** no ordinal, and are not shared, so they do not keep AugRelations around.
+  */
+  
+  public static final class Relation {
+    public final String relation;
+    public final String normKey;
+    public final int normHash;
+    private final AugRelation plain_;
+    private final AugRelation shadow_;
+    private final RelationRegistry owner_;
+    private final int ordinal_;
+    
+    Relation(String relation) {
+      this(relation, DataUtil.normKey(relation), null, -1);
+    }
+    
+    private Relation(String relation, String normKey, RelationRegistry owner, int ordinal) {
+      this.relation = relation;
+      this.normKey = normKey;
+      this.normHash = normKey.hashCode();
+      plain_ = (owner == null) ? null : new AugRelation(relation, false);
+      shadow_ = (owner == null) ? null : new AugRelation(relation, true);
+      owner_ = owner;
+      ordinal_ = ordinal;
+    }
+    
+    /***************************************************************************
+    **
+    ** The AugRelation for the relation. Shared if we belong to a registry.
+    */
+    
+    public AugRelation getAugRelation(boolean isShadow) {
+      if (owner_ == null) {
+        return (new AugRelation(relation, isShadow));
+      }
+      return ((isShadow) ? shadow_ : plain_);
+    }
+    
+    /***************************************************************************
+    **
+    ** Ordinal in the given registry, or -1 if this did not come from it
+    */
+    
+    public int getOrdinal(RelationRegistry registry) {
+      return ((owner_ == registry) ? ordinal_ : -1);
+    }
+    
+    /***************************************************************************
+    **
+    ** Answer if the relations match once normalized
+    */
+    
+    public boolean sameNorm(Relation other) {
+      return ((this == other) || ((normHash == other.normHash) && normKey.equals(other.normKey)));
+    }
+  }
+}
@@ -0,0 +1,85 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.plugin;
+
+import javax.swing.JFrame;
+
+import org.systemsbiology.biofabric.api.util.PluginResourceManager;
+import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
+import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
+
+/****************************************************************************
+**
+** Interface for tool commands that do their heavy lifting in the background.
+** The PlugInManager runs these on its worker threads, with a progress dialog 
+** that allows cancellation.
+*/
+
+public interface BioFabricToolPlugInBackgroundCmd extends BioFabricToolPlugInCmd {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Called on the UI thread before the run, e.g. to ask the user for input.
+  ** Return false if there is nothing to run.
+  */
+  
+  public boolean prepareBackgroundOperation(JFrame topFrame);
+  
+  /***************************************************************************
+  **
+  ** Do the work. Called on a worker thread, so no UI work here! Report 
+  ** progress to the monitor, and quit with an AsynchExitRequestException when
+  ** it says to stop.
+  */
+  
+  public Object runBackgroundOperation(BTProgressMonitor monitor) throws AsynchExitRequestException;
+  
+  /***************************************************************************
+  **
+  ** Called on the UI thread with the result once the run is done. Not called
+  ** if the run is cancelled or fails.
+  */
+  
+  public void finishBackgroundOperation(JFrame topFrame, Object result);
+  
+  /***************************************************************************
+  **
+  ** Called on the UI thread instead of finishBackgroundOperation() if the run 
+  ** is cancelled or fails, so any state set up for the run can be dropped.
+  */
+  
+  public void abandonBackgroundOperation(JFrame topFrame);
+  
+  /***************************************************************************
+  **
+  ** Resources for the progress dialog ("plugInCmd.waitTitle" and "plugInCmd.wait")
+  ** and progress messages. Core resources are used for anything not provided.
+  */
+  
+  public PluginResourceManager getResourceManager();
+  
+}
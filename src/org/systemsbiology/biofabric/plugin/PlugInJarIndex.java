@@ -0,0 +1,447 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/****************************************************************************
+**
+** What plugin jars provide: the service classes and the properties files for
+** the resource managers. Jars are opened in parallel. The service lists we find 
+** are kept in an index file in the user's home directory, together with the CRC 
+** of the entry each list came from, so at the next startup we only need the jar 
+** directory to know whether a stored list is still good. Properties files are 
+** always read from the jar; the index just records their CRCs. Entries for jars 
+** in other plugin directories are kept, so switching directories does not 
+** throw them away. Problems with the index file are ignored; we just go back 
+** to reading the jars.
+*/
+
+class PlugInJarIndex {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private static final int MAX_THREADS_ = 4;
+  
+  private static final String INDEX_FILE_ = ".biofabricPlugInIndex";
+  private static final String INDEX_VERSION_ = "2";
+  private static final String PROPS_SUFFIX_ = ".properties";
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private File indexFile_;
+  private String svcInterface_;
+  private HashMap<String, JarInfo> stored_;
+  private LinkedHashMap<String, JarInfo> current_;
+  private boolean changed_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE-VISIBLE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Constructor. Reads in the stored index, if there is a good one
+  */
+  
+  PlugInJarIndex(String svcInterface) {
+    svcInterface_ = svcInterface;
+    stored_ = new HashMap<String, JarInfo>();
+    current_ = new LinkedHashMap<String, JarInfo>();
+    changed_ = false;
+    String home = System.getProperty("user.home");
+    indexFile_ = (home == null) ? null : new File(home, INDEX_FILE_);
+    readIndex();
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE-VISIBLE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Get the info for the jars, in the given order
+  */
+  
+  List<JarInfo> scan(File[] jars) throws IOException {
+    JarInfo[] infos = new JarInfo[jars.length];
+    int numThreads = Math.min(MAX_THREADS_, Runtime.getRuntime().availableProcessors() - 1);
+    ExecutorService pool = ((numThreads < 1) || (jars.length < 2)) ? null : Executors.newFixedThreadPool(numThreads);
+    try {
+      if (pool == null) {
+        for (int i = 0; i < jars.length; i++) {
+          infos[i] = readJar(jars[i], svcInterface_, stored_.get(jars[i].getAbsolutePath()));
+        }
+      } else {
+        ArrayList<Future<JarInfo>> pending = new ArrayList<Future<JarInfo>>();
+        for (int i = 0; i < jars.length; i++) {
+          final File jar = jars[i];
+          final String svc = svcInterface_;
+          final JarInfo stored = stored_.get(jar.getAbsolutePath());
+          pending.add(pool.submit(new Callable<JarInfo>() {
+            public JarInfo call() throws IOException {
+              return (readJar(jar, svc, stored));
+            }
+          }));
+        }
+        for (int i = 0; i < jars.length; i++) {
+          infos[i] = waitFor(pending.get(i));
+        }
+      }
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+    
+    ArrayList<JarInfo> retval = new ArrayList<JarInfo>();
+    for (int i = 0; i < jars.length; i++) {
+      retval.add(infos[i]);
+      current_.put(infos[i].path, infos[i]);
+      JarInfo stored = stored_.get(infos[i].path);
+      changed_ |= ((stored == null) || !stored.sameAs(infos[i]));
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Write out the index if it has changed. What we scanned this time is merged 
+  ** into what was stored, dropping only jars that no longer exist. It is written 
+  ** to the side and then renamed into place, so another instance starting up 
+  ** does not see a partial file.
+  */
+  
+  void save() {
+    if (indexFile_ == null) {
+      return;
+    }
+    LinkedHashMap<String, JarInfo> merged = new LinkedHashMap<String, JarInfo>();
+    boolean changed = changed_;
+    for (JarInfo info : stored_.values()) {
+      if (current_.containsKey(info.path)) {
+        continue;
+      }
+      if (new File(info.path).exists()) {
+        merged.put(info.path, info);
+      } else {
+        changed = true;
+      }
+    }
+    if (!changed) {
+      return;
+    }
+    merged.putAll(current_);
+    
+    Properties props = new Properties();
+    props.setProperty("index.version", INDEX_VERSION_);
+    props.setProperty("index.service", svcInterface_);
+    int count = 0;
+    for (JarInfo info : merged.values()) {
+      info.store(props, "jar." + count++ + ".");
+    }
+    props.setProperty("jar.count", Integer.toString(count));
+    File tmpFile = null;
+    try {
+      tmpFile = File.createTempFile("BioFabricPlugIn", ".tmp", indexFile_.getParentFile());
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile));
+      try {
+        props.store(out, null);
+      } finally {
+        out.close();
+      }
+      if (!tmpFile.renameTo(indexFile_)) {
+        indexFile_.delete();
+        tmpFile.renameTo(indexFile_);
+      }
+    } catch (IOException ioex) {
+      // Not worth bothering the user; we just read the jars next time
+    } catch (SecurityException sex) {
+      // Ditto
+    } finally {
+      if ((tmpFile != null) && tmpFile.exists()) {
+        tmpFile.delete();
+      }
+    }
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Read the stored index. Anything off, and we just ignore it.
+  */
+  
+  private void readIndex() {
+    if ((indexFile_ == null) || !indexFile_.canRead()) {
+      return;
+    }
+    Properties props = new Properties();
+    try {
+      InputStream in = new BufferedInputStream(new FileInputStream(indexFile_));
+      try {
+        props.load(in);
+      } finally {
+        in.close();
+      }
+      if (!INDEX_VERSION_.equals(props.getProperty("index.version")) || 
+          !svcInterface_.equals(props.getProperty("index.service"))) {
+        return;
+      }
+      int count = Integer.parseInt(props.getProperty("jar.count"));
+      for (int i = 0; i < count; i++) {
+        JarInfo info = JarInfo.load(props, "jar." + i + ".");
+        stored_.put(info.path, info);
+      }
+    } catch (IOException ioex) {
+      stored_.clear();
+    } catch (RuntimeException rex) { // Missing or bad entries
+      stored_.clear();
+    }
+    return;
+  }
+    
+  /***************************************************************************
+  **
+  ** Open up a jar and pull out what we need. The stored service list is only
+  ** used if the jar has the same size and modification time, and the service 
+  ** entry still has the same CRC.
+  */
+  
+  private static JarInfo readJar(File jarFile, String svcInterface, JarInfo stored) throws IOException {
+    JarInfo retval = new JarInfo(jarFile.getAbsolutePath(), jarFile.length(), jarFile.lastModified());
+    boolean sameFile = (stored != null) && (stored.length == retval.length) && (stored.modified == retval.modified);
+    String svcEntry = "META-INF/services/" + svcInterface;
+    int propLen = PROPS_SUFFIX_.length();
+    JarFile jar = new JarFile(jarFile);
+    try {
+      Enumeration<JarEntry> entries = jar.entries();
+      while (entries.hasMoreElements()) {
+        JarEntry jarEntry = entries.nextElement();
+        String jarName = jarEntry.getName();
+        int jnlen = jarName.length();
+        if (jarName.equals(svcEntry)) {
+          retval.svcCrc = jarEntry.getCrc();
+          if (sameFile && (retval.svcCrc != -1L) && (retval.svcCrc == stored.svcCrc)) {
+            retval.services = new ArrayList<String>(stored.services);
+          } else {
+            retval.services = readClassList(jar, jarEntry);
+          }
+        } else if ((jnlen > propLen) && jarName.endsWith(PROPS_SUFFIX_)) {
+          String prefix = jarName.substring(0, jnlen - propLen).replaceAll("/", ".");
+          retval.propCrcs.put(prefix, Long.valueOf(jarEntry.getCrc()));
+          retval.propTexts.put(prefix, readText(jar, jarEntry));
+        }
+      }
+    } finally {
+      jar.close();
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the list of classes from an entry
+  */
+
+  private static List<String> readClassList(JarFile jar, JarEntry entry) throws IOException {
+    ArrayList<String> retval = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(jar.getInputStream(entry)));
+    String newLine;
+    while ((newLine = in.readLine()) != null) {
+      newLine = newLine.trim();
+      if (newLine.equals("") || newLine.startsWith("#")) {
+        continue;
+      }
+      retval.add(newLine);
+    }
+    in.close();
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Read an entry as text, using the same default encoding the bundles were 
+  ** always read with
+  */
+
+  private static String readText(JarFile jar, JarEntry entry) throws IOException {
+    StringBuffer buf = new StringBuffer();
+    Reader in = new InputStreamReader(jar.getInputStream(entry));
+    try {
+      char[] chars = new char[4096];
+      int numRead;
+      while ((numRead = in.read(chars)) != -1) {
+        buf.append(chars, 0, numRead);
+      }
+    } finally {
+      in.close();
+    }
+    return (buf.toString());
+  }
+  
+  /***************************************************************************
+  **
+  ** Wait for a jar to be read
+  */
+  
+  private static JarInfo waitFor(Future<JarInfo> fut) throws IOException {
+    try {
+      return (fut.get());
+    } catch (InterruptedException iex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(iex);
+    } catch (ExecutionException eex) {
+      Throwable cause = eex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE-VISIBLE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** What one jar provides. The properties text is only kept in memory; the 
+  ** index just records the CRCs.
+  */
+  
+  static class JarInfo {
+    final String path;
+    final long length;
+    final long modified;
+    long svcCrc;
+    List<String> services;
+    // Bundle name to properties file CRC and text, in jar order:
+    LinkedHashMap<String, Long> propCrcs;
+    LinkedHashMap<String, String> propTexts;
+    
+    JarInfo(String path, long length, long modified) {
+      this.path = path;
+      this.length = length;
+      this.modified = modified;
+      this.svcCrc = -1L;
+      this.services = new ArrayList<String>();
+      this.propCrcs = new LinkedHashMap<String, Long>();
+      this.propTexts = new LinkedHashMap<String, String>();
+    }
+    
+    boolean sameAs(JarInfo other) {
+      return (path.equals(other.path) && (length == other.length) && (modified == other.modified) &&
+              (svcCrc == other.svcCrc) && services.equals(other.services) && propCrcs.equals(other.propCrcs));
+    }
+    
+    void store(Properties props, String prefix) {
+      props.setProperty(prefix + "path", path);
+      props.setProperty(prefix + "length", Long.toString(length));
+      props.setProperty(prefix + "modified", Long.toString(modified));
+      props.setProperty(prefix + "services.crc", Long.toString(svcCrc));
+      int numSvc = services.size();
+      props.setProperty(prefix + "services.count", Integer.toString(numSvc));
+      for (int i = 0; i < numSvc; i++) {
+        props.setProperty(prefix + "services." + i, services.get(i));
+      }
+      props.setProperty(prefix + "props.count", Integer.toString(propCrcs.size()));
+      int count = 0;
+      for (Map.Entry<String, Long> entry : propCrcs.entrySet()) {
+        props.setProperty(prefix + "props." + count + ".name", entry.getKey());
+        props.setProperty(prefix + "props." + count++ + ".crc", entry.getValue().toString());
+      }
+      return;
+    }
+    
+    static JarInfo load(Properties props, String prefix) {
+      JarInfo retval = new JarInfo(required(props, prefix + "path"), 
+                                   Long.parseLong(required(props, prefix + "length")), 
+                                   Long.parseLong(required(props, prefix + "modified")));
+      retval.svcCrc = Long.parseLong(required(props, prefix + "services.crc"));
+      int numSvc = Integer.parseInt(required(props, prefix + "services.count"));
+      for (int i = 0; i < numSvc; i++) {
+        retval.services.add(required(props, prefix + "services." + i));
+      }
+      int numProps = Integer.parseInt(required(props, prefix + "props.count"));
+      for (int i = 0; i < numProps; i++) {
+        retval.propCrcs.put(required(props, prefix + "props." + i + ".name"), 
+                            Long.valueOf(required(props, prefix + "props." + i + ".crc")));
+      }
+      return (retval);
+    }
+    
+    private static String required(Properties props, String key) {
+      String retval = props.getProperty(key);
+      if (retval == null) {
+        throw new IllegalArgumentException(key);
+      }
+      return (retval);
+    }
+  }
+}
@@ -29,14 +29,19 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.PropertyResourceBundle;
 import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
-import java.util.jar.JarFile;
-import java.util.jar.JarEntry;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StringReader;
+
+import javax.swing.JFrame;
 
 import org.systemsbiology.biofabric.parser.SUParser;
 import org.systemsbiology.biotapestry.biofabric.FabricCommands;
@@ -46,9 +51,15 @@ import org.systemsbiology.biofabric.api.parser.GlueStick;
 import org.systemsbiology.biofabric.api.parser.ParserClient;
 import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
 import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
+import org.systemsbiology.biofabric.api.worker.BackgroundCore;
+import org.systemsbiology.biofabric.api.worker.BackgroundWorkerControlManager;
+import org.systemsbiology.biofabric.api.worker.BackgroundWorkerOwner;
 import org.systemsbiology.biofabric.app.ArgParser;
 import org.systemsbiology.biofabric.io.FabricFactory;
 import org.systemsbiology.biofabric.model.BioFabricNetwork;
+import org.systemsbiology.biofabric.util.StartupTimer;
+import org.systemsbiology.biofabric.worker.BackgroundWorker;
+import org.systemsbiology.biofabric.worker.BackgroundWorkerClient;
 
 import org.xml.sax.Attributes;
 
@@ -59,6 +70,20 @@ import org.xml.sax.Attributes;
 
 public class PlugInManager {
   
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private static final String TOOL_SERVICE_ = "org.systemsbiology.biofabric.plugin.BioFabricToolPlugIn";
+  
+  //
+  // Most background plugin commands we will run at once:
+  //
+  
+  private static final int MAX_CMD_THREADS_ = 2;
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE MEMBERS
@@ -69,6 +94,12 @@ public class PlugInManager {
   private int maxCount_;
   private TreeSet<AbstractPlugInDirective> directives_;
   private HashMap<String, ResourceBundle> rBunds_;
+  private PlugInNetworkModelAPI api_;
+  private ExecutorService cmdPool_;
+  private FutureTask<Boolean> loading_;
+  private Thread loader_;
+  private boolean loaded_;
+  private ArrayList<Runnable> whenLoaded_;
 
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -86,6 +117,12 @@ public class PlugInManager {
     directives_ = new TreeSet<AbstractPlugInDirective>();
     maxCount_ = Integer.MIN_VALUE;
     rBunds_ = new HashMap<String, ResourceBundle>();
+    api_ = null;
+    cmdPool_ = null;
+    loading_ = null;
+    loader_ = null;
+    loaded_ = false;
+    whenLoaded_ = new ArrayList<Runnable>();
   }
 
   ////////////////////////////////////////////////////////////////////////////
@@ -100,6 +137,7 @@ public class PlugInManager {
   */
   
   public ResourceBundle getResourceBundle(String name) {
+    waitForPlugIns();
   	//Loaded from a jar file:
     ResourceBundle rBund = rBunds_.get(name);
     if (rBund == null) {
@@ -130,10 +168,14 @@ public class PlugInManager {
   
   /***************************************************************************
   **
-  ** Install a new network
+  ** Install the API. If plugins are still loading, they get it when they are done.
   */
   
-  public void installAPI(PlugInNetworkModelAPI api) {
+  public synchronized void installAPI(PlugInNetworkModelAPI api) {
+    api_ = api;
+    if ((loading_ != null) && !loaded_) {
+      return;
+    }
     for (BioFabricToolPlugIn pi : toolPlugIns_) {
       pi.installAPI(api);
     }
@@ -146,6 +188,7 @@ public class PlugInManager {
   */
   
   public void newNetworkInstalled(BioFabricNetwork bfn) {
+    waitForPlugIns();
     for (BioFabricToolPlugIn pi : toolPlugIns_) {
       pi.newNetworkInstalled(bfn);
     }
@@ -172,6 +215,7 @@ public class PlugInManager {
   */
 
   public List<String> getOrderedToolPlugInKeys() {
+    waitForPlugIns();
     ArrayList<String> retval = new ArrayList<String>();
     for (BioFabricToolPlugIn pi : toolPlugIns_) {
       retval.add(pi.getUniquePlugInTag());
@@ -185,6 +229,7 @@ public class PlugInManager {
   */
 
   public BioFabricToolPlugIn getToolPlugIn(String key) {
+    waitForPlugIns();
     for (BioFabricToolPlugIn pi : toolPlugIns_) {
       if (pi.getUniquePlugInTag().equals(key)) {
         return (pi);
@@ -193,6 +238,32 @@ public class PlugInManager {
     throw new IllegalArgumentException();
   }  
 
+  /***************************************************************************
+  ** 
+  ** Run a plugin command. Commands that can run in the background are
+  ** prepared on this (UI) thread, then run on one of our worker threads while 
+  ** the progress dialog is up and the controls are disabled. Others just run here.
+  */
+
+  public boolean performCommand(BioFabricToolPlugInCmd cmd, JFrame topFrame) {
+    if (!(cmd instanceof BioFabricToolPlugInBackgroundCmd)) {
+      return (cmd.performOperation(topFrame));
+    }
+    BioFabricToolPlugInBackgroundCmd bgCmd = (BioFabricToolPlugInBackgroundCmd)cmd;
+    if (!bgCmd.prepareBackgroundOperation(topFrame)) {
+      return (true);
+    }
+    BackgroundWorkerControlManager bwcm = (api_ == null) ? null : api_.getBWCtrlMgr();
+    BackgroundWorker worker = new BackgroundWorker();
+    CmdRunner runner = new CmdRunner(bgCmd, topFrame, worker);
+    BackgroundWorkerClient client = new BackgroundWorkerClient(runner, worker, topFrame, bwcm, "plugInCmd.waitTitle", 
+                                                               "plugInCmd.wait", true, bgCmd.getResourceManager());
+    client.setRunner(getCmdPool());
+    worker.setClientAndCore(client, runner);
+    client.launchWorker();
+    return (true);
+  }
+  
   /***************************************************************************
   ** 
   ** Load plugins
@@ -212,13 +283,14 @@ public class PlugInManager {
     // Now load from jar file, if specified in command line argument:
     //
         
+    PlugInJarIndex jarIndex = new PlugInJarIndex(TOOL_SERVICE_);
     String plugDirStr = (String)args.get(ArgParser.PLUG_IN_DIR);
     if (plugDirStr != null) {
       File plugDirectory = new File(plugDirStr);
       if (!plugDirectory.exists() || !plugDirectory.isDirectory() || !plugDirectory.canRead()) {
         return (false);
       }
-      if (!readJarFiles(plugDirectory, maxCount_ + 1)) {
+      if (!readJarFiles(plugDirectory, maxCount_ + 1, jarIndex)) {
          return (false);
       }
     }
@@ -232,9 +304,10 @@ public class PlugInManager {
     if (plugDirPref != null) {
       File plugDirectory = new File(plugDirPref);
       if (plugDirectory.exists() && plugDirectory.isDirectory() && plugDirectory.canRead()) {
-      	readJarFiles(plugDirectory, maxCount_ + 1);
+      	readJarFiles(plugDirectory, maxCount_ + 1, jarIndex);
       }
     }
+    jarIndex.save();
 
     Iterator<AbstractPlugInDirective> drit = directives_.iterator();
     while (drit.hasNext()) {
@@ -269,34 +342,139 @@ public class PlugInManager {
     return;
   }
   
+  /***************************************************************************
+  ** 
+  ** Start loading plugins on a background thread, so it overlaps with bringing up
+  ** the window. Anything that needs the plugins will wait for them.
+  */
+
+  public synchronized void loadPlugInsInBackground(final Map<String, Object> args) {
+    if (loading_ != null) {
+      throw new IllegalStateException();
+    }
+    loading_ = new FutureTask<Boolean>(new Callable<Boolean>() {
+      public Boolean call() {
+        boolean ok;
+        try {
+          ok = loadPlugIns(args);
+        } finally {
+          finishLoading();
+        }
+        if (!ok) {
+          System.err.println("Problems loading plugins");
+        }
+        StartupTimer.mark("plugInsLoaded");
+        return (Boolean.valueOf(ok));
+      }
+    });
+    loader_ = new Thread(loading_, "BioFabric plugin loader");
+    loader_.setDaemon(true);
+    loader_.start();
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Run the callback once plugins are loaded. If they are still loading in the
+  ** background, it runs later on the loader thread; otherwise it runs now. 
+  */
+
+  public void whenLoaded(Runnable callback) {
+    synchronized (this) {
+      if ((loading_ != null) && !loaded_) {
+        whenLoaded_.add(callback);
+        return;
+      }
+    }
+    callback.run();
+    return;
+  }
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE METHODS
   //
   ////////////////////////////////////////////////////////////////////////////
 
+  /***************************************************************************
+  ** 
+  ** Plugins are done loading, successfully or not. Hand over the API if it
+  ** showed up while we were busy.
+  */
+
+  private void finishLoading() {
+    ArrayList<Runnable> callbacks;
+    synchronized (this) {
+      loaded_ = true;
+      if (api_ != null) {
+        for (BioFabricToolPlugIn pi : toolPlugIns_) {
+          pi.installAPI(api_);
+        }
+      }
+      callbacks = new ArrayList<Runnable>(whenLoaded_);
+      whenLoaded_.clear();
+    }
+    for (Runnable callback : callbacks) {
+      callback.run();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** If plugins are loading in the background, wait for them. Plugins call back 
+  ** into us while they are being built, so the loader thread itself never waits.
+  ** Nor does anybody once loading is finished, even if the loader thread has
+  ** not wrapped up yet.
+  */
+
+  private void waitForPlugIns() {
+    FutureTask<Boolean> loading;
+    synchronized (this) {
+      if ((loading_ == null) || loaded_ || (Thread.currentThread() == loader_)) {
+        return;
+      }
+      loading = loading_;
+    }
+    try {
+      loading.get();
+    } catch (InterruptedException iex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(iex);
+    } catch (ExecutionException eex) {
+      Throwable cause = eex.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+    return;
+  }
+  
   /***************************************************************************
   **
-  ** Read jars
+  ** Read jars. The index spares us re-reading service lists that have not
+  ** changed.
   */
 
-  private boolean readJarFiles(File plugInDir, int currMax) {
+  private boolean readJarFiles(File plugInDir, int currMax, PlugInJarIndex jarIndex) {
     try {
-    	int propLen = ".properties".length();
       ExtensionFilter filter = new ExtensionFilter(".jar");
       if (plugInDir.isDirectory()) {
         File[] files = plugInDir.listFiles(filter);
+        List<PlugInJarIndex.JarInfo> infos = jarIndex.scan(files);
         for (int i = 0; i < files.length; i++) {
-          JarFile jar = new JarFile(files[i]);
+          PlugInJarIndex.JarInfo info = infos.get(i);
         
           //
           // ToolPlugin:
           //        
           
-          List<String> sl = getServiceList(jar, "org.systemsbiology.biofabric.plugin.BioFabricToolPlugIn");
-          int numSvc = sl.size();
+          int numSvc = info.services.size();
           for (int j = 0; j < numSvc; j++) {
-            String plugin = sl.get(j);
+            String plugin = info.services.get(j);
             ToolPlugInDirective pid = new ToolPlugInDirective(plugin, Integer.toString(currMax++), files[i]);
             addDirective(pid);
           }
@@ -305,20 +483,8 @@ public class PlugInManager {
           // Need to suck in any properties files for the PluginResourceManager to manage:
           //
           
-          Enumeration<JarEntry> entries = jar.entries();
-          while (entries.hasMoreElements()) {
-          	JarEntry jarEntry = entries.nextElement();
-          	String jarName = jarEntry.getName();
-          	int jnlen = jarName.length();
-          	if (jnlen <= propLen) {
-          		continue;
-          	}
-          	String suffix = jarEntry.getName().substring(jnlen - propLen, jnlen);   	
-          	if (suffix.equals(".properties")) {
-          		String prefix = jarEntry.getName().substring(0, jnlen - propLen).replaceAll("/", ".");
-          	  BufferedReader in = new BufferedReader(new InputStreamReader(jar.getInputStream(jarEntry)));
-              rBunds_.put(prefix, new PropertyResourceBundle(in));
-          	}
+          for (Map.Entry<String, String> prop : info.propTexts.entrySet()) {
+            rBunds_.put(prop.getKey(), new PropertyResourceBundle(new StringReader(prop.getValue())));
           }
         }
       }
@@ -330,40 +496,21 @@ public class PlugInManager {
   
   /***************************************************************************
   **
-  ** Get the list of services
-  */
-
-  private List<String> getServiceList(JarFile jar, String svcInterface) throws IOException {
-    svcInterface = "META-INF/services/" + svcInterface;
-    Enumeration<JarEntry> entries = jar.entries();
-    while (entries.hasMoreElements()) {
-      JarEntry entry = entries.nextElement();
-      String entryName = entry.getName();
-      if (entryName.equals(svcInterface)) {
-        return (readClassList(jar, entry));
-      }
-    }
-    return (new ArrayList<String>());
-  }
-
-  /***************************************************************************
-  **
-  ** Get the list of classes from an entry
+  ** Get the pool for background commands. Threads are daemons, so an idle pool
+  ** never holds up exit.
   */
 
-  private List<String> readClassList(JarFile jar, JarEntry entry) throws IOException {
-    ArrayList<String> retval = new ArrayList<String>();
-    BufferedReader in = new BufferedReader(new InputStreamReader(jar.getInputStream(entry)));
-    String newLine;
-    while ((newLine = in.readLine()) != null) {
-      newLine = newLine.trim();
-      if (newLine.equals("") || newLine.startsWith("#")) {
-        continue;
-      }
-      retval.add(newLine);
+  private synchronized ExecutorService getCmdPool() {
+    if (cmdPool_ == null) {
+      cmdPool_ = Executors.newFixedThreadPool(MAX_CMD_THREADS_, new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread retval = new Thread(runnable, "BioFabric plugin command");
+          retval.setDaemon(true);
+          return (retval);
+        }
+      });
     }
-    in.close();
-    return (retval);
+    return (cmdPool_);
   }
   
   /***************************************************************************
@@ -451,6 +598,90 @@ public class PlugInManager {
   //
   ////////////////////////////////////////////////////////////////////////////
   
+  /***************************************************************************
+  **
+  ** Runs one background plugin command. Each run gets its own worker and
+  ** monitor; a failure is reported for that command alone.
+  */ 
+    
+  private static class CmdRunner implements BackgroundWorkerOwner, BackgroundCore {
+    
+    private BioFabricToolPlugInBackgroundCmd cmd_;
+    private JFrame topFrame_;
+    private BTProgressMonitor monitor_;
+    private boolean failed_;
+    private boolean abandoned_;
+    
+    CmdRunner(BioFabricToolPlugInBackgroundCmd cmd, JFrame topFrame, BTProgressMonitor monitor) {
+      cmd_ = cmd;
+      topFrame_ = topFrame;
+      monitor_ = monitor;
+      failed_ = false;
+      abandoned_ = false;
+    }
+    
+    public Object getEarlyResult() {
+      return (null);
+    }
+    
+    public Object runCore() throws AsynchExitRequestException {
+      return (new Finished(cmd_.runBackgroundOperation(monitor_)));
+    }
+    
+    public Object postRunCore() {
+      return (null);
+    } 
+    
+    public boolean handleRemoteException(Exception remoteEx) {
+      failed_ = true;
+      return (false);
+    }    
+        
+    public void cleanUpPreEnable(Object result) {
+      return;
+    }
+    
+    public boolean handleCancellation() {
+      abandon();
+      return (false);
+    }     
+    
+    public void cleanUpPostRepaint(Object result, boolean skipImage) {
+      //
+      // Failed runs come through here too, after the problem is shown. The result
+      // is wrapped so a run that ran out of memory (and so just has the early
+      // result) can be told apart from a command that returns null:
+      //
+      if (!failed_ && (result instanceof Finished)) {
+        cmd_.finishBackgroundOperation(topFrame_, ((Finished)result).result);
+      } else {
+        abandon();
+      }
+      return;
+    }
+    
+    private void abandon() {
+      if (!abandoned_) {
+        abandoned_ = true;
+        cmd_.abandonBackgroundOperation(topFrame_);
+      }
+      return;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Result of a completed run
+  */ 
+    
+  private static class Finished {
+    Object result;
+    
+    Finished(Object result) {
+      this.result = result;
+    }
+  }
+  
   /***************************************************************************
   **
   ** File filter
@@ -22,6 +22,7 @@ package org.systemsbiology.biofabric.plugin;
 import javax.swing.JFrame;
 
 import org.systemsbiology.biofabric.api.io.FileLoadFlows;
+import org.systemsbiology.biofabric.api.model.NetworkGraphView;
 import org.systemsbiology.biofabric.api.worker.BackgroundWorkerControlManager;
 
 /****************************************************************************
@@ -51,6 +52,13 @@ public interface PlugInNetworkModelAPI {
 
   public int getNodeCount();
   
+  /***************************************************************************
+  ** 
+  ** Get a read-only view of the network graph. Safe to use off the AWT thread
+  */
+
+  public NetworkGraphView getGraphView();
+  
   /***************************************************************************
   ** 
   ** Get file loading utilities
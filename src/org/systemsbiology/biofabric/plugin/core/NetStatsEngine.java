@@ -0,0 +1,687 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.plugin.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.systemsbiology.biofabric.api.model.NetworkGraphView;
+import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
+import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
+import org.systemsbiology.biofabric.api.worker.LoopReporter;
+
+/****************************************************************************
+**
+** Computes the network statistics from a graph view. Everything is done on 
+** the simple undirected graph of the non-shadow links: multiple links between
+** two nodes count once, and self loops are ignored. Per-node results are 
+** indexed by row.
+**
+** The per-row passes (neighbor cleanup and triangle counting) are split into
+** blocks of about equal work. A few workers pull blocks off a shared counter
+** until they run out, so hub-heavy networks stay balanced. Components and
+** k-cores are linear-time sequential passes.
+*/
+
+final class NetStatsEngine {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+  
+  private static final int MAX_THREADS_ = 4;
+  
+  //
+  // Below this many link ends, the pool costs more than it saves:
+  //
+  
+  private static final int PARALLEL_MIN_ENDS_ = 200000;
+  
+  //
+  // Blocks per worker, and smallest block worth handing out:
+  //
+  
+  private static final int BLOCKS_PER_THREAD_ = 16;
+  private static final long MIN_BLOCK_WORK_ = 4096L;
+  
+  private static final int WORKER_DONE_ = -1;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Do not use
+  */
+  
+  private NetStatsEngine() {
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE-VISIBLE CLASS METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+ 
+  /***************************************************************************
+  **
+  ** Compute the statistics
+  */
+  
+  static Results compute(NetworkGraphView view, BTProgressMonitor monitor) throws AsynchExitRequestException {
+    int numRows = view.getNodeCount();
+    
+    final int[] start = new int[numRows + 1];
+    view.getAdjacencyOffsets().get(start);
+    final int[] nbrs = new int[start[numRows]];
+    view.getAdjacentRows().get(nbrs);
+    
+    int numThreads = Math.min(MAX_THREADS_, Runtime.getRuntime().availableProcessors() - 1);
+    ExecutorService pool = ((numThreads < 1) || (nbrs.length < PARALLEL_MIN_ENDS_)) ? null : Executors.newFixedThreadPool(numThreads);
+    try {
+      
+      //
+      // Sort each row's neighbors and drop duplicates and self loops, leaving
+      // them at the front of the row's slice:
+      //
+      
+      final int[] degree = new int[numRows];
+      long[] work = new long[numRows];
+      for (int i = 0; i < numRows; i++) {
+        work[i] = (start[i + 1] - start[i]) + 1;
+      }
+      LoopReporter lr = new LoopReporter(nbrs.length + numRows, 20, monitor, 0.0, 0.15, "progress.netStatsNeighbors");
+      runRows(work, new RowWork() {
+        void doRows(int first, int last, int[] mark) {
+          for (int i = first; i < last; i++) {
+            degree[i] = cleanNeighbors(nbrs, start[i], start[i + 1], i);
+          }
+        }
+      }, false, pool, numThreads, lr);
+      lr.finish();
+      
+      final int[] sStart = new int[numRows + 1];
+      for (int i = 0; i < numRows; i++) {
+        sStart[i + 1] = sStart[i] + degree[i];
+      }
+      final int[] sNbrs = new int[sStart[numRows]];
+      for (int i = 0; i < numRows; i++) {
+        System.arraycopy(nbrs, start[i], sNbrs, sStart[i], degree[i]);
+      }
+      
+      int[] component = components(sStart, sNbrs, monitor);
+      
+      //
+      // Per-node triangles. A triangle at v is a pair of neighbors that are
+      // neighbors themselves, so the work at v is the sum of its neighbors' 
+      // degrees. A hub can sit on more than Integer.MAX_VALUE of them:
+      //
+      
+      final long[] triangles = new long[numRows];
+      long totalWork = 0L;
+      for (int i = 0; i < numRows; i++) {
+        long rowWork = degree[i] + 1;
+        for (int j = sStart[i]; j < sStart[i + 1]; j++) {
+          rowWork += degree[sNbrs[j]];
+        }
+        work[i] = rowWork;
+        totalWork += rowWork;
+      }
+      lr = new LoopReporter(totalWork, 20, monitor, 0.3, 0.85, "progress.netStatsTriangles");
+      runRows(work, new RowWork() {
+        void doRows(int first, int last, int[] mark) {
+          for (int i = first; i < last; i++) {
+            triangles[i] = countTriangles(sStart, sNbrs, i, mark);
+          }
+        }
+      }, true, pool, numThreads, lr);
+      lr.finish();
+      work = null;
+      
+      int[] core = cores(sStart, sNbrs, degree, monitor);
+      
+      int numRels = view.getRelationCount();
+      String[] relations = new String[numRels];
+      for (int i = 0; i < numRels; i++) {
+        relations[i] = view.getRelation(i);
+      }
+      int[] relCounts = new int[numRels];
+      int numLinks = view.getLinkCount(true);
+      for (int i = 0; i < numLinks; i++) {
+        if (!view.isShadow(i)) {
+          relCounts[view.getRelationOrdinal(i)]++;
+        }
+      }
+      return (new Results(degree, triangles, core, component, relations, relCounts));
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+   
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CLASS METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Sort the slice, and pack the distinct entries that are not the row itself
+  ** at the front. Returns the number kept.
+  */
+  
+  private static int cleanNeighbors(int[] nbrs, int first, int last, int row) {
+    Arrays.sort(nbrs, first, last);
+    int keep = first;
+    for (int j = first; j < last; j++) {
+      int nbr = nbrs[j];
+      if ((nbr != row) && ((keep == first) || (nbrs[keep - 1] != nbr))) {
+        nbrs[keep++] = nbr;
+      }
+    }
+    return (keep - first);
+  }
+  
+  /***************************************************************************
+  **
+  ** Count the triangles at the row. The mark array is stamped with row + 1 for
+  ** each neighbor, so it never needs clearing.
+  */
+  
+  private static long countTriangles(int[] sStart, int[] sNbrs, int row, int[] mark) {
+    int stamp = row + 1;
+    int first = sStart[row];
+    int last = sStart[row + 1];
+    for (int j = first; j < last; j++) {
+      mark[sNbrs[j]] = stamp;
+    }
+    long count = 0L;
+    for (int j = first; j < last; j++) {
+      int nbr = sNbrs[j];
+      int nLast = sStart[nbr + 1];
+      for (int k = sStart[nbr]; k < nLast; k++) {
+        if (mark[sNbrs[k]] == stamp) {
+          count++;
+        }
+      }
+    }
+    return (count / 2L);
+  }
+  
+  /***************************************************************************
+  **
+  ** Connected components by union-find. Components are numbered in order of
+  ** their first row.
+  */
+  
+  private static int[] components(int[] sStart, int[] sNbrs, BTProgressMonitor monitor) throws AsynchExitRequestException {
+    int numRows = sStart.length - 1;
+    int[] parent = new int[numRows];
+    for (int i = 0; i < numRows; i++) {
+      parent[i] = i;
+    }
+    LoopReporter lr = new LoopReporter(numRows, 20, monitor, 0.15, 0.3, "progress.netStatsComponents");
+    for (int i = 0; i < numRows; i++) {
+      for (int j = sStart[i]; j < sStart[i + 1]; j++) {
+        int nbr = sNbrs[j];
+        if (nbr > i) {
+          int ri = findRoot(parent, i);
+          int rn = findRoot(parent, nbr);
+          if (ri != rn) {
+            if (ri < rn) {
+              parent[rn] = ri;
+            } else {
+              parent[ri] = rn;
+            }
+          }
+        }
+      }
+      lr.report();
+    }
+    lr.finish();
+    
+    //
+    // Roots are always the smallest row in the set, so a root is labeled 
+    // before any other member is reached:
+    //
+    
+    int[] retval = new int[numRows];
+    int numComps = 0;
+    for (int i = 0; i < numRows; i++) {
+      int root = findRoot(parent, i);
+      retval[i] = (root == i) ? numComps++ : retval[root];
+    }
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Find the root, halving the path on the way
+  */
+  
+  private static int findRoot(int[] parent, int row) {
+    while (parent[row] != row) {
+      parent[row] = parent[parent[row]];
+      row = parent[row];
+    }
+    return (row);
+  }
+  
+  /***************************************************************************
+  **
+  ** Core numbers (Batagelj and Zaversnik). Rows are kept in a degree-sorted 
+  ** array with bin starts, and each removal moves neighbors down one bin.
+  */
+  
+  private static int[] cores(int[] sStart, int[] sNbrs, int[] degree, BTProgressMonitor monitor) throws AsynchExitRequestException {
+    int numRows = degree.length;
+    int maxDeg = 0;
+    for (int i = 0; i < numRows; i++) {
+      maxDeg = Math.max(maxDeg, degree[i]);
+    }
+    int[] deg = new int[numRows];
+    System.arraycopy(degree, 0, deg, 0, numRows);
+    int[] bin = new int[maxDeg + 1];
+    for (int i = 0; i < numRows; i++) {
+      bin[deg[i]]++;
+    }
+    int binStart = 0;
+    for (int d = 0; d <= maxDeg; d++) {
+      int count = bin[d];
+      bin[d] = binStart;
+      binStart += count;
+    }
+    int[] order = new int[numRows];
+    int[] pos = new int[numRows];
+    for (int i = 0; i < numRows; i++) {
+      pos[i] = bin[deg[i]]++;
+      order[pos[i]] = i;
+    }
+    for (int d = maxDeg; d > 0; d--) {
+      bin[d] = bin[d - 1];
+    }
+    bin[0] = 0;
+    
+    LoopReporter lr = new LoopReporter(numRows, 20, monitor, 0.85, 1.0, "progress.netStatsCores");
+    for (int i = 0; i < numRows; i++) {
+      int row = order[i];
+      int rowDeg = deg[row];
+      for (int j = sStart[row]; j < sStart[row + 1]; j++) {
+        int nbr = sNbrs[j];
+        int nbrDeg = deg[nbr];
+        if (nbrDeg > rowDeg) {
+          int nbrPos = pos[nbr];
+          int firstPos = bin[nbrDeg];
+          int first = order[firstPos];
+          if (first != nbr) {
+            order[nbrPos] = first;
+            pos[first] = nbrPos;
+            order[firstPos] = nbr;
+            pos[nbr] = firstPos;
+          }
+          bin[nbrDeg]++;
+          deg[nbr]--;
+        }
+      }
+      lr.report();
+    }
+    lr.finish();
+    return (deg);
+  }
+  
+  /***************************************************************************
+  **
+  ** Run the work over all rows, in blocks of about equal work. Without a pool,
+  ** the blocks just run in order on this thread.
+  */
+  
+  private static void runRows(long[] work, final RowWork rowWork, final boolean withMark, 
+                              ExecutorService pool, int numThreads, LoopReporter lr) throws AsynchExitRequestException {
+    final int numRows = work.length;
+    int numWorkers = (pool == null) ? 1 : numThreads;
+    long total = 0L;
+    for (int i = 0; i < numRows; i++) {
+      total += work[i];
+    }
+    long target = Math.max(MIN_BLOCK_WORK_, total / (numWorkers * BLOCKS_PER_THREAD_));
+    ArrayList<Integer> boundList = new ArrayList<Integer>();
+    ArrayList<Long> workList = new ArrayList<Long>();
+    boundList.add(Integer.valueOf(0));
+    long blockWork = 0L;
+    for (int i = 0; i < numRows; i++) {
+      blockWork += work[i];
+      if ((blockWork >= target) || (i == (numRows - 1))) {
+        boundList.add(Integer.valueOf(i + 1));
+        workList.add(Long.valueOf(blockWork));
+        blockWork = 0L;
+      }
+    }
+    final int numBlocks = workList.size();
+    final int[] bounds = new int[numBlocks + 1];
+    for (int i = 0; i <= numBlocks; i++) {
+      bounds[i] = boundList.get(i).intValue();
+    }
+    
+    if (pool == null) {
+      int[] mark = (withMark) ? new int[numRows] : null;
+      for (int i = 0; i < numBlocks; i++) {
+        rowWork.doRows(bounds[i], bounds[i + 1], mark);
+        lr.report(workList.get(i).longValue());
+      }
+      return;
+    }
+    
+    //
+    // Workers report each finished block, and a last marker when they quit, so
+    // progress (and cancellation) is handled here as blocks come in:
+    //
+    
+    final AtomicInteger nextBlock = new AtomicInteger(0);
+    final AtomicBoolean cancelled = new AtomicBoolean(false);
+    final LinkedBlockingQueue<Integer> finished = new LinkedBlockingQueue<Integer>();
+    ArrayList<Future<Object>> pending = new ArrayList<Future<Object>>();
+    for (int i = 0; i < numWorkers; i++) {
+      pending.add(pool.submit(new Callable<Object>() {
+        public Object call() {
+          try {
+            int[] mark = (withMark) ? new int[numRows] : null;
+            int block;
+            while (!cancelled.get() && ((block = nextBlock.getAndIncrement()) < numBlocks)) {
+              rowWork.doRows(bounds[block], bounds[block + 1], mark);
+              finished.add(Integer.valueOf(block));
+            }
+          } finally {
+            finished.add(Integer.valueOf(WORKER_DONE_));
+          }
+          return (null);
+        }
+      }));
+    }
+    try {
+      int numDone = 0;
+      while (numDone < numWorkers) {
+        int block = finished.take().intValue();
+        if (block == WORKER_DONE_) {
+          numDone++;
+        } else {
+          lr.report(workList.get(block).longValue());
+        }
+      }
+    } catch (InterruptedException iex) {
+      cancelled.set(true);
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(iex);
+    } catch (AsynchExitRequestException aerex) {
+      cancelled.set(true);
+      throw aerex;
+    } finally {
+      waitFor(pending);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Wait for the pool to finish up
+  */
+  
+  private static void waitFor(List<Future<Object>> pending) {
+    for (Future<Object> fut : pending) {
+      try {
+        fut.get();
+      } catch (InterruptedException iex) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(iex);
+      } catch (ExecutionException eex) {
+        Throwable cause = eex.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        } else if (cause instanceof Error) {
+          throw (Error)cause;
+        }
+        throw new IllegalStateException(cause);
+      }
+    }
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE-VISIBLE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** The results. Only the per-node counts and relation counts are kept; the
+  ** summaries and distributions are derived from those, so the same object
+  ** comes back when read in from a session.
+  */
+  
+  static class Results {
+    
+    private int[] degree_;
+    private long[] triangles_;
+    private int[] core_;
+    private int[] component_;
+    private String[] relations_;
+    private int[] relCounts_;
+    
+    private int numComponents_;
+    private int largestComponent_;
+    private int maxDegree_;
+    private int maxCore_;
+    private long triangleCount_;
+    private double avgClustering_;
+    private double transitivity_;
+    
+    Results(int[] degree, long[] triangles, int[] core, int[] component, String[] relations, int[] relCounts) {
+      degree_ = degree;
+      triangles_ = triangles;
+      core_ = core;
+      component_ = component;
+      relations_ = relations;
+      relCounts_ = relCounts;
+      
+      int numRows = degree.length;
+      int maxComp = -1;
+      long triSum = 0L;
+      long triples = 0L;
+      double ccSum = 0.0;
+      for (int i = 0; i < numRows; i++) {
+        maxDegree_ = Math.max(maxDegree_, degree[i]);
+        maxCore_ = Math.max(maxCore_, core[i]);
+        maxComp = Math.max(maxComp, component[i]);
+        triSum += triangles[i];
+        triples += ((long)degree[i] * (degree[i] - 1)) / 2L;
+        ccSum += getClustering(i);
+      }
+      numComponents_ = maxComp + 1;
+      int[] compSize = new int[numComponents_];
+      for (int i = 0; i < numRows; i++) {
+        compSize[component[i]]++;
+      }
+      for (int i = 0; i < numComponents_; i++) {
+        largestComponent_ = Math.max(largestComponent_, compSize[i]);
+      }
+      // Each triangle is seen from all three of its corners:
+      triangleCount_ = triSum / 3L;
+      transitivity_ = (triples == 0L) ? 0.0 : (double)triSum / (double)triples;
+      avgClustering_ = (numRows == 0) ? 0.0 : ccSum / numRows;
+    }
+    
+    int getNodeCount() {
+      return (degree_.length);
+    }
+    
+    int getDegree(int row) {
+      return (degree_[row]);
+    }
+    
+    long getTriangles(int row) {
+      return (triangles_[row]);
+    }
+    
+    int getCore(int row) {
+      return (core_[row]);
+    }
+    
+    int getComponent(int row) {
+      return (component_[row]);
+    }
+    
+    /***************************************************************************
+    **
+    ** Local clustering coefficient. Zero for nodes with fewer than two neighbors
+    */
+    
+    double getClustering(int row) {
+      long deg = degree_[row];
+      if (deg < 2) {
+        return (0.0);
+      }
+      return ((2.0 * triangles_[row]) / (deg * (deg - 1)));
+    }
+    
+    int getRelationCount() {
+      return (relations_.length);
+    }
+    
+    String getRelation(int ordinal) {
+      return (relations_[ordinal]);
+    }
+    
+    int getLinkCountForRelation(int ordinal) {
+      return (relCounts_[ordinal]);
+    }
+    
+    int getComponentCount() {
+      return (numComponents_);
+    }
+    
+    int getLargestComponent() {
+      return (largestComponent_);
+    }
+    
+    int getMaxDegree() {
+      return (maxDegree_);
+    }
+    
+    int getMaxCore() {
+      return (maxCore_);
+    }
+    
+    long getTriangleCount() {
+      return (triangleCount_);
+    }
+    
+    double getAverageClustering() {
+      return (avgClustering_);
+    }
+    
+    double getTransitivity() {
+      return (transitivity_);
+    }
+    
+    /***************************************************************************
+    **
+    ** Count of nodes for each degree
+    */
+    
+    SortedMap<Integer, Integer> getDegreeDistribution() {
+      return (histogram(degree_));
+    }
+    
+    /***************************************************************************
+    **
+    ** Count of nodes for each core number
+    */
+    
+    SortedMap<Integer, Integer> getCoreDistribution() {
+      return (histogram(core_));
+    }
+    
+    /***************************************************************************
+    **
+    ** Count of components for each component size
+    */
+    
+    SortedMap<Integer, Integer> getComponentSizeDistribution() {
+      int[] compSize = new int[numComponents_];
+      for (int i = 0; i < component_.length; i++) {
+        compSize[component_[i]]++;
+      }
+      return (histogram(compSize));
+    }
+    
+    private SortedMap<Integer, Integer> histogram(int[] vals) {
+      int max = -1;
+      for (int i = 0; i < vals.length; i++) {
+        max = Math.max(max, vals[i]);
+      }
+      int[] counts = new int[max + 1];
+      for (int i = 0; i < vals.length; i++) {
+        counts[vals[i]]++;
+      }
+      TreeMap<Integer, Integer> retval = new TreeMap<Integer, Integer>();
+      for (int i = 0; i <= max; i++) {
+        if (counts[i] != 0) {
+          retval.put(Integer.valueOf(i), Integer.valueOf(counts[i]));
+        }
+      }
+      return (retval);
+    }
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Work over a block of rows. Mark is a scratch array, one per worker, with an
+  ** entry per row (or null if not asked for)
+  */
+  
+  private static abstract class RowWork {
+    abstract void doRows(int first, int last, int[] mark);
+  }
+}
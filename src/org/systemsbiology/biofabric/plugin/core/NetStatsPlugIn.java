@@ -19,22 +19,32 @@
 
 package org.systemsbiology.biofabric.plugin.core;
 
+import java.awt.Dimension;
+import java.awt.Font;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.SortedMap;
 
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
 
 import org.systemsbiology.biofabric.api.io.AttributeExtractor;
+import org.systemsbiology.biofabric.api.io.CharacterEntityMapper;
 import org.systemsbiology.biofabric.api.io.Indenter;
 import org.systemsbiology.biofabric.api.io.PluginWhiteboard;
 import org.systemsbiology.biofabric.api.model.Network;
 import org.systemsbiology.biofabric.api.parser.AbstractFactoryClient;
 import org.systemsbiology.biofabric.api.parser.GlueStick;
 import org.systemsbiology.biofabric.api.util.PluginResourceManager;
+import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
+import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
 import org.systemsbiology.biofabric.plugin.BioFabricToolPlugIn;
+import org.systemsbiology.biofabric.plugin.BioFabricToolPlugInBackgroundCmd;
 import org.systemsbiology.biofabric.plugin.BioFabricToolPlugInCmd;
 import org.systemsbiology.biofabric.plugin.BioFabricToolPlugInData;
 import org.systemsbiology.biofabric.plugin.PlugInManager;
@@ -46,7 +56,9 @@ import org.xml.sax.Attributes;
 
 /****************************************************************************
 **
-** Class for the simple network statistics tool 
+** Class for the network statistics tool. Counts are kept up to date as
+** networks come in; the full statistics are computed in the background on
+** request, and are written out with the session.
 */
 
 public class NetStatsPlugIn implements BioFabricToolPlugIn {
@@ -56,6 +68,10 @@ public class NetStatsPlugIn implements BioFabricToolPlugIn {
   private StatData myData_;
   private String className_;
   private PluginResourceManager rMan_;
+  private NodeAndLinkCounterCmd countCmd_;
+  private NetworkStatsCmd statsCmd_;
+  private PlugInManager pMan_;
+  private Network net_;
   
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -70,7 +86,10 @@ public class NetStatsPlugIn implements BioFabricToolPlugIn {
   
   public NetStatsPlugIn() {
     myCmds_ = new ArrayList<BioFabricToolPlugInCmd>();
-    myCmds_.add(new NodeAndLinkCounterCmd());
+    countCmd_ = new NodeAndLinkCounterCmd();
+    statsCmd_ = new NetworkStatsCmd();
+    myCmds_.add(countCmd_);
+    myCmds_.add(statsCmd_);
     myData_ = new StatData(0, 0, 0);
     className_ = getClass().getName();
  
@@ -107,6 +126,7 @@ public class NetStatsPlugIn implements BioFabricToolPlugIn {
   */
   
   public void installManager(PlugInManager pMan) {
+    pMan_ = pMan;
   	rMan_ = PluginSupportFactory.getResourceManager(className_, pMan);
     rMan_.setPluginBundle("org.systemsbiology.biofabric.plugin.core.NetStats"); 
     return;
@@ -129,10 +149,22 @@ public class NetStatsPlugIn implements BioFabricToolPlugIn {
   */
   
   public void newNetworkInstalled(Network bfn) {
-    for (BioFabricToolPlugInCmd cmd : myCmds_) {
-      NodeAndLinkCounterCmd nalc = (NodeAndLinkCounterCmd)cmd;
-      nalc.setNewNetwork(bfn);
+    //
+    // Statistics just read in from a session belong to the network that comes 
+    // in next. Anything else is stale:
+    //
+    if (myData_.stats != null) {
+      boolean keep = myData_.fromSession && (bfn != null) && 
+                     (bfn.getNodeCount() == myData_.stats.getNodeCount()) &&
+                     (bfn.getLinkCount(false) == myData_.linkCount) &&
+                     (bfn.getLinkCount(true) == myData_.fullShadowLinkCount);
+      if (!keep) {
+        myData_.stats = null;
+      }
     }
+    myData_.fromSession = false;
+    net_ = bfn;
+    countCmd_.setNewNetwork(bfn);
     return;
   }
   
@@ -185,7 +217,40 @@ public class NetStatsPlugIn implements BioFabricToolPlugIn {
     out.print(myData_.linkCount);
     out.print("\" fullShadowLinks=\"");
     out.print(myData_.fullShadowLinkCount);
-    out.println("\" />");
+    NetStatsEngine.Results stats = myData_.stats;
+    if (stats == null) {
+      out.println("\" />");
+    } else {
+      out.println("\" >");
+      ind.up();
+      int numRels = stats.getRelationCount();
+      for (int i = 0; i < numRels; i++) {
+        ind.indent();
+        out.print("<relationStat relation=\"");
+        out.print(CharacterEntityMapper.mapEntities(stats.getRelation(i), false));
+        out.print("\" count=\"");
+        out.print(stats.getLinkCountForRelation(i));
+        out.println("\" />");
+      }
+      int numRows = stats.getNodeCount();
+      for (int i = 0; i < numRows; i++) {
+        ind.indent();
+        out.print("<nodeStat row=\"");
+        out.print(i);
+        out.print("\" degree=\"");
+        out.print(stats.getDegree(i));
+        out.print("\" triangles=\"");
+        out.print(stats.getTriangles(i));
+        out.print("\" core=\"");
+        out.print(stats.getCore(i));
+        out.print("\" component=\"");
+        out.print(stats.getComponent(i));
+        out.println("\" />");
+      }
+      ind.down();
+      ind.indent();
+      out.println("</netStats>");
+    }
     ind.down();
     ind.indent();
     out.print("</");
@@ -214,6 +279,77 @@ public class NetStatsPlugIn implements BioFabricToolPlugIn {
     return;   
   }
   
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Show the statistics report
+  */
+  
+  private void displayStats(JFrame topFrame, NetStatsEngine.Results stats) {
+    StringBuffer buf = new StringBuffer();
+    buf.append(MessageFormat.format(rMan_.getPluginString("netStats.summary"), 
+                                    new Object[] {new Integer(stats.getNodeCount()), 
+                                                  new Integer(myData_.linkCount), 
+                                                  new Integer(stats.getComponentCount()),
+                                                  new Integer(stats.getLargestComponent()),
+                                                  new Integer(stats.getMaxDegree()),
+                                                  new Integer(stats.getMaxCore()),
+                                                  new Long(stats.getTriangleCount()),
+                                                  new Double(stats.getAverageClustering()),
+                                                  new Double(stats.getTransitivity())}));
+    buf.append("\n");
+    appendDistribution(buf, "netStats.degreeDist", stats.getDegreeDistribution());
+    appendDistribution(buf, "netStats.coreDist", stats.getCoreDistribution());
+    appendDistribution(buf, "netStats.componentDist", stats.getComponentSizeDistribution());
+    
+    buf.append("\n");
+    buf.append(rMan_.getPluginString("netStats.relationCounts"));
+    buf.append("\n");
+    int numRels = stats.getRelationCount();
+    for (int i = 0; i < numRels; i++) {
+      buf.append("  ");
+      buf.append(stats.getRelation(i));
+      buf.append(": ");
+      buf.append(stats.getLinkCountForRelation(i));
+      buf.append("\n");
+    }
+    
+    JTextArea area = new JTextArea(buf.toString());
+    area.setEditable(false);
+    area.setFont(new Font("Monospaced", Font.PLAIN, 12));
+    area.setCaretPosition(0);
+    JScrollPane jsp = new JScrollPane(area);
+    jsp.setPreferredSize(new Dimension(500, 400));
+    JOptionPane.showMessageDialog(topFrame, jsp,
+                                  rMan_.getPluginString("netStats.title"),
+                                  JOptionPane.INFORMATION_MESSAGE);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** One distribution for the report
+  */
+  
+  private void appendDistribution(StringBuffer buf, String titleKey, SortedMap<Integer, Integer> dist) {
+    buf.append("\n");
+    buf.append(rMan_.getPluginString(titleKey));
+    buf.append("\n");
+    for (Map.Entry<Integer, Integer> entry : dist.entrySet()) {
+      buf.append("  ");
+      buf.append(entry.getKey());
+      buf.append(": ");
+      buf.append(entry.getValue());
+      buf.append("\n");
+    }
+    return;
+  }
+
   ////////////////////////////////////////////////////////////////////////////
   //
   // INNER CLASSES
@@ -284,6 +420,99 @@ public class NetStatsPlugIn implements BioFabricToolPlugIn {
     }
   }
   
+  /***************************************************************************
+  **
+  ** Command for the full statistics. These are computed once per network, on
+  ** a PlugInManager worker thread, and then just displayed.
+  */
+  
+  public class NetworkStatsCmd implements BioFabricToolPlugInBackgroundCmd {    
+    
+    private Network runNet_;
+    
+    /***************************************************************************
+    **
+    ** Get the name
+    */
+    
+    public String getCommandName() {
+      return (rMan_.getPluginString("command.fullStatsCommand"));
+    }
+
+    /***************************************************************************
+    **
+    ** Perform the operation
+    */
+    
+    public boolean performOperation(JFrame topFrame) {
+      return (pMan_.performCommand(this, topFrame));
+    }
+  
+    /***************************************************************************
+    **
+    ** Answer if command is enabled
+    */
+    
+    public boolean isEnabled() {
+      return (countCmd_.isEnabled());    
+    }
+    
+    /***************************************************************************
+    **
+    ** If we already have the statistics, just show them
+    */
+    
+    public boolean prepareBackgroundOperation(JFrame topFrame) {
+      if (!isEnabled()) {
+        return (false);
+      }
+      if (myData_.stats != null) {
+        displayStats(topFrame, myData_.stats);
+        return (false);
+      }
+      runNet_ = net_;
+      return (true);
+    }
+    
+    /***************************************************************************
+    **
+    ** Compute the statistics
+    */
+    
+    public Object runBackgroundOperation(BTProgressMonitor monitor) throws AsynchExitRequestException {
+      return (NetStatsEngine.compute(runNet_.getGraphView(), monitor));
+    }
+    
+    /***************************************************************************
+    **
+    ** Results are only kept if the network has not changed in the meantime
+    */
+    
+    public void finishBackgroundOperation(JFrame topFrame, Object result) {
+      NetStatsEngine.Results stats = (NetStatsEngine.Results)result;
+      if (runNet_ == net_) {
+        myData_.stats = stats;
+      }
+      runNet_ = null;
+      displayStats(topFrame, stats);
+      return;
+    }
+    
+    /***************************************************************************
+    **
+    ** Cancelled or failed: forget the network we were working on
+    */
+    
+    public void abandonBackgroundOperation(JFrame topFrame) {
+      runNet_ = null;
+      return;
+    }
+    
+    public PluginResourceManager getResourceManager() {
+      return (rMan_);
+    }
+  }
+  
   /***************************************************************************
   **
   ** For XML I/O
@@ -321,11 +550,16 @@ public class NetStatsPlugIn implements BioFabricToolPlugIn {
     int nodeCount;
     int linkCount;
     int fullShadowLinkCount;
+    // Full statistics; null until computed, or read in with a session:
+    NetStatsEngine.Results stats;
+    boolean fromSession;
     
     public StatData(int nodeCount, int linkCount, int fullShadowLinkCount) {
       this.nodeCount = nodeCount;
       this.linkCount = linkCount;
       this.fullShadowLinkCount = fullShadowLinkCount;
+      this.stats = null;
+      this.fromSession = false;
     } 
   }
   
@@ -335,6 +569,18 @@ public class NetStatsPlugIn implements BioFabricToolPlugIn {
   */
   
   public static class NetStatsWorker extends AbstractFactoryClient {
+    
+    //
+    // Per-node values and relation counts, collected until the element closes:
+    //
+    
+    private int[] degree_;
+    private long[] triangles_;
+    private int[] core_;
+    private int[] component_;
+    private int rowsSeen_;
+    private ArrayList<String> relations_;
+    private ArrayList<Integer> relCounts_;
         
     public NetStatsWorker(PluginWhiteboard board) {
       super(board);
@@ -344,11 +590,89 @@ public class NetStatsPlugIn implements BioFabricToolPlugIn {
     protected Object localProcessElement(String elemName, Attributes attrs) throws IOException {
       Object retval = null;
       PluginWhiteboard board = (PluginWhiteboard)this.sharedWhiteboard_;
-      board.setCurrentPlugInData(buildFromXML(elemName, attrs));
-      retval = board.getCurrentPlugInData();
+      if (elemName.equals("relationStat")) {
+        readRelation(elemName, attrs);
+      } else if (elemName.equals("nodeStat")) {
+        readNode(elemName, attrs);
+      } else {
+        StatData data = buildFromXML(elemName, attrs);
+        degree_ = new int[data.nodeCount];
+        triangles_ = new long[data.nodeCount];
+        core_ = new int[data.nodeCount];
+        component_ = new int[data.nodeCount];
+        rowsSeen_ = 0;
+        relations_ = new ArrayList<String>();
+        relCounts_ = new ArrayList<Integer>();
+        board.setCurrentPlugInData(data);
+        retval = board.getCurrentPlugInData();
+      }
       return (retval);
     }
     
+    /***************************************************************************
+    **
+    ** Older sessions have no per-node data. If there is some, it must cover every node
+    */
+    
+    protected void localFinishElement(String elemName) throws IOException {
+      if (!elemName.equals("netStats") || (rowsSeen_ == 0)) {
+        return;
+      }
+      if (rowsSeen_ != degree_.length) {
+        throw new IOException();
+      }
+      PluginWhiteboard board = (PluginWhiteboard)this.sharedWhiteboard_;
+      StatData data = (StatData)board.getCurrentPlugInData();
+      int numRels = relations_.size();
+      String[] rels = new String[numRels];
+      int[] counts = new int[numRels];
+      for (int i = 0; i < numRels; i++) {
+        rels[i] = relations_.get(i);
+        counts[i] = relCounts_.get(i).intValue();
+      }
+      data.stats = new NetStatsEngine.Results(degree_, triangles_, core_, component_, rels, counts);
+      data.fromSession = true;
+      degree_ = null;
+      triangles_ = null;
+      core_ = null;
+      component_ = null;
+      return;
+    }
+    
+    private void readRelation(String elemName, Attributes attrs) throws IOException {
+      String rel = AttributeExtractor.extractAttribute(elemName, attrs, "relationStat", "relation", true);
+      String countStr = AttributeExtractor.extractAttribute(elemName, attrs, "relationStat", "count", true);
+      try {
+        relCounts_.add(Integer.valueOf(countStr));
+      } catch (NumberFormatException nfex) {
+        throw new IOException();
+      }
+      relations_.add(CharacterEntityMapper.unmapEntities(rel, false));
+      return;
+    }
+    
+    private void readNode(String elemName, Attributes attrs) throws IOException {
+      String rowStr = AttributeExtractor.extractAttribute(elemName, attrs, "nodeStat", "row", true);
+      String degStr = AttributeExtractor.extractAttribute(elemName, attrs, "nodeStat", "degree", true);
+      String triStr = AttributeExtractor.extractAttribute(elemName, attrs, "nodeStat", "triangles", true);
+      String coreStr = AttributeExtractor.extractAttribute(elemName, attrs, "nodeStat", "core", true);
+      String compStr = AttributeExtractor.extractAttribute(elemName, attrs, "nodeStat", "component", true);
+      try {
+        int row = Integer.parseInt(rowStr);
+        if ((row < 0) || (row >= degree_.length)) {
+          throw new IOException();
+        }
+        degree_[row] = Integer.parseInt(degStr);
+        triangles_[row] = Long.parseLong(triStr);
+        core_[row] = Integer.parseInt(coreStr);
+        component_[row] = Integer.parseInt(compStr);
+      } catch (NumberFormatException nfex) {
+        throw new IOException();
+      }
+      rowsSeen_++;
+      return;
+    }
+    
     private StatData buildFromXML(String elemName, Attributes attrs) throws IOException {
       String nodeStr = AttributeExtractor.extractAttribute(elemName, attrs, "netStats", "nodes", true);
       String linkStr = AttributeExtractor.extractAttribute(elemName, attrs, "netStats", "links", true);
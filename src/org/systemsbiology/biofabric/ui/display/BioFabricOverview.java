@@ -34,6 +34,8 @@ import java.awt.geom.Ellipse2D;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+
 import javax.swing.JPanel;
 
 /****************************************************************************
@@ -52,6 +54,18 @@ public class BioFabricOverview {
   private final static float MOUSE_RADIUS_ = 10.0F;
   private final static float MOUSE_XHAIR_ = 15.0F;
   private final static float BOX_XHAIR_ = 15.0F;
+  
+  //
+  // Room around overlay shapes for the stroke and antialiasing:
+  //
+  
+  private final static int OVERLAY_PAD_ = 3;
+  
+  //
+  // Stop halving the image when it gets this small:
+  //
+  
+  private final static int MIN_MIP_SIZE_ = 16;
     
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -68,6 +82,7 @@ public class BioFabricOverview {
   private JPanel myPanel_;
   private Dimension currSize_;
   private BufferedImage img_;
+  private BufferedImage[] mips_;
   private BufferedImage scaledImg_;
   @SuppressWarnings("unused")
   private Point navFocus_;
@@ -82,6 +97,9 @@ public class BioFabricOverview {
   private boolean hideMag_;
   private CardLayout myCard_;
   private PaintPanel pPan_;
+  private Rectangle mouseDirty_;
+  private Rectangle viewDirty_;
+  private Rectangle magDirty_;
   
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -102,6 +120,7 @@ public class BioFabricOverview {
     myPanel_.setBackground(Color.white);
     scaledImg_ = null;
     img_ = null;
+    mips_ = null;
     navFocus_ = new Point(0, 0);
     scaledImgOrigin_ = new Point(0, 0);
     mouseIn_ = false;
@@ -156,7 +175,7 @@ public class BioFabricOverview {
     navFocus_ = cprc;
     mousePoint_.setLocation(center);
     mouseIn_ = true;
-    myPanel_.repaint();
+    updateOverlay();
     return;
   }
   
@@ -167,7 +186,7 @@ public class BioFabricOverview {
 
   public void setViewInWorld(Rectangle2D viewInWorld) {
     viewInWorld_.setFrame(viewInWorld);
-    myPanel_.repaint();
+    updateOverlay();
     return;
   }
   
@@ -178,7 +197,7 @@ public class BioFabricOverview {
 
   public void setMagnifyView(Rectangle magInWorld) {
     magInWorld_.setBounds(magInWorld);
-    myPanel_.repaint();
+    updateOverlay();
     return;
   }
     
@@ -190,17 +209,19 @@ public class BioFabricOverview {
   public void setMouseIn(boolean isIn, boolean magIgnoring) {
     mouseIn_ = isIn;
     hideMag_ = (!isIn && !magIgnoring);
-    myPanel_.repaint();
+    updateOverlay();
     return;
   }
   
   /***************************************************************************
   ** 
-  ** Install a model
+  ** Install a model. We build the mipmaps here once, so that resizing only
+  ** needs to scale down from the closest one.
   */
 
   public void installImage(BufferedImage img, Rectangle worldRect) {
     img_ = img;
+    mips_ = (img == null) ? null : buildMipmaps(img);
     scaledImg_ = null;
     worldRect_.setBounds(worldRect);
     resizeImage();
@@ -208,6 +229,43 @@ public class BioFabricOverview {
     return;
   }
   
+  /***************************************************************************
+  **
+  ** Build a chain of images, each half the size of the one before
+  */
+
+  private BufferedImage[] buildMipmaps(BufferedImage img) {
+    ArrayList<BufferedImage> chain = new ArrayList<BufferedImage>();
+    chain.add(img);
+    BufferedImage last = img;
+    while (((last.getWidth() / 2) >= MIN_MIP_SIZE_) && ((last.getHeight() / 2) >= MIN_MIP_SIZE_)) {
+      BufferedImage half = new BufferedImage(last.getWidth() / 2, last.getHeight() / 2, BufferedImage.TYPE_INT_RGB);
+      Graphics2D g2 = half.createGraphics();
+      g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g2.drawImage(last, 0, 0, half.getWidth(), half.getHeight(), null);
+      g2.dispose();
+      chain.add(half);
+      last = half;
+    }
+    return (chain.toArray(new BufferedImage[chain.size()]));
+  }
+  
+  /***************************************************************************
+  **
+  ** Smallest mipmap that is at least as big as the requested size
+  */
+
+  private BufferedImage closestMipmap(int width, int height) {
+    BufferedImage retval = mips_[0];
+    for (int i = 1; i < mips_.length; i++) {
+      if ((mips_[i].getWidth() < width) || (mips_[i].getHeight() < height)) {
+        break;
+      }
+      retval = mips_[i];
+    }
+    return (retval);
+  }
+  
   /***************************************************************************
   **
   ** resize image
@@ -252,8 +310,11 @@ public class BioFabricOverview {
     scaledImgOrigin_.setLocation(startX, startY);
     scaledImg_ = new BufferedImage(imgWidth, imgHeight, BufferedImage.TYPE_INT_RGB);
     Graphics2D g2 = scaledImg_.createGraphics();
-    g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-    g2.drawImage(img_, 0, 0, imgWidth, imgHeight, null);
+    //
+    // The mipmap is less than twice the size we need, so bilinear does fine here:
+    //
+    g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    g2.drawImage(closestMipmap(imgWidth, imgHeight), 0, 0, imgWidth, imgHeight, null);
     g2.dispose();
   
     double zoomHW = imgWidth / worldRect_.getWidth();
@@ -268,7 +329,109 @@ public class BioFabricOverview {
     transform_.translate((worldRect_.getWidth() / 2.0) * zoom_, (worldRect_.getHeight() / 2.0) * zoom_);
     transform_.scale(zoom_, zoom_);
     transform_.translate(-worldRect_.getCenterX(), -worldRect_.getCenterY()); 
+    
+    //
+    // Image and overlay are all going to be redrawn:
+    //
+    
+    mouseDirty_ = mouseBounds();
+    viewDirty_ = boxBounds(viewInWorld_);
+    magDirty_ = (hideMag_) ? null : boxBounds(magInWorld_);
+    return;
+  } 
+  
+  /***************************************************************************
+  **
+  ** The overlay moves with the mouse, and the image is expensive to draw in full. 
+  ** So we just repaint where the overlay was and where it is now, and only if
+  ** that has changed, since lots of mouse motion maps to the same overview pixel.
+  */
+
+  private void updateOverlay() {
+    if (transform_ == null) {
+      myPanel_.repaint();
+      return;
+    }
+    Rectangle newMouse = mouseBounds();
+    Rectangle newView = boxBounds(viewInWorld_);
+    Rectangle newMag = (hideMag_) ? null : boxBounds(magInWorld_);
+    repaintIfChanged(mouseDirty_, newMouse);
+    repaintIfChanged(viewDirty_, newView);
+    repaintIfChanged(magDirty_, newMag);
+    mouseDirty_ = newMouse;
+    viewDirty_ = newView;
+    magDirty_ = newMag;
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Repaint old and new overlay areas if they differ
+  */
+
+  private void repaintIfChanged(Rectangle oldBounds, Rectangle newBounds) {
+    if ((oldBounds == null) ? (newBounds == null) : oldBounds.equals(newBounds)) {
+      return;
+    }
+    if (oldBounds != null) {
+      pPan_.repaint(oldBounds);
+    }
+    if (newBounds != null) {
+      pPan_.repaint(newBounds);
+    }
     return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Panel area covered by the mouse marker
+  */
+
+  private Rectangle mouseBounds() {
+    if ((mousePoint_ == null) || !mouseIn_) {
+      return (null);
+    }
+    Point viewP = pointToViewport(mousePoint_);
+    int reach = (int)Math.ceil(Math.max(MOUSE_RADIUS_, MOUSE_XHAIR_)) + OVERLAY_PAD_;
+    return (new Rectangle(viewP.x + scaledImgOrigin_.x - reach, viewP.y + scaledImgOrigin_.y - reach, 
+                          2 * reach + 1, 2 * reach + 1));
+  }
+  
+  /***************************************************************************
+  **
+  ** Panel area covered by a box and its crosshair
+  */
+
+  private Rectangle boxBounds(Rectangle2D inWorld) {
+    if (inWorld == null) {
+      return (null);
+    }
+    Point viewUL = pointToViewport(new Point2D.Double(inWorld.getMinX(), inWorld.getMinY()));
+    Point viewLR = pointToViewport(new Point2D.Double(inWorld.getMaxX(), inWorld.getMaxY()));
+    int vcx = (viewUL.x + viewLR.x) / 2;
+    int vcy = (viewUL.y + viewLR.y) / 2;
+    int xhair = (int)Math.ceil(BOX_XHAIR_);
+    Rectangle retval = new Rectangle(viewUL.x, viewUL.y, viewLR.x - viewUL.x, viewLR.y - viewUL.y);
+    retval.add(new Rectangle(vcx - xhair, vcy - xhair, 2 * xhair, 2 * xhair));
+    retval.translate(scaledImgOrigin_.x, scaledImgOrigin_.y);
+    retval.grow(OVERLAY_PAD_, OVERLAY_PAD_);
+    retval.width++;
+    retval.height++;
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Gets given point in viewport coordinates
+  */
+  
+  private Point pointToViewport(Point2D worldPoint) {
+    Point2D newPoint = new Point2D.Double(worldPoint.getX(), worldPoint.getY());
+    transform_.transform(newPoint, newPoint);
+    int x = (int)(Math.round(newPoint.getX()));
+    int y = (int)(Math.round(newPoint.getY()));
+    Point pt = new Point(x, y);
+    return (pt);
   } 
 
   /***************************************************************************
@@ -308,20 +471,6 @@ public class BioFabricOverview {
       return;
     }
     
-    /***************************************************************************
-    **
-    ** Gets given point in viewport coordinates
-    */
-    
-    private Point pointToViewport(Point2D worldPoint) {
-      Point2D newPoint = new Point2D.Double(worldPoint.getX(), worldPoint.getY());
-      transform_.transform(newPoint, newPoint);
-      int x = (int)(Math.round(newPoint.getX()));
-      int y = (int)(Math.round(newPoint.getY()));
-      Point pt = new Point(x, y);
-      return (pt);
-    } 
-    
     /***************************************************************************
     **
     ** Drawing core
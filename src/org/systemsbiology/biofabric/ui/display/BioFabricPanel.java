@@ -44,6 +44,8 @@ import java.io.File;
 import java.util.ArrayList;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -61,6 +63,7 @@ import javax.swing.JScrollPane;
 import javax.swing.JViewport;
 
 import org.systemsbiology.biofabric.api.io.BuildData;
+import org.systemsbiology.biofabric.api.io.Indenter;
 import org.systemsbiology.biofabric.api.model.AnnotationSet;
 import org.systemsbiology.biofabric.api.model.AnnotsForPos;
 import org.systemsbiology.biofabric.api.model.NetNode;
@@ -93,6 +96,7 @@ import org.systemsbiology.biofabric.ui.render.BucketRenderer;
 import org.systemsbiology.biofabric.ui.render.BufBuildDrawer;
 import org.systemsbiology.biofabric.ui.render.ImgAndBufPool;
 import org.systemsbiology.biofabric.ui.render.BufferBuilder;
+import org.systemsbiology.biofabric.ui.render.FabricImageRenderer;
 import org.systemsbiology.biofabric.ui.render.PaintCacheSmall;
 import org.systemsbiology.biofabric.util.QuadTree;
 import org.systemsbiology.biofabric.util.UiUtil;
@@ -105,14 +109,6 @@ import org.systemsbiology.biofabric.util.UiUtil;
 public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
                                        BufBuildDrawer, BufferBuilder.BufferBuilderClient {
   
-  ////////////////////////////////////////////////////////////////////////////
-  //
-  // PRIVATE CONSTANTS
-  //
-  //////////////////////////////////////////////////////////////////////////// 
-
-  private static final double PAD_MULT_ = 0.20; 
-  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC CONSTANTS
@@ -203,6 +199,8 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
   private PopupMenuControl popCtrl_;
   
   private BucketRenderer bucketRend_;
+  private FabricColorGenerator colGen_;
+  private ParkedView otherView_;
 
   
   private Rectangle clipRect_;
@@ -278,6 +276,8 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
     cursorMgr_ = (headless) ? null : new CursorManager(myPanel_, false);
     popCtrl_ = (headless) ? null : new PopupMenuControl(myPanel_);
     bucketRend_ = bRend;
+    colGen_ = colGen;
+    otherView_ = null;
     staleImages_ = new ArrayList<BufferedImage>();
   }
 
@@ -389,6 +389,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
     if (bufferBuilder_ != null) {
       bufferBuilder_.release();
     }
+    setOtherView(null);
     painter_.clear();
     bfn_ = null;
     if (fmt_ != null) {
@@ -416,6 +417,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
     if (bufferBuilder_ != null) {
       bufferBuilder_.release();
     }
+    setOtherView(null);
     return;
   }
   
@@ -437,12 +439,39 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
     return;
   } 
  
+  /***************************************************************************
+  **
+  ** The view has changed. Get the buffer builder working on the tiles we need now.
+  */
+  
+  public void viewportChanged() {
+    if ((bfn_ == null) || (bufferBuilder_ == null) || zoomMap_.isEmpty()) {
+      return;
+    }
+    Double zoomVal = Double.valueOf(zoomer_.getZoomFactor());
+    Integer numObj = zoomMap_.get(zoomVal);
+    //
+    // Wide views use the top image, and views between fixed zoom levels or past the last one 
+    // are drawn directly, so no tiles are needed for either:
+    //
+    int depth = (numObj == null) ? -1 : numObj.intValue();
+    bufferBuilder_.prioritizeForView(depth, getViewInWorld());
+    return;
+  } 
+ 
   /***************************************************************************
   **
   ** Set the buffer builder
   */
   
   public void setBufBuilder(BufferBuilder bb) {
+    //
+    // Usually reset() has let go of the old one already. If not, it still has a 
+    // worker thread and maybe an open tile store to give up:
+    //
+    if ((bufferBuilder_ != null) && (bufferBuilder_ != bb)) {
+      bufferBuilder_.release();
+    }
     bufferBuilder_ = bb;
     return;
   }
@@ -455,6 +484,124 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
   public BufferBuilder getBufBuilder() {
     return (bufferBuilder_);
   }  
+
+  /***************************************************************************
+  **
+  ** Snapshot of the current layout, used to figure out what a relayout changed.
+  ** Null if there is no model.
+  */
+  
+  public LayoutSnapshot snapshotLayout() {
+    if ((bfn_ == null) || (nodeNameLocations_ == null)) {
+      return (null);
+    }
+    boolean showShadows = FabricDisplayOptionsManager.getMgr().getDisplayOptions().getDisplayShadows();
+    return (new LayoutSnapshot(bfn_, showShadows, nodeNameLocations_, drainNameLocations_));
+  }  
+ 
+  /***************************************************************************
+  **
+  ** Set aside everything drawn for the current view (paint cache, bucket 
+  ** renderer, selection lookups, and tiles), so that it can be put back if the
+  ** display comes back to the same options. The panel is left with fresh, empty
+  ** paint objects; reset() is expected next. Null if there is no model.
+  */
+  
+  public ParkedView parkView() {
+    if ((bfn_ == null) || (nodeNameLocations_ == null)) {
+      return (null);
+    }
+    BufferBuilder.TileCarryover tiles = null;
+    if (bufferBuilder_ != null) {
+      tiles = bufferBuilder_.handOffTiles();
+      bufferBuilder_.release();
+      bufferBuilder_ = null;
+    }
+    FabricDisplayOptions fdo = FabricDisplayOptionsManager.getMgr().getDisplayOptions();
+    ParkedView retval = new ParkedView(bfn_, fdo.getDisplayShadows(), optionsKey(), painter_, bucketRend_, 
+                                       nodeNameLocations_, drainNameLocations_, forSelections_, 
+                                       worldRectNetAR_, tiles);
+    painter_ = new PaintCacheSmall(colGen_);
+    if (fmt_ != null) {
+      fmt_.setPainters(painter_, painter_);
+    }
+    bucketRend_ = new BucketRenderer(colGen_);
+    nodeNameLocations_ = null;
+    drainNameLocations_ = null;
+    forSelections_ = null;
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Take the view parked by the last shadow toggle. May be null.
+  */
+  
+  public ParkedView takeOtherView() {
+    ParkedView retval = otherView_;
+    otherView_ = null;
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Hang onto a parked view, dropping any we already had.
+  */
+  
+  public void setOtherView(ParkedView pv) {
+    if ((otherView_ != null) && (otherView_ != pv)) {
+      otherView_.discard(bis_);
+    }
+    otherView_ = pv;
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Install a model using a parked view, which is used up either way. Answers
+  ** false, after dropping the view, if it was not drawn for this network with 
+  ** the current display options; installModel() is then needed. If it answers
+  ** true, the parked tiles are ready to be handed to the next buffer builder.
+  */
+  
+  public boolean installParkedView(BioFabricNetwork bfn, ParkedView pv) {
+    FabricDisplayOptions fdo = FabricDisplayOptionsManager.getMgr().getDisplayOptions();
+    if (!pv.fits(bfn, fdo.getDisplayShadows(), optionsKey())) {
+      pv.discard(bis_);
+      return (false);
+    }
+    bfn_ = bfn;
+    painter_.clear();
+    painter_ = pv.painter;
+    if (fmt_ != null) {
+      fmt_.setPainters(painter_, painter_);
+    }
+    bucketRend_ = pv.bucketRend;
+    nodeNameLocations_ = pv.nodeNameLocations;
+    drainNameLocations_ = pv.drainNameLocations;
+    forSelections_ = pv.forSelections;
+    worldRectNetAR_ = pv.worldRectNetAR;
+    zoomer_.setWorldRect(UiUtil.rectFromRect2D(worldRectNetAR_));
+    pv.painter = null;
+    pv.bfn = null;
+    if (fnt_ != null) {
+      fnt_.haveAModel(true);
+    }
+    return (true);
+  }
+  
+  /***************************************************************************
+  **
+  ** The display options, as written out, for matching up parked views
+  */
+  
+  private String optionsKey() {
+    StringWriter sw = new StringWriter();
+    PrintWriter out = new PrintWriter(sw);
+    FabricDisplayOptionsManager.getMgr().getDisplayOptions().writeXML(out, new Indenter(out, Indenter.DEFAULT_INDENT));
+    out.flush();
+    return (sw.toString());
+  }
  
   /***************************************************************************
   **
@@ -1257,7 +1404,9 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
   public void changePaint(BTProgressMonitor monitor) throws AsynchExitRequestException {
     if (bufferBuilder_ != null) {
       bufferBuilder_.release();
-    }    
+    }
+    // Parked view has the old colors:
+    setOtherView(null);
     if (bfn_ == null) {
       return;
     }
@@ -1265,7 +1414,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
     boolean shadeNodes = fdo.getShadeNodes();
     boolean showShadows = fdo.getDisplayShadows();
    
-    BioFabricNetwork.Extents ext = new BioFabricNetwork.Extents(bfn_, monitor);
+    BioFabricNetwork.Extents ext = bfn_.getExtents();
     painter_.buildObjCache(bfn_.getNodeDefList(), bfn_.getLinkDefList(showShadows), shadeNodes, 
 									         showShadows, ext, new HashMap<NetNode, Rectangle2D>(), 
 									         new HashMap<NetNode, List<Rectangle2D>>(), worldRectNetAR_, 
@@ -1297,20 +1446,14 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
  
     nodeNameLocations_ = new HashMap<NetNode, Rectangle2D>();
     drainNameLocations_ = new HashMap<NetNode, List<Rectangle2D>>();
-    BioFabricNetwork.Extents ext = new BioFabricNetwork.Extents(bfn_, monitor);
+    BioFabricNetwork.Extents ext = bfn_.getExtents();
     Rectangle2D fullNetRect = painter_.buildObjCache(bfn_.getNodeDefList(), bfn_.getLinkDefList(showShadows), 
 													    		                   shadeNodes, showShadows, ext, nodeNameLocations_, 
 													    		                   drainNameLocations_, linksAndNodes, 
 													    		                   bfn_.getNodeAnnotations(), 
 													    		                   bfn_.getLinkAnnotations(Boolean.valueOf(showShadows)), monitor);
     
-    double ulPtx = PAD_MULT_ * fullNetRect.getWidth();
-    double ulPty = PAD_MULT_ * fullNetRect.getHeight();
-    
-    worldRectNetAR_ = new Rectangle2D.Double(fullNetRect.getX() - ulPtx, fullNetRect.getY() - ulPty,
-    		                                     fullNetRect.getWidth() + (2.0 * ulPtx), 
-    		                                     fullNetRect.getHeight()+ (2.0 * ulPty));
-    UiUtil.force2DToGrid(worldRectNetAR_, GRID_SIZE);
+    worldRectNetAR_ = FabricImageRenderer.paddedWorldRect(fullNetRect);
     
     zoomer_.setWorldRect(UiUtil.rectFromRect2D(worldRectNetAR_));
  
@@ -1542,35 +1685,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
   
   public boolean drawForBuffer(BufferedImage bi, Rectangle2D clip, Dimension screenDim, 
   		                         Rectangle2D worldRec, int heightPad, double linksPerPixel) { 
-  	Graphics2D g2 = bi.createGraphics();
-    g2.setColor(Color.WHITE);
-    g2.fillRect(0, 0, screenDim.width, screenDim.height + heightPad);
-    double zoomH = screenDim.getWidth() / worldRec.getWidth();
-    double zoomV = screenDim.getHeight() / worldRec.getHeight();
-    double zoom = Math.max(zoomH, zoomV); //Math.min(zoomH, zoomV);
-    Point2D centerW = new Point2D.Double(worldRec.getX() + (worldRec.getWidth() / 2.0), worldRec.getY() + (worldRec.getHeight() / 2.0));
-    AffineTransform transform = new AffineTransform();
-    transform.translate(screenDim.getWidth() / 2.0, screenDim.getHeight() / 2.0);
-    transform.scale(zoom, zoom);
-    transform.translate(-centerW.getX(), -centerW.getY());
-
-    g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-    g2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
-    BasicStroke selectedStroke = new BasicStroke(PaintCacheSmall.STROKE_SIZE, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER);    
-    g2.setStroke(selectedStroke);
-    g2.setTransform(transform); 
-    boolean retval = painter_.paintIt(g2, UiUtil.rectFromRect2D(clip), null);
-    
-    // To debug sizing problems, this draws a green bounding rectangle:
-    //AffineTransform transformx = new AffineTransform();
-    //g2.setTransform(transformx);
-    //BasicStroke selectedStrokex = new BasicStroke(1, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER);    
-    //g2.setStroke(selectedStrokex);  
-    //g2.setColor(Color.GREEN);
-    //g2.drawRect(0, 0, screenDim.width - 1, screenDim.height - 1);
-
-    g2.dispose();
-    return (retval);
+    return (FabricImageRenderer.drawForBuffer(painter_, bi, clip, screenDim, worldRec, heightPad));
   }
   
   /***************************************************************************
@@ -2494,12 +2609,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
   private void exportGuts(Object outObj, String format, ImageExporter.ResolutionSettings res, double zoom, Dimension size) throws IOException { 
     
     Rectangle worldPiece = UiUtil.rectFromRect2D(worldRectNetAR_);
-    Dimension useSize = (size == null) ? new Dimension((int)(worldPiece.width * zoom), (int)(worldPiece.height * zoom)) : size;
-           
-    BufferedImage bi = new BufferedImage(useSize.width, useSize.height, BufferedImage.TYPE_INT_RGB);
-    drawForBuffer(bi, worldPiece, useSize, worldPiece, 0, 0.0);  
-    ImageExporter iex = new ImageExporter();
-    iex.export(outObj, bi, format, res);    
+    FabricImageRenderer.exportImage(painter_, worldPiece, outObj, format, res, zoom, size);
     return;
   }
  
@@ -2613,6 +2723,77 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
     }
   }  
   
+  /***************************************************************************
+  **
+  ** What was drawn for one view of the network, set aside while the other
+  ** shadow setting is being shown
+  */  
+  
+  public static class ParkedView {
+    private BioFabricNetwork bfn;
+    private boolean showShadows;
+    private String optionsKey;
+    private PaintCacheSmall painter;
+    private BucketRenderer bucketRend;
+    private Map<NetNode, Rectangle2D> nodeNameLocations;
+    private Map<NetNode, List<Rectangle2D>> drainNameLocations;
+    private QuadTree forSelections;
+    private Rectangle2D worldRectNetAR;
+    private BufferBuilder.TileCarryover tiles;
+    
+    ParkedView(BioFabricNetwork bfn, boolean showShadows, String optionsKey, 
+               PaintCacheSmall painter, BucketRenderer bucketRend,
+               Map<NetNode, Rectangle2D> nodeNameLocations, 
+               Map<NetNode, List<Rectangle2D>> drainNameLocations, 
+               QuadTree forSelections, Rectangle2D worldRectNetAR, 
+               BufferBuilder.TileCarryover tiles) {
+      this.bfn = bfn;
+      this.showShadows = showShadows;
+      this.optionsKey = optionsKey;
+      this.painter = painter;
+      this.bucketRend = bucketRend;
+      this.nodeNameLocations = nodeNameLocations;
+      this.drainNameLocations = drainNameLocations;
+      this.forSelections = forSelections;
+      this.worldRectNetAR = worldRectNetAR;
+      this.tiles = tiles;
+    }
+    
+    boolean fits(BioFabricNetwork forNet, boolean forShadows, String forOptions) {
+      return ((bfn != null) && bfn.sharesLayoutWith(forNet) && 
+              (showShadows == forShadows) && optionsKey.equals(forOptions));
+    }
+    
+    /***************************************************************************
+    **
+    ** Get the parked tiles; may be null. The caller now owns them.
+    */
+    
+    public BufferBuilder.TileCarryover takeTiles() {
+      BufferBuilder.TileCarryover retval = tiles;
+      tiles = null;
+      return (retval);
+    }
+    
+    /***************************************************************************
+    **
+    ** Nobody wants this view. Let go of the tiles and the paint cache.
+    */
+    
+    public void discard(ImgAndBufPool bis) {
+      if (tiles != null) {
+        tiles.discard(bis);
+        tiles = null;
+      }
+      if (painter != null) {
+        painter.clear();
+        painter = null;
+      }
+      bfn = null;
+      return;
+    }
+  }
+  
   /***************************************************************************
   **
   ** Tour status
@@ -3015,6 +3196,7 @@ public class BioFabricPanel implements ZoomTarget, ZoomPresentation, Printable,
         MouseLocInfo vals = buildMouseLocation(cprc);
         myLocation_.setNodeAndLink(vals);
         mov_.showForNode(vals);
+        mov_.prefetchAroundRow(bfn_, cprc.y);
         if (collectingZoomMode_) {
           if (firstZoomPoint_ != null) {
             Point2D lpw = viewToWorld(firstZoomPoint_);
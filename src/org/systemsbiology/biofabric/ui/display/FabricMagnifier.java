@@ -32,6 +32,9 @@ import java.awt.RenderingHints;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+
 import javax.swing.JPanel;
 
 import org.systemsbiology.biofabric.ui.FabricColorGenerator;
@@ -57,6 +60,19 @@ public class FabricMagnifier extends JPanel {
   public static final int MAX_SIZE = 10;
   public static final int MAG_GRID = 20;
   
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+  
+  //
+  // Cached rasters extend past the view by this fraction of the view size on
+  // each side, so small moves are just a shifted copy:
+  //
+  
+  private static final int MARGIN_DIVISOR_ = 4;
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE INSTANCE MEMBERS
@@ -77,7 +93,8 @@ public class FabricMagnifier extends JPanel {
   private boolean mouseIn_;
   private boolean byTour_;
   private BioFabricOverview bfo_;
-  private BufferedImage bim_;
+  private RegionRaster baseRaster_;
+  private RegionRaster selRaster_;
   private PaintCacheSmall.FloaterSet floaters_;
   private int currSize_;
   private static final long serialVersionUID = 1L;
@@ -109,6 +126,8 @@ public class FabricMagnifier extends JPanel {
     floaters_ = null;
     worldRec_ = new Rectangle();
     clipRec_= new Rectangle();
+    baseRaster_ = new RegionRaster();
+    selRaster_ = new RegionRaster();
   }
 
   ////////////////////////////////////////////////////////////////////////////
@@ -410,7 +429,8 @@ public class FabricMagnifier extends JPanel {
 
   /***************************************************************************
   **
-  ** Drawing core
+  ** Drawing core. The fabric and the selection overlay each come out of a
+  ** cached raster, which only gets drawn into for the parts that scroll into view.
   */
 
   private void drawingGuts(Graphics g) {
@@ -421,19 +441,25 @@ public class FabricMagnifier extends JPanel {
       return;
     }
     Graphics2D g2 = (Graphics2D)g;   
-    g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-    g2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
-    AffineTransform saveTrans = g2.getTransform();    
-    g2.transform(miniTrans_);
-    BasicStroke selectedStroke = new BasicStroke(PaintCacheSmall.STROKE_SIZE, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER);    
-    g2.setStroke(selectedStroke);
-    painter_.paintIt(g2, clipRec_, null);
-    g2.setTransform(saveTrans);
+    Dimension viewDim = getSize();
+    if ((viewDim.width <= 0) || (viewDim.height <= 0)) {
+      return;
+    }
+    double zoom = miniTrans_.getScaleX();
+    Point2D viewOrigin = new Point2D.Double(center_.getX() - ((viewDim.getWidth() / 2.0) / zoom), 
+                                            center_.getY() - ((viewDim.getHeight() / 2.0) / zoom));
+    List<Object> baseKey = Arrays.asList(new Object[] {painter_, Integer.valueOf(painter_.getGeneration())});
+    baseRaster_.update(viewDim, zoom, viewOrigin, baseKey, new BaseLayer());
+    baseRaster_.draw(g2, viewOrigin);
     
     if ((selections_ != null) && selections_.somethingToPaint()) {
-      drawSelections(g2, clipRec_);
+      drawSelections(g2, viewDim, zoom, viewOrigin);
     }
     if (floaters_ != null) {
+      g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      g2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+      BasicStroke selectedStroke = new BasicStroke(PaintCacheSmall.STROKE_SIZE, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER);    
+      g2.setStroke(selectedStroke);
       g2.transform(miniTrans_);
       painter_.drawFloater(g2, floaters_); 
     }
@@ -445,28 +471,225 @@ public class FabricMagnifier extends JPanel {
   ** Draw the selections as cleared areas in a partially opaque overlay
   */
   
-  public void drawSelections(Graphics2D g2, Rectangle clip) {
-    
+  private void drawSelections(Graphics2D g2, Dimension viewDim, double zoom, Point2D viewOrigin) {
     FabricDisplayOptions fdo = FabricDisplayOptionsManager.getMgr().getDisplayOptions();
-  
-    Dimension viewDim = getSize();
-    
-    if ((bim_ == null) || (bim_.getHeight() != viewDim.height) || (bim_.getWidth() != viewDim.width)) {
-      bim_ = new BufferedImage(viewDim.width, viewDim.height, BufferedImage.TYPE_INT_ARGB);
-    }
-    Graphics2D ig2 = bim_.createGraphics();
-    ig2.setTransform(new AffineTransform());
     Color drawCol = new Color(1.0f, 1.0f, 1.0f, (float)fdo.getSelectionOpaqueLevel()); 
-    ig2.setBackground(drawCol);
-    ig2.clearRect(0, 0, viewDim.width, viewDim.height);
-    ig2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-    ig2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
-    BasicStroke selectedStroke = new BasicStroke(PaintCacheSmall.STROKE_SIZE, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER);    
-    ig2.setStroke(selectedStroke);
-    ig2.setTransform(miniTrans_);
-    ig2.setComposite(AlphaComposite.Src);
-    selectionPainter_.paintIt(ig2, clip, selections_);
-    g2.drawImage(bim_, 0, 0, viewDim.width, viewDim.height, null);
+    List<Object> selKey = Arrays.asList(new Object[] {selectionPainter_, Integer.valueOf(selectionPainter_.getGeneration()), 
+                                                      selections_, drawCol});
+    selRaster_.update(viewDim, zoom, viewOrigin, selKey, new SelectionLayer(drawCol));
+    selRaster_.draw(g2, viewOrigin);
     return;
   } 
+  
+  /***************************************************************************
+  **
+  ** Draws a piece of a cached raster
+  */
+  
+  private interface Layer {
+    
+    /***************************************************************************
+    **
+    ** Fill the given pixels of the raster. The graphics are clipped to them, and 
+    ** the world clip covers them with a grid cell to spare.
+    */
+    
+    void render(Graphics2D rg2, Rectangle pixels, Rectangle worldClip);
+    
+    /***************************************************************************
+    **
+    ** Answer if the raster needs an alpha channel
+    */
+    
+    boolean isTranslucent();
+  }
+  
+  /***************************************************************************
+  **
+  ** The fabric itself
+  */
+  
+  private class BaseLayer implements Layer {
+    
+    public void render(Graphics2D rg2, Rectangle pixels, Rectangle worldClip) {
+      AffineTransform rasterTrans = rg2.getTransform();
+      rg2.setTransform(new AffineTransform());
+      rg2.setColor(getBackground());
+      rg2.fill(pixels);
+      rg2.setTransform(rasterTrans);
+      rg2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      rg2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+      BasicStroke selectedStroke = new BasicStroke(PaintCacheSmall.STROKE_SIZE, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER);    
+      rg2.setStroke(selectedStroke);
+      painter_.paintIt(rg2, worldClip, null);
+      return;
+    }
+    
+    public boolean isTranslucent() {
+      return (false);
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** The selection overlay
+  */
+  
+  private class SelectionLayer implements Layer {
+    
+    private Color drawCol_;
+    
+    SelectionLayer(Color drawCol) {
+      drawCol_ = drawCol;
+    }
+    
+    public void render(Graphics2D rg2, Rectangle pixels, Rectangle worldClip) {
+      AffineTransform rasterTrans = rg2.getTransform();
+      rg2.setTransform(new AffineTransform());
+      rg2.setComposite(AlphaComposite.Src);
+      rg2.setColor(drawCol_);
+      rg2.fill(pixels);
+      rg2.setTransform(rasterTrans);
+      rg2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      rg2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+      BasicStroke selectedStroke = new BasicStroke(PaintCacheSmall.STROKE_SIZE, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER);    
+      rg2.setStroke(selectedStroke);
+      selectionPainter_.paintIt(rg2, worldClip, selections_);
+      return;
+    }
+    
+    public boolean isTranslucent() {
+      return (true);
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** A raster covering the view plus a margin. When the view moves, we shift 
+  ** what we have by whole pixels and only render the strips that come into 
+  ** view. Any change in size, zoom, or content means starting over.
+  */
+  
+  private static class RegionRaster {
+    
+    private BufferedImage img_;
+    private BufferedImage spare_;
+    private double zoom_;
+    private double originX_;
+    private double originY_;
+    private int margin_;
+    private List<Object> contentKey_;
+    
+    /***************************************************************************
+    **
+    ** Make sure the raster covers the view
+    */
+    
+    void update(Dimension viewDim, double zoom, Point2D viewOrigin, List<Object> contentKey, Layer layer) {
+      int margin = (Math.max(viewDim.width, viewDim.height) / MARGIN_DIVISOR_) + 1;
+      int rw = viewDim.width + (2 * margin);
+      int rh = viewDim.height + (2 * margin);
+      boolean startOver = (img_ == null) || (img_.getWidth() != rw) || (img_.getHeight() != rh) ||
+                          (zoom != zoom_) || (img_.getTransparency() != transparencyFor(layer)) ||
+                          !contentKey.equals(contentKey_);
+      if (startOver) {
+        img_ = new BufferedImage(rw, rh, (layer.isTranslucent()) ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        spare_ = null;
+        zoom_ = zoom;
+        margin_ = margin;
+        contentKey_ = contentKey;
+        originX_ = viewOrigin.getX() - (margin / zoom);
+        originY_ = viewOrigin.getY() - (margin / zoom);
+        render(new Rectangle(0, 0, rw, rh), layer);
+        return;
+      }
+      
+      //
+      // Still inside? Then there is nothing to do:
+      //
+      
+      int offX = (int)Math.round((viewOrigin.getX() - originX_) * zoom_);
+      int offY = (int)Math.round((viewOrigin.getY() - originY_) * zoom_);
+      if ((offX >= 0) && (offX <= (2 * margin_)) && (offY >= 0) && (offY <= (2 * margin_))) {
+        return;
+      }
+      
+      //
+      // Recenter the view by a whole number of pixels, so what we keep lines up
+      // exactly with what we draw new:
+      //
+      
+      int shiftX = offX - margin_;
+      int shiftY = offY - margin_;
+      originX_ += shiftX / zoom_;
+      originY_ += shiftY / zoom_;
+      if ((Math.abs(shiftX) >= rw) || (Math.abs(shiftY) >= rh)) {
+        render(new Rectangle(0, 0, rw, rh), layer);
+        return;
+      }
+      if (spare_ == null) {
+        spare_ = new BufferedImage(rw, rh, img_.getType());
+      }
+      Graphics2D sg2 = spare_.createGraphics();
+      sg2.setComposite(AlphaComposite.Src);
+      sg2.drawImage(img_, -shiftX, -shiftY, null);
+      sg2.dispose();
+      BufferedImage swap = img_;
+      img_ = spare_;
+      spare_ = swap;
+      
+      if (shiftX > 0) {
+        render(new Rectangle(rw - shiftX, 0, shiftX, rh), layer);
+      } else if (shiftX < 0) {
+        render(new Rectangle(0, 0, -shiftX, rh), layer);
+      }
+      if (shiftY > 0) {
+        render(new Rectangle(0, rh - shiftY, rw, shiftY), layer);
+      } else if (shiftY < 0) {
+        render(new Rectangle(0, 0, rw, -shiftY), layer);
+      }
+      return;
+    }
+    
+    /***************************************************************************
+    **
+    ** Put the raster up, with the view origin at the upper left
+    */
+    
+    void draw(Graphics2D g2, Point2D viewOrigin) {
+      int offX = (int)Math.round((viewOrigin.getX() - originX_) * zoom_);
+      int offY = (int)Math.round((viewOrigin.getY() - originY_) * zoom_);
+      g2.drawImage(img_, -offX, -offY, null);
+      return;
+    }
+    
+    /***************************************************************************
+    **
+    ** Render some pixels of the raster
+    */
+    
+    private void render(Rectangle pixels, Layer layer) {
+      Graphics2D rg2 = img_.createGraphics();
+      rg2.setClip(pixels);
+      rg2.scale(zoom_, zoom_);
+      rg2.translate(-originX_, -originY_);
+      int pad = BioFabricPanel.GRID_SIZE;
+      int minX = (int)Math.floor(originX_ + (pixels.x / zoom_)) - pad;
+      int minY = (int)Math.floor(originY_ + (pixels.y / zoom_)) - pad;
+      int maxX = (int)Math.ceil(originX_ + ((pixels.x + pixels.width) / zoom_)) + pad;
+      int maxY = (int)Math.ceil(originY_ + ((pixels.y + pixels.height) / zoom_)) + pad;
+      layer.render(rg2, pixels, new Rectangle(minX, minY, maxX - minX, maxY - minY));
+      rg2.dispose();
+      return;
+    }
+    
+    /***************************************************************************
+    **
+    ** Transparency we need for the layer
+    */
+    
+    private int transparencyFor(Layer layer) {
+      return ((layer.isTranslucent()) ? BufferedImage.TRANSLUCENT : BufferedImage.OPAQUE);
+    }
+  }
 }
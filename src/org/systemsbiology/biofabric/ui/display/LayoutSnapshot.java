@@ -0,0 +1,328 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package org.systemsbiology.biofabric.ui.display;
+
+import java.awt.geom.Rectangle2D;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.systemsbiology.biofabric.api.io.Indenter;
+import org.systemsbiology.biofabric.api.model.Annot;
+import org.systemsbiology.biofabric.api.model.AnnotationSet;
+import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.api.util.MinMax;
+import org.systemsbiology.biofabric.model.BioFabricNetwork;
+import org.systemsbiology.biofabric.ui.FabricDisplayOptionsManager;
+
+/****************************************************************************
+**
+** A compact record of what a laid-out network looks like, row by row and column 
+** by column. Comparing the snapshot taken before a relayout with the one taken
+** after tells us which parts of the world actually changed, so the tiles covering
+** the rest can be kept.
+*/
+
+public class LayoutSnapshot {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+  
+  //
+  // Past this many changed regions, it is not worth the bookkeeping:
+  //
+  
+  private static final int MAX_DIRTY_REGIONS_ = 10000;
+  
+  private static final byte DIRECTED_ = 0x01;
+  private static final byte SHADOW_ = 0x02;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private boolean showShadows_;
+  private String displayOptions_;
+  private List<String> nodeAnnots_;
+  private List<String> linkAnnots_;
+  
+  private int[] colTop_;
+  private int[] colBottom_;
+  private String[] colColor_;
+  private byte[] colFlags_;
+  
+  private String[] rowName_;
+  private String[] rowColor_;
+  private int[] rowMinCol_;
+  private int[] rowMaxCol_;
+  private int[][] rowDrains_;
+  private Rectangle2D[] rowBounds_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Take a snapshot of the network as currently displayed. The maps give the world
+  ** bounds of the node and drain zone labels, as built by the paint cache.
+  */
+
+  public LayoutSnapshot(BioFabricNetwork bfn, boolean showShadows, 
+                        Map<NetNode, Rectangle2D> nameLocs, Map<NetNode, List<Rectangle2D>> drainLocs) {
+    showShadows_ = showShadows;
+    
+    StringWriter sw = new StringWriter();
+    PrintWriter out = new PrintWriter(sw);
+    FabricDisplayOptionsManager.getMgr().getDisplayOptions().writeXML(out, new Indenter(out, Indenter.DEFAULT_INDENT));
+    out.flush();
+    displayOptions_ = sw.toString();
+    nodeAnnots_ = annotList(bfn.getNodeAnnotations());
+    linkAnnots_ = annotList(bfn.getLinkAnnotations(showShadows));
+    
+    //
+    // Columns:
+    //
+   
+    List<BioFabricNetwork.LinkInfo> links = bfn.getLinkDefList(showShadows);
+    int numCols = 0;
+    for (BioFabricNetwork.LinkInfo link : links) {
+      numCols = Math.max(numCols, link.getUseColumn(showShadows) + 1);
+    }
+    colTop_ = new int[numCols];
+    Arrays.fill(colTop_, -1);
+    colBottom_ = new int[numCols];
+    Arrays.fill(colBottom_, -1);
+    colColor_ = new String[numCols];
+    colFlags_ = new byte[numCols];
+    for (BioFabricNetwork.LinkInfo link : links) {
+      int col = link.getUseColumn(showShadows);
+      colTop_[col] = link.topRow();
+      colBottom_[col] = link.bottomRow();
+      colColor_[col] = link.getColorKey();
+      byte flags = 0;
+      if (link.isDirected()) {
+        flags |= DIRECTED_;
+      }
+      if (link.isShadow()) {
+        flags |= SHADOW_;
+      }
+      colFlags_[col] = flags;
+    }
+    
+    //
+    // Rows:
+    //
+   
+    List<BioFabricNetwork.NodeInfo> nodes = bfn.getNodeDefList();
+    int numRows = 0;
+    for (BioFabricNetwork.NodeInfo node : nodes) {
+      numRows = Math.max(numRows, node.nodeRow + 1);
+    }
+    rowName_ = new String[numRows];
+    rowColor_ = new String[numRows];
+    rowMinCol_ = new int[numRows];
+    rowMaxCol_ = new int[numRows];
+    rowDrains_ = new int[numRows][];
+    rowBounds_ = new Rectangle2D[numRows];
+    double grid = BioFabricPanel.GRID_SIZE;
+    for (BioFabricNetwork.NodeInfo node : nodes) {
+      int row = node.nodeRow;
+      rowName_[row] = node.getNodeName();
+      rowColor_[row] = node.colorKey;
+      MinMax cols = node.getColRange(showShadows);
+      rowMinCol_[row] = cols.min;
+      rowMaxCol_[row] = cols.max;
+      List<BioFabricNetwork.DrainZone> dzs = node.getDrainZones(showShadows);
+      int[] drains = new int[dzs.size() * 2];
+      int count = 0;
+      for (BioFabricNetwork.DrainZone dz : dzs) {
+        drains[count++] = dz.getMinMax().min;
+        drains[count++] = dz.getMinMax().max;
+      }
+      rowDrains_[row] = drains;
+      
+      //
+      // Node line (and shading), padded by a grid square all around, plus the labels:
+      //
+      
+      int minCol = (cols.min <= cols.max) ? cols.min : 0;
+      int maxCol = (cols.min <= cols.max) ? cols.max : 0;
+      Rectangle2D bounds = new Rectangle2D.Double((minCol - 1) * grid, (row - 1) * grid, 
+                                                  (maxCol - minCol + 2) * grid, 2.0 * grid);
+      NetNode key = node.getNodeIDWithName();
+      Rectangle2D label = nameLocs.get(key);
+      if (label != null) {
+        bounds.add(label);
+      }
+      List<Rectangle2D> drainLabels = drainLocs.get(key);
+      if (drainLabels != null) {
+        for (Rectangle2D dl : drainLabels) {
+          bounds.add(dl);
+        }
+      }
+      rowBounds_[row] = bounds;
+    }
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Get the regions of the world that are drawn differently in the given later
+  ** snapshot. Returns null if everything needs to be redrawn, i.e. the display
+  ** options, annotations, or network size changed, or too much moved. (Shadow
+  ** toggles do not come through here: the panel parks each view instead.)
+  */
+  
+  public List<Rectangle2D> dirtyRegions(LayoutSnapshot after) {
+    if ((after == null) || (showShadows_ != after.showShadows_) || 
+        !displayOptions_.equals(after.displayOptions_) ||
+        !nodeAnnots_.equals(after.nodeAnnots_) || !linkAnnots_.equals(after.linkAnnots_) ||
+        (colTop_.length != after.colTop_.length) || (rowName_.length != after.rowName_.length)) {
+      return (null);
+    }
+    
+    //
+    // Runs of adjacent changed columns or rows are merged into single regions:
+    //
+    
+    ArrayList<Rectangle2D> retval = new ArrayList<Rectangle2D>();
+    Rectangle2D run = null;
+    int numCols = colTop_.length;
+    for (int i = 0; i < numCols; i++) {
+      boolean same = (colTop_[i] == after.colTop_[i]) && (colBottom_[i] == after.colBottom_[i]) &&
+                     (colFlags_[i] == after.colFlags_[i]) && sameString(colColor_[i], after.colColor_[i]);
+      if (same) {
+        run = closeRun(run, retval);
+        continue;
+      }
+      run = addToRun(run, columnBounds(i));
+      run = addToRun(run, after.columnBounds(i));
+    }
+    closeRun(run, retval);
+    
+    run = null;
+    int numRows = rowName_.length;
+    for (int i = 0; i < numRows; i++) {
+      boolean same = sameString(rowName_[i], after.rowName_[i]) && sameString(rowColor_[i], after.rowColor_[i]) &&
+                     (rowMinCol_[i] == after.rowMinCol_[i]) && (rowMaxCol_[i] == after.rowMaxCol_[i]) &&
+                     Arrays.equals(rowDrains_[i], after.rowDrains_[i]);
+      if (same) {
+        run = closeRun(run, retval);
+        continue;
+      }
+      run = addToRun(run, rowBounds_[i]);
+      run = addToRun(run, after.rowBounds_[i]);
+    }
+    closeRun(run, retval);
+    
+    if (retval.size() > MAX_DIRTY_REGIONS_) {
+      return (null);
+    }
+    return (retval);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** World bounds of the link in the column, padded by a grid square. Null if empty.
+  */
+  
+  private Rectangle2D columnBounds(int col) {
+    if (colTop_[col] == -1) {
+      return (null);
+    }
+    double grid = BioFabricPanel.GRID_SIZE;
+    return (new Rectangle2D.Double((col - 1) * grid, (colTop_[col] - 1) * grid, 
+                                   2.0 * grid, (colBottom_[col] - colTop_[col] + 2) * grid));
+  }
+  
+  /***************************************************************************
+  **
+  ** Grow the current run
+  */
+  
+  private Rectangle2D addToRun(Rectangle2D run, Rectangle2D rect) {
+    if (rect == null) {
+      return (run);
+    }
+    if (run == null) {
+      return ((Rectangle2D)rect.clone());
+    }
+    run.add(rect);
+    return (run);
+  }
+  
+  /***************************************************************************
+  **
+  ** Finish the current run
+  */
+  
+  private Rectangle2D closeRun(Rectangle2D run, List<Rectangle2D> regions) {
+    if (run != null) {
+      regions.add(run);
+    }
+    return (null);
+  }
+  
+  /***************************************************************************
+  **
+  ** Null-safe string compare
+  */
+  
+  private static boolean sameString(String str1, String str2) {
+    return ((str1 == null) ? (str2 == null) : str1.equals(str2));
+  }
+  
+  /***************************************************************************
+  **
+  ** Annotations in drawing order. Colors are handed out in order, so order matters.
+  */
+  
+  private static List<String> annotList(AnnotationSet annots) {
+    ArrayList<String> retval = new ArrayList<String>();
+    if (annots != null) {
+      for (Annot an : annots) {
+        retval.add(an.toString());
+      }
+    }
+    return (retval);
+  }
+}
@@ -0,0 +1,643 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.ui.display;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.SwingUtilities;
+
+import org.systemsbiology.biofabric.api.util.ExceptionHandler;
+
+/****************************************************************************
+**
+** Loads the mouseover images in the background and holds onto them already 
+** scaled to the size they are shown at. Held images are capped by total bytes, 
+** and the least recently shown go first. Requests that are no longer wanted
+** by the time a worker gets to them are just dropped. A node whose image fails
+** to load is marked missing and not tried again, unless we just ran out of memory.
+*/
+
+public class MouseOverImageCache {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+  
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024L * 1024L;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+
+  private static final int NUM_WORKERS_ = 2;
+  
+  //
+  // Workers with nothing to do for this long go away:
+  //
+  
+  private static final long IDLE_MILLIS_ = 30000L;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private long maxBytes_;
+  private long bytes_;
+  private LinkedHashMap<ImageKey, BufferedImage> scaled_;
+  private HashSet<String> missing_;
+  private HashMap<Client, ImageKey> wanted_;
+  private ArrayList<LoadRequest> pending_;
+  private HashSet<ImageKey> inFlight_;
+  private int prefetchGen_;
+  private int locationGen_;
+  private int numWorkers_;
+  private String path_;
+  private String filePrefix_;
+  private String fileSuffix_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public MouseOverImageCache() {
+    this(DEFAULT_MAX_BYTES);
+  }
+  
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public MouseOverImageCache(long maxBytes) {
+    maxBytes_ = maxBytes;
+    bytes_ = 0L;
+    scaled_ = new LinkedHashMap<ImageKey, BufferedImage>(16, 0.75F, true);
+    missing_ = new HashSet<String>();
+    wanted_ = new HashMap<Client, ImageKey>();
+    pending_ = new ArrayList<LoadRequest>();
+    inFlight_ = new HashSet<ImageKey>();
+    prefetchGen_ = 0;
+    locationGen_ = 0;
+    numWorkers_ = 0;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Set the fragments of file to show: path + filePrefix + nodeName + fileSuffix.
+  ** Anything we are holding came from the old files, so it is tossed. Loads
+  ** already under way are for the old files too; their results get dropped.
+  */
+
+  public synchronized void setFileLocations(String path, String filePrefix, String fileSuffix) {
+    path_ = path;
+    filePrefix_ = filePrefix;
+    fileSuffix_ = fileSuffix;
+    scaled_.clear();
+    bytes_ = 0L;
+    missing_.clear();
+    pending_.clear();
+    inFlight_.clear();
+    locationGen_++;
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the image scaled to fit the view size, if we have it
+  */
+
+  public synchronized BufferedImage getIfPresent(String nodeName, Dimension viewSize) {
+    return (scaled_.get(new ImageKey(nodeName, viewSize)));
+  }
+  
+  /***************************************************************************
+  **
+  ** Answer if we already know there is no image for the node
+  */
+
+  public synchronized boolean isMissing(String nodeName) {
+    return (missing_.contains(nodeName));
+  }
+  
+  /***************************************************************************
+  **
+  ** Ask for an image. The client gets it on the event thread, unless it has
+  ** asked for something else in the meantime.
+  */
+
+  public synchronized void request(String nodeName, Dimension viewSize, Client client) {
+    ImageKey key = new ImageKey(nodeName, viewSize);
+    wanted_.put(client, key);
+    //
+    // Earlier asks from this client are no longer wanted:
+    //
+    Iterator<LoadRequest> pit = pending_.iterator();
+    while (pit.hasNext()) {
+      LoadRequest lreq = pit.next();
+      if (lreq.isPrimary && !wanted_.containsValue(lreq.key)) {
+        pit.remove();
+      }
+    }
+    if (!inFlight_.contains(key)) {
+      pending_.add(new LoadRequest(key, true, prefetchGen_));
+      startWorkerIfNeeded();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** The client does not want anything anymore
+  */
+
+  public synchronized void cancel(Client client) {
+    wanted_.remove(client);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Load images ahead of time. Any prefetching not yet started from an 
+  ** earlier call is dropped.
+  */
+
+  public synchronized void prefetch(List<String> nodeNames, List<Dimension> viewSizes) {
+    prefetchGen_++;
+    Iterator<LoadRequest> pit = pending_.iterator();
+    while (pit.hasNext()) {
+      if (!pit.next().isPrimary) {
+        pit.remove();
+      }
+    }
+    //
+    // Requests are taken from the end of the list, so the first names go in last:
+    //
+    for (int i = nodeNames.size() - 1; i >= 0; i--) {
+      String name = nodeNames.get(i);
+      if (missing_.contains(name)) {
+        continue;
+      }
+      for (Dimension size : viewSizes) {
+        ImageKey key = new ImageKey(name, size);
+        if (!scaled_.containsKey(key) && !inFlight_.contains(key)) {
+          pending_.add(new LoadRequest(key, false, prefetchGen_));
+        }
+      }
+    }
+    startWorkerIfNeeded();
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Bytes held by scaled images
+  */
+
+  public synchronized long getHeldBytes() {
+    return (bytes_);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Who gets told when an image arrives
+  */
+
+  public interface Client {
+    
+    /***************************************************************************
+    **
+    ** Called on the event thread. Image is null if it could not be loaded.
+    */
+
+    public void imageReady(String nodeName, Dimension viewSize, BufferedImage scaled);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CLASS METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Size of the image scaled to fit the view, keeping the aspect ratio
+  */
+
+  public static Dimension fitToView(int imgWidth, int imgHeight, Dimension viewSize) {
+    double imgAR = (double)imgWidth / (double)imgHeight;
+    double panelAR = viewSize.getWidth() / viewSize.getHeight();
+    int useHeight;
+    int useWidth;
+    if (panelAR < imgAR) { // long image, tall panel
+      useWidth = viewSize.width;
+      useHeight = (int)(useWidth / imgAR);
+      if (useHeight == 0) {
+        useHeight = 1;
+      }
+    } else {
+      useHeight = viewSize.height;
+      useWidth = (int)(useHeight * imgAR);
+      if (useWidth == 0) {
+        useWidth = 1;
+      }
+    }
+    return (new Dimension(useWidth, useHeight));
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Get another worker going if there is work waiting. Call while holding the lock.
+  */
+
+  private void startWorkerIfNeeded() {
+    notifyAll();
+    if (pending_.isEmpty() || (numWorkers_ >= Math.min(NUM_WORKERS_, pending_.size() + inFlight_.size()))) {
+      return;
+    }
+    numWorkers_++;
+    Thread runThread = new Thread(new LoadWorker(), "MouseOverImageLoader");
+    runThread.setDaemon(true);
+    runThread.setPriority(runThread.getPriority() - 2);
+    runThread.start();
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Take the next request. Images the mouse is on go before prefetches, and newer
+  ** before older. Returns null when the worker should quit.
+  */
+
+  private synchronized LoadRequest nextRequest() {
+    long waitUntil = System.currentTimeMillis() + IDLE_MILLIS_;
+    while (true) {
+      for (int pass = 0; pass < 2; pass++) {
+        for (int i = pending_.size() - 1; i >= 0; i--) {
+          LoadRequest lreq = pending_.get(i);
+          if ((pass == 0) && !lreq.isPrimary) {
+            continue;
+          }
+          pending_.remove(i);
+          if (isStale(lreq) || scaled_.containsKey(lreq.key) || inFlight_.contains(lreq.key)) {
+            i = pending_.size();
+            continue;
+          }
+          inFlight_.add(lreq.key);
+          lreq.locationGen = locationGen_;
+          lreq.file = new File(path_ + filePrefix_ + lreq.key.nodeName + fileSuffix_);
+          return (lreq);
+        }
+      }
+      long left = waitUntil - System.currentTimeMillis();
+      if (left <= 0L) {
+        numWorkers_--;
+        return (null);
+      }
+      try {
+        wait(left);
+      } catch (InterruptedException iex) {
+        numWorkers_--;
+        return (null);
+      }
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Answer if nobody cares about the request anymore. Call while holding the lock.
+  */
+
+  private boolean isStale(LoadRequest lreq) {
+    if (wanted_.containsValue(lreq.key)) {
+      return (false);
+    }
+    return (lreq.isPrimary || (lreq.generation != prefetchGen_));
+  }
+  
+  /***************************************************************************
+  **
+  ** Hold onto the result and tell anybody waiting for it. A null result only marks
+  ** the node missing if asked. Results from files we have since moved away from
+  ** are dropped, but if somebody is still waiting, it is loaded again.
+  */
+
+  private void finishRequest(LoadRequest lreq, BufferedImage scaled, boolean markMissing) {
+    final ArrayList<Client> toTell = new ArrayList<Client>();
+    synchronized (this) {
+      if (lreq.locationGen != locationGen_) {
+        if (wanted_.containsValue(lreq.key) && !inFlight_.contains(lreq.key)) {
+          pending_.add(new LoadRequest(lreq.key, true, prefetchGen_));
+          startWorkerIfNeeded();
+        }
+        return;
+      }
+      inFlight_.remove(lreq.key);
+      if (scaled == null) {
+        if (markMissing) {
+          missing_.add(lreq.key.nodeName);
+        }
+      } else if (!scaled_.containsKey(lreq.key)) {
+        scaled_.put(lreq.key, scaled);
+        bytes_ += bytesFor(scaled);
+        trimToSize(lreq.key);
+      }
+      for (Map.Entry<Client, ImageKey> entry : wanted_.entrySet()) {
+        if (entry.getValue().equals(lreq.key)) {
+          toTell.add(entry.getKey());
+        }
+      }
+    }
+    if (toTell.isEmpty()) {
+      return;
+    }
+    final ImageKey key = lreq.key;
+    final BufferedImage result = scaled;
+    SwingUtilities.invokeLater(new Runnable() {
+      public void run() {
+        for (Client client : toTell) {
+          client.imageReady(key.nodeName, new Dimension(key.width, key.height), result);
+        }
+      }
+    });
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Drop least recently used images until we are under the cap. The newest 
+  ** one stays even if it is over the cap all by itself. Call while holding the lock.
+  */
+
+  private void trimToSize(ImageKey keep) {
+    Iterator<Map.Entry<ImageKey, BufferedImage>> sit = scaled_.entrySet().iterator();
+    while ((bytes_ > maxBytes_) && sit.hasNext()) {
+      Map.Entry<ImageKey, BufferedImage> entry = sit.next();
+      if (entry.getKey().equals(keep)) {
+        continue;
+      }
+      bytes_ -= bytesFor(entry.getValue());
+      sit.remove();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Read and scale an image. Returns null if there is no image.
+  */
+
+  private static BufferedImage loadScaled(LoadRequest lreq) throws IOException {
+    if (!lreq.file.exists()) {
+      return (null);
+    }
+    Dimension viewSize = new Dimension(lreq.key.width, lreq.key.height);
+    BufferedImage img = readImageFromFile(lreq.file, viewSize);
+    if (img == null) {
+      return (null);
+    }
+    Dimension useSize = fitToView(img.getWidth(), img.getHeight(), viewSize);
+    BufferedImage retval = new BufferedImage(useSize.width, useSize.height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2 = retval.createGraphics();
+    g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+    g2.drawImage(img, 0, 0, useSize.width, useSize.height, null);
+    g2.dispose();
+    return (retval);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CLASS METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Bytes for an int-backed image
+  */
+  
+  private static long bytesFor(BufferedImage img) {
+    return (4L * img.getWidth() * img.getHeight());
+  }
+  
+  /***************************************************************************
+  **
+  ** Read in an image. If it is way bigger than it will be shown, we only decode
+  ** every nth pixel, keeping at least twice what we need for the scaling step.
+  */
+  
+  private static BufferedImage readImageFromFile(File readFile, Dimension viewSize) throws IOException {
+    FileInputStream fis = new FileInputStream(readFile);
+    ImageInputStream iis = null;
+    ImageReader reader = null;
+    try {
+      iis = ImageIO.createImageInputStream(fis);
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+      if (!readers.hasNext()) {
+        throw new IOException();
+      }
+      reader = readers.next();
+      reader.setInput(iis, true, true);
+      int fullWidth = reader.getWidth(0);
+      int fullHeight = reader.getHeight(0);
+      Dimension useSize = fitToView(fullWidth, fullHeight, viewSize);
+      int step = Math.min(fullWidth / useSize.width, fullHeight / useSize.height) / 2;
+      ImageReadParam param = reader.getDefaultReadParam();
+      if (step > 1) {
+        param.setSourceSubsampling(step, step, 0, 0);
+      }
+      return (reader.read(0, param));
+    } finally {
+      if (reader != null) {
+        reader.dispose();
+      }
+      if (iis != null) {
+        iis.close();
+      }
+      fis.close();
+    }
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Node image at a view size
+  */
+  
+  private static class ImageKey {
+    String nodeName;
+    int width;
+    int height;
+    
+    ImageKey(String nodeName, Dimension viewSize) {
+      this.nodeName = nodeName;
+      this.width = viewSize.width;
+      this.height = viewSize.height;
+    }
+
+    @Override
+    public int hashCode() {
+      return (nodeName.hashCode() + (31 * width) + (961 * height));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other == this) {
+        return (true);
+      }
+      if (!(other instanceof ImageKey)) {
+        return (false);
+      }
+      ImageKey otherKey = (ImageKey)other;
+      return ((this.width == otherKey.width) && (this.height == otherKey.height) && 
+              this.nodeName.equals(otherKey.nodeName));
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** A load to do. The file is filled in when a worker takes it.
+  */
+  
+  private static class LoadRequest {
+    ImageKey key;
+    boolean isPrimary;
+    int generation;
+    int locationGen;
+    File file;
+    
+    LoadRequest(ImageKey key, boolean isPrimary, int generation) {
+      this.key = key;
+      this.isPrimary = isPrimary;
+      this.generation = generation;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Background loader
+  */
+  
+  private class LoadWorker implements Runnable {
+    
+    public void run() {
+      while (true) {
+        LoadRequest lreq = nextRequest();
+        if (lreq == null) {
+          return;
+        }
+        //
+        // Once a node's image has failed to load, it is marked missing and we do
+        // not try it again at any other size. Running out of memory says nothing
+        // about the image, so that one can be tried again later:
+        //
+        BufferedImage scaled = null;
+        if (!isMissing(lreq.key.nodeName)) {
+          try {
+            scaled = loadScaled(lreq);
+          } catch (IOException ioex) {
+            finishRequest(lreq, null, true);
+            reportFailure(ioex, null);
+            continue;
+          } catch (RuntimeException rex) {
+            finishRequest(lreq, null, true);
+            reportFailure(rex, null);
+            continue;
+          } catch (OutOfMemoryError oom) {
+            finishRequest(lreq, null, false);
+            reportFailure(null, oom);
+            continue;
+          }
+        }
+        finishRequest(lreq, scaled, true);
+      }
+    }
+    
+    //
+    // Report on the event thread, the same way everybody else does:
+    //
+    
+    private void reportFailure(final Exception ex, final OutOfMemoryError oom) {
+      SwingUtilities.invokeLater(new Runnable() {
+        public void run() {
+          if (oom != null) {
+            ExceptionHandler.getHandler().displayOutOfMemory(oom);
+          } else {
+            ExceptionHandler.getHandler().displayException(ex);
+          }
+        }
+      });
+      return;
+    }
+  }
+}
@@ -20,8 +20,14 @@
 
 package org.systemsbiology.biofabric.ui.display;
 
+import java.awt.Dimension;
+import java.util.ArrayList;
+
 import javax.swing.JPanel;
 
+import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.model.BioFabricNetwork;
+
 
 /****************************************************************************
 **
@@ -35,6 +41,12 @@ public class MouseOverView {
   // PRIVATE CONSTANTS
   //
   //////////////////////////////////////////////////////////////////////////// 
+  
+  //
+  // Images for this many rows above and below the mouse get loaded ahead:
+  //
+  
+  private static final int PREFETCH_ROWS_ = 4;
     
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -48,9 +60,12 @@ public class MouseOverView {
   //
   ////////////////////////////////////////////////////////////////////////////
    
+  private MouseOverImageCache cache_;
   private MouseOverViewPanel pan1_;
   private MouseOverViewPanel pan2_;
   private boolean isAlive_;
+  private BioFabricNetwork lastPrefetchNet_;
+  private int lastPrefetchRow_;
 
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -64,9 +79,12 @@ public class MouseOverView {
   */
 
   public MouseOverView() {
-    pan1_ = new MouseOverViewPanel();
-    pan2_ = new MouseOverViewPanel();
+    cache_ = new MouseOverImageCache();
+    pan1_ = new MouseOverViewPanel(cache_);
+    pan2_ = new MouseOverViewPanel(cache_);
     isAlive_ = false;
+    lastPrefetchNet_ = null;
+    lastPrefetchRow_ = -1;
   }
 
   ////////////////////////////////////////////////////////////////////////////
@@ -91,8 +109,8 @@ public class MouseOverView {
   */
 
   public void setFileLocations(String path, String filePrefix, String fileSuffix)  {
-  	pan1_.setFileLocations(path, filePrefix, fileSuffix);
-    pan2_.setFileLocations(path, filePrefix, fileSuffix);
+    cache_.setFileLocations(path, filePrefix, fileSuffix);
+    lastPrefetchNet_ = null;
     return;
   } 
  
@@ -134,4 +152,64 @@ public class MouseOverView {
   	}
   	return;
   }
+  
+  /***************************************************************************
+  ** 
+  ** Start loading images for the nodes in the rows around the mouse
+  */
+
+  public void prefetchAroundRow(BioFabricNetwork bfn, int row) {
+    if (!isAlive_ || (bfn == null)) {
+      return;
+    }
+    if ((bfn == lastPrefetchNet_) && (row == lastPrefetchRow_)) {
+      return;
+    }
+    lastPrefetchNet_ = bfn;
+    lastPrefetchRow_ = row;
+    
+    ArrayList<Dimension> sizes = new ArrayList<Dimension>();
+    Dimension size1 = pan1_.getViewSize();
+    if (size1 != null) {
+      sizes.add(size1);
+    }
+    Dimension size2 = pan2_.getViewSize();
+    if ((size2 != null) && !size2.equals(size1)) {
+      sizes.add(size2);
+    }
+    if (sizes.isEmpty()) {
+      return;
+    }
+    
+    //
+    // Closest rows first:
+    //
+    
+    ArrayList<String> names = new ArrayList<String>();
+    int numRows = bfn.getRowCount();
+    for (int i = 0; i <= PREFETCH_ROWS_; i++) {
+      addNameForRow(bfn, row - i, numRows, names);
+      if (i != 0) {
+        addNameForRow(bfn, row + i, numRows, names);
+      }
+    }
+    cache_.prefetch(names, sizes);
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Add the node name for the row, if there is one
+  */
+
+  private void addNameForRow(BioFabricNetwork bfn, int row, int numRows, ArrayList<String> names) {
+    if ((row < 0) || (row >= numRows)) {
+      return;
+    }
+    NetNode node = bfn.getNodeIDForRow(Integer.valueOf(row));
+    if (node != null) {
+      names.add(node.getName());
+    }
+    return;
+  }
 }
@@ -26,17 +26,8 @@ import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
-import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
 
-import javax.imageio.ImageIO;
-import javax.imageio.ImageReader;
-import javax.imageio.stream.ImageInputStream;
 import javax.swing.JPanel;
 
 /****************************************************************************
@@ -44,7 +35,7 @@ import javax.swing.JPanel;
 ** This panel gives a view for mouseovers
 */
 
-public class MouseOverViewPanel extends JPanel {
+public class MouseOverViewPanel extends JPanel implements MouseOverImageCache.Client {
   
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -65,15 +56,13 @@ public class MouseOverViewPanel extends JPanel {
   ////////////////////////////////////////////////////////////////////////////
    
   private Dimension currSize_;
-  private HashMap<String, BufferedImage> imgs_;
-  private BufferedImage img_;
+  private MouseOverImageCache cache_;
+  private String currName_;
+  private boolean waiting_;
   private BufferedImage scaledImg_;
   private Point scaledImgOrigin_;
   private CardLayout myCard_;
   private ImagePanel pPan_;
-  private String path_ ;
-  private String filePrefix_;
-  private String fileSuffix_ ;
   
   private static final long serialVersionUID = 1L;
   
@@ -85,15 +74,16 @@ public class MouseOverViewPanel extends JPanel {
 
   /***************************************************************************
   **
-  ** Constructor
+  ** Constructor. The cache may be shared with other panels.
   */
 
-  public MouseOverViewPanel() {
+  public MouseOverViewPanel(MouseOverImageCache cache) {
     setBackground(Color.white);
-    imgs_ = new HashMap<String, BufferedImage>();
+    cache_ = cache;
+    currName_ = null;
+    waiting_ = false;
     scaledImg_ = null;
     scaledImgOrigin_ = new Point(0, 0);
-    img_ = null;
     myCard_ = new CardLayout();
     setLayout(myCard_);
     
@@ -132,28 +122,33 @@ public class MouseOverViewPanel extends JPanel {
     
   /***************************************************************************
   **
-  ** Handle size change
+  ** Handle size change. Images are held scaled to the view size, so we need to
+  ** go get the image for the new size.
   */
 
   @Override
   public void setBounds(int x, int y, int width, int height) {
     super.setBounds(x, y, width, height);
-    currSize_ = new Dimension(width, height);
-    resizeImage();
-    repaint();
+    Dimension newSize = new Dimension(width, height);
+    if (!newSize.equals(currSize_)) {
+      currSize_ = newSize;
+      String name = currName_;
+      currName_ = null;
+      showForNode(name);
+    }
     return;
   } 
  
   /***************************************************************************
   **
-  ** Set the fragments of file to show: path + filePrefix + nodeName + fileSuffix.
+  ** Current view size, or null if we are not being shown
   */
 
-  public void setFileLocations(String path, String filePrefix, String fileSuffix) {
-    path_ = path;
-    filePrefix_ = filePrefix;
-    fileSuffix_ = fileSuffix;
-    return;
+  public Dimension getViewSize() {
+    if ((currSize_ == null) || (currSize_.width <= 0) || (currSize_.height <= 0)) {
+      return (null);
+    }
+    return (currSize_);
   }
 
   /***************************************************************************
@@ -168,119 +163,78 @@ public class MouseOverViewPanel extends JPanel {
 
   /***************************************************************************
   ** 
-  ** Install a model
+  ** Show the image for the node. If we do not have it yet, the view is blank 
+  ** until the image arrives.
   */
 
   public void showForNode(String nodeName) {
-  	if (nodeName == null) {
-  		installImage(null);
-  		return;
-  	}
-  	BufferedImage bi = imgs_.get(nodeName);
-  	if (bi != null) {
-  		installImage(bi);
-  	} else {
-	  	try {
-	      loadAFile(nodeName);
-	  	} catch (IOException ioex) {
-	  		System.err.println("Handle file load failures: " + ioex.getLocalizedMessage());
-	  	}
-  	}
-    return;
-  }
- 
-  /***************************************************************************
-  ** 
-  ** Install a model
-  */
-
-  private void loadAFile(String nodeName) throws IOException {
-  	File forFoo = new File(path_ + filePrefix_ + nodeName + fileSuffix_);
-    BufferedImage mvi = readImageFromFile(forFoo);
-    imgs_.put(nodeName, mvi);
-    installImage(mvi);
+    if (nodeName == null) {
+      currName_ = null;
+      waiting_ = false;
+      cache_.cancel(this);
+      installImage(null);
+      return;
+    }
+    //
+    // The mouse moves a pixel at a time, so we usually have this already:
+    //
+    if (nodeName.equals(currName_) && ((scaledImg_ != null) || waiting_)) {
+      return;
+    }
+    currName_ = nodeName;
+    waiting_ = false;
+    Dimension viewSize = getViewSize();
+    //
+    // Don't do this step if the view is not currently being displayed
+    //
+    if (viewSize == null) {
+      installImage(null);
+      return;
+    }
+    BufferedImage bi = cache_.getIfPresent(nodeName, viewSize);
+    if (bi != null) {
+      cache_.cancel(this);
+      installImage(bi);
+      return;
+    }
+    installImage(null);
+    if (!cache_.isMissing(nodeName)) {
+      waiting_ = true;
+      cache_.request(nodeName, viewSize, this);
+    }
     return;
   }
   
   /***************************************************************************
   ** 
-  ** Install a model
+  ** Called on the event thread when a requested image arrives
   */
 
-  private void installImage(BufferedImage img) {
-    img_ = img;
-    scaledImg_ = null;
-    resizeImage();
-    repaint();
+  public void imageReady(String nodeName, Dimension viewSize, BufferedImage scaled) {
+    if (!nodeName.equals(currName_) || !viewSize.equals(getViewSize())) {
+      return;
+    }
+    waiting_ = false;
+    installImage(scaled);
     return;
   }
-  
+ 
   /***************************************************************************
-  **
-  ** resize image
+  ** 
+  ** Install an already-scaled image
   */
 
-  private void resizeImage() {
-    if (img_ == null) {
+  private void installImage(BufferedImage scaled) {
+    if ((scaled == null) && (scaledImg_ == null)) {
       return;
     }
-    if (currSize_ == null) {
-      currSize_ = getSize();
+    scaledImg_ = scaled;
+    if (scaled != null) {
+      scaledImgOrigin_.setLocation((currSize_.width - scaled.getWidth()) / 2, (currSize_.height - scaled.getHeight()) / 2);
     }
-    //
-    // Don't do this step if the overview is not currently bring displayed
-    //
-    if ((currSize_.width <= 0) || (currSize_.height <= 0)) {
-      return;
-    }
-    double imgAR = (double)img_.getWidth() / (double)img_.getHeight();
-    double panelAR = currSize_.getWidth() / currSize_.getHeight();
-    int imgHeight;
-    int imgWidth;
-    int startX;
-    int startY;
-    if (panelAR < imgAR) { // long image, tall panel
-      imgWidth = currSize_.width;
-      imgHeight = (int)(imgWidth / imgAR);
-      if (imgHeight == 0) {
-        imgHeight = 1;
-      }
-      startX = 0;
-      startY = (currSize_.height - imgHeight) / 2;
-    } else {
-      imgHeight = currSize_.height;
-      imgWidth = (int)(imgHeight * imgAR);
-      if (imgWidth == 0) {
-        imgWidth = 1;
-      }
-      startX = (currSize_.width - imgWidth) / 2;
-      startY = 0;
-    }
-    scaledImgOrigin_.setLocation(startX, startY);
-    scaledImg_ = new BufferedImage(imgWidth, imgHeight, BufferedImage.TYPE_INT_RGB);
-    Graphics2D g2 = scaledImg_.createGraphics();
-    g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-    g2.drawImage(img_, 0, 0, imgWidth, imgHeight, null);
-    g2.dispose();
+    repaint();
     return;
-  } 
-  
-  /***************************************************************************
-  **
-  ** Read in an image.
-  */
-  
-  public BufferedImage readImageFromFile(File readFile) throws IOException {
-		FileInputStream fis = new FileInputStream(readFile);
-		ImageInputStream iis = ImageIO.createImageInputStream(fis);
-		Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
-		if (!readers.hasNext()) {
-		  throw new IOException();
-		}
-		ImageReader reader = readers.next();
-		BufferedImage retval = ImageIO.read(iis);
-		return (retval);
-	}
+  }
   
   /***************************************************************************
   **
@@ -307,13 +261,9 @@ public class MouseOverViewPanel extends JPanel {
     public void paintComponent(Graphics g) {
       super.paintComponent(g);
       Graphics2D g2 = (Graphics2D)g;     
-      if (img_ == null) {
-        return;
-      }
       if (scaledImg_ == null) {
-        resizeImage();
+        return;
       }
-     
       g2.drawImage(scaledImg_, scaledImgOrigin_.x, scaledImgOrigin_.y, null);
       return;
     }
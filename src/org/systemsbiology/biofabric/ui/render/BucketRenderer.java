@@ -58,7 +58,7 @@ public class BucketRenderer implements BufBuildDrawer {
   
   private List<BioFabricNetwork.NodeInfo> targetList_;
   private List<BioFabricNetwork.LinkInfo> linkList_;
-  private BioFabricNetwork.Extents ext_;
+  private BioFabricNetwork.ViewExtents ext_;
   private AnnotationSet nodeAnnot_;
   private AnnotationSet linkAnnot_;
   
@@ -90,7 +90,7 @@ public class BucketRenderer implements BufBuildDrawer {
 
     targetList_ = new ArrayList<NodeInfo>();
     linkList_ = new ArrayList<LinkInfo>();
-    ext_ = new BioFabricNetwork.Extents();
+    ext_ = new BioFabricNetwork.Extents().getView(false);
     worldRect_ = new Rectangle2D.Double(0.0, 0.0, 100.0, 100.0);
     nodeAnnot_ = new AnnotationSetImpl();
     linkAnnot_ = new AnnotationSetImpl();
@@ -206,7 +206,7 @@ public class BucketRenderer implements BufBuildDrawer {
  
   	targetList_ = targets;
     linkList_ = links;
-    ext_ = ext;
+    ext_ = ext.getView(showShadows);
     nodeAnnot_ = nodeAnnot;
     linkAnnot_ = linkAnnot;
     showShadows_ = showShadows;
@@ -339,9 +339,8 @@ public class BucketRenderer implements BufBuildDrawer {
 	  
     for (BioFabricNetwork.NodeInfo nif : targetList_) {
 
-	    MinMax colRange = nif.getColRange(showShadows_);	    				
-	    bam.xStrt = colRange.min * BioFabricPanel.GRID_SIZE;
-	    bam.xEnd = colRange.max * BioFabricPanel.GRID_SIZE;
+	    bam.xStrt = ext_.getRowMinColumn(nif.nodeRow) * BioFabricPanel.GRID_SIZE;
+	    bam.xEnd = ext_.getRowMaxColumn(nif.nodeRow) * BioFabricPanel.GRID_SIZE;
 	    bam.y = nif.nodeRow * BioFabricPanel.GRID_SIZE;
 	    if (!bam.clipForNodes(clip)) {
 	    	continue;
@@ -402,7 +401,7 @@ public class BucketRenderer implements BufBuildDrawer {
 
 	  int bufOffset = (bam.ulInV.y * bam.scrnWidth) + bam.ulInV.x;	  
 	  
-	  MinMax linkCols = ext_.allLinkFullRange.get(Boolean.valueOf(showShadows_));
+	  MinMax linkCols = ext_.getLinkFullRange();
 	  int pad = PaintCacheSmall.calcAnnotationPad(linkCols);
 	  
 	  int colNum = 0;
@@ -470,7 +469,7 @@ public class BucketRenderer implements BufBuildDrawer {
 
 	  int bufOffset = (bam.ulInV.y * bam.scrnWidth) + bam.ulInV.x;	  
 	  
-	  MinMax nodeRows = ext_.allNodeFullRange.get(Boolean.valueOf(showShadows_));
+	  MinMax nodeRows = ext_.getNodeFullRange();
 	  int pad = PaintCacheSmall.calcAnnotationPad(nodeRows);
 	  
 	  Color[] useColors;
@@ -27,10 +27,22 @@ import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.awt.image.DirectColorModel;
 import java.awt.image.WritableRaster;
+import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import javax.swing.SwingUtilities;
 
@@ -67,6 +79,13 @@ public class BufferBuilder {
   
   private static final double TRANSITION_LPP_ = 20.0;
   
+  //
+  // When prioritizing for a view, we also queue up tiles in a margin around the view
+  // this big (as a fraction of the view size on each side), so short pans are covered:
+  //
+  
+  private static final double PREFETCH_MARGIN_ = 0.5;
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC CONSTANTS
@@ -91,6 +110,13 @@ public class BufferBuilder {
   private boolean timeToExit_;
   private BuildImageWorker biw_;
   private ImgAndBufPool bis_;
+  private File storeFile_;
+  private byte[] fingerprint_;
+  private TilePyramidStore store_;
+  private TilePyramidStore heldStore_;
+  private TileCarryover carryover_;
+  private List<Rectangle2D> carryoverDirty_;
+  private boolean handedOff_;
 
   
   ////////////////////////////////////////////////////////////////////////////
@@ -106,9 +132,19 @@ public class BufferBuilder {
 
   public BufferBuilder(String cachePref, int maxMeg, BufBuildDrawer drawRender, 
   		                 BufBuildDrawer binRender, ImgAndBufPool bis) {
+    this(cachePref, maxMeg, drawRender, binRender, bis, null);
+  }
+  
+  /***************************************************************************
+  **
+  ** Constructor with a specific tile codec (null for default)
+  */
+
+  public BufferBuilder(String cachePref, int maxMeg, BufBuildDrawer drawRender, 
+  		                 BufBuildDrawer binRender, ImgAndBufPool bis, TileCodec codec) {
   	BufferedImage forModel = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
   	DirectColorModel dcm = (DirectColorModel)forModel.getColorModel();
-    cache_ = new RasterCache(cachePref, maxMeg, dcm);
+    cache_ = new RasterCache(cachePref, maxMeg, dcm, codec);
     allWorldsToImageName_ = new HashMap<Rectangle2D, WorldPieceOffering>();
     findWorldsQT_ = null;
     drawRender_ = drawRender;
@@ -153,7 +189,80 @@ public class BufferBuilder {
     if (findWorldsQT_ != null) {
     	findWorldsQT_.clear();
     }
-    cache_.releaseResources();
+    synchronized (this) {
+      if (handedOff_) {
+        return;
+      }
+      cache_.releaseResources();
+      if (store_ != null) {
+        store_.close();
+        store_ = null;
+      }
+      if (heldStore_ != null) {
+        heldStore_.close();
+        heldStore_ = null;
+      }
+      if (carryover_ != null) {
+        carryover_.discard(bis_);
+        carryover_ = null;
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Stop building and give up our tiles, so that the builder for a relayout of
+  ** the same network can keep the ones that did not change. After this, we 
+  ** serve up no more images.
+  */
+  
+  public synchronized TileCarryover handOffTiles() {
+    timeToExit_ = true;
+    bbc_ = null;
+    this.notify();
+    if (handedOff_ || (screenDim_ == null) || (bbZooms_ == null)) {
+      return (null);
+    }
+    handedOff_ = true;
+    TilePyramidStore keepStore = (store_ != null) ? store_ : heldStore_;
+    if ((store_ != null) && (heldStore_ != null)) {
+      heldStore_.close();
+    }
+    TileCarryover retval = new TileCarryover(cache_, allWorldsToImageName_.values(), 
+                                             screenDim_, worldRect_, bbZooms_, keepStore);
+    store_ = null;
+    heldStore_ = null;
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Start with tiles from the builder for the previous layout. Tiles touching
+  ** any of the dirty regions are redrawn; a null list means everything is redrawn.
+  ** Call before buildBufs().
+  */
+  
+  public synchronized void inheritTiles(TileCarryover carryover, List<Rectangle2D> dirtyRegions) {
+    if (carryover_ != null) {
+      carryover_.discard(bis_);
+    }
+    carryover_ = carryover;
+    carryoverDirty_ = dirtyRegions;
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Keep the tiles we draw in the given file, and start with the ones that are
+  ** already there if they were drawn for the same network. The fingerprint is
+  ** whatever the caller uses to identify the network being drawn; we add the 
+  ** tiling parameters to it. Call before buildBufs().
+  */
+  
+  public void setTileStore(File storeFile, byte[] fingerprint) {
+    storeFile_ = storeFile;
+    fingerprint_ = fingerprint;
     return;
   }
   
@@ -206,6 +315,8 @@ public class BufferBuilder {
     drawRender_.dimsForBuf(screenDim_, worldRect_); // These values are now ours
     Rectangle worldPiece = UiUtil.rectFromRect2D(worldRect_);   
     findWorldsQT_ = new QuadTree(worldPiece, zooms.length);
+    adoptCarryover();
+    openTileStore();
          
     //
     // Build the first two zoom levels before we even get started:
@@ -223,8 +334,7 @@ public class BufferBuilder {
     // Now build up the requests for the background thread:
     //   
     
-    int useMax = 1; //maxSize; 
-    List<QueueRequest> requestQueue = (zooms.length > 2) ? buildQueue(2, zooms.length - 1, useMax) : new ArrayList<QueueRequest>();
+    List<QueueRequest> requestQueue = (zooms.length > 2) ? buildQueue(2, zooms.length - 1, maxSize) : new ArrayList<QueueRequest>();
  
     bbc_ = bbc;
  
@@ -261,7 +371,9 @@ public class BufferBuilder {
     // do not need to worry about deadlock conditions.
     //
     synchronized (this) {
-      retval = cache_.getAnImage(wpo.cacheHandle, bis_);
+      if (!handedOff_) {
+        retval = cache_.getAnImage(wpo.cacheHandle, bis_);
+      }
     }
     return (retval);
   }
@@ -272,33 +384,274 @@ public class BufferBuilder {
   */
   
   public BufferedImage getImageForPiece(int depth, Rectangle2D worldRect) throws IOException {
-  	WorldPieceOffering wpo = allWorldsToImageName_.get(worldRect);
-  	if (wpo == null) {
-  		wpo = new WorldPieceOffering(null, screenDim_, worldRect, false);
-  		allWorldsToImageName_.put(worldRect, wpo);;
-  	}
+  	WorldPieceOffering wpo;
   	boolean needLoRes = false;
-    synchronized (this) {  	
+  	boolean needHiRes = false;
+    synchronized (this) {
+      if (handedOff_) {
+        return (null);
+      }
+      wpo = getOrAddOffering(worldRect);
       needLoRes = (wpo.cacheHandle == null);
+      needHiRes = !wpo.isDrawn;
     }
     // Yeah, this could be stale. Not the end of the world though, and we are not going to
-    // hold the lock until the lo-res slice is built...
+    // hold the lock until the lo-res slice is built. The lo-res slice will not replace
+    // a hi-res slice that beats it to the cache.
     if (needLoRes) {
-    	UiUtil.fixMePrintout("RACE CONDITION! Make sure low-res does not replace a high-res if it gets done second");
       buildLoResSlice(worldRect, wpo);
-      if (biw_ != null) {
-        biw_.bumpRequest(new QueueRequest(depth, screenDim_, worldRect));
-      }
+    }
+    if (needHiRes && (biw_ != null)) {
+      biw_.ensureRequest(new QueueRequest(depth, screenDim_, worldRect, true));
     }
     BufferedImage retval = null;
     synchronized (this) {
-      if ((wpo.cacheHandle != null) && !wpo.cacheHandle.equals("")) {
+      if (!handedOff_ && (wpo.cacheHandle != null) && !wpo.cacheHandle.equals("")) {
         retval = cache_.getAnImage(wpo.cacheHandle, bis_);
       }
     }
     return (retval);
   }
  
+  /***************************************************************************
+  **
+  ** The viewport has changed. Move tiles covering the view at the given depth to
+  ** the front of the background queue, nearest the view center first, followed
+  ** by tiles in a margin around the view and then the view at the next depth down.
+  ** Tiles queued for an earlier view that are not among these are cancelled; the
+  ** tiles stocked up front when we were built stay queued behind them. A depth 
+  ** below 2 means this view needs no tiles, so only the cancelling happens.
+  */
+  
+  public void prioritizeForView(int depth, Rectangle2D viewInWorld) {
+    if ((biw_ == null) || (findWorldsQT_ == null)) {
+      return;
+    }
+    if (depth < 2) {
+      biw_.promoteRequests(new ArrayList<QueueRequest>());
+      return;
+    }
+    ArrayList<QuadTree.QuadTreeNode> visible = new ArrayList<QuadTree.QuadTreeNode>();
+    findWorldsQT_.getNodes(viewInWorld, depth, visible);
+    double padW = viewInWorld.getWidth() * PREFETCH_MARGIN_;
+    double padH = viewInWorld.getHeight() * PREFETCH_MARGIN_;
+    Rectangle2D padded = new Rectangle2D.Double(viewInWorld.getX() - padW, viewInWorld.getY() - padH, 
+                                                viewInWorld.getWidth() + (2.0 * padW), 
+                                                viewInWorld.getHeight() + (2.0 * padH));
+    ArrayList<QuadTree.QuadTreeNode> nearby = new ArrayList<QuadTree.QuadTreeNode>();
+    findWorldsQT_.getNodes(padded, depth, nearby);
+    ArrayList<QuadTree.QuadTreeNode> deeper = new ArrayList<QuadTree.QuadTreeNode>();
+    if ((bbZooms_ != null) && (depth + 1 < bbZooms_.length)) {
+      findWorldsQT_.getNodes(viewInWorld, depth + 1, deeper);
+    }
+    
+    HashSet<Rectangle2D> seen = new HashSet<Rectangle2D>();
+    ArrayList<QueueRequest> wanted = new ArrayList<QueueRequest>();
+    ArrayList<QueueRequest> margin = new ArrayList<QueueRequest>();
+    ArrayList<QueueRequest> below = new ArrayList<QueueRequest>();
+    synchronized (this) {
+      if (handedOff_) {
+        return;
+      }
+      addUndrawn(visible, depth, seen, wanted);
+      addUndrawn(nearby, depth, seen, margin);
+      addUndrawn(deeper, depth + 1, seen, below);
+    }
+    CenterDistanceComparator cdc = new CenterDistanceComparator(viewInWorld.getCenterX(), viewInWorld.getCenterY());
+    Collections.sort(wanted, cdc);
+    Collections.sort(margin, cdc);
+    Collections.sort(below, cdc);
+    wanted.addAll(margin);
+    wanted.addAll(below);
+    biw_.promoteRequests(wanted);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Add requests for tiles that do not yet have a hi-res image. Call with lock held.
+  */
+  
+  private void addUndrawn(List<QuadTree.QuadTreeNode> nodes, int depth, 
+                          HashSet<Rectangle2D> seen, List<QueueRequest> addTo) {
+    Rectangle2D emptyExtent = new Rectangle2D.Double(0.0, 0.0, 0.0, 0.0);
+    int numNodes = nodes.size();
+    for (int i = 0; i < numNodes; i++) {
+      Rectangle2D worldExtent = nodes.get(i).getWorldExtent();
+      if (worldExtent.equals(emptyExtent) || !seen.add(worldExtent)) {
+        continue;
+      }
+      WorldPieceOffering wpo = getOrAddOffering(worldExtent);
+      if (!wpo.isDrawn) {
+        addTo.add(new QueueRequest(depth, screenDim_, worldExtent, true));
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the offering for the piece of world, creating it if needed. Call with lock held,
+  ** since the background worker is reading the map.
+  */
+  
+  private WorldPieceOffering getOrAddOffering(Rectangle2D worldRect) {
+    WorldPieceOffering wpo = allWorldsToImageName_.get(worldRect);
+    if (wpo == null) {
+      wpo = new WorldPieceOffering(null, screenDim_, worldRect, false);
+      allWorldsToImageName_.put(worldRect, wpo);
+    }
+    return (wpo);
+  }
+ 
+  /***************************************************************************
+  **
+  ** Take over the tiles from the previous layout that are still good. We share
+  ** the old raster cache, so nothing is copied; tiles that changed are dropped
+  ** from it. If the old tiles were cut up differently, they are all dropped.
+  */
+  
+  private void adoptCarryover() throws IOException {
+    TileCarryover co;
+    List<Rectangle2D> dirty;
+    synchronized (this) {
+      co = carryover_;
+      dirty = carryoverDirty_;
+      carryover_ = null;
+      carryoverDirty_ = null;
+    }
+    if (co == null) {
+      return;
+    }
+    if ((dirty == null) || !co.screenDim.equals(screenDim_) || 
+        !co.worldRect.equals(worldRect_) || !Arrays.equals(co.zooms, bbZooms_)) {
+      co.discard(bis_);
+      return;
+    }
+    
+    //
+    // Mark every tile at every depth that any dirty region touches:
+    //
+    
+    HashSet<Rectangle2D> dirtyPieces = new HashSet<Rectangle2D>();
+    ArrayList<QuadTree.QuadTreeNode> nodes = new ArrayList<QuadTree.QuadTreeNode>();
+    for (Rectangle2D region : dirty) {
+      for (int i = 0; i < bbZooms_.length; i++) {
+        nodes.clear();
+        findWorldsQT_.getNodes(region, i, nodes);
+        for (QuadTree.QuadTreeNode node : nodes) {
+          dirtyPieces.add(node.getWorldExtent());
+        }
+      }
+    }
+   
+    synchronized (this) {
+      cache_ = co.cache;
+      heldStore_ = co.store;
+      for (WorldPieceOffering old : co.offerings) {
+        boolean keep = old.isDrawn && !dirtyPieces.contains(old.worldRect);
+        if (keep) {
+          WorldPieceOffering wpo = getOrAddOffering(old.worldRect);
+          wpo.cacheHandle = old.cacheHandle;
+          wpo.isDrawn = true;
+        } else if ((old.cacheHandle != null) && !old.cacheHandle.equals("")) {
+          cache_.dropAnImage(old.cacheHandle, bis_);
+        }
+      }
+    }
+    return;
+  }
+ 
+  /***************************************************************************
+  **
+  ** Open up the tile store, if we have one, and adopt the tiles that are already
+  ** drawn. The key covers everything that decides what ends up in a tile. If the 
+  ** store cannot be opened, we just draw everything like usual.
+  */
+  
+  private void openTileStore() {
+    if (storeFile_ == null) {
+      return;
+    }
+    List<TilePyramidStore.StoredTile> tiles;
+    synchronized (this) {
+      if (store_ != null) {
+        store_.close();
+        store_ = null;
+      }
+      try {
+        store_ = TilePyramidStore.open(storeFile_, tileStoreKey());
+      } catch (IOException ioex) {
+        // The store only saves work on later loads; without it, we just draw everything
+        return;
+      }
+      tiles = store_.getStoredTiles();
+    
+      ArrayList<QuadTree.QuadTreeNode> nodes = new ArrayList<QuadTree.QuadTreeNode>();
+      for (TilePyramidStore.StoredTile tile : tiles) {
+        if ((tile.depth < 0) || (tile.depth >= bbZooms_.length)) {
+          continue;
+        }
+        nodes.clear();
+        findWorldsQT_.getNodes(tile.worldRect, tile.depth, nodes);
+        QuadTree.QuadTreeNode node = null;
+        for (QuadTree.QuadTreeNode cand : nodes) {
+          if (cand.getWorldExtent().equals(tile.worldRect)) {
+            node = cand;
+            break;
+          }
+        }
+        if (node == null) {
+          continue;
+        }
+        WorldPieceOffering wpo = getOrAddOffering(node.getWorldExtent());
+        if (tile.isBlank) {
+          wpo.cacheHandle = "";
+        } else {
+          wpo.cacheHandle = cache_.adoptStoredImage(store_, tile, screenDim_.width, 
+                                                    screenDim_.height + SLICE_HEIGHT_HACK_, 
+                                                    BufferedImage.TYPE_INT_RGB);
+        }
+        wpo.isDrawn = true;
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Key for the tile store
+  */
+  
+  private byte[] tileStoreKey() {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException nsaex) {
+      throw new IllegalStateException(nsaex);
+    }
+    md.update(fingerprint_);
+    ByteBuffer parms = ByteBuffer.allocate((4 * 4) + (4 * 8) + (4 * bbZooms_.length));
+    parms.putInt(screenDim_.width);
+    parms.putInt(screenDim_.height);
+    parms.putInt(SLICE_HEIGHT_HACK_);
+    parms.putInt(bbZooms_.length);
+    parms.putDouble(worldRect_.getX());
+    parms.putDouble(worldRect_.getY());
+    parms.putDouble(worldRect_.getWidth());
+    parms.putDouble(worldRect_.getHeight());
+    for (int i = 0; i < bbZooms_.length; i++) {
+      parms.putInt(bbZooms_[i]);
+    }
+    md.update(parms.array());
+    try {
+      md.update(cache_.getCodec().getClass().getName().getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException ueex) {
+      throw new IllegalStateException(ueex);
+    }
+    return (md.digest());
+  }
+ 
   /***************************************************************************
   **
   ** Build the request queue
@@ -317,6 +670,9 @@ public class BufferBuilder {
     		continue;
     	}
       WorldPieceOffering wpo = allWorldsToImageName_.get(worldExtent);
+      if ((wpo != null) && wpo.isDrawn) { // We got it from the tile store
+        continue;
+      }
       if (wpo != null) {
       	UiUtil.fixMePrintout("Cancel of relayout puts us here");
       	System.err.println("Dup " + worldExtent);
@@ -324,7 +680,7 @@ public class BufferBuilder {
       }
       wpo = new WorldPieceOffering(null, screenDim_, worldExtent, false);
       allWorldsToImageName_.put(worldExtent, wpo);        
-      retval.add(new QueueRequest(node.getDepth(), screenDim_, wpo.worldRect));
+      retval.add(new QueueRequest(node.getDepth(), screenDim_, wpo.worldRect, false));
       if (retval.size() >= maxCount) {
         return (retval);
       }
@@ -369,21 +725,28 @@ public class BufferBuilder {
     }
     
     //
-    // Crank backwards up the chain to find an image to use:
+    // Crank backwards up the chain to find an image to use. An ancestor that has been
+    // drawn at full resolution beats a closer one that is itself just a scaled-up placeholder:
     //
     
     WorldPieceOffering wpou = null;
     int pathLen = path.size();
-    for (int i = pathLen - 1; i >= 0; i--) {
-    	QuadTree.QuadTreeNode node = path.get(i);
-      synchronized (this) {
-        wpou = allWorldsToImageName_.get(node.getWorldExtent());  
-        if ((wpou != null) && (wpou.cacheHandle != null) && !wpou.cacheHandle.equals("")) {
-          bi1 = cache_.getAnImage(wpou.cacheHandle, bis_);
-          break;
+    synchronized (this) {
+      if (handedOff_) {
+        return (null);
+      }
+      for (int pass = 0; (pass < 2) && (bi1 == null); pass++) {
+        boolean needDrawn = (pass == 0);
+        for (int i = pathLen - 1; i >= 0; i--) {
+        	QuadTree.QuadTreeNode node = path.get(i);
+          wpou = allWorldsToImageName_.get(node.getWorldExtent());  
+          if ((wpou != null) && (wpou.cacheHandle != null) && !wpou.cacheHandle.equals("") && 
+              (wpou.isDrawn || !needDrawn) && (wpou != wpo)) {
+            bi1 = cache_.getAnImage(wpou.cacheHandle, bis_);
+            break;
+          }
         }
       }
-      
     }
 
     if (bi1 == null) {  // blank!
@@ -511,7 +874,7 @@ public class BufferBuilder {
  
     String handle = null;
     synchronized (this) {
-      if (!wpo.isDrawn) {
+      if (!wpo.isDrawn && !handedOff_) {
         if (!isBlankImage(scaled)) {
         	// Caching recycles the image
           wpo.cacheHandle = cache_.cacheAnImage(scaled, bis_);
@@ -520,7 +883,10 @@ public class BufferBuilder {
           // gotta manually recycle the image:
           bis_.returnImage(scaled);
         }
-      } 
+      } else {
+        // Hi-res version got there first:
+        bis_.returnImage(scaled);
+      }
     }
     bis_.returnImage(bi1);
     bis_.returnByteBuf(bbc);
@@ -602,6 +968,13 @@ public class BufferBuilder {
   
     BufferBuilderClient tellHim = null;
     synchronized (this) {
+      //
+      // If the tiles were handed off while we were drawing, the cache is not ours anymore:
+      //
+      if (handedOff_) {
+        bis_.returnImage(bi);
+        return;
+      }
     	WorldPieceOffering wpo = allWorldsToImageName_.get(worldPiece);
       if (didDraw) {
         UiUtil.fixMePrintout("saw an NPE here. wpo must have been null!");
@@ -611,12 +984,30 @@ public class BufferBuilder {
           cache_.replaceAnImage(wpo.cacheHandle, bi, bis_);
         }
         wpo.isDrawn = true;
+        if (store_ != null) {
+          try {
+            cache_.persistAnImage(wpo.cacheHandle, store_, depth, worldPiece, bis_);
+          } catch (IOException ioex) {
+            // Stop saving tiles, but keep drawing them
+            store_.close();
+            store_ = null;
+          }
+        }
       } else {  // nothing drawn
         if (wpo.cacheHandle == null) {
           wpo.cacheHandle = "";
         } else if (!wpo.cacheHandle.equals("")) {
           cache_.dropAnImage(wpo.cacheHandle, bis_);
         }
+        if (store_ != null) {
+          try {
+            store_.appendBlank(depth, worldPiece);
+          } catch (IOException ioex) {
+            // Stop saving tiles, but keep drawing them
+            store_.close();
+            store_ = null;
+          }
+        }
       }
       if (bbc_ != null) {
         tellHim = bbc_;
@@ -659,6 +1050,58 @@ public class BufferBuilder {
     return (true);
   }
   
+  /***************************************************************************
+  **
+  ** Tiles handed from one builder to the next across a relayout
+  */
+
+  public static class TileCarryover {
+    
+    private RasterCache cache;
+    private List<WorldPieceOffering> offerings;
+    private Dimension screenDim;
+    private Rectangle2D worldRect;
+    private int[] zooms;
+    private TilePyramidStore store;
+    
+    TileCarryover(RasterCache cache, Collection<WorldPieceOffering> offerings, Dimension screenDim, 
+                  Rectangle2D worldRect, int[] zooms, TilePyramidStore store) {
+      this.cache = cache;
+      this.offerings = new ArrayList<WorldPieceOffering>(offerings);
+      this.screenDim = (Dimension)screenDim.clone();
+      this.worldRect = (Rectangle2D)worldRect.clone();
+      this.zooms = zooms.clone();
+      this.store = store;
+    }
+    
+    /***************************************************************************
+    **
+    ** Nobody wants these tiles. Drop them so temp files go away now.
+    */
+    
+    public void discard(ImgAndBufPool bis) {
+      if (cache == null) {
+        return;
+      }
+      try {
+        for (WorldPieceOffering wpo : offerings) {
+          if ((wpo.cacheHandle != null) && !wpo.cacheHandle.equals("")) {
+            cache.dropAnImage(wpo.cacheHandle, bis);
+          }
+        }
+      } catch (IOException ioex) {
+        // Nothing more to do; the rest goes with the cache
+      }
+      if (store != null) {
+        store.close();
+      }
+      cache = null;
+      offerings.clear();
+      store = null;
+      return;
+    }
+  }
+  
   /***************************************************************************
   **
   ** Build images in the background:
@@ -669,11 +1112,14 @@ public class BufferBuilder {
     private Dimension screenDim_;
     @SuppressWarnings("unused")
     private String errString_;
-    private ArrayList<QueueRequest> requests_;
+    private LinkedList<QueueRequest> requests_;
+    private HashSet<QueueRequest> queued_;
+    private QueueRequest inFlight_;
 
     public BuildImageWorker(Dimension screenDim, List<QueueRequest> requests) {
       screenDim_ = (Dimension)screenDim.clone();
-      requests_ = new ArrayList<QueueRequest>(requests);
+      requests_ = new LinkedList<QueueRequest>(requests);
+      queued_ = new HashSet<QueueRequest>(requests);
     }
 
     public void run() {
@@ -683,7 +1129,11 @@ public class BufferBuilder {
           if (qr == null) {
             break;
           }
-          if (!buildBuffer(new Dimension(qr.imageDim.width, qr.imageDim.height), qr)) {
+          boolean keepGoing = buildBuffer(new Dimension(qr.imageDim.width, qr.imageDim.height), qr);
+          synchronized (BufferBuilder.this) {
+            inFlight_ = null;
+          }
+          if (!keepGoing) {
             return;
           }
         }
@@ -711,23 +1161,71 @@ public class BufferBuilder {
             return (null);
           }
 	      }
-        return (requests_.remove(0));     
+        inFlight_ = requests_.removeFirst();
+        queued_.remove(inFlight_);
+        return (inFlight_);     
       }
     }
        
     //
-    // When a lo-res result is all we can return, push the hi-res requests to the
-    // front of the queue:
+    // When a lo-res result is all we can return, make sure there is a hi-res request
+    // pending. If it is not already queued (or being built), it goes to the front:
     //
     
-    void bumpRequest(QueueRequest qr) {
+    void ensureRequest(QueueRequest qr) {
       synchronized (BufferBuilder.this) {
-        requests_.remove(qr);  // May not be there!!!!
-        requests_.add(0, qr);
+        if (qr.equals(inFlight_) || queued_.contains(qr)) {
+          return;
+        }
+        requests_.addFirst(qr);
+        queued_.add(qr);
         BufferBuilder.this.notify(); 
       }
       return;
     }
+    
+    //
+    // The view has changed; these go to the front of the queue, and the stocking requests
+    // follow in their old order. Requests made for an earlier view are cancelled, as are
+    // requests for tiles that have since been drawn, or that were made for a different
+    // tiling:
+    //
+    
+    void promoteRequests(List<QueueRequest> frontRequests) {
+      synchronized (BufferBuilder.this) {
+        LinkedHashSet<QueueRequest> reordered = new LinkedHashSet<QueueRequest>();
+        int numReq = frontRequests.size();
+        for (int i = 0; i < numReq; i++) {
+          QueueRequest qr = frontRequests.get(i);
+          if (!qr.equals(inFlight_)) {
+            reordered.add(qr);
+          }
+        }
+        for (QueueRequest qr : requests_) {
+          if (isStillWanted(qr)) {
+            reordered.add(qr);
+          }
+        }
+        requests_.clear();
+        requests_.addAll(reordered);
+        queued_.clear();
+        queued_.addAll(reordered);
+        BufferBuilder.this.notify(); 
+      }
+      return;
+    }
+    
+    //
+    // Call with lock held:
+    //
+    
+    private boolean isStillWanted(QueueRequest qr) {
+      if (qr.forView || !qr.imageDim.equals(screenDim_) || (bbZooms_ == null) || (qr.depth >= bbZooms_.length)) {
+        return (false);
+      }
+      WorldPieceOffering wpo = allWorldsToImageName_.get(qr.worldPiece);
+      return ((wpo == null) || !wpo.isDrawn);
+    }
   }
     
   /***************************************************************************
@@ -767,11 +1265,13 @@ public class BufferBuilder {
     int depth;
     Dimension imageDim;
     Rectangle2D worldPiece;
+    boolean forView; // Not part of equality
     
-    QueueRequest(int depth, Dimension imageDim, Rectangle2D worldPiece) {
+    QueueRequest(int depth, Dimension imageDim, Rectangle2D worldPiece, boolean forView) {
       this.depth = depth;
       this.worldPiece = worldPiece;
       this.imageDim = imageDim;
+      this.forView = forView;
     }
     
     public int hashCode() {
@@ -801,6 +1301,31 @@ public class BufferBuilder {
     
   }
  
+  /***************************************************************************
+  **
+  ** Sorts requests by distance from the view center
+  */  
+  
+  private static class CenterDistanceComparator implements Comparator<QueueRequest> {
+    private double centerX_;
+    private double centerY_;
+    
+    CenterDistanceComparator(double centerX, double centerY) {
+      centerX_ = centerX;
+      centerY_ = centerY;
+    }
+    
+    public int compare(QueueRequest qr1, QueueRequest qr2) {
+      return (Double.compare(distSq(qr1), distSq(qr2)));
+    }
+    
+    private double distSq(QueueRequest qr) {
+      double dx = qr.worldPiece.getCenterX() - centerX_;
+      double dy = qr.worldPiece.getCenterY() - centerY_;
+      return ((dx * dx) + (dy * dy));
+    }
+  }
+  
   /***************************************************************************
   **
   ** Interface for guys who wnat to listen for our results
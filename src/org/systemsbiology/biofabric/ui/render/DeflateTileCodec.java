@@ -0,0 +1,147 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.ui.render;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/****************************************************************************
+**
+** The original tile scheme: pack each pixel into three bytes and deflate.
+** Deflaters and Inflaters are reused per thread instead of being created
+** for every tile, and the compression level can be chosen.
+*/
+
+public class DeflateTileCodec implements TileCodec {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private RasterCache.ShiftData shiftData_;
+  private int level_;
+  private ThreadLocal<Deflater> deflaters_;
+  private ThreadLocal<Inflater> inflaters_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. Level is a Deflater level, e.g. Deflater.BEST_SPEED
+  */
+
+  public DeflateTileCodec(RasterCache.ShiftData shiftData, int level) {
+    if (((level < Deflater.BEST_SPEED) || (level > Deflater.BEST_COMPRESSION)) && (level != Deflater.DEFAULT_COMPRESSION)) {
+      throw new IllegalArgumentException();
+    }
+    shiftData_ = shiftData;
+    level_ = level;
+    deflaters_ = new ThreadLocal<Deflater>() {
+      @Override
+      protected Deflater initialValue() {
+        return (new Deflater(level_));
+      }
+    };
+    inflaters_ = new ThreadLocal<Inflater>() {
+      @Override
+      protected Inflater initialValue() {
+        return (new Inflater());
+      }
+    };
+  }
+  
+  /***************************************************************************
+  **
+  ** Constructor using default compression level
+  */
+
+  public DeflateTileCodec(RasterCache.ShiftData shiftData) {
+    this(shiftData, Deflater.DEFAULT_COMPRESSION);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Encode the tile
+  */
+
+  public RasterCache.BytesWithMeta encode(int[] pixels, int width, int height, ImgAndBufPool bis) {
+    int numPix = width * height;
+    int numBytes = numPix * 3;
+    byte[] byteData = bis.fetchByteBuf(numBytes);
+    RasterCache.oneIntToThreeBytes(pixels, byteData, numPix, shiftData_);
+    
+    //
+    // Incompressible data can come out slightly bigger than it went in. This is a
+    // safe upper bound for zlib:
+    //
+    
+    byte[] output = bis.fetchByteBuf(numBytes + (numBytes / 100) + 64);
+    Deflater deflate = deflaters_.get();
+    deflate.reset();
+    deflate.setInput(byteData, 0, numBytes);
+    deflate.finish();
+    int compressedDataLength = deflate.deflate(output);
+    if (!deflate.finished()) {
+      throw new IllegalStateException();
+    }
+    byte[] result = bis.fetchByteBuf(compressedDataLength);
+    System.arraycopy(output, 0, result, 0, compressedDataLength);
+    bis.returnByteBuf(output);
+    bis.returnByteBuf(byteData);
+    return (new RasterCache.BytesWithMeta(result, compressedDataLength));
+  }
+    
+  /***************************************************************************
+  ** 
+  ** Decode the tile
+  */
+
+  public void decode(RasterCache.BytesWithMeta bwm, int[] pixels, int width, int height, 
+                     ImgAndBufPool bis) throws IOException {
+    int numPix = width * height;
+    byte[] decomp = bis.fetchByteBuf(numPix * 3);
+    Inflater inflate = inflaters_.get();
+    inflate.reset();
+    inflate.setInput(bwm.buf, 0, bwm.used);
+    try {
+      inflate.inflate(decomp, 0, numPix * 3);
+    } catch (DataFormatException dfex) {
+      throw new IOException();
+    }
+    RasterCache.threeBytesToOneInt(decomp, pixels, numPix, shiftData_);
+    bis.returnByteBuf(decomp);
+    return;
+  }
+}
@@ -0,0 +1,231 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.ui.render;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+import org.systemsbiology.biofabric.api.model.NetNode;
+import org.systemsbiology.biofabric.api.worker.AsynchExitRequestException;
+import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
+import org.systemsbiology.biofabric.model.BioFabricNetwork;
+import org.systemsbiology.biofabric.ui.FabricColorGenerator;
+import org.systemsbiology.biofabric.ui.FabricDisplayOptions;
+import org.systemsbiology.biofabric.ui.FabricDisplayOptionsManager;
+import org.systemsbiology.biofabric.ui.ImageExporter;
+import org.systemsbiology.biofabric.ui.display.BioFabricPanel;
+import org.systemsbiology.biofabric.util.UiUtil;
+
+/****************************************************************************
+**
+** Renders a full network into an image. The static methods are the drawing
+** core that BioFabricPanel uses for buffers and image export. An instance
+** does the same job with no panel, window, or command set behind it, so
+** headless image generation never has to bring up any Swing classes.
+*/
+
+public class FabricImageRenderer {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+
+  //
+  // Padding around the network, as a fraction of its size:
+  //
+  
+  private static final double PAD_MULT_ = 0.20; 
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private PaintCacheSmall painter_;
+  private Rectangle2D worldRectNetAR_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public FabricImageRenderer(FabricColorGenerator colGen) {
+    painter_ = new PaintCacheSmall(colGen);
+    worldRectNetAR_ = null;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  ** 
+  ** Install a model. Uses the current display options, just like the panel.
+  */
+
+  public void installModel(BioFabricNetwork bfn, BTProgressMonitor monitor) throws AsynchExitRequestException {
+    FabricDisplayOptions fdo = FabricDisplayOptionsManager.getMgr().getDisplayOptions();
+    boolean shadeNodes = fdo.getShadeNodes();
+    boolean showShadows = fdo.getDisplayShadows();
+    
+    double netWidth = bfn.getColumnCount(showShadows) * BioFabricPanel.GRID_SIZE;
+    double netHeight = bfn.getRowCount() * BioFabricPanel.GRID_SIZE;
+    Rectangle2D linksAndNodes = new Rectangle2D.Double(0.0, 0.0, netWidth, netHeight);
+    
+    //
+    // Name locations are only needed for mouse hits, so they get tossed:
+    //
+    
+    Rectangle2D fullNetRect = painter_.buildObjCache(bfn.getNodeDefList(), bfn.getLinkDefList(showShadows), 
+                                                     shadeNodes, showShadows, bfn.getExtents(), 
+                                                     new HashMap<NetNode, Rectangle2D>(), 
+                                                     new HashMap<NetNode, List<Rectangle2D>>(), linksAndNodes, 
+                                                     bfn.getNodeAnnotations(), 
+                                                     bfn.getLinkAnnotations(Boolean.valueOf(showShadows)), monitor);
+    worldRectNetAR_ = paddedWorldRect(fullNetRect);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Return the required size of the layout
+  */
+  
+  public Rectangle getRequiredSize() {
+    if (worldRectNetAR_ == null) {
+      throw new IllegalStateException();
+    }
+    return (UiUtil.rectFromRect2D(worldRectNetAR_));
+  }
+  
+  /***************************************************************************
+  **
+  ** Export the full network as an image of the given width. The output object
+  ** can be a File or an OutputStream.
+  */  
+  
+  public void exportImage(Object outObj, String format, ImageExporter.ResolutionSettings res, int width) throws IOException {
+    Rectangle worldPiece = getRequiredSize();
+    double zoom = (double)width / (double)worldPiece.width;
+    Dimension size = new Dimension((int)Math.round(worldPiece.width * zoom), (int)Math.round(worldPiece.height * zoom));
+    exportImage(painter_, worldPiece, outObj, format, res, zoom, size);
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** The world rectangle for a network: the bounds of everything drawn, padded
+  ** out and snapped to the grid.
+  */
+  
+  public static Rectangle2D paddedWorldRect(Rectangle2D fullNetRect) {
+    double ulPtx = PAD_MULT_ * fullNetRect.getWidth();
+    double ulPty = PAD_MULT_ * fullNetRect.getHeight();
+    
+    Rectangle2D retval = new Rectangle2D.Double(fullNetRect.getX() - ulPtx, fullNetRect.getY() - ulPty,
+                                                fullNetRect.getWidth() + (2.0 * ulPtx), 
+                                                fullNetRect.getHeight()+ (2.0 * ulPty));
+    UiUtil.force2DToGrid(retval, BioFabricPanel.GRID_SIZE);
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Drawing core
+  */
+  
+  public static boolean drawForBuffer(PaintCacheSmall painter, BufferedImage bi, Rectangle2D clip, 
+                                      Dimension screenDim, Rectangle2D worldRec, int heightPad) { 
+    Graphics2D g2 = bi.createGraphics();
+    g2.setColor(Color.WHITE);
+    g2.fillRect(0, 0, screenDim.width, screenDim.height + heightPad);
+    double zoomH = screenDim.getWidth() / worldRec.getWidth();
+    double zoomV = screenDim.getHeight() / worldRec.getHeight();
+    double zoom = Math.max(zoomH, zoomV); //Math.min(zoomH, zoomV);
+    Point2D centerW = new Point2D.Double(worldRec.getX() + (worldRec.getWidth() / 2.0), worldRec.getY() + (worldRec.getHeight() / 2.0));
+    AffineTransform transform = new AffineTransform();
+    transform.translate(screenDim.getWidth() / 2.0, screenDim.getHeight() / 2.0);
+    transform.scale(zoom, zoom);
+    transform.translate(-centerW.getX(), -centerW.getY());
+
+    g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    g2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+    BasicStroke selectedStroke = new BasicStroke(PaintCacheSmall.STROKE_SIZE, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER);    
+    g2.setStroke(selectedStroke);
+    g2.setTransform(transform); 
+    boolean retval = painter.paintIt(g2, UiUtil.rectFromRect2D(clip), null);
+    
+    // To debug sizing problems, this draws a green bounding rectangle:
+    //AffineTransform transformx = new AffineTransform();
+    //g2.setTransform(transformx);
+    //BasicStroke selectedStrokex = new BasicStroke(1, BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER);    
+    //g2.setStroke(selectedStrokex);  
+    //g2.setColor(Color.GREEN);
+    //g2.drawRect(0, 0, screenDim.width - 1, screenDim.height - 1);
+
+    g2.dispose();
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Support image export. Because of the way the image handler operates, it can take
+  ** either an OutputStream or a File as the output object.
+  */  
+  
+  public static void exportImage(PaintCacheSmall painter, Rectangle worldPiece, Object outObj, String format, 
+                                 ImageExporter.ResolutionSettings res, double zoom, Dimension size) throws IOException { 
+    Dimension useSize = (size == null) ? new Dimension((int)(worldPiece.width * zoom), (int)(worldPiece.height * zoom)) : size;
+    BufferedImage bi = new BufferedImage(useSize.width, useSize.height, BufferedImage.TYPE_INT_RGB);
+    drawForBuffer(painter, bi, worldPiece, useSize, worldPiece, 0);  
+    ImageExporter iex = new ImageExporter();
+    iex.export(outObj, bi, format, res);    
+    return;
+  }
+}
@@ -22,31 +22,63 @@ package org.systemsbiology.biofabric.ui.render;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /****************************************************************************
 **
-** This is a cache for reusing buffered images
+** This is a cache for reusing buffered images. No locks are held; each exact
+** size class gets its own concurrent bin, and each thread keeps a few recently
+** returned objects of each size for itself. Once a bin holds more than the
+** high-water count, further returns are only softly held, so the GC can take
+** them back if memory gets tight.
 */
 
 public class ImgAndBufPool {
-    
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  public static final int DEFAULT_HIGH_WATER = 32;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  //
+  // How many objects of each size a thread holds onto for itself:
+  //
+
+  private static final int LOCAL_DEPTH_ = 2;
+
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE INSTANCE MEMBERS
   //
   ////////////////////////////////////////////////////////////////////////////
-  
-  private HashMap<StackKey, List<BufferedImage>> biStack_;
-  private HashMap<Integer, List<int[]>> bufStack_;
-  private HashMap<Integer, List<byte[]>> byteStack_;
+
+  private SizeClassPool<BufferedImage> biStack_;
+  private SizeClassPool<int[]> bufStack_;
+  private SizeClassPool<byte[]> byteStack_;
   private int binSize_;
-  
+  private AtomicLong hits_;
+  private AtomicLong misses_;
+  private AtomicLong softEvictions_;
+
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC CONSTRUCTORS
@@ -59,9 +91,25 @@ public class ImgAndBufPool {
   */
 
   public ImgAndBufPool(int binSize) {
-    biStack_ = new HashMap<StackKey, List<BufferedImage>>();
-    bufStack_ = new HashMap<Integer, List<int[]>>();
-    byteStack_ = new HashMap<Integer, List<byte[]>>();
+    this(binSize, DEFAULT_HIGH_WATER);
+  }
+
+  /***************************************************************************
+  **
+  ** Constructor. High water is the number of objects per size class that are
+  ** strongly held; beyond that, returned objects are held by soft references.
+  */
+
+  public ImgAndBufPool(int binSize, int highWater) {
+    if (highWater < 0) {
+      throw new IllegalArgumentException();
+    }
+    hits_ = new AtomicLong(0L);
+    misses_ = new AtomicLong(0L);
+    softEvictions_ = new AtomicLong(0L);
+    biStack_ = new SizeClassPool<BufferedImage>(highWater);
+    bufStack_ = new SizeClassPool<int[]>(highWater);
+    byteStack_ = new SizeClassPool<byte[]>(highWater);
     binSize_ = binSize;
   }
 
@@ -70,258 +118,289 @@ public class ImgAndBufPool {
   // PUBLIC METHODS
   //
   ////////////////////////////////////////////////////////////////////////////
-  
+
   /***************************************************************************
-  ** 
+  **
   ** Get a buffered image
   */
-  
-  public synchronized BufferedImage fetchImage(int imgWidth, int imgHeight, int type) {
-  	
-  	List<BufferedImage> stack = null;
-  	Iterator<StackKey> skit = biStack_.keySet().iterator();
-  	while (skit.hasNext()) {
-  		StackKey sk = skit.next();
-  		if (sk.matches(imgWidth, imgHeight, type)) {
-  			stack = biStack_.get(sk);
-  			break;
-  		}
-  	}
-  	
-  	if (stack == null) {
-  		stack = new ArrayList<BufferedImage>();
-  		biStack_.put(new StackKey(imgWidth, imgHeight, type), stack);		
-  	}
- 
-  	BufferedImage bi;
-   	if (stack.isEmpty()) {
-      //		System.out.println("Creating new BI");
-  	  bi = new BufferedImage(imgWidth, imgHeight, type);	  
-      //	  System.out.println("BI " + bi);
-  	  /* 
-  	  WritableRaster rast = bi.getRaster();
-  	  SampleModel asm = rast.getSampleModel();
-  	  if (asm instanceof PixelInterleavedSampleModel) {
-  	    PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel)asm;
-	  	  int[] bo = sm.getBandOffsets();
-	  	  System.out.println("BIrsmdt " + sm.getDataType());
-	  	  System.out.println("BIrsmw " + sm.getWidth());
-	  	  System.out.println("BIrsmh " + sm.getHeight());
-	  	  System.out.println("BIrsmps " + sm.getPixelStride());
-	  	  System.out.println("BIrsmss " +  sm.getScanlineStride());  
-	  	  System.out.println("BIrsmbol " +  bo[0] + " " + bo[1] + " " + bo[2]); 
-	  	  System.out.println("BIrw " + rast.getWidth());
-	  	  System.out.println("BIrh " + rast.getHeight());
-  	  }
-  	  System.out.println("BIxt " +  bi.getNumXTiles());
-  	  System.out.println("BIyt " +  bi.getNumYTiles());
-  	 */
+
+  public BufferedImage fetchImage(int imgWidth, int imgHeight, int type) {
+    BufferedImage bi = biStack_.fetch(imageKey(imgWidth, imgHeight, type));
+    if (bi == null) {
+      bi = new BufferedImage(imgWidth, imgHeight, type);
     } else {
-    	// WJRL 11/25/17: Gotta blank out the image! Otherwise we get stuff that was drawn in last time.
-      bi = stack.remove(stack.size() - 1);
-      Graphics2D graphics = bi.createGraphics();
-      graphics.setPaint(new Color(255, 255, 255));
-      graphics.fillRect (0, 0, bi.getWidth(), bi.getHeight());
+      // WJRL 11/25/17: Gotta blank out the image! Otherwise we get stuff that was drawn in last time.
+      blankImage(bi);
     }
-    //  	System.out.println("fetching BI : size = " + stack.size() + " " +  + bi.hashCode());
-   	
     return (bi);
   }
 
-  
   /***************************************************************************
-  ** 
+  **
   ** Get an integer array
   */
-  
-  public synchronized int[] fetchBuf(int size) {
-  	
-  	List<int[]> stack = bufStack_.get(Integer.valueOf(size));
-  	if (stack == null) {
-  		stack = new ArrayList<int[]>();
-  		bufStack_.put(Integer.valueOf(size), stack);		
-  	}
- 
-    int[] retval;
-  	if (stack.isEmpty()) {
-//  		System.out.println("Creating new buf");
-  	  retval = new int[size];
-  	} else {
-  	  retval = stack.remove(stack.size() - 1);
-  	  Arrays.fill(retval, 0);
-  	}
-  	//System.out.println("fetch buf " + retval);
+
+  public int[] fetchBuf(int size) {
+    int[] retval = bufStack_.fetch(Integer.valueOf(size));
+    if (retval == null) {
+      retval = new int[size];
+    } else {
+      Arrays.fill(retval, 0);
+    }
     return (retval);
   }
 
   /***************************************************************************
-  ** 
-  ** Get an integer array
+  **
+  ** Get a byte array. Size is rounded up to the next bin.
   */
-  
-  public synchronized byte[] fetchByteBuf(int size) {
-  	
+
+  public byte[] fetchByteBuf(int size) {
+
   	int useSize = size;
   	int rem = size % binSize_;
   	if (rem != 0) {
   		int quo = size / binSize_;
   		useSize = (quo + 1) * binSize_;
   	}
-  	Integer key = Integer.valueOf(useSize);
-  	
-  	List<byte[]> stack = byteStack_.get(key);
-  	if (stack == null) {
-  		stack = new ArrayList<byte[]>();
-  		byteStack_.put(key, stack);		
-  	}
- 
-    byte[] retval;
-  	if (stack.isEmpty()) {
-  //		System.out.println("Creating new byte buf " + useSize);
+    byte[] retval = byteStack_.fetch(Integer.valueOf(useSize));
+  	if (retval == null) {
   	  retval = new byte[useSize];
   	} else {
-  	  retval = stack.remove(stack.size() - 1);
   	  Arrays.fill(retval, (byte)0);
   	}
     return (retval);
   }
-  
+
   /***************************************************************************
-  ** 
+  **
   ** Return a buffered image
   */
-  
-  public synchronized void returnImage(BufferedImage bi) {
+
+  public void returnImage(BufferedImage bi) {
   	if (bi == null) {
   		System.err.println("Returning null BufferedImage");
   		return;
   	}
-  	int imgWidth = bi.getWidth();
-  	int imgHeight = bi.getHeight();
-  	int type = bi.getType();
-  	List<BufferedImage> stack = null;
-  	Iterator<StackKey> skit = biStack_.keySet().iterator();
-  	while (skit.hasNext()) {
-  		StackKey sk = skit.next();
-  		if (sk.matches(imgWidth, imgHeight, type)) {
-  			stack = biStack_.get(sk);
-  			break;
-  		}
-  	}
-  	
   	//
-  	// Images coming off of a file may never have been seen before!
+  	// Images coming off of a file may never have been seen before! That is fine,
+  	// since bins are created on demand.
   	//
-  	
-  	if (stack == null) {
-  		stack = new ArrayList<BufferedImage>();
-  		biStack_.put(new StackKey(imgWidth, imgHeight, type), stack);		
-  	}
-    Iterator<BufferedImage> stit = stack.iterator();
-  	while (stit.hasNext()) {
-  		BufferedImage sk = stit.next();
-  		if (sk.hashCode() == bi.hashCode()) {
-  			throw new IllegalStateException();
-  		}
-  	}
-
-  	stack.add(bi);
-  	//System.out.println("Returning BI : size = " + stack.size() + " " +  + bi.hashCode());
+  	biStack_.giveBack(imageKey(bi.getWidth(), bi.getHeight(), bi.getType()), bi);
     return;
   }
- 
+
   /***************************************************************************
-  ** 
+  **
   ** Return a buffer
   */
-  
-  public synchronized void returnBuf(int[] buf) {
+
+  public void returnBuf(int[] buf) {
   	if (buf == null) {
   		System.err.println("Returning null buf");
   		return;
   	}
-  	List<int[]> stack = bufStack_.get(Integer.valueOf(buf.length));
-  	if (stack == null) {
-  		stack = new ArrayList<int[]>();
-  		bufStack_.put(Integer.valueOf(buf.length), stack);		
-  	} else if (stack.contains(buf)) {
-  		throw new IllegalStateException();
-  	}
-  	
-  	stack.add(buf);
-  //	System.out.println("Returning buf: size = " + stack.size());
-  	//System.out.println("returned buf " + buf);
+  	bufStack_.giveBack(Integer.valueOf(buf.length), buf);
     return;
   }
- 
+
   /***************************************************************************
-  ** 
+  **
   ** Return a buffer
   */
-  
-  public synchronized void returnByteBuf(byte[] buf) {
+
+  public void returnByteBuf(byte[] buf) {
   	if (buf == null) {
   		System.err.println("Returning null buf");
   		return;
   	}
-  	List<byte[]> stack = byteStack_.get(Integer.valueOf(buf.length));
-  	if (stack == null) {
-  		stack = new ArrayList<byte[]>();
-  		byteStack_.put(Integer.valueOf(buf.length), stack);		
-  	} else if (stack.contains(buf)) {
-  		throw new IllegalStateException();
-  	}
-  	
-  	stack.add(buf);
- // 	System.out.println("Returning byte buf: size = " + stack.size());
+  	byteStack_.giveBack(Integer.valueOf(buf.length), buf);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Number of fetches satisfied from the pool
+  */
+
+  public long getHitCount() {
+    return (hits_.get());
+  }
+
+  /***************************************************************************
+  **
+  ** Number of fetches that had to allocate
+  */
+
+  public long getMissCount() {
+    return (misses_.get());
+  }
+
+  /***************************************************************************
+  **
+  ** Number of returns that went above the high-water mark and were only softly held
+  */
+
+  public long getSoftEvictionCount() {
+    return (softEvictions_.get());
+  }
+
+  /***************************************************************************
+  **
+  ** Summary string for debug output
+  */
+
+  public String getStats() {
+    return ("ImgAndBufPool hits: " + hits_.get() + " misses: " + misses_.get() + " soft: " + softEvictions_.get());
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Exact size class key for an image. Widths and heights are way less than 2^28.
+  */
+
+  private Long imageKey(int imgWidth, int imgHeight, int type) {
+    long key = (((long)imgWidth) << 36) | (((long)imgHeight) << 8) | (type & 0xFF);
+    return (Long.valueOf(key));
+  }
+
+  /***************************************************************************
+  **
+  ** Paint an image white. For the int-backed images we use, this is just an array fill.
+  */
+
+  private void blankImage(BufferedImage bi) {
+    DataBuffer db = bi.getRaster().getDataBuffer();
+    if ((db instanceof DataBufferInt) && (db.getNumBanks() == 1)) {
+      int[] white = (int[])bi.getColorModel().getDataElements(Color.WHITE.getRGB(), null);
+      Arrays.fill(((DataBufferInt)db).getData(), white[0]);
+    } else {
+      Graphics2D graphics = bi.createGraphics();
+      graphics.setPaint(Color.WHITE);
+      graphics.fillRect(0, 0, bi.getWidth(), bi.getHeight());
+      graphics.dispose();
+    }
     return;
-  } 
-  
+  }
+
   ////////////////////////////////////////////////////////////////////////////
   //
   // INNER CLASSES
   //
   ////////////////////////////////////////////////////////////////////////////
-  
+
   /***************************************************************************
-  ** 
-  ** Keys for stacks of different flavored images
-  */ 
- 
-  private static class StackKey {
-  
-    int width;
-    int height;
-    int type;
-  
-    StackKey(int width, int height, int type) {
-    	this.width = width;
-      this.height = height;
-      this.type = type;
-	  }
- 
-   	boolean matches(int width, int height, int type) {
-	    return ((this.width == width) && (this.height == height) && (this.type == type));
-	  }
-   
-	  @Override
-	  public int hashCode() {
-	    return (width + height + type);
-	  }
-	  
-	  @Override
-	  public boolean equals(Object other) {
-	    if (other == null) {
-	      return (false);
-	    }
-	    if (other == this) {
-	      return (true);
-	    }
-	    if (!(other instanceof StackKey)) {
-	      return (false);
-	    }
-	    StackKey otherMM = (StackKey)other;
-	    return ((this.width == otherMM.width) && (this.height == otherMM.height) && (this.type == otherMM.type));
-	  }  
+  **
+  ** One flavor of pooled object, binned by exact size class
+  */
+
+  private class SizeClassPool<T> {
+
+    private int highWater_;
+    private ConcurrentHashMap<Object, Bin<T>> bins_;
+    private ConcurrentHashMap<T, Boolean> pooled_;
+    private ThreadLocal<HashMap<Object, ArrayList<T>>> local_;
+
+    SizeClassPool(int highWater) {
+      highWater_ = highWater;
+      bins_ = new ConcurrentHashMap<Object, Bin<T>>();
+      //
+      // Arrays and BufferedImages use identity equals, so this tracks exactly what we
+      // are strongly holding, and lets us catch double returns cheaply:
+      //
+      pooled_ = new ConcurrentHashMap<T, Boolean>();
+      local_ = new ThreadLocal<HashMap<Object, ArrayList<T>>>() {
+        @Override
+        protected HashMap<Object, ArrayList<T>> initialValue() {
+          return (new HashMap<Object, ArrayList<T>>());
+        }
+      };
+    }
+
+    T fetch(Object key) {
+      ArrayList<T> mine = local_.get().get(key);
+      if ((mine != null) && !mine.isEmpty()) {
+        T retval = mine.remove(mine.size() - 1);
+        pooled_.remove(retval);
+        hits_.incrementAndGet();
+        return (retval);
+      }
+      Bin<T> bin = bins_.get(key);
+      if (bin != null) {
+        T retval = bin.hard.poll();
+        if (retval != null) {
+          bin.hardCount.decrementAndGet();
+          pooled_.remove(retval);
+          hits_.incrementAndGet();
+          return (retval);
+        }
+        SoftReference<T> ref;
+        while ((ref = bin.soft.poll()) != null) {
+          retval = ref.get();
+          if (retval != null) {
+            hits_.incrementAndGet();
+            return (retval);
+          }
+        }
+      }
+      misses_.incrementAndGet();
+      return (null);
+    }
+
+    void giveBack(Object key, T obj) {
+      if (pooled_.putIfAbsent(obj, Boolean.TRUE) != null) {
+        throw new IllegalStateException();
+      }
+      HashMap<Object, ArrayList<T>> localMap = local_.get();
+      ArrayList<T> mine = localMap.get(key);
+      if (mine == null) {
+        mine = new ArrayList<T>(LOCAL_DEPTH_);
+        localMap.put(key, mine);
+      }
+      if (mine.size() < LOCAL_DEPTH_) {
+        mine.add(obj);
+        return;
+      }
+      Bin<T> bin = bins_.get(key);
+      if (bin == null) {
+        Bin<T> newBin = new Bin<T>();
+        bin = bins_.putIfAbsent(key, newBin);
+        if (bin == null) {
+          bin = newBin;
+        }
+      }
+      if (bin.hardCount.incrementAndGet() <= highWater_) {
+        bin.hard.offer(obj);
+      } else {
+        bin.hardCount.decrementAndGet();
+        pooled_.remove(obj);
+        bin.soft.offer(new SoftReference<T>(obj));
+        softEvictions_.incrementAndGet();
+      }
+      return;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Shared objects for one size class
+  */
+
+  private static class Bin<T> {
+    ConcurrentLinkedQueue<T> hard;
+    AtomicInteger hardCount;
+    ConcurrentLinkedQueue<SoftReference<T>> soft;
+
+    Bin() {
+      hard = new ConcurrentLinkedQueue<T>();
+      hardCount = new AtomicInteger(0);
+      soft = new ConcurrentLinkedQueue<SoftReference<T>>();
+    }
   }
 }
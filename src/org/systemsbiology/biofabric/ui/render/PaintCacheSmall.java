@@ -33,6 +33,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -48,7 +49,6 @@ import org.systemsbiology.biofabric.api.worker.BTProgressMonitor;
 import org.systemsbiology.biofabric.api.worker.LoopReporter;
 import org.systemsbiology.biofabric.model.BioFabricNetwork;
 import org.systemsbiology.biofabric.ui.FabricColorGenerator;
-import org.systemsbiology.biofabric.ui.FabricDisplayOptions;
 import org.systemsbiology.biofabric.ui.FabricDisplayOptionsManager;
 import org.systemsbiology.biofabric.ui.display.BioFabricPanel;
 import org.systemsbiology.biofabric.util.DoubMinMax;
@@ -76,6 +76,35 @@ public class PaintCacheSmall {
   private final static double DRAIN_ZONE_ROW_OFFSET_ = 0.5F; // Lifts drain zone text above the node line & boxes
   private final static double NODE_LABEL_X_SHIM_ = 5.0F;
   private final static double LABEL_FONT_HEIGHT_SCALE_ = 2.0 / 3.0;
+  
+  //
+  // Node label paint objects are built for bands of rows the first time they are seen,
+  // and we hold onto a bounded number of bands:
+  //
+  
+  private final static int BAND_ROWS_ = 128;
+  
+  //
+  // Node key styles: the low two bits are the kind, then a rotation bit, then 
+  // the font size ordinal:
+  //
+  
+  private final static int KEY_LABEL_ = 0;
+  private final static int KEY_SHADE_ = 1;
+  private final static int KEY_DRAIN_ = 2;
+  private final static int KEY_KIND_MASK_ = 0x03;
+  private final static int KEY_ROTATE_ = 0x04;
+  private final static int KEY_FONT_SHIFT_ = 3;
+  private final static int MAX_CACHED_BANDS_ = 128;
+  
+  //
+  // Point size of the fonts, used to skip measuring drain zone text in sizes that 
+  // clearly cannot fit. Text width scales with point size, so the TINY width tells
+  // us roughly what the others are. The slop keeps us well clear of rounding:
+  //
+  
+  private final static float TINY_POINT_SIZE_ = 10.0F;
+  private final static double FIT_ESTIMATE_SLOP_ = 1.1;
 
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -105,11 +134,32 @@ public class PaintCacheSmall {
   private HashMap<String, BoxPath> nameKeyToPaintZero_;
   private HashMap<String, BoxPath> nameKeyToPaintOneQuarter_;
   private HashMap<String, TextPath> nameKeyToPaintOneHalf_;
-  private HashMap<String, BoxPath> nameKeyToPaintFirst_;
-  private HashMap<String, TextPath> nameKeyToPaintSecond_;
-  private HashMap<String, TextPath> nameKeyToPaintThird_;
   private int nameKeyCount_;
-  private HashMap<String, NID> nameKeyToNodeID_;
+  
+  //
+  // Node label and drain zone keys come first, so any key below nodeKeyCount_ belongs
+  // to the node in row keyToNodeRow_[key]. The paint objects for them live in the bands,
+  // which are built from the bounds, placement, and style found up front:
+  //
+  
+  private int nodeKeyCount_;
+  private int[] keyToNodeRow_;
+  private Rectangle2D[] keyBounds_;
+  private double[] keyX_;
+  private double[] keyY_;
+  private byte[] keyStyle_;
+  private int[] firstKeyForRow_;
+  private LinkedHashMap<Integer, LabelBand> bands_;
+  private FontRenderContext frc_;
+  private BioFabricNetwork.ViewExtents viewExt_;
+  private boolean shadeNodes_;
+  private int minDrainZone_;
+  
+  //
+  // Bumped whenever what we would paint changes, so cached rasters know to redraw:
+  //
+  
+  private volatile int generation_;
   
   private FabricColorGenerator colGen_;
   private Color superLightPink_;
@@ -148,10 +198,14 @@ public class PaintCacheSmall {
     nameKeyToPaintZero_ = new HashMap<String, BoxPath>();
     nameKeyToPaintOneQuarter_ = new HashMap<String, BoxPath>();
     nameKeyToPaintOneHalf_ = new HashMap<String, TextPath>();
-    nameKeyToPaintFirst_ = new HashMap<String, BoxPath>();
-    nameKeyToPaintSecond_ = new HashMap<String, TextPath>();
-    nameKeyToPaintThird_ = new HashMap<String, TextPath>();
-    nameKeyToNodeID_ = new HashMap<String, NID>();
+    bands_ = new LinkedHashMap<Integer, LabelBand>(16, 0.75F, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, LabelBand> eldest) {
+        return (size() > MAX_CACHED_BANDS_);
+      }
+    };
+    frc_ = new FontRenderContext(new AffineTransform(), true, true);
 
     colGen_ = colGen;
     superLightPink_ = new Color(255, 244, 244);
@@ -174,13 +228,19 @@ public class PaintCacheSmall {
   */
   
   public void clear() {
+    generation_++;
     nameKeyToPaintZero_.clear();
     nameKeyToPaintOneQuarter_.clear();
     nameKeyToPaintOneHalf_.clear();
-  	nameKeyToPaintFirst_.clear();
-    nameKeyToPaintSecond_.clear();
-    nameKeyToPaintThird_.clear();
-    nameKeyToNodeID_.clear();
+    clearBands();
+    keyToNodeRow_ = null;
+    keyBounds_ = null;
+    keyX_ = null;
+    keyY_ = null;
+    keyStyle_ = null;
+    firstKeyForRow_ = null;
+    nodeKeyCount_ = 0;
+    viewExt_ = null;
     nodeRefs_ = null;
     linkRefs_ = null;
     nodeIndex_ = null;
@@ -195,6 +255,15 @@ public class PaintCacheSmall {
   }
  
 
+  /***************************************************************************
+  **
+  **  Changes every time the paint contents are rebuilt or cleared
+  */
+  
+  public int getGeneration() {
+    return (generation_);
+  }
+
   /***************************************************************************
   **
   **  paint it
@@ -207,6 +276,26 @@ public class PaintCacheSmall {
       names_.getPayloadKeys(clip, pKeys);
     }
     
+    //
+    // Node label paint objects get built here the first time they are needed:
+    //
+    
+    HashMap<String, LabelBand> keyToBand = new HashMap<String, LabelBand>();
+    HashMap<Integer, LabelBand> seenBands = new HashMap<Integer, LabelBand>();
+    for (String pkey : pKeys) {
+      int keyNum = Integer.parseInt(pkey);
+      if (keyNum >= nodeKeyCount_) {
+        continue;
+      }
+      Integer bandNum = Integer.valueOf((keyToNodeRow_[keyNum] - nodeIndexOffset_) / BAND_ROWS_);
+      LabelBand band = seenBands.get(bandNum);
+      if (band == null) {
+        band = getBand(bandNum.intValue());
+        seenBands.put(bandNum, band);
+      }
+      keyToBand.put(pkey, band);
+    }
+    
     //
     // Zero pass is node annotation rectangles, which are not drawn for selections:
     //
@@ -255,7 +344,8 @@ public class PaintCacheSmall {
     
     if (reduce == null) {
 	    for (String pkey : pKeys) {
-	      BoxPath pp = nameKeyToPaintFirst_.get(pkey);
+	      LabelBand band = keyToBand.get(pkey);
+	      BoxPath pp = (band == null) ? null : band.first.get(pkey);
 	    	if (pp != null) {
 	        int result = pp.paint(g2, clip);
 	        retval = retval || (result > 0);
@@ -268,9 +358,9 @@ public class PaintCacheSmall {
     //
     
     for (String pkey : pKeys) {
-    	NID forKey = nameKeyToNodeID_.get(pkey); 			
-      if ((reduce == null) || reduce.paintNames.contains(forKey)) {
-        TextPath pp = nameKeyToPaintSecond_.get(pkey);
+      LabelBand band = keyToBand.get(pkey);
+      if ((band != null) && ((reduce == null) || reduce.paintNames.contains(nodeIDForKey(pkey)))) {
+        TextPath pp = band.second.get(pkey);
     	  if (pp != null) {
           int result = pp.paint(g2, clip, fonts_);
           retval = retval || (result > 0);
@@ -387,9 +477,9 @@ public class PaintCacheSmall {
     //
     
     for (String pkey : pKeys) {
-    	NID forKey = nameKeyToNodeID_.get(pkey); 			
-      if ((reduce == null) || reduce.paintNames.contains(forKey)) {
-        TextPath pp = nameKeyToPaintThird_.get(pkey);
+      LabelBand band = keyToBand.get(pkey);
+      if ((band != null) && ((reduce == null) || reduce.paintNames.contains(nodeIDForKey(pkey)))) {
+        TextPath pp = band.third.get(pkey);
     	  if (pp != null) {
           int result = pp.paint(g2, clip, fonts_);
           retval = retval || (result > 0);
@@ -438,13 +528,11 @@ public class PaintCacheSmall {
 				                           AnnotationSet nodeAnnot, AnnotationSet linkAnnot, 
 				                           BTProgressMonitor monitor) throws AsynchExitRequestException {
   	
-  	
+  	generation_++;
     nameKeyToPaintZero_.clear();
     nameKeyToPaintOneQuarter_.clear();
     nameKeyToPaintOneHalf_.clear();
-    nameKeyToPaintFirst_.clear();
-    nameKeyToPaintSecond_.clear();
-    nameKeyToPaintThird_.clear();
+    clearBands();
 
     nameKeyCount_ = 0;
     
@@ -460,11 +548,11 @@ public class PaintCacheSmall {
      
    // nodes_ = new PaintedPath[targets.size()];
 
-    FontRenderContext frc = new FontRenderContext(new AffineTransform(), true, true);
+    FontRenderContext frc = frc_;
    
     int numLinks = links.size();
-    Map<Integer, MinMax> linkExtents = ext.allLinkExtents.get(Boolean.valueOf(showShadows));
-    MinMax linkCols = ext.allLinkFullRange.get(Boolean.valueOf(showShadows));
+    BioFabricNetwork.ViewExtents viewExt = ext.getView(showShadows);
+    MinMax linkCols = viewExt.getLinkFullRange();
      
     linkIndex_ = new int[(numLinks == 0) ? 0 : linkCols.max + 1 - linkCols.min];
     indexOffset_ = linkCols.min;  // In subviews, links do NOT start at column 0!
@@ -473,17 +561,8 @@ public class PaintCacheSmall {
     linkRefs_ = links;
     
     int numNodes = targets.size();
-    
-    LoopReporter lr = new LoopReporter(targets.size(), 20, monitor, 0.0, 1.0, "progress.buildNodeGraphics");
-    HashMap<Integer, MinMax> nodeExtents = ext.allNodeExtents.get(Boolean.valueOf(showShadows));
-    Integer singletonMinRow = ext.singletonNodeStart.get(Boolean.valueOf(showShadows));
-    MinMax nodeRows = ext.allNodeFullRange.get(Boolean.valueOf(showShadows));
-    for (int i = 0; i < numNodes; i++) {
-      BioFabricNetwork.NodeInfo node = targets.get(i);
-      int num = node.nodeRow;
-      lr.report();
-      buildNodeTextAndRect(node, frc, colGen_, linkExtents, shadeNodes, showShadows, nameMap, drainMap, qtpc);
-    }
+    Integer singletonMinRow = viewExt.getSingletonNodeStart();
+    MinMax nodeRows = viewExt.getNodeFullRange();
     
     nodeIndex_ = new int[(numNodes == 0) ? 0 : nodeRows.max + 1 - nodeRows.min];
     nodeIndexOffset_ = nodeRows.min;  // In subviews, links do NOT start at column 0!
@@ -491,6 +570,30 @@ public class PaintCacheSmall {
     Arrays.fill(nodeIndex_, -1);
     nodeRefs_ = targets;
     nodesForShadow_ = showShadows;
+    viewExt_ = viewExt;
+    shadeNodes_ = shadeNodes;
+    minDrainZone_ = FabricDisplayOptionsManager.getMgr().getDisplayOptions().getMinDrainZone();
+    
+    //
+    // Only the label and drain zone bounds are found up front, since the QuadTree and 
+    // the name maps need them. The paint objects get built per row band when they are
+    // first painted:
+    //
+    
+    firstKeyForRow_ = new int[nodeIndex_.length];
+    int keyAlloc = Math.max(16, numNodes * 2);
+    keyToNodeRow_ = new int[keyAlloc];
+    keyBounds_ = new Rectangle2D[keyAlloc];
+    keyX_ = new double[keyAlloc];
+    keyY_ = new double[keyAlloc];
+    keyStyle_ = new byte[keyAlloc];
+    LoopReporter lr = new LoopReporter(targets.size(), 20, monitor, 0.0, 1.0, "progress.buildNodeGraphics");
+    for (int i = 0; i < numNodes; i++) {
+      BioFabricNetwork.NodeInfo node = targets.get(i);
+      lr.report();
+      buildNodeTextAndRect(node, nameMap, drainMap, qtpc);
+    }
+    nodeKeyCount_ = nameKeyCount_;
       
     //
     // We do not build e.g. 10^6 link paths, but stock the drawing primitives while painting:
@@ -521,7 +624,7 @@ public class PaintCacheSmall {
         AnnotColorSource.AnnotColor acol = an.getColor();
         AnnotColorSource.AnnotColor col = (acol == null) ? annotColors_[annotCount++ % annotColors_.length] : acol;
         lr4.report();
-        buildAnAnnotationRect(an.getRange(), an.getName(), col.getColor(), true, nodeExtents, frc, linkCols, qtpc, null);
+        buildAnAnnotationRect(an.getRange(), an.getName(), col.getColor(), true, frc, linkCols, qtpc, null);
       }
     }
     
@@ -537,7 +640,7 @@ public class PaintCacheSmall {
           col = (acol == null) ? annotColors_[annotCount++ % annotColors_.length].getColor() : acol.getColor();
         }  
         lr5.report();
-        buildAnAnnotationRect(an.getRange(), an.getName(), col, false, linkExtents, frc, nodeRows, qtpc, singletonMinRow);
+        buildAnAnnotationRect(an.getRange(), an.getName(), col, false, frc, nodeRows, qtpc, singletonMinRow);
       }
     }
     
@@ -563,6 +666,7 @@ public class PaintCacheSmall {
     	names_.insertPayload(qtp);
     }
     qtpc.clear();
+    generation_++;
     return (worldRect);
   }
  
@@ -586,21 +690,27 @@ public class PaintCacheSmall {
 
   /***************************************************************************
   **
-  ** Build the text objects associated with a node
+  ** Find the bounds of the text objects associated with a node, for the QuadTree and
+  ** the name maps. This is the only place fonts get measured; the bounds, placement,
+  ** and font choice are kept by key so the band builder can make the paint objects
+  ** without measuring again.
   */
   
   private void buildNodeTextAndRect(BioFabricNetwork.NodeInfo target,
-                                    FontRenderContext frc,
-                                    FabricColorGenerator colGen, Map<Integer, MinMax> linkExtents,
-                                    boolean shadeNodes, boolean showShadows, Map<NetNode, Rectangle2D> nameMap,
+                                    Map<NetNode, Rectangle2D> nameMap,
                                     Map<NetNode, List<Rectangle2D>> drainMap, ArrayList<QuadTree.Payload> payloadCache) {
  
+    int rowIndex = target.nodeRow - nodeIndexOffset_;
+    int nextKey = nameKeyCount_;
+    firstKeyForRow_[rowIndex] = nextKey;
+    
     //
     // Left end node label sizing and Y:
     //
     
-    MinMax colmm = target.getColRange(showShadows);
-    Rectangle2D labelBounds = fonts_.get(TextPath.FontSizes.TINY).getStringBounds(target.getNodeName(), frc);
+    MinMax colmm = target.getColRange(nodesForShadow_);
+    Rectangle2D labelBounds = fonts_.get(TextPath.FontSizes.TINY).getStringBounds(target.getNodeName(), frc_);
+    double tinyWidth = labelBounds.getWidth();
     // Easiest font height hack is to scale it by ~.67: 
     double scaleHeight = labelBounds.getHeight() * LABEL_FONT_HEIGHT_SCALE_;
     double namey = (target.nodeRow * BioFabricPanel.GRID_SIZE) + (scaleHeight / 2.0);
@@ -611,13 +721,10 @@ public class PaintCacheSmall {
     // Get the name bounds into the map and the extents into the QuadTree:
     //
     
+    String nkk = Integer.toString(nextKey);
     nameMap.put(target.getNodeIDWithName(), (Rectangle2D) labelBounds.clone());
-    TextPath npp = new TextPath(Color.BLACK, target.getNodeName(), namex, namey, labelBounds, false, TextPath.FontSizes.TINY);
-    String nkk = Integer.toString(nameKeyCount_++);
-    QuadTree.Payload pay = new QuadTree.Payload(labelBounds, nkk);
-    payloadCache.add(pay);
-    nameKeyToPaintSecond_.put(nkk, npp);
-    nameKeyToNodeID_.put(nkk, target.getNodeID());
+    payloadCache.add(new QuadTree.Payload(labelBounds, nkk));
+    addNodeKey(nextKey++, target.nodeRow, labelBounds, namex, namey, KEY_LABEL_, false, TextPath.FontSizes.TINY);
     
     //
     // Now process drain zones:
@@ -637,7 +744,7 @@ public class PaintCacheSmall {
     // Drain zone info for each zone:
     //
     
-    List<BioFabricNetwork.DrainZone> zones = target.getDrainZones(showShadows);
+    List<BioFabricNetwork.DrainZone> zones = target.getDrainZones(nodesForShadow_);
  
     //
     // Process each zone:
@@ -653,13 +760,12 @@ public class PaintCacheSmall {
       // Check if drain zone can show text
       //
   
-      FabricDisplayOptions options = FabricDisplayOptionsManager.getMgr().getDisplayOptions();
-      curr.setGreaterThanMinDZ(curr.diff + 1 >= options.getMinDrainZone());
+      curr.setGreaterThanMinDZ(curr.diff + 1 >= minDrainZone_);
       // + 1 because #links in (a,b) is b-a+1
       
       // Drain zone sizing / rotation:
       
-      curr.setTextSize(target, fonts_, bigToLittle_, frc);
+      curr.setTextSize(target, fonts_, bigToLittle_, frc_, tinyWidth);
       
 	    //
 	    // Create drain zone text if there is some:
@@ -685,9 +791,10 @@ public class PaintCacheSmall {
 	      // Build the node zone shade rectangle if one is requested:
 	      //
 	      
-	      if (shadeNodes) {
-	      	Color col = ((target.nodeRow % 2) == 0) ? superLightBlue_ : superLightPink_;
-	        buildANodeShadeRect(curr.dzmm, linkExtents, curr.dumpRect, col, payloadCache);
+	      if (shadeNodes_) {
+	        Rectangle rect = buildANodeShadeRect(curr.dzmm, curr.dumpRect);
+	        payloadCache.add(new QuadTree.Payload(rect, Integer.toString(nextKey)));
+	        addNodeKey(nextKey++, target.nodeRow, rect, 0.0, 0.0, KEY_SHADE_, false, null);
 	      }
 	      
 	    }
@@ -698,18 +805,8 @@ public class PaintCacheSmall {
           // Output the node label and (optional) drain zone label.  If we are using a tiny font for the drain
           // zone, it goes out last to get drawn above the links.
           //
-          TextPath drain = new TextPath(Color.BLACK, target.getNodeName(), tnamex, tnamey,
-                  curr.dumpRect, curr.doRotateName, curr.font);
-          nkk = Integer.toString(nameKeyCount_++);
-          pay = new QuadTree.Payload(curr.dumpRect, nkk);
-          payloadCache.add(pay);
-          if (curr.font == TextPath.FontSizes.TINY) {
-            nameKeyToPaintThird_.put(nkk, drain);
-            nameKeyToNodeID_.put(nkk, target.getNodeID());
-          } else {
-            nameKeyToPaintSecond_.put(nkk, drain);
-            nameKeyToNodeID_.put(nkk, target.getNodeID());
-          }
+          payloadCache.add(new QuadTree.Payload(curr.dumpRect, Integer.toString(nextKey)));
+          addNodeKey(nextKey++, target.nodeRow, curr.dumpRect, tnamex, tnamey, KEY_DRAIN_, curr.doRotateName, curr.font);
         }
       
       if (curr.dumpRect != null) {
@@ -717,10 +814,103 @@ public class PaintCacheSmall {
       }
     }
     drainMap.put(target.getNodeIDWithName(), rectList);
-    
+    nameKeyCount_ = nextKey;
     return;
   } 
   
+  /***************************************************************************
+  **
+  ** Remember which node row a key belongs to, and what it takes to build its
+  ** paint object
+  */
+  
+  private void addNodeKey(int key, int nodeRow, Rectangle2D bounds, double x, double y, 
+                          int kind, boolean rotate, TextPath.FontSizes font) {
+    if (key >= keyToNodeRow_.length) {
+      int newLen = keyToNodeRow_.length * 2;
+      keyToNodeRow_ = Arrays.copyOf(keyToNodeRow_, newLen);
+      keyBounds_ = Arrays.copyOf(keyBounds_, newLen);
+      keyX_ = Arrays.copyOf(keyX_, newLen);
+      keyY_ = Arrays.copyOf(keyY_, newLen);
+      keyStyle_ = Arrays.copyOf(keyStyle_, newLen);
+    }
+    keyToNodeRow_[key] = nodeRow;
+    keyBounds_[key] = bounds;
+    keyX_[key] = x;
+    keyY_[key] = y;
+    int style = kind | ((rotate) ? KEY_ROTATE_ : 0);
+    if (font != null) {
+      style |= (font.ordinal() << KEY_FONT_SHIFT_);
+    }
+    keyStyle_[key] = (byte)style;
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the node ID for a node label key
+  */
+  
+  private NID nodeIDForKey(String pkey) {
+    int row = keyToNodeRow_[Integer.parseInt(pkey)];
+    return (nodeRefs_.get(nodeIndex_[row - nodeIndexOffset_]).getNodeID());
+  }
+   
+  /***************************************************************************
+  **
+  ** Get the node label paint objects for a band of rows, building them if we 
+  ** do not have them cached
+  */
+  
+  private synchronized LabelBand getBand(int bandNum) {
+    Integer bandKey = Integer.valueOf(bandNum);
+    LabelBand retval = bands_.get(bandKey);
+    if (retval != null) {
+      return (retval);
+    }
+    retval = new LabelBand();
+    TextPath.FontSizes[] sizes = TextPath.FontSizes.values();
+    int startIndex = bandNum * BAND_ROWS_;
+    int endIndex = Math.min(startIndex + BAND_ROWS_, nodeIndex_.length);
+    for (int i = startIndex; i < endIndex; i++) {
+      if (nodeIndex_[i] == -1) {
+        continue;
+      }
+      BioFabricNetwork.NodeInfo target = nodeRefs_.get(nodeIndex_[i]);
+      int nodeRow = target.nodeRow;
+      for (int key = firstKeyForRow_[i]; (key < nodeKeyCount_) && (keyToNodeRow_[key] == nodeRow); key++) {
+        String nkk = Integer.toString(key);
+        int style = keyStyle_[key];
+        int kind = style & KEY_KIND_MASK_;
+        if (kind == KEY_SHADE_) {
+          Color col = ((nodeRow % 2) == 0) ? superLightBlue_ : superLightPink_;
+          retval.first.put(nkk, new BoxPath(col, (Rectangle)keyBounds_[key]));
+          continue;
+        }
+        TextPath.FontSizes font = sizes[style >>> KEY_FONT_SHIFT_];
+        boolean rotate = ((style & KEY_ROTATE_) != 0);
+        TextPath tp = new TextPath(Color.BLACK, target.getNodeName(), keyX_[key], keyY_[key], keyBounds_[key], rotate, font);
+        if ((kind == KEY_DRAIN_) && (font == TextPath.FontSizes.TINY)) {
+          retval.third.put(nkk, tp);
+        } else {
+          retval.second.put(nkk, tp);
+        }
+      }
+    }
+    bands_.put(bandKey, retval);
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Drop the cached bands
+  */
+  
+  private synchronized void clearBands() {
+    bands_.clear();
+    return;
+  }
+  
   /***************************************************************************
    ** Contains the properties required to draw a drain zone
    */
@@ -751,18 +941,25 @@ public class PaintCacheSmall {
     
     /***************************************************************************
 	  **
-	  ** Set the drain zone text size
+	  ** Set the drain zone text size. Sizes that the TINY width says are way too
+	  ** wide do not get measured.
 	  */
 	  
 	  private void setTextSize(BioFabricNetwork.NodeInfo target, Map<TextPath.FontSizes, Font> fonts, 
-	  		                     List<TextPath.FontSizes> bigToSmall, FontRenderContext frc) { 
+	  		                     List<TextPath.FontSizes> bigToSmall, FontRenderContext frc, double tinyWidth) { 
 	  	this.doRotateName = false;      
 	    this.diff = this.dzmm.max - this.dzmm.min;
+	    double maxWidth = BioFabricPanel.GRID_SIZE * this.diff;
 	    
 	    Rectangle2D bounds = null;
-	    for (TextPath.FontSizes size : bigToSmall) {  
-	      bounds = fonts.get(size).getStringBounds(target.getNodeName(), frc);
-	      if (bounds.getWidth() <= (BioFabricPanel.GRID_SIZE * this.diff)) {
+	    for (TextPath.FontSizes size : bigToSmall) {
+	      Font font = fonts.get(size);
+	      if ((size != TextPath.FontSizes.TINY) && 
+	          ((tinyWidth * (font.getSize2D() / TINY_POINT_SIZE_)) > (maxWidth * FIT_ESTIMATE_SLOP_))) {
+	        continue;
+	      }
+	      bounds = font.getStringBounds(target.getNodeName(), frc);
+	      if (bounds.getWidth() <= maxWidth) {
 	        this.font = size;
 	        this.dumpRect = bounds;
           bounds = null;
@@ -781,23 +978,16 @@ public class PaintCacheSmall {
   
   /***************************************************************************
   **
-  ** Build a backRect
+  ** Build the bounds of a node zone shade rectangle
   */
   
-  private void buildANodeShadeRect(MinMax dzmm, Map<Integer, MinMax> linkExtents, 
-  		                             Rectangle2D dumpRect, Color col, ArrayList<QuadTree.Payload> payloadCache) {  
+  private Rectangle buildANodeShadeRect(MinMax dzmm, Rectangle2D dumpRect) {  
     int minRow = Integer.MAX_VALUE;
     int maxRow = Integer.MIN_VALUE;       
+    // Columns without links report an empty range, so they drop out here:
     for (int i = dzmm.min; i <= dzmm.max; i++) {
-      MinMax range = linkExtents.get(Integer.valueOf(i));
-      if (range != null) {
-        if (minRow > range.min) {
-          minRow = range.min;
-        }
-        if (maxRow < range.max) {
-          maxRow = range.max;
-        }
-      }
+      minRow = Math.min(minRow, viewExt_.getColumnTopRow(i));
+      maxRow = Math.max(maxRow, viewExt_.getColumnBottomRow(i));
     }
     int rectLeft = (int)Math.floor((dzmm.min * BioFabricPanel.GRID_SIZE) - BB_HALF_WIDTH_ - (STROKE_SIZE / 2.0));
     int topRow = (int)Math.floor((minRow * BioFabricPanel.GRID_SIZE) - BB_HALF_WIDTH_ - (STROKE_SIZE / 2.0));
@@ -806,13 +996,7 @@ public class PaintCacheSmall {
     int rectWidth = rectRight - rectLeft;
     int rectBot = (int)Math.floor((maxRow * BioFabricPanel.GRID_SIZE) + BB_HALF_WIDTH_ + (STROKE_SIZE / 2.0));
     int rectHeight = rectBot - rectTop;
-    Rectangle rect = new Rectangle(rectLeft, rectTop, rectWidth, rectHeight);
-    BoxPath npp = new BoxPath(col, rect);
-    String nkk = Integer.toString(nameKeyCount_++);
-    QuadTree.Payload pay = new QuadTree.Payload(rect, nkk);
-    payloadCache.add(pay);
-    nameKeyToPaintFirst_.put(nkk, npp);
-    return;
+    return (new Rectangle(rectLeft, rectTop, rectWidth, rectHeight));
   }
  
   /***************************************************************************
@@ -835,7 +1019,7 @@ public class PaintCacheSmall {
   */
   
   private void buildAnAnnotationRect(MinMax dzmm, String name, Color col, boolean isHoriz, 
-                                     Map<Integer, MinMax> extents, FontRenderContext frc, 
+                                     FontRenderContext frc, 
                                      MinMax fullExtents, ArrayList<QuadTree.Payload> payloadCache,
                                      Integer extentCap) {  
     
@@ -944,7 +1128,24 @@ public class PaintCacheSmall {
     return;
   }
   
-    ////////////////////////////////////////////////////////////////////////////
+  /***************************************************************************
+  **
+  ** Node label paint objects for a band of rows
+  */
+  
+  private static class LabelBand {
+    HashMap<String, BoxPath> first;
+    HashMap<String, TextPath> second;
+    HashMap<String, TextPath> third;
+    
+    LabelBand() {
+      first = new HashMap<String, BoxPath>();
+      second = new HashMap<String, TextPath>();
+      third = new HashMap<String, TextPath>();
+    }
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC INNER CLASSES
   //
@@ -19,12 +19,12 @@
 
 package org.systemsbiology.biofabric.ui.render;
 
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
 import java.awt.image.DirectColorModel;
 import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -33,9 +33,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 
 import org.systemsbiology.biofabric.util.UiUtil;
 
@@ -43,7 +40,7 @@ import org.systemsbiology.biofabric.util.UiUtil;
 /****************************************************************************
 **
 ** This is a cache to hold tiling images using their compressed underlying
-** data buffers.
+** data buffers. How the pixels get compressed is up to the TileCodec.
 */
 
 public class RasterCache {
@@ -57,12 +54,15 @@ public class RasterCache {
   private String cachePref_;  
   private HashMap<String, BytesWithMeta> bufferCache_;
   private HashMap<String, String> handleToFile_;
+  private HashMap<String, TilePyramidStore.StoredTile> handleToStore_;
+  private TilePyramidStore store_;
   private HashMap<String, InfoForImage> infoForImage_;
   private ArrayList<String> queue_;
   private int nextHandle_;
   private int maxMeg_;
   private int currSize_;
   private ShiftData shiftData_;
+  private TileCodec codec_;
 
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -72,13 +72,23 @@ public class RasterCache {
 
   /***************************************************************************
   **
-  ** Constructor
+  ** Constructor. Uses the run-length codec.
   */
 
   public RasterCache(String cachePref, int maxMeg, DirectColorModel cMod) {
+    this(cachePref, maxMeg, cMod, null);
+  }
+  
+  /***************************************************************************
+  **
+  ** Constructor with a specified codec. If null, use the run-length codec.
+  */
+
+  public RasterCache(String cachePref, int maxMeg, DirectColorModel cMod, TileCodec codec) {
     cachePref_ = cachePref;
     bufferCache_ = new HashMap<String, BytesWithMeta>();
     handleToFile_ = new HashMap<String, String>();
+    handleToStore_ = new HashMap<String, TilePyramidStore.StoredTile>();
     infoForImage_ = new HashMap<String, InfoForImage>();
     queue_ = new ArrayList<String>();
     nextHandle_ = 0;
@@ -88,7 +98,7 @@ public class RasterCache {
     maxMeg_ = maxMeg * 1000000;
     currSize_ = 0;
     shiftData_ = new ShiftData(cMod);
-
+    codec_ = (codec == null) ? new RunLengthTileCodec(shiftData_) : codec;
   }
 
   ////////////////////////////////////////////////////////////////////////////
@@ -135,6 +145,49 @@ public class RasterCache {
     return (handle);
   }
 
+  /***************************************************************************
+  **
+  ** Get the codec we compress with
+  */
+  
+  public TileCodec getCodec() {
+    return (codec_);
+  }
+  
+  /***************************************************************************
+  **
+  ** Get a handle for a tile that lives in a persistent store. Nothing is read
+  ** in until the image is asked for. When it gets bumped out of memory, it 
+  ** just gets dropped, since the store still has it.
+  */
+  
+  public String adoptStoredImage(TilePyramidStore store, TilePyramidStore.StoredTile tile, 
+                                 int width, int height, int type) {
+    if ((store_ != null) && (store_ != store)) {
+      throw new IllegalArgumentException();
+    }
+    store_ = store;
+    String handle = Integer.toString(nextHandle_++);
+    infoForImage_.put(handle, new InfoForImage(width, height, type, tile.numBytes));
+    handleToStore_.put(handle, tile);
+    return (handle);
+  }
+  
+  /***************************************************************************
+  **
+  ** Write the compressed image for the handle out to the persistent store
+  */
+  
+  public void persistAnImage(String handle, TilePyramidStore store, int depth, 
+                             Rectangle2D worldRect, ImgAndBufPool bis) throws IOException {
+    BytesWithMeta bwm = getADataBuffer(handle, bis);
+    if (bwm == null) {
+      throw new IOException();
+    }
+    store.appendTile(depth, worldRect, bwm.buf, bwm.used);
+    return;
+  }
+
   /***************************************************************************
   **
   ** Release resources
@@ -151,8 +204,18 @@ public class RasterCache {
   */
   
   public static void threeBytesToOneInt(byte[] input, int[] output, ShiftData sd) {
+    threeBytesToOneInt(input, output, output.length, sd);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Write bytes into the first numInts ints.
+  */
+  
+  public static void threeBytesToOneInt(byte[] input, int[] output, int numInts, ShiftData sd) {
     int byteIndex = 0;
-    for (int intIndex = 0; intIndex < output.length; intIndex++) {
+    for (int intIndex = 0; intIndex < numInts; intIndex++) {
       output[intIndex] = 0;
       output[intIndex] |= (input[byteIndex++] & 0xFF) << sd.redShift_;
       output[intIndex] |= (input[byteIndex++] & 0xFF) << sd.greenShift_;
@@ -181,7 +244,17 @@ public class RasterCache {
   */
   
   public static void oneIntToThreeBytes(int[] input, byte[] output, ShiftData sd) {
-    for (int intIndex = 0; intIndex < input.length; intIndex++) {
+    oneIntToThreeBytes(input, output, input.length, sd);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the first numInts ints for a TYPE_INT_RGB into bytes
+  */
+  
+  public static void oneIntToThreeBytes(int[] input, byte[] output, int numInts, ShiftData sd) {
+    for (int intIndex = 0; intIndex < numInts; intIndex++) {
     	int byteBase = 3 * intIndex;
     	output[byteBase] = (byte)((input[intIndex] & sd.redMask_) >> sd.redShift_);
     	output[byteBase + 1] = (byte)((input[intIndex] & sd.greenMask_) >> sd.greenShift_);
@@ -211,6 +284,7 @@ public class RasterCache {
     queue_.remove(handle);
     bufferCache_.remove(handle);
     infoForImage_.remove(handle);
+    handleToStore_.remove(handle);
     bis.returnByteBuf(bye.buf);
 
     String fileName = handleToFile_.get(handle);
@@ -237,6 +311,12 @@ public class RasterCache {
       currSize_ = 0;
     }
     bis.returnByteBuf(bye.buf);
+    
+    //
+    // Whatever the store has is now stale:
+    //
+    
+    handleToStore_.remove(handle);
 
     // Note above getADataBuffer put us at the front of the queue
     
@@ -268,6 +348,17 @@ public class RasterCache {
     while (((sizeEst + currSize_) > maxMeg_) && (queue_.size() > 0)) {
       String goodBye = queue_.remove(queue_.size() - 1);
       BytesWithMeta bwm = bufferCache_.remove(goodBye);
+      if (handleToStore_.containsKey(goodBye)) {
+        //
+        // No need to write it out, we can get it back from the store:
+        //
+        currSize_ -= bwm.buf.length;
+        if (currSize_ < 0) {
+          currSize_ = 0;
+        }
+        bis.returnByteBuf(bwm.buf);
+        continue;
+      }
       String fileName = handleToFile_.get(goodBye);
       if (fileName == null) {
       	//System.out.println("Flushing to file cache to maintain size");
@@ -409,26 +500,35 @@ public class RasterCache {
     //
    
     String fileName = handleToFile_.get(handle);
+    InfoForImage ifi = infoForImage_.get(handle); 
    
     if (fileName == null) {
-      return (null);
-    }
-    
-    //
-    // File is gone (should not happen...handleToFile_ should be authoritative):
-    //
-    
-    File holdFile = new File(fileName);
-    if (!holdFile.exists()) {
-      return (null);
+      //
+      // Maybe it is in the persistent store:
+      //
+      TilePyramidStore.StoredTile tile = handleToStore_.get(handle);
+      if (tile == null) {
+        return (null);
+      }
+      byte[] buf = bis.fetchByteBuf(ifi.compressedNumBytes);
+      store_.readTile(tile, buf);
+      retval = new BytesWithMeta(buf, tile.numBytes);
+    } else {
+      //
+      // File is gone (should not happen...handleToFile_ should be authoritative):
+      //
+      
+      File holdFile = new File(fileName);
+      if (!holdFile.exists()) {
+        return (null);
+      }
+      
+      //
+      // Get the image in from file:
+      //
+      
+      retval = readBufferFromFile(holdFile, ifi, bis);
     }
-    
-    //
-    // Get the image in from file:
-    //
-    
-    InfoForImage ifi = infoForImage_.get(handle); 
-    retval = readBufferFromFile(holdFile, ifi, bis);
 
     //
     // Manage in-memory cache size, toss least recently used:
@@ -456,49 +556,21 @@ public class RasterCache {
   	Raster rast = bi.getRaster();
   	DataBufferInt dbb = (DataBufferInt)rast.getDataBuffer();
   	int[] data = dbb.getData();
-  	byte[] byteData = bis.fetchByteBuf(data.length * 3);
-  	oneIntToThreeBytes(data, byteData, shiftData_);
-  	
-  	// We do not know how big the result will be. So we use a buffer the same size as the
-  	// data. IS THAT A PROBLEM???? What about METADATA?
-  	byte[] output = bis.fetchByteBuf(byteData.length);
-    Deflater deflate = new Deflater();
-    deflate.setInput(byteData);
-    deflate.finish();
-    int compressedDataLength = deflate.deflate(output);
-    byte[] result = bis.fetchByteBuf(compressedDataLength);
-    System.arraycopy(output, 0, result, 0, compressedDataLength);
-    bis.returnByteBuf(output);
-    bis.returnByteBuf(byteData);
-    ifi.setCompressedSize(compressedDataLength);
-    return (new BytesWithMeta(result, compressedDataLength));
+    BytesWithMeta retval = codec_.encode(data, ifi.width, ifi.height, bis);
+    ifi.setCompressedSize(retval.used);
+    return (retval);
   }
     
   /***************************************************************************
   ** 
   ** Convert a buffer into an image. Buffer is not recycled, caller is responsible.
+  ** We decode straight into the image's data buffer.
   */
 
   private BufferedImage bufToImage(BytesWithMeta bwm, ImgAndBufPool bis, InfoForImage ifi) throws IOException {   	
-  	Inflater inflate = new Inflater();
-    byte[] decomp = bis.fetchByteBuf(ifi.uncompressedNumBytes);
-    inflate.setInput(bwm.buf, 0, bwm.used);
-    int resultLength;
-    try {
-      resultLength = inflate.inflate(decomp);
-    } catch (DataFormatException dfex) {
-    	throw new IOException();
-    }
-    inflate.end();
-    
-    int[] intData = bis.fetchBuf(decomp.length / 3);
-    threeBytesToOneInt(decomp, intData, shiftData_);
- 
     BufferedImage bi = bis.fetchImage(ifi.width, ifi.height, ifi.type);
-  	WritableRaster biRast = bi.getRaster();
-  	biRast.setDataElements(0, 0, ifi.width, ifi.height, intData);
-    bis.returnByteBuf(decomp);
-    bis.returnBuf(intData);
+    DataBufferInt dbb = (DataBufferInt)bi.getRaster().getDataBuffer();
+    codec_.decode(bwm, dbb.getData(), ifi.width, ifi.height, bis);
     return (bi);
   }
   
@@ -515,12 +587,12 @@ public class RasterCache {
   ** buffer holds useful data.
   */ 
  
-  private static class BytesWithMeta {
+  public static class BytesWithMeta {
   
-    byte[] buf;
-    int used;
+    public byte[] buf;
+    public int used;
   
-    BytesWithMeta(byte[] buf, int used) {
+    public BytesWithMeta(byte[] buf, int used) {
     	this.buf = buf;
       this.used = used;
     }
@@ -551,6 +623,14 @@ public class RasterCache {
       this.type = bi.getType();
 	  }
     
+    InfoForImage(int width, int height, int type, int compressedNumBytes) {
+      this.uncompressedNumBytes = width * height * 3;	
+      this.compressedNumBytes = compressedNumBytes;
+      this.width = width;
+      this.height = height;
+      this.type = type;
+    }
+    
     void setCompressedSize(int size) {
     	this.compressedNumBytes = size;
 	  } 
@@ -0,0 +1,210 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.ui.render;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/****************************************************************************
+**
+** A run-length codec tuned for fabric tiles. Tiles are mostly white, node
+** rows are long horizontal runs, and link columns repeat from one row to the
+** next. So each row is written as a series of ops: either "copy the next N
+** pixels from the row above", or "N pixels of this color". Each op is a varint 
+** of (N << 1 | type), with three color bytes following a run. No entropy coding, 
+** so it is much faster than deflate in both directions.
+*/
+
+public class RunLengthTileCodec implements TileCodec {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+
+  private static final int COPY_ABOVE_ = 0;
+  private static final int COLOR_RUN_  = 1;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private RasterCache.ShiftData sd_;
+  private int rgbMask_;
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public RunLengthTileCodec(RasterCache.ShiftData shiftData) {
+    sd_ = shiftData;
+    rgbMask_ = sd_.redMask_ | sd_.greenMask_ | sd_.blueMask_;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Encode the tile. First pass sizes the output exactly, second pass fills it.
+  */
+
+  public RasterCache.BytesWithMeta encode(int[] pixels, int width, int height, ImgAndBufPool bis) {
+    int size = encodeRows(pixels, width, height, null);
+    byte[] result = bis.fetchByteBuf(size);
+    encodeRows(pixels, width, height, result);
+    return (new RasterCache.BytesWithMeta(result, size));
+  }
+    
+  /***************************************************************************
+  ** 
+  ** Decode the tile
+  */
+
+  public void decode(RasterCache.BytesWithMeta bwm, int[] pixels, int width, int height, 
+                     ImgAndBufPool bis) throws IOException {
+    byte[] buf = bwm.buf;
+    int used = bwm.used;
+    int inPos = 0;
+    try {
+      for (int i = 0; i < height; i++) {
+        int outPos = i * width;
+        int rowEnd = outPos + width;
+        while (outPos < rowEnd) {
+          int op = 0;
+          int shift = 0;
+          byte nextByte;
+          do {
+            nextByte = buf[inPos++];
+            op |= (nextByte & 0x7F) << shift;
+            shift += 7;
+          } while ((nextByte & 0x80) != 0);
+          int len = op >>> 1;
+          if ((len <= 0) || ((outPos + len) > rowEnd)) {
+            throw new IOException();
+          }
+          if ((op & 0x01) == COPY_ABOVE_) {
+            if (i == 0) {
+              throw new IOException();
+            }
+            System.arraycopy(pixels, outPos - width, pixels, outPos, len);
+          } else {
+            int color = ((buf[inPos] & 0xFF) << sd_.redShift_) | 
+                        ((buf[inPos + 1] & 0xFF) << sd_.greenShift_) | 
+                        ((buf[inPos + 2] & 0xFF) << sd_.blueShift_);
+            inPos += 3;
+            Arrays.fill(pixels, outPos, outPos + len, color);
+          }
+          outPos += len;
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException aioobe) {
+      throw new IOException();
+    }
+    if (inPos != used) {
+      throw new IOException();
+    }
+    return;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Encode the rows into the output buffer. If the buffer is null, we just
+  ** count the bytes we would need. At each spot, we greedily take whichever
+  ** of a copy from above or a color run is longer, preferring the copy.
+  */
+
+  private int encodeRows(int[] pixels, int width, int height, byte[] out) {
+    int outPos = 0;
+    for (int i = 0; i < height; i++) {
+      int rowStart = i * width;
+      int rowEnd = rowStart + width;
+      int pos = rowStart;
+      while (pos < rowEnd) {
+        int copyEnd = pos;
+        if (i > 0) {
+          while ((copyEnd < rowEnd) && ((pixels[copyEnd] & rgbMask_) == (pixels[copyEnd - width] & rgbMask_))) {
+            copyEnd++;
+          }
+        }
+        int color = pixels[pos] & rgbMask_;
+        int runEnd = pos + 1;
+        while ((runEnd < rowEnd) && ((pixels[runEnd] & rgbMask_) == color)) {
+          runEnd++;
+        }
+        if (copyEnd >= runEnd) {
+          outPos = writeVarInt(((copyEnd - pos) << 1) | COPY_ABOVE_, out, outPos);
+          pos = copyEnd;
+        } else {
+          outPos = writeVarInt(((runEnd - pos) << 1) | COLOR_RUN_, out, outPos);
+          if (out != null) {
+            out[outPos] = (byte)((color & sd_.redMask_) >> sd_.redShift_);
+            out[outPos + 1] = (byte)((color & sd_.greenMask_) >> sd_.greenShift_);
+            out[outPos + 2] = (byte)((color & sd_.blueMask_) >> sd_.blueShift_);
+          }
+          outPos += 3;
+          pos = runEnd;
+        }
+      }
+    }
+    return (outPos);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Write a varint, or just count its bytes if the buffer is null. Returns
+  ** the new position.
+  */
+
+  private static int writeVarInt(int val, byte[] out, int outPos) {
+    while (val >= 0x80) {
+      if (out != null) {
+        out[outPos] = (byte)((val & 0x7F) | 0x80);
+      }
+      outPos++;
+      val >>>= 7;
+    }
+    if (out != null) {
+      out[outPos] = (byte)val;
+    }
+    outPos++;
+    return (outPos);
+  }
+}
@@ -0,0 +1,48 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.ui.render;
+
+import java.io.IOException;
+
+/****************************************************************************
+**
+** Interface for the compressors that RasterCache uses to hold onto tile
+** pixels. Buffers handed out come from the pool, and the caller owns them.
+*/
+
+public interface TileCodec {
+  
+  /***************************************************************************
+  **
+  ** Encode the pixels of a width x height tile
+  */
+
+  public RasterCache.BytesWithMeta encode(int[] pixels, int width, int height, ImgAndBufPool bis);
+
+  /***************************************************************************
+  **
+  ** Decode into the given pixel array, which must hold width x height ints
+  */
+  
+  public void decode(RasterCache.BytesWithMeta bwm, int[] pixels, int width, int height, 
+                     ImgAndBufPool bis) throws IOException;
+  
+}
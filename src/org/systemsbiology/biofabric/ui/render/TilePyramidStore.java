@@ -0,0 +1,387 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package org.systemsbiology.biofabric.ui.render;
+
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+
+/****************************************************************************
+**
+** A persistent home for rendered tiles, kept in a file next to the saved
+** network. The file is a header carrying a key that identifies what was drawn
+** (network fingerprint plus tiling parameters), followed by an append-only log
+** of compressed tiles. If the key does not match when we open the file, it is
+** emptied and started fresh. On open, existing tiles are memory mapped so
+** they can be pulled back in without rendering. A partly written tail (e.g. 
+** after a crash) is just cut off.
+*/
+
+public class TilePyramidStore {
+   
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  private static final int FILE_MAGIC_ = 0x42465450; // "BFTP"
+  private static final int TILE_MAGIC_ = 0x54494C45; // "TILE"
+  private static final int VERSION_ = 1;
+  private static final int KEY_BYTES_ = 32;
+  private static final int HEADER_SIZE_ = 4 + 4 + KEY_BYTES_;
+  
+  //
+  // magic, depth, x, y, w, h, blank flag, byte count:
+  //
+  
+  private static final int RECORD_HEADER_SIZE_ = 4 + 4 + (4 * 8) + 1 + 4;
+  
+  //
+  // A single mapping tops out at 2GB. Don't let the file grow past that:
+  //
+  
+  private static final long MAX_FILE_SIZE_ = Integer.MAX_VALUE;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+   
+  private File file_;
+  private RandomAccessFile raf_;
+  private FileChannel channel_;
+  private MappedByteBuffer mapped_;
+  private HashMap<Rectangle2D, StoredTile> stored_;
+  private long writePos_;
+  private boolean failed_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  private TilePyramidStore(File file) {
+    file_ = file;
+    stored_ = new HashMap<Rectangle2D, StoredTile>();
+    failed_ = false;
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Open the store in the given file. If the key is different from the one in the
+  ** file, the old contents are thrown away.
+  */
+  
+  public static TilePyramidStore open(File file, byte[] key) throws IOException {
+    if (key.length != KEY_BYTES_) {
+      throw new IllegalArgumentException();
+    }
+    TilePyramidStore retval = new TilePyramidStore(file);
+    try {
+      retval.openFile(key);
+    } catch (IOException ioex) {
+      retval.close();
+      throw ioex;
+    }
+    return (retval);
+  }
+ 
+  /***************************************************************************
+  **
+  ** The tiles we found in the file when we opened it. If the same region was
+  ** written more than once, the last one wins.
+  */
+  
+  public synchronized List<StoredTile> getStoredTiles() {
+    return (new ArrayList<StoredTile>(stored_.values()));
+  }
+  
+  /***************************************************************************
+  **
+  ** Copy the compressed bytes for a stored tile into the given buffer
+  */
+  
+  public synchronized void readTile(StoredTile tile, byte[] dest) throws IOException {
+    if ((mapped_ == null) || tile.isBlank || (dest.length < tile.numBytes)) {
+      throw new IOException();
+    }
+    mapped_.position((int)tile.offset_);
+    mapped_.get(dest, 0, tile.numBytes);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Append a compressed tile to the file. Once we have had a write failure, or
+  ** the file is full, we just stop writing.
+  */
+  
+  public synchronized void appendTile(int depth, Rectangle2D worldRect, byte[] buf, int used) throws IOException {
+    appendRecord(depth, worldRect, false, buf, used);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Note that a tile has nothing drawn on it
+  */
+  
+  public synchronized void appendBlank(int depth, Rectangle2D worldRect) throws IOException {
+    appendRecord(depth, worldRect, true, null, 0);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Close the file. The mapping itself stays valid until it is collected, but
+  ** we drop our hold on it.
+  */
+  
+  public synchronized void close() {
+    mapped_ = null;
+    stored_.clear();
+    try {
+      if (channel_ != null) {
+        channel_.close();
+      }
+      if (raf_ != null) {
+        raf_.close();
+      }
+    } catch (IOException ioex) {
+      // Nothing more we need from it
+    }
+    channel_ = null;
+    raf_ = null;
+    return;
+  }
+ 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Open up the file, check the key, and map in existing tiles 
+  */
+  
+  private void openFile(byte[] key) throws IOException {
+    raf_ = new RandomAccessFile(file_, "rw");
+    channel_ = raf_.getChannel();
+    long size = channel_.size();
+    if (!headerMatches(key, size)) {
+      channel_.truncate(0L);
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE_);
+      header.putInt(FILE_MAGIC_);
+      header.putInt(VERSION_);
+      header.put(key);
+      header.flip();
+      writeFully(header, 0L);
+      writePos_ = HEADER_SIZE_;
+      return;
+    }
+    
+    //
+    // Walk the record headers to find the good stuff. Anything past the last 
+    // complete record gets chopped:
+    //
+    
+    ByteBuffer recHead = ByteBuffer.allocate(RECORD_HEADER_SIZE_);
+    long pos = HEADER_SIZE_;
+    ArrayList<StoredTile> found = new ArrayList<StoredTile>();
+    while ((pos + RECORD_HEADER_SIZE_) <= size) {
+      recHead.clear();
+      if (!readFully(recHead, pos)) {
+        break;
+      }
+      recHead.flip();
+      if (recHead.getInt() != TILE_MAGIC_) {
+        break;
+      }
+      int depth = recHead.getInt();
+      double x = recHead.getDouble();
+      double y = recHead.getDouble();
+      double w = recHead.getDouble();
+      double h = recHead.getDouble();
+      boolean isBlank = (recHead.get() != 0);
+      int numBytes = recHead.getInt();
+      long dataPos = pos + RECORD_HEADER_SIZE_;
+      if ((numBytes < 0) || ((dataPos + numBytes) > size)) {
+        break;
+      }
+      found.add(new StoredTile(depth, new Rectangle2D.Double(x, y, w, h), isBlank, dataPos, numBytes));
+      pos = dataPos + numBytes;
+    }
+    if (pos < size) {
+      channel_.truncate(pos);
+    }
+    writePos_ = pos;
+    if (pos > HEADER_SIZE_) {
+      mapped_ = channel_.map(FileChannel.MapMode.READ_ONLY, 0L, pos);
+    }
+    for (StoredTile tile : found) {
+      stored_.put(tile.worldRect, tile);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Answer if the file starts with our header and key
+  */
+  
+  private boolean headerMatches(byte[] key, long size) throws IOException {
+    if (size < HEADER_SIZE_) {
+      return (false);
+    }
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE_);
+    if (!readFully(header, 0L)) {
+      return (false);
+    }
+    header.flip();
+    if ((header.getInt() != FILE_MAGIC_) || (header.getInt() != VERSION_)) {
+      return (false);
+    }
+    byte[] fileKey = new byte[KEY_BYTES_];
+    header.get(fileKey);
+    return (Arrays.equals(key, fileKey));
+  }
+
+  /***************************************************************************
+  **
+  ** Append a record
+  */
+  
+  private void appendRecord(int depth, Rectangle2D worldRect, boolean isBlank, byte[] buf, int used) throws IOException {
+    if (failed_ || (channel_ == null)) {
+      return;
+    }
+    long recSize = RECORD_HEADER_SIZE_ + used;
+    if ((writePos_ + recSize) > MAX_FILE_SIZE_) {
+      return;
+    }
+    ByteBuffer rec = ByteBuffer.allocate((int)recSize);
+    rec.putInt(TILE_MAGIC_);
+    rec.putInt(depth);
+    rec.putDouble(worldRect.getX());
+    rec.putDouble(worldRect.getY());
+    rec.putDouble(worldRect.getWidth());
+    rec.putDouble(worldRect.getHeight());
+    rec.put((byte)((isBlank) ? 1 : 0));
+    rec.putInt(used);
+    if (used > 0) {
+      rec.put(buf, 0, used);
+    }
+    rec.flip();
+    try {
+      writeFully(rec, writePos_);
+    } catch (IOException ioex) {
+      //
+      // Leave whatever partial record we wrote; it gets chopped on the next open:
+      //
+      failed_ = true;
+      throw ioex;
+    }
+    writePos_ += recSize;
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Write out the whole buffer at the given position
+  */
+  
+  private void writeFully(ByteBuffer buf, long pos) throws IOException {
+    long at = pos;
+    while (buf.hasRemaining()) {
+      at += channel_.write(buf, at);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Fill the buffer from the given position. False if we hit the end first.
+  */
+  
+  private boolean readFully(ByteBuffer buf, long pos) throws IOException {
+    long at = pos;
+    while (buf.hasRemaining()) {
+      int num = channel_.read(buf, at);
+      if (num == -1) {
+        return (false);
+      }
+      at += num;
+    }
+    return (true);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Where a tile lives in the file
+  */ 
+ 
+  public static class StoredTile {
+  
+    public final int depth;
+    public final Rectangle2D worldRect;
+    public final boolean isBlank;
+    public final int numBytes;
+    private final long offset_;
+  
+    StoredTile(int depth, Rectangle2D worldRect, boolean isBlank, long offset, int numBytes) {
+      this.depth = depth;
+      this.worldRect = worldRect;
+      this.isBlank = isBlank;
+      this.offset_ = offset;
+      this.numBytes = numBytes;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+
+/*
+**    Copyright (C) 2003-2018 Institute for Systems Biology 
+**                            Seattle, Washington, USA. 
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biofabric.util;
+
+import java.lang.management.ManagementFactory;
+
+/****************************************************************************
+**
+** Reports how far into startup we are as each startup milestone is reached.
+** Turned on by setting the "biofabric.startupTiming" system property to true;
+** each milestone is then printed to stderr as milliseconds since the JVM 
+** started. When it is off, a milestone costs one boolean check, and the 
+** management classes are never loaded.
+*/
+
+public final class StartupTimer {
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////  
+  
+  public static final String ENABLE_PROPERTY = "biofabric.startupTiming";
+  
+  //
+  // Each report line starts with this, so benchmarks can pick them out:
+  //
+  
+  public static final String REPORT_TAG = "[startup]";
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////  
+
+  private static final boolean enabled_ = Boolean.getBoolean(ENABLE_PROPERTY);
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////    
+  
+  /***************************************************************************
+  **
+  ** Not to be instantiated
+  */
+  
+  private StartupTimer() {
+  }  
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Answer if we are reporting
+  */
+  
+  public static boolean isEnabled() {
+    return (enabled_);
+  }
+  
+  /***************************************************************************
+  **
+  ** Note that we have reached a milestone. Any thread can call this.
+  */
+  
+  public static void mark(String milestone) {
+    if (!enabled_) {
+      return;
+    }
+    long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+    System.err.println(REPORT_TAG + " " + milestone + " " + uptime + " ms");
+    return;
+  }
+}
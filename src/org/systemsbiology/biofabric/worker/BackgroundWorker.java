@@ -24,6 +24,8 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 
@@ -33,23 +35,50 @@ import org.systemsbiology.biofabric.api.worker.BackgroundCore;
 
 /****************************************************************************
 **
-** Class to support running background threads
+** Class to support running background threads. Progress reports from the worker
+** thread just update a few volatile fields; a Swing timer samples them on the
+** UI thread a few times a second and hands the latest state to the client. So
+** reporting costs the worker nearly nothing, and the UI thread is never flooded.
 */
 
 public class BackgroundWorker implements Runnable, BTProgressMonitor {
 
+  //
+  // How often the UI thread looks at the progress:
+  //
+  
+  private static final int SAMPLE_MILLIS_ = 100;
+  
   protected Object myResult_;
   protected Object earlyResult_;  
   protected Exception caughtException_;
   protected OutOfMemoryError memError_;  
-  protected int total_;
-  protected int done_;
-  protected boolean cancelRequested_;
+  protected volatile int total_;
+  protected volatile int done_;
+  protected volatile boolean cancelRequested_;
   protected BackgroundWorkerClient client_;
   protected Timer checkCancelTimer_;
   protected boolean isForeground_;
   private BackgroundCore core_;
   
+  //
+  // Written by the worker, sampled by the UI thread:
+  //
+  
+  private volatile int percent_;
+  private volatile String phase_;
+  private volatile boolean unknown_;
+  private AtomicInteger updateCount_;
+  private AtomicReference<SortedMap<Integer, Double>> rankings_;
+  
+  //
+  // Only touched on the UI thread:
+  //
+  
+  private int lastSampledCount_;
+  private String lastSampledPhase_;
+  private boolean lastSampledUnknown_;
+  
   public BackgroundWorker() {
     this(null, false);
   }
@@ -65,6 +94,11 @@ public class BackgroundWorker implements Runnable, BTProgressMonitor {
     memError_ = null;
     cancelRequested_ = false;
     isForeground_ = isForeground;
+    updateCount_ = new AtomicInteger(0);
+    rankings_ = new AtomicReference<SortedMap<Integer, Double>>();
+    lastSampledCount_ = 0;
+    lastSampledPhase_ = null;
+    lastSampledUnknown_ = false;
   }
    
   public void setClientAndCore(BackgroundWorkerClient client, BackgroundCore core) {
@@ -86,12 +120,12 @@ public class BackgroundWorker implements Runnable, BTProgressMonitor {
   public void runBackground() {
     try {
       try {
-        int delay = 1000;
-        checkCancelTimer_ = new Timer(delay, new ActionListener() {
+        checkCancelTimer_ = new Timer(SAMPLE_MILLIS_, new ActionListener() {
           public void actionPerformed(ActionEvent evt) {
-            cancelRequested_ = !client_.keepGoing();
+            sampleProgress();
           }
         });
+        checkCancelTimer_.setCoalesce(true);
         checkCancelTimer_.start();
         myResult_ = core_.runCore();
         // Added 1/29/09 : Without this, don't we just keep running?
@@ -177,73 +211,81 @@ public class BackgroundWorker implements Runnable, BTProgressMonitor {
   public boolean keepGoing() {
     return (!cancelRequested_);
   }      
+  
+  /****************************************************************************
+  **
+  ** The client calls this (on the UI thread) when the user cancels, so the worker
+  ** sees it on its next progress report.
+  */  
+  
+  public void requestCancel() {
+    cancelRequested_ = true;
+    return;
+  }
 
   public boolean updateRankings(SortedMap<Integer, Double> rankings) {
-    RankProgresso prog = new RankProgresso(rankings);
-    SwingUtilities.invokeLater(prog);
+    rankings_.set(new TreeMap<Integer, Double>(rankings));
     return (!cancelRequested_);
   }   
   
   public boolean updateProgress(int done) {
     done_ = done;
-    int percent = (int)(((double)done / (double)total_) * 100.0);
-    Progresso prog = new Progresso(percent);
-    SwingUtilities.invokeLater(prog);
+    percent_ = (int)(((double)done / (double)total_) * 100.0);
+    unknown_ = false;
+    updateCount_.incrementAndGet();
     return (!cancelRequested_);
   }  
   
   public boolean updateUnknownProgress() {
-    Progresso prog = new Progresso();
-    SwingUtilities.invokeLater(prog);
+    unknown_ = true;
+    updateCount_.incrementAndGet();
     return (!cancelRequested_);
   }
 
   public boolean updateProgressAndPhase(int done, String message) {
     done_ = done;
-    int percent = (int)(((double)done / (double)total_) * 100.0);
-    Progresso prog = new Progresso(percent, message);
-    SwingUtilities.invokeLater(prog);
+    percent_ = (int)(((double)done / (double)total_) * 100.0);
+    phase_ = message;
+    unknown_ = false;
+    updateCount_.incrementAndGet();
     return (!cancelRequested_);
   }  
   
+  /****************************************************************************
+  **
+  ** Runs on the UI thread off the timer. Only the latest state gets passed
+  ** along, and only if it has changed. If the latest report was of unknown
+  ** progress, the client is switched to indeterminate once.
+  */  
   
-  private class Progresso implements Runnable {
-    int percent_;
-    String message_;
-    
-    Progresso() {
-      percent_ = Integer.MIN_VALUE;
-      message_ = null;
+  private void sampleProgress() {
+    int count = updateCount_.get();
+    if (count != lastSampledCount_) {
+      lastSampledCount_ = count;
+      boolean unknown = unknown_;
+      int percent = percent_;
+      String phase = phase_;
+      boolean keepGoing;
+      if (unknown) {
+        keepGoing = lastSampledUnknown_ || client_.setToIndeterminate();
+      } else if ((phase != null) && !phase.equals(lastSampledPhase_)) {
+        lastSampledPhase_ = phase;
+        keepGoing = client_.updateProgressAndPhase(percent, phase);
+      } else {
+        keepGoing = client_.updateProgress(percent);
+      }
+      lastSampledUnknown_ = unknown;
+      if (!keepGoing) {
+        cancelRequested_ = true;
+      }
     }
- 
-    Progresso(int percent) {
-      percent_ = percent;
-      message_ = null;
-    }  
-    
-    Progresso(int percent, String message) {
-      percent_ = percent;
-      message_ = message;
-    }  
-    
-    public void run() {
-    	if (message_ == null) {
-    	  cancelRequested_ = !client_.updateProgress(percent_);
-    	} else if (percent_ == Integer.MIN_VALUE) {
-    	  cancelRequested_ = !client_.setToIndeterminate();
-    	} else {
-    		cancelRequested_ = !client_.updateProgressAndPhase(percent_, message_);
-    	} 
+    SortedMap<Integer, Double> ranks = rankings_.getAndSet(null);
+    if ((ranks != null) && !client_.updateRankings(ranks)) {
+      cancelRequested_ = true;
     }
-  }
-  
-  private class RankProgresso implements Runnable {
-    TreeMap<Integer, Double> ranks_;      
-    RankProgresso(SortedMap<Integer, Double> ranks) {
-      ranks_ = new TreeMap<Integer, Double>(ranks);
-    }      
-    public void run() {
-      cancelRequested_ = !client_.updateRankings(ranks_);
+    if (!client_.keepGoing()) {
+      cancelRequested_ = true;
     }
+    return;
   }
 } 
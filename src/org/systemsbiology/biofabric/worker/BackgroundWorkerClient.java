@@ -28,6 +28,7 @@ import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.SortedMap;
+import java.util.concurrent.Executor;
 
 import javax.swing.JDialog;
 import javax.swing.JProgressBar;
@@ -70,6 +71,7 @@ public class BackgroundWorkerClient {
   private FixedJButton cancelButton_;
   private boolean isHeadless_;
   private PluginResourceManager pluginRMan_;
+  private Executor runner_;
  
 
   //
@@ -92,6 +94,7 @@ public class BackgroundWorkerClient {
     isHeadless_ = false;
     chart_ = null;
     pluginRMan_ = rMan;
+    runner_ = null;
   }
   
   public void makeSuperChart() {
@@ -116,6 +119,7 @@ public class BackgroundWorkerClient {
     cancelRequested_ = false;
     isHeadless_ = true;
     chart_ = null;
+    runner_ = null;
   }
  
   public void launchWorker(boolean doDisable) {
@@ -126,9 +130,13 @@ public class BackgroundWorkerClient {
       progressBar_ = null;       
       worker_.setTotal(100);
       if (!isHeadless_) {
-        Thread runThread = new Thread(worker_);
         prepProgressDialog();
-        runThread.start();
+        if (runner_ == null) {
+          Thread runThread = new Thread(worker_);
+          runThread.start();
+        } else {
+          runner_.execute(worker_);
+        }
         progressDialog_.setVisible(true);
       } else {
         worker_.run();
@@ -144,18 +152,28 @@ public class BackgroundWorkerClient {
     return;
   }
 
+  /***************************************************************************
+  **
+  ** Run the worker on the given executor instead of a new thread
+  */
+  
+  public void setRunner(Executor runner) {
+    runner_ = runner;
+    return;
+  }
+
   private void prepProgressDialog() {
     if (done_) {
       return;
     }
     ResourceManager rMan = ResourceManager.getManager();   
-    progressDialog_ = new JDialog(topWindow_, rMan.getString(waitTitle_), true);
+    progressDialog_ = new JDialog(topWindow_, localize(waitTitle_), true);
     if (chart_ == null) {
       progressDialog_.setSize(350, 200);
     } else {
       progressDialog_.setSize(600, 500);
     }
-    progressMessage_ = new JLabel(rMan.getString(waitMsg_), JLabel.CENTER);
+    progressMessage_ = new JLabel(localize(waitMsg_), JLabel.CENTER);
     Container cp = progressDialog_.getContentPane();
     cp.setLayout(new GridBagLayout());
     GridBagConstraints gbc = new GridBagConstraints();
@@ -260,13 +278,7 @@ public class BackgroundWorkerClient {
       progressBar_.setIndeterminate(false);
     }
     if (progressMessage_ != null) {
-    	ResourceManager rMan = ResourceManager.getManager();
-    	String locMsg = (pluginRMan_ == null) ? rMan.getString(message) :  pluginRMan_.getPluginString(message);
-    	// Passthrough. If plugin does not provide or override, we check the core resources:
-    	if (locMsg.equals(message)) {
-    		locMsg = rMan.getString(message);
-    	}
-      progressMessage_.setText(locMsg);
+      progressMessage_.setText(localize(message));
       progressMessage_.invalidate();
       progressDialog_.validate();
     }
@@ -280,6 +292,7 @@ public class BackgroundWorkerClient {
   
   public void requestCancel() {
     cancelRequested_ = true;
+    worker_.requestCancel();
     return;
   } 
   
@@ -353,6 +366,22 @@ public class BackgroundWorkerClient {
     cancellingMessage_.invalidate();
     progressDialog_.validate();
     cancelRequested_ = true;
+    worker_.requestCancel();
+  }
+  
+  /***************************************************************************
+  **
+  ** Plugin strings first. Passthrough: if the plugin does not provide or override, 
+  ** we check the core resources
+  */
+  
+  private String localize(String key) {
+    ResourceManager rMan = ResourceManager.getManager();
+    String locMsg = (pluginRMan_ == null) ? rMan.getString(key) : pluginRMan_.getPluginString(key);
+    if (locMsg.equals(key)) {
+      locMsg = rMan.getString(key);
+    }
+    return (locMsg);
   }
 }
 